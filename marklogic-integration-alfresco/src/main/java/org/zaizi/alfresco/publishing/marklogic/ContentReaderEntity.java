@@ -0,0 +1,107 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Http entity which streams the content of a {@link ContentReader} straight into the request body.<br/>
+ * Used for content stores which do not expose a local file (encrypted, S3, caching stores), so that
+ * the content does not have to be copied to a temp file before it is sent to MarkLogic.<br/>
+ * This is not a zero-copy transfer: as with a {@link org.apache.http.entity.FileEntity}, the bytes still
+ * go through a heap buffer on their way to the socket. What is saved is writing and re-reading the copy.<br/>
+ * The entity is repeatable, each write opens a fresh reader on the same content.
+ */
+public class ContentReaderEntity extends AbstractHttpEntity {
+
+	/** The Constant BUFFER_SIZE. */
+	private final static int BUFFER_SIZE = 8192;
+
+	/** The reader. */
+	private final ContentReader reader;
+
+	/** The content length, -1 if unknown. */
+	private final long contentLength;
+
+	/**
+	 * Instantiates a new content reader entity.
+	 *
+	 * @param reader the reader
+	 * @param mimeType the mime type
+	 */
+	public ContentReaderEntity(final ContentReader reader, final String mimeType) {
+		super();
+		this.reader = reader;
+		final long size = reader.getSize();
+		this.contentLength = size > 0 ? size : -1;
+		setContentType(mimeType);
+		// Fall back to chunked transfer when the store cannot tell the size up front
+		setChunked(contentLength < 0);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.HttpEntity#isRepeatable()
+	 */
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.HttpEntity#getContentLength()
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.HttpEntity#getContent()
+	 */
+	public InputStream getContent() {
+		return reader.getReader().getContentInputStream();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.HttpEntity#writeTo(java.io.OutputStream)
+	 */
+	public void writeTo(final OutputStream outstream) throws IOException {
+		if (outstream == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		final InputStream instream = getContent();
+		try {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = instream.read(buffer)) != -1) {
+				outstream.write(buffer, 0, read);
+			}
+			outstream.flush();
+		} finally {
+			instream.close();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.HttpEntity#isStreaming()
+	 */
+	public boolean isStreaming() {
+		return false;
+	}
+}
@@ -0,0 +1,166 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Wraps an entity and gzip compresses it on the fly while it is written to the request.<br/>
+ * The compressed length is not known up front, so the entity is sent chunked. The bytes written
+ * before and after compression are reported to the {@link MarkLogicCompressionPolicy}.
+ */
+public class GzipCompressingEntity extends HttpEntityWrapper {
+
+	/** The Constant GZIP_CODEC. */
+	private final static String GZIP_CODEC = "gzip";
+
+	/** The policy collecting the compression counters. */
+	private final MarkLogicCompressionPolicy policy;
+
+	/**
+	 * Instantiates a new gzip compressing entity.
+	 *
+	 * @param entity the entity to compress
+	 * @param policy the policy collecting the compression counters
+	 */
+	public GzipCompressingEntity(final HttpEntity entity, final MarkLogicCompressionPolicy policy) {
+		super(entity);
+		this.policy = policy;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.entity.HttpEntityWrapper#getContentEncoding()
+	 */
+	@Override
+	public Header getContentEncoding() {
+		return new BasicHeader("Content-Encoding", GZIP_CODEC);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.entity.HttpEntityWrapper#getContentLength()
+	 */
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.entity.HttpEntityWrapper#isChunked()
+	 */
+	@Override
+	public boolean isChunked() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.entity.HttpEntityWrapper#getContent()
+	 */
+	@Override
+	public InputStream getContent() {
+		throw new UnsupportedOperationException("Gzip compressing entity does not implement #getContent()");
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.entity.HttpEntityWrapper#writeTo(java.io.OutputStream)
+	 */
+	@Override
+	public void writeTo(final OutputStream outstream) throws IOException {
+		if (outstream == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		final CountingOutputStream compressedCount = new CountingOutputStream(outstream);
+		final GzipOutputStream gzip = new GzipOutputStream(compressedCount);
+		try {
+			final CountingOutputStream uncompressedCount = new CountingOutputStream(gzip);
+			wrappedEntity.writeTo(uncompressedCount);
+			// Finish, not close: the request stream belongs to the connection
+			gzip.finish();
+			compressedCount.flush();
+			policy.recordCompression(uncompressedCount.count, compressedCount.count);
+		} finally {
+			// The request stream is never closed, so the native zlib memory is freed here
+			gzip.end();
+		}
+	}
+
+	/**
+	 * Gzip output stream whose deflater can be released without closing the underlying stream.
+	 */
+	private static final class GzipOutputStream extends GZIPOutputStream {
+
+		/**
+		 * Instantiates a new gzip output stream.
+		 *
+		 * @param out the out
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private GzipOutputStream(final OutputStream out) throws IOException {
+			super(out, 8192);
+		}
+
+		/**
+		 * Releases the deflater.
+		 */
+		private void end() {
+			def.end();
+		}
+	}
+
+	/**
+	 * Output stream counting the bytes passing through it.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+
+		/** The count. */
+		private long count;
+
+		/**
+		 * Instantiates a new counting output stream.
+		 *
+		 * @param out the out
+		 */
+		private CountingOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.FilterOutputStream#write(int)
+		 */
+		@Override
+		public void write(final int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.FilterOutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with log scaled millisecond buckets (about 25% wide, up to ten
+ * minutes), precise enough for p50/p95/p99 reporting at a fixed, small memory cost.
+ */
+public class LatencyHistogram {
+
+	/** The upper bounds of the buckets in millis, the last bucket is unbounded. */
+	private final static long[] BOUNDS;
+
+	static {
+		final List<Long> bounds = new ArrayList<Long>();
+		long bound = 1;
+		while (bound < 600000) {
+			bounds.add(Long.valueOf(bound));
+			bound = Math.max(bound + 1, bound * 5 / 4);
+		}
+		bounds.add(Long.valueOf(bound));
+		BOUNDS = new long[bounds.size()];
+		for (int i = 0; i < BOUNDS.length; i++) {
+			BOUNDS[i] = bounds.get(i).longValue();
+		}
+	}
+
+	/** The counts. */
+	private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+	/**
+	 * Records a sample.
+	 *
+	 * @param millis the millis
+	 */
+	public void record(final long millis) {
+		int bucket = Arrays.binarySearch(BOUNDS, millis);
+		if (bucket < 0) {
+			bucket = -bucket - 1;
+		}
+		counts.incrementAndGet(bucket);
+	}
+
+	/**
+	 * Gets the number of samples.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the latency below which the given fraction of samples fall.
+	 *
+	 * @param fraction the fraction, e.g. 0.99
+	 * @return the upper bound of the bucket holding the percentile in millis, 0 without samples
+	 */
+	public long getPercentile(final double fraction) {
+		final long[] snapshot = new long[counts.length()];
+		long total = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long target = (long) Math.ceil(fraction * total);
+		long cumulative = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			cumulative += snapshot[i];
+			if (cumulative >= target) {
+				return i < BOUNDS.length ? BOUNDS[i] : Long.MAX_VALUE;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+}
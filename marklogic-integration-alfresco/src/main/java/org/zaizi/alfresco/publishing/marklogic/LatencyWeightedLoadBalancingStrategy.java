@@ -0,0 +1,57 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks hosts at random, weighted by the inverse of their average latency, so faster hosts take a
+ * larger share of the requests. Hosts without a latency sample yet get the best known weight.
+ */
+public class LatencyWeightedLoadBalancingStrategy implements MarkLogicLoadBalancingStrategy {
+
+	/** The random. */
+	private final Random random = new Random();
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicLoadBalancingStrategy#choose(java.util.List)
+	 */
+	public MarkLogicHost choose(final List<MarkLogicHost> candidates) {
+		double bestWeight = 0;
+		final double[] weights = new double[candidates.size()];
+		for (int i = 0; i < weights.length; i++) {
+			final double latency = candidates.get(i).getAverageLatencyMillis();
+			weights[i] = latency > 0 ? 1.0 / latency : 0;
+			bestWeight = Math.max(bestWeight, weights[i]);
+		}
+		double total = 0;
+		for (int i = 0; i < weights.length; i++) {
+			if (weights[i] == 0) {
+				weights[i] = bestWeight > 0 ? bestWeight : 1.0;
+			}
+			total += weights[i];
+		}
+		double pick = random.nextDouble() * total;
+		for (int i = 0; i < weights.length; i++) {
+			pick -= weights[i];
+			if (pick < 0) {
+				return candidates.get(i);
+			}
+		}
+		return candidates.get(weights.length - 1);
+	}
+}
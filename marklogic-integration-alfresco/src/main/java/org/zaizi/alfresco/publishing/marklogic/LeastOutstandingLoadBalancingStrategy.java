@@ -0,0 +1,43 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests to the host with the fewest requests in flight, ties are broken in turn.
+ */
+public class LeastOutstandingLoadBalancingStrategy implements MarkLogicLoadBalancingStrategy {
+
+	/** The counter used to rotate the starting host. */
+	private final AtomicInteger counter = new AtomicInteger();
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicLoadBalancingStrategy#choose(java.util.List)
+	 */
+	public MarkLogicHost choose(final List<MarkLogicHost> candidates) {
+		final int start = (counter.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+		MarkLogicHost chosen = null;
+		for (int i = 0; i < candidates.size(); i++) {
+			final MarkLogicHost candidate = candidates.get((start + i) % candidates.size());
+			if (chosen == null || candidate.getOutstanding() < chosen.getOutstanding()) {
+				chosen = candidate;
+			}
+		}
+		return chosen;
+	}
+}
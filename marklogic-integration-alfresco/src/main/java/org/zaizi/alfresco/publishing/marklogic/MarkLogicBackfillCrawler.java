@@ -0,0 +1,724 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.publishing.channels.Channel;
+import org.alfresco.service.cmr.publishing.channels.ChannelService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Publishes the existing content of the repository to a MarkLogic channel, e.g. to fill a new database.<br/>
+ * The nodes matched by a query are read in pages of <code>pageSize</code> nodes sorted by database id,
+ * <code>pageThreads</code> pages at a time, and handed to the {@link MarkLogicPublishExecutor} at no more
+ * than <code>maxDocumentsPerSecond</code>. The first page not yet completed is checkpointed to disk after
+ * every page, so a stopped or crashed backfill resumes from there; pages completed after it are published
+ * again, which the published content index turns into cheap skips. Throughput and ETA are logged every
+ * <code>progressIntervalMillis</code> and exposed over JMX.
+ */
+public class MarkLogicBackfillCrawler implements MarkLogicBackfillCrawlerMBean, InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicBackfillCrawler.class);
+
+	/** The Constant SORT_FIELD, node database ids only grow, new nodes land on the last pages. */
+	private final static String SORT_FIELD = "@{http://www.alfresco.org/model/system/1.0}node-dbid";
+
+	/** The Constant JMX_NAME. */
+	private final static String JMX_NAME = "type=Backfill";
+
+	/** The publish executor. */
+	private MarkLogicPublishExecutor publishExecutor;
+
+	/** The search service. */
+	private SearchService searchService;
+
+	/** The channel service. */
+	private ChannelService channelService;
+
+	/** The transaction service. */
+	private TransactionService transactionService;
+
+	/** The publishing metrics, the crawler is registered with their MBeans. May be null. */
+	private MarkLogicPublishingMetrics metrics;
+
+	/** The store searched. */
+	private String storeRef = "workspace://SpacesStore";
+
+	/** The nodes per page. */
+	private int pageSize = 500;
+
+	/** The pages processed concurrently. */
+	private int pageThreads = 4;
+
+	/** The checkpoint directory, required. */
+	private String checkpointDirectory;
+
+	/** The progress log interval. */
+	private long progressIntervalMillis = 30000;
+
+	/** The rate limiter. */
+	private final MarkLogicRateLimiter rateLimiter = new MarkLogicRateLimiter(0);
+
+	/** The current or last backfill. */
+	private volatile Backfill backfill;
+
+	/**
+	 * Sets the publish executor.
+	 *
+	 * @param publishExecutor the new publish executor
+	 */
+	public void setPublishExecutor(final MarkLogicPublishExecutor publishExecutor) {
+		this.publishExecutor = publishExecutor;
+	}
+
+	/**
+	 * Sets the search service.
+	 *
+	 * @param searchService the new search service
+	 */
+	public void setSearchService(final SearchService searchService) {
+		this.searchService = searchService;
+	}
+
+	/**
+	 * Sets the channel service.
+	 *
+	 * @param channelService the new channel service
+	 */
+	public void setChannelService(final ChannelService channelService) {
+		this.channelService = channelService;
+	}
+
+	/**
+	 * Sets the transaction service.
+	 *
+	 * @param transactionService the new transaction service
+	 */
+	public void setTransactionService(final TransactionService transactionService) {
+		this.transactionService = transactionService;
+	}
+
+	/**
+	 * Sets the publishing metrics.
+	 *
+	 * @param metrics the new metrics
+	 */
+	public void setMetrics(final MarkLogicPublishingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the store searched.
+	 *
+	 * @param storeRef the new store ref
+	 */
+	public void setStoreRef(final String storeRef) {
+		this.storeRef = storeRef;
+	}
+
+	/**
+	 * Sets the nodes per page.
+	 *
+	 * @param pageSize the new page size
+	 */
+	public void setPageSize(final int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Sets the pages processed concurrently.
+	 *
+	 * @param pageThreads the new page threads
+	 */
+	public void setPageThreads(final int pageThreads) {
+		this.pageThreads = pageThreads;
+	}
+
+	/**
+	 * Sets the checkpoint directory.
+	 *
+	 * @param checkpointDirectory the new checkpoint directory
+	 */
+	public void setCheckpointDirectory(final String checkpointDirectory) {
+		this.checkpointDirectory = checkpointDirectory;
+	}
+
+	/**
+	 * Sets the progress log interval.
+	 *
+	 * @param progressIntervalMillis the new progress interval millis
+	 */
+	public void setProgressIntervalMillis(final long progressIntervalMillis) {
+		this.progressIntervalMillis = progressIntervalMillis;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#setMaxDocumentsPerSecond(double)
+	 */
+	public void setMaxDocumentsPerSecond(final double maxDocumentsPerSecond) {
+		rateLimiter.setRate(maxDocumentsPerSecond);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#getMaxDocumentsPerSecond()
+	 */
+	public double getMaxDocumentsPerSecond() {
+		return rateLimiter.getRate();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() {
+		if (checkpointDirectory == null || checkpointDirectory.length() == 0) {
+			throw new AlfrescoRuntimeException("MarkLogic backfill crawler has no checkpoint directory");
+		}
+		if (metrics != null) {
+			metrics.register(this, JMX_NAME);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() throws InterruptedException {
+		final Backfill current = backfill;
+		if (current != null && current.running) {
+			current.running = false;
+			current.coordinator.join(TimeUnit.SECONDS.toMillis(30));
+		}
+		if (metrics != null) {
+			metrics.unregister(JMX_NAME);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#startFolder(java.lang.String, java.lang.String)
+	 */
+	public void startFolder(final String channelName, final String folderPath) {
+		start(channelName, "PATH:\"" + folderPath + "//*\" AND TYPE:\"cm:content\"");
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#start(java.lang.String, java.lang.String)
+	 */
+	public synchronized void start(final String channelName, final String query) {
+		if (backfill != null && backfill.running) {
+			throw new AlfrescoRuntimeException("A MarkLogic backfill of channel " + backfill.channelName + " is already running");
+		}
+		final Map<QName, Serializable> channelProperties = AuthenticationUtil.runAsSystem(
+				new RunAsWork<Map<QName, Serializable>>() {
+					public Map<QName, Serializable> doWork() {
+						return transactionService.getRetryingTransactionHelper().doInTransaction(
+								new RetryingTransactionCallback<Map<QName, Serializable>>() {
+									public Map<QName, Serializable> execute() {
+										final Channel channel = channelService.getChannelByName(channelName);
+										return channel == null ? null : new HashMap<QName, Serializable>(channel.getProperties());
+									}
+								}, true);
+					}
+				});
+		if (channelProperties == null) {
+			throw new AlfrescoRuntimeException("No publishing channel named " + channelName);
+		}
+		final Backfill next = new Backfill(channelName, query, channelProperties);
+		next.loadCheckpoint();
+		backfill = next;
+		next.running = true;
+		next.coordinator.start();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#stop()
+	 */
+	public void stop() {
+		final Backfill current = backfill;
+		if (current != null) {
+			current.running = false;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#isRunning()
+	 */
+	public boolean isRunning() {
+		final Backfill current = backfill;
+		return current != null && current.running;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#getChannelName()
+	 */
+	public String getChannelName() {
+		final Backfill current = backfill;
+		return current == null ? null : current.channelName;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#getQuery()
+	 */
+	public String getQuery() {
+		final Backfill current = backfill;
+		return current == null ? null : current.query;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#getTotal()
+	 */
+	public long getTotal() {
+		final Backfill current = backfill;
+		return current == null ? 0 : current.total.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#getProcessed()
+	 */
+	public long getProcessed() {
+		final Backfill current = backfill;
+		return current == null ? 0 : current.resumedProcessed + current.processed.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#getFailed()
+	 */
+	public long getFailed() {
+		final Backfill current = backfill;
+		return current == null ? 0 : current.resumedFailed + current.failed.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#getThroughput()
+	 */
+	public double getThroughput() {
+		final Backfill current = backfill;
+		return current == null ? 0 : current.getThroughput();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#getEtaSeconds()
+	 */
+	public long getEtaSeconds() {
+		final Backfill current = backfill;
+		return current == null ? -1 : current.getEtaSeconds();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBackfillCrawlerMBean#getCheckpointPage()
+	 */
+	public int getCheckpointPage() {
+		final Backfill current = backfill;
+		return current == null ? 0 : current.checkpointPage;
+	}
+
+	/**
+	 * A single run of the crawler, from start or resume until done or stopped.
+	 */
+	private final class Backfill {
+
+		/** The channel name. */
+		private final String channelName;
+
+		/** The query. */
+		private final String query;
+
+		/** The channel properties. */
+		private final Map<QName, Serializable> channelProperties;
+
+		/** The checkpoint file. */
+		private final File checkpointFile;
+
+		/** The coordinator thread. */
+		private final Thread coordinator;
+
+		/** The next page to claim. */
+		private final AtomicInteger nextPage = new AtomicInteger();
+
+		/** The last page, known once a page comes back short. */
+		private final AtomicInteger lastPage = new AtomicInteger(Integer.MAX_VALUE);
+
+		/** The nodes matched by the query. */
+		private final AtomicLong total = new AtomicLong();
+
+		/** The nodes processed by this run. */
+		private final AtomicLong processed = new AtomicLong();
+
+		/** The nodes failed in this run. */
+		private final AtomicLong failed = new AtomicLong();
+
+		/** The processed and failed counts of the completed pages after the checkpoint page. */
+		private final Map<Integer, long[]> completedPages = new HashMap<Integer, long[]>();
+
+		/** The first page not yet completed. */
+		private volatile int checkpointPage;
+
+		/** The processed count up to the checkpoint page. */
+		private long checkpointProcessed;
+
+		/** The failed count up to the checkpoint page. */
+		private long checkpointFailed;
+
+		/** The processed count of the runs before a resume. */
+		private long resumedProcessed;
+
+		/** The failed count of the runs before a resume. */
+		private long resumedFailed;
+
+		/** The start time of this run. */
+		private long startMillis;
+
+		/** Whether the backfill runs, cleared to stop it. */
+		private volatile boolean running;
+
+		/** Whether a page could not be read, the backfill then stops unfinished. */
+		private volatile boolean aborted;
+
+		/**
+		 * Instantiates a new backfill.
+		 *
+		 * @param channelName the channel name
+		 * @param query the query
+		 * @param channelProperties the channel properties
+		 */
+		private Backfill(final String channelName, final String query, final Map<QName, Serializable> channelProperties) {
+			this.channelName = channelName;
+			this.query = query;
+			this.channelProperties = channelProperties;
+			final File directory = new File(checkpointDirectory);
+			if (!directory.exists() && !directory.mkdirs()) {
+				throw new AlfrescoRuntimeException("Unable to create MarkLogic checkpoint directory: " + directory);
+			}
+			checkpointFile = new File(directory, "backfill-"
+					+ Long.toHexString(MarkLogicPublishedContentIndex.fingerprint(channelName + '|' + query)) + ".checkpoint");
+			coordinator = new Thread(new Runnable() {
+				public void run() {
+					coordinate();
+				}
+			}, "MarkLogicBackfill");
+			coordinator.setDaemon(true);
+		}
+
+		/**
+		 * Resumes from the checkpoint of an unfinished run of the same channel, query and page size.
+		 */
+		private void loadCheckpoint() {
+			if (!checkpointFile.exists()) {
+				return;
+			}
+			final Properties checkpoint = new Properties();
+			try {
+				final InputStream in = new FileInputStream(checkpointFile);
+				try {
+					checkpoint.load(in);
+				} finally {
+					in.close();
+				}
+				if (!channelName.equals(checkpoint.getProperty("channel")) || !query.equals(checkpoint.getProperty("query"))
+						|| pageSize != Integer.parseInt(checkpoint.getProperty("pageSize"))) {
+					LOG.warn("Ignoring MarkLogic backfill checkpoint of another channel, query or page size: " + checkpointFile);
+					return;
+				}
+				checkpointPage = Integer.parseInt(checkpoint.getProperty("page"));
+				resumedProcessed = Long.parseLong(checkpoint.getProperty("processed"));
+				resumedFailed = Long.parseLong(checkpoint.getProperty("failed"));
+				nextPage.set(checkpointPage);
+				if (LOG.isInfoEnabled()) {
+					LOG.info("Resuming MarkLogic backfill of channel " + channelName + " at page " + checkpointPage
+							+ ", " + resumedProcessed + " nodes already processed");
+				}
+			} catch (IOException ioex) {
+				LOG.warn("Unable to read MarkLogic backfill checkpoint, starting over: " + ioex.getLocalizedMessage());
+			} catch (RuntimeException runtimeEx) {
+				LOG.warn("Corrupt MarkLogic backfill checkpoint, starting over: " + runtimeEx.getLocalizedMessage());
+			}
+		}
+
+		/**
+		 * Runs the page threads and logs the progress until they are done.
+		 */
+		private void coordinate() {
+			startMillis = System.currentTimeMillis();
+			if (LOG.isInfoEnabled()) {
+				LOG.info("MarkLogic backfill of channel " + channelName + " started: " + query);
+			}
+			final List<Thread> pageWorkers = new ArrayList<Thread>();
+			for (int i = 1; i <= pageThreads; i++) {
+				final Thread pageWorker = new Thread(new Runnable() {
+					public void run() {
+						crawl();
+					}
+				}, "MarkLogicBackfill-page-" + i);
+				pageWorker.setDaemon(true);
+				pageWorker.start();
+				pageWorkers.add(pageWorker);
+			}
+			try {
+				for (final Thread pageWorker : pageWorkers) {
+					while (pageWorker.isAlive()) {
+						pageWorker.join(progressIntervalMillis);
+						if (pageWorker.isAlive() && LOG.isInfoEnabled()) {
+							LOG.info("MarkLogic backfill progress: " + this);
+						}
+					}
+				}
+			} catch (InterruptedException intEx) {
+				Thread.currentThread().interrupt();
+			}
+			final boolean completed = running && !aborted;
+			if (completed && !checkpointFile.delete() && checkpointFile.exists()) {
+				LOG.warn("Unable to remove MarkLogic backfill checkpoint: " + checkpointFile);
+			}
+			// Cleared after the checkpoint is gone, so a new start does not resume a completed run
+			running = false;
+			if (LOG.isInfoEnabled()) {
+				LOG.info("MarkLogic backfill of channel " + channelName + (completed ? " completed: " : " stopped: ") + this);
+			}
+		}
+
+		/**
+		 * Claims and publishes pages until the last page or a stop.
+		 */
+		private void crawl() {
+			while (running) {
+				final int page = nextPage.getAndIncrement();
+				if (page > lastPage.get()) {
+					return;
+				}
+				final List<NodeRef> nodeRefs;
+				try {
+					nodeRefs = readPage(page);
+				} catch (RuntimeException runtimeEx) {
+					LOG.error("Unable to read page " + page + " of the MarkLogic backfill, stopping: " + runtimeEx.getLocalizedMessage());
+					aborted = true;
+					running = false;
+					return;
+				}
+				if (nodeRefs.size() < pageSize) {
+					lowerLastPage(page);
+				}
+				try {
+					publishPage(page, nodeRefs);
+				} catch (InterruptedException intEx) {
+					Thread.currentThread().interrupt();
+					running = false;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Reads the node refs of a page.
+		 *
+		 * @param page the page
+		 * @return the node refs
+		 */
+		private List<NodeRef> readPage(final int page) {
+			return AuthenticationUtil.runAsSystem(new RunAsWork<List<NodeRef>>() {
+				public List<NodeRef> doWork() {
+					return transactionService.getRetryingTransactionHelper().doInTransaction(
+							new RetryingTransactionCallback<List<NodeRef>>() {
+								public List<NodeRef> execute() {
+									final SearchParameters searchParameters = new SearchParameters();
+									searchParameters.addStore(new StoreRef(storeRef));
+									searchParameters.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+									searchParameters.setQuery(query);
+									searchParameters.addSort(SORT_FIELD, true);
+									searchParameters.setSkipCount(page * pageSize);
+									searchParameters.setMaxItems(pageSize);
+									final ResultSet resultSet = searchService.query(searchParameters);
+									try {
+										if (resultSet.getNumberFound() > total.get()) {
+											total.set(resultSet.getNumberFound());
+										}
+										return new ArrayList<NodeRef>(resultSet.getNodeRefs());
+									} finally {
+										resultSet.close();
+									}
+								}
+							}, true, true);
+				}
+			});
+		}
+
+		/**
+		 * Publishes the nodes of a page at the limited rate and waits for them.
+		 *
+		 * @param page the page
+		 * @param nodeRefs the node refs
+		 * @throws InterruptedException the interrupted exception
+		 */
+		private void publishPage(final int page, final List<NodeRef> nodeRefs) throws InterruptedException {
+			final Map<NodeRef, Future<MarkLogicPublishResult>> futures = new HashMap<NodeRef, Future<MarkLogicPublishResult>>();
+			long pageFailed = 0;
+			for (final NodeRef nodeRef : nodeRefs) {
+				if (!running) {
+					// The page is not completed, a resume publishes it again
+					return;
+				}
+				rateLimiter.acquire();
+				try {
+					futures.put(nodeRef, publishExecutor.submitPublish(nodeRef, channelProperties));
+				} catch (AlfrescoRuntimeException alfEx) {
+					pageFailed++;
+					LOG.warn("MarkLogic backfill could not queue " + nodeRef + ": " + alfEx.getLocalizedMessage());
+				}
+			}
+			for (final Map.Entry<NodeRef, Future<MarkLogicPublishResult>> future : futures.entrySet()) {
+				MarkLogicPublishResult result;
+				try {
+					result = future.getValue().get();
+				} catch (ExecutionException execEx) {
+					result = new MarkLogicPublishResult(future.getKey(), MarkLogicPublishResult.Status.FAILED, 0,
+							execEx.getCause().getLocalizedMessage());
+				}
+				if (result.getStatus() == MarkLogicPublishResult.Status.FAILED) {
+					pageFailed++;
+					LOG.warn("MarkLogic backfill failed to publish " + result);
+				}
+			}
+			processed.addAndGet(nodeRefs.size());
+			failed.addAndGet(pageFailed);
+			completePage(page, nodeRefs.size(), pageFailed);
+		}
+
+		/**
+		 * Records a completed page and moves the checkpoint over the pages completed without a gap.
+		 *
+		 * @param page the page
+		 * @param pageProcessed the nodes processed
+		 * @param pageFailed the nodes failed
+		 */
+		private synchronized void completePage(final int page, final long pageProcessed, final long pageFailed) {
+			completedPages.put(Integer.valueOf(page), new long[] { pageProcessed, pageFailed });
+			long[] counts;
+			final int previousCheckpoint = checkpointPage;
+			while ((counts = completedPages.remove(Integer.valueOf(checkpointPage))) != null) {
+				checkpointProcessed += counts[0];
+				checkpointFailed += counts[1];
+				checkpointPage++;
+			}
+			if (checkpointPage != previousCheckpoint) {
+				writeCheckpoint();
+			}
+		}
+
+		/**
+		 * Writes the checkpoint to a temp file and renames it over the previous one.
+		 */
+		private void writeCheckpoint() {
+			final Properties checkpoint = new Properties();
+			checkpoint.setProperty("channel", channelName);
+			checkpoint.setProperty("query", query);
+			checkpoint.setProperty("pageSize", Integer.toString(pageSize));
+			checkpoint.setProperty("page", Integer.toString(checkpointPage));
+			checkpoint.setProperty("processed", Long.toString(resumedProcessed + checkpointProcessed));
+			checkpoint.setProperty("failed", Long.toString(resumedFailed + checkpointFailed));
+			final File tempFile = new File(checkpointFile.getParentFile(), checkpointFile.getName() + ".tmp");
+			try {
+				final FileOutputStream out = new FileOutputStream(tempFile);
+				try {
+					checkpoint.store(out, "MarkLogic backfill checkpoint");
+					out.getFD().sync();
+				} finally {
+					out.close();
+				}
+				if (checkpointFile.exists() && !checkpointFile.delete()) {
+					throw new IOException("Unable to replace " + checkpointFile);
+				}
+				if (!tempFile.renameTo(checkpointFile)) {
+					throw new IOException("Unable to replace " + checkpointFile);
+				}
+			} catch (IOException ioex) {
+				LOG.error("Unable to write MarkLogic backfill checkpoint: " + ioex.getLocalizedMessage());
+			}
+		}
+
+		/**
+		 * Lowers the last page.
+		 *
+		 * @param page the page
+		 */
+		private void lowerLastPage(final int page) {
+			int last;
+			while (page < (last = lastPage.get()) && !lastPage.compareAndSet(last, page)) {
+				// Another page thread lowered it concurrently, retry
+			}
+		}
+
+		/**
+		 * Gets the throughput of this run.
+		 *
+		 * @return the nodes per second
+		 */
+		private double getThroughput() {
+			final long elapsed = System.currentTimeMillis() - startMillis;
+			return elapsed <= 0 ? 0 : processed.get() * 1000.0 / elapsed;
+		}
+
+		/**
+		 * Gets the estimated time to completion.
+		 *
+		 * @return the seconds, -1 when unknown
+		 */
+		private long getEtaSeconds() {
+			final double throughput = getThroughput();
+			if (throughput <= 0 || total.get() == 0) {
+				return -1;
+			}
+			return (long) (Math.max(total.get() - resumedProcessed - processed.get(), 0) / throughput);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return (resumedProcessed + processed.get()) + "/" + total.get() + " nodes, "
+					+ (resumedFailed + failed.get()) + " failed, " + String.format("%.1f", Double.valueOf(getThroughput()))
+					+ " nodes/s, ETA " + getEtaSeconds() + "s, checkpoint page " + checkpointPage;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+/**
+ * JMX view and control of the {@link MarkLogicBackfillCrawler}.
+ */
+public interface MarkLogicBackfillCrawlerMBean {
+
+	/**
+	 * Starts publishing the result of an fts-alfresco query to a channel, resuming from the checkpoint
+	 * of an earlier unfinished run of the same channel and query.
+	 *
+	 * @param channelName the channel name
+	 * @param query the query, e.g. TYPE:"cm:content"
+	 */
+	void start(String channelName, String query);
+
+	/**
+	 * Starts publishing the content below a folder, e.g. /app:company_home/st:sites.
+	 *
+	 * @param channelName the channel name
+	 * @param folderPath the folder path
+	 */
+	void startFolder(String channelName, String folderPath);
+
+	/**
+	 * Stops the running backfill after the pages in progress, keeping its checkpoint.
+	 */
+	void stop();
+
+	/**
+	 * Checks whether a backfill is running.
+	 *
+	 * @return true, if running
+	 */
+	boolean isRunning();
+
+	/**
+	 * Gets the channel of the current or last backfill.
+	 *
+	 * @return the channel name
+	 */
+	String getChannelName();
+
+	/**
+	 * Gets the query of the current or last backfill.
+	 *
+	 * @return the query
+	 */
+	String getQuery();
+
+	/**
+	 * Gets the number of nodes matched by the query.
+	 *
+	 * @return the total
+	 */
+	long getTotal();
+
+	/**
+	 * Gets the number of nodes processed, including those processed before a resume.
+	 *
+	 * @return the processed count
+	 */
+	long getProcessed();
+
+	/**
+	 * Gets the number of nodes which failed to publish.
+	 *
+	 * @return the failed count
+	 */
+	long getFailed();
+
+	/**
+	 * Gets the number of nodes processed per second since the backfill was (re)started.
+	 *
+	 * @return the throughput
+	 */
+	double getThroughput();
+
+	/**
+	 * Gets the estimated time to completion at the current throughput.
+	 *
+	 * @return the seconds, -1 when unknown
+	 */
+	long getEtaSeconds();
+
+	/**
+	 * Gets the first page not yet completed, the page a restart resumes from.
+	 *
+	 * @return the checkpoint page
+	 */
+	int getCheckpointPage();
+
+	/**
+	 * Gets the max number of nodes published per second.
+	 *
+	 * @return the rate, 0 when unlimited
+	 */
+	double getMaxDocumentsPerSecond();
+
+	/**
+	 * Changes the max number of nodes published per second, also while running.
+	 *
+	 * @param maxDocumentsPerSecond the rate, 0 for unlimited
+	 */
+	void setMaxDocumentsPerSecond(double maxDocumentsPerSecond);
+}
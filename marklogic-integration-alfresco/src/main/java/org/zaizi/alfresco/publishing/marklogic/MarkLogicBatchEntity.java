@@ -0,0 +1,201 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Multipart (multipart/mixed) entity carrying several documents in a single request to the
+ * <code>alfrescopub/publish-batch</code> endpoint.<br/>
+ * Every part names the document uri in its Content-Disposition header, e.g.<br/>
+ * <code>Content-Disposition: attachment; filename="workspace://SpacesStore/..."</code>
+ */
+public class MarkLogicBatchEntity extends AbstractHttpEntity {
+
+	/** The Constant CRLF. */
+	private final static String CRLF = "\r\n";
+
+	/** The Constant CHARSET. */
+	private final static String CHARSET = "UTF-8";
+
+	/** The boundary. */
+	private final String boundary;
+
+	/** The parts. */
+	private final List<Part> parts = new ArrayList<Part>();
+
+	/**
+	 * Instantiates a new batch entity.
+	 */
+	public MarkLogicBatchEntity() {
+		super();
+		boundary = "marklogic-batch-" + UUID.randomUUID().toString();
+		setContentType("multipart/mixed; boundary=" + boundary);
+	}
+
+	/**
+	 * Adds a document to the batch.
+	 *
+	 * @param uri the document uri
+	 * @param entity the document content
+	 */
+	public void addPart(final String uri, final HttpEntity entity) {
+		final StringBuilder header = new StringBuilder();
+		header.append("--").append(boundary).append(CRLF);
+		header.append("Content-Disposition: attachment; filename=\"").append(uri).append('"').append(CRLF);
+		if (entity.getContentType() != null) {
+			header.append("Content-Type: ").append(entity.getContentType().getValue()).append(CRLF);
+		}
+		if (entity.getContentEncoding() != null) {
+			header.append("Content-Encoding: ").append(entity.getContentEncoding().getValue()).append(CRLF);
+		}
+		if (entity.getContentLength() >= 0) {
+			header.append("Content-Length: ").append(entity.getContentLength()).append(CRLF);
+		}
+		header.append(CRLF);
+		parts.add(new Part(toBytes(header.toString()), entity));
+	}
+
+	/**
+	 * Gets the number of documents in the batch.
+	 *
+	 * @return the part count
+	 */
+	public int getPartCount() {
+		return parts.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.HttpEntity#isRepeatable()
+	 */
+	public boolean isRepeatable() {
+		for (final Part part : parts) {
+			if (!part.entity.isRepeatable()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.HttpEntity#getContentLength()
+	 */
+	public long getContentLength() {
+		long length = 0;
+		for (final Part part : parts) {
+			final long partLength = part.entity.getContentLength();
+			if (partLength < 0) {
+				return -1;
+			}
+			length += part.header.length + partLength + CRLF.length();
+		}
+		return length + closingDelimiter().length;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.entity.AbstractHttpEntity#isChunked()
+	 */
+	@Override
+	public boolean isChunked() {
+		return getContentLength() < 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.HttpEntity#getContent()
+	 */
+	public InputStream getContent() {
+		throw new UnsupportedOperationException("Multipart batch entity does not implement #getContent()");
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.HttpEntity#writeTo(java.io.OutputStream)
+	 */
+	public void writeTo(final OutputStream outstream) throws IOException {
+		if (outstream == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		final byte[] crlf = toBytes(CRLF);
+		for (final Part part : parts) {
+			outstream.write(part.header);
+			part.entity.writeTo(outstream);
+			outstream.write(crlf);
+		}
+		outstream.write(closingDelimiter());
+		outstream.flush();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.HttpEntity#isStreaming()
+	 */
+	public boolean isStreaming() {
+		return !isRepeatable();
+	}
+
+	/**
+	 * Closing delimiter.
+	 *
+	 * @return the closing boundary bytes
+	 */
+	private byte[] closingDelimiter() {
+		return toBytes("--" + boundary + "--" + CRLF);
+	}
+
+	/**
+	 * Encodes a multipart header.
+	 *
+	 * @param value the value
+	 * @return the bytes
+	 */
+	private static byte[] toBytes(final String value) {
+		try {
+			return value.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException encEx) {
+			throw new IllegalStateException(encEx);
+		}
+	}
+
+	/**
+	 * A single document of the batch.
+	 */
+	private static final class Part {
+
+		/** The header. */
+		private final byte[] header;
+
+		/** The entity. */
+		private final HttpEntity entity;
+
+		/**
+		 * Instantiates a new part.
+		 *
+		 * @param header the header
+		 * @param entity the entity
+		 */
+		private Part(final byte[] header, final HttpEntity entity) {
+			this.header = header;
+			this.entity = entity;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.IOException;
+
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The default transport, sending requests through the shared pooled blocking http client of the
+ * {@link MarkLogicHttpClientProvider}. Supports basic and digest authentication.
+ */
+public class MarkLogicBlockingTransport implements MarkLogicTransport {
+
+	/** The http client provider. */
+	private MarkLogicHttpClientProvider httpClientProvider;
+
+	/**
+	 * Sets the http client provider.
+	 *
+	 * @param httpClientProvider the new http client provider
+	 */
+	public void setHttpClientProvider(final MarkLogicHttpClientProvider httpClientProvider) {
+		this.httpClientProvider = httpClientProvider;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicTransport#execute(org.apache.http.client.methods.HttpRequestBase, org.apache.http.protocol.HttpContext, org.apache.http.client.ResponseHandler)
+	 */
+	public <T> T execute(final HttpRequestBase request, final HttpContext context,
+			final ResponseHandler<? extends T> responseHandler) throws IOException {
+		return httpClientProvider.getHttpClient().execute(request, responseHandler, context);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicTransport#execute(org.apache.http.client.methods.HttpRequestBase, org.apache.http.protocol.HttpContext, org.apache.http.client.ResponseHandler, org.zaizi.alfresco.publishing.marklogic.MarkLogicTransportCallback)
+	 */
+	public <T> void execute(final HttpRequestBase request, final HttpContext context,
+			final ResponseHandler<? extends T> responseHandler, final MarkLogicTransportCallback<T> callback) {
+		final T result;
+		try {
+			result = execute(request, context, responseHandler);
+		} catch (IOException ioex) {
+			callback.failed(ioex);
+			return;
+		} catch (RuntimeException runtimeEx) {
+			callback.failed(runtimeEx);
+			return;
+		}
+		callback.completed(result);
+	}
+}
@@ -0,0 +1,30 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+/**
+ * Receives the progress of a bulk unpublish while MarkLogic streams back its results.
+ */
+public interface MarkLogicBulkUnpublishListener {
+
+	/**
+	 * Called periodically while documents are removed, and once at the end.
+	 *
+	 * @param processed the number of documents processed so far
+	 * @param failed the number of those which could not be removed
+	 */
+	void onProgress(int processed, int failed);
+}
@@ -0,0 +1,94 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk unpublish: the number of documents removed and the failure of every document
+ * which could not be removed, keyed by uri.
+ */
+public class MarkLogicBulkUnpublishResult {
+
+	/** The unpublished count. */
+	private int unpublishedCount;
+
+	/** The failures, keyed by uri. */
+	private final Map<String, String> failures = new LinkedHashMap<String, String>();
+
+	/**
+	 * Records a removed document.
+	 */
+	void addUnpublished() {
+		unpublishedCount++;
+	}
+
+	/**
+	 * Records a document which could not be removed.
+	 *
+	 * @param uri the uri
+	 * @param failure the failure
+	 */
+	void addFailure(final String uri, final String failure) {
+		failures.put(uri, failure);
+	}
+
+	/**
+	 * Gets the number of documents processed so far.
+	 *
+	 * @return the processed count
+	 */
+	public int getProcessedCount() {
+		return unpublishedCount + failures.size();
+	}
+
+	/**
+	 * Gets the number of removed documents.
+	 *
+	 * @return the unpublished count
+	 */
+	public int getUnpublishedCount() {
+		return unpublishedCount;
+	}
+
+	/**
+	 * Gets the failures.
+	 *
+	 * @return the failures, keyed by uri
+	 */
+	public Map<String, String> getFailures() {
+		return Collections.unmodifiableMap(failures);
+	}
+
+	/**
+	 * Checks whether every document was removed.
+	 *
+	 * @return true, if there were no failures
+	 */
+	public boolean isComplete() {
+		return failures.isEmpty();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return unpublishedCount + " unpublished, " + failures.size() + " failed";
+	}
+}
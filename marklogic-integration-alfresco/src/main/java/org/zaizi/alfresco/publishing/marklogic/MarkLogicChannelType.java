@@ -15,20 +15,41 @@
  ********************************************************************************/
 package org.zaizi.alfresco.publishing.marklogic;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.content.filestore.FileContentReader;
 import org.alfresco.repo.publishing.AbstractChannelType;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentService;
 import org.alfresco.service.cmr.repository.NodeRef;
@@ -36,12 +57,18 @@ import org.alfresco.service.namespace.QName;
 import org.alfresco.util.TempFileProvider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.FileEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.DisposableBean;
 
 /**
  * Channel definition for publishing/unpublishing XML content to MarkLogic Server.<br/>
@@ -52,7 +79,7 @@ import org.apache.http.impl.client.DefaultHttpClient;
  * 
  * @author aayala
  */
-public class MarkLogicChannelType extends AbstractChannelType {
+public class MarkLogicChannelType extends AbstractChannelType implements DisposableBean {
     
     /** The Constant log. */
     private final static Log LOG = LogFactory.getLog(MarkLogicChannelType.class);
@@ -65,7 +92,19 @@ public class MarkLogicChannelType extends AbstractChannelType {
     
     /** The Constant STATUS_DOCUMENT_DELETED. */
     private final static int STATUS_DOCUMENT_DELETED = 200;
+
+    /** The Constant STATUS_BATCH_PROCESSED. */
+    private final static int STATUS_BATCH_PROCESSED = 200;
     
+    /** The Constant STATUS_DOCUMENT_NOT_FOUND, a document already gone counts as unpublished. */
+    private final static int STATUS_DOCUMENT_NOT_FOUND = 404;
+
+    /** The Constant BULK_PROGRESS_INTERVAL, the documents between two progress notifications. */
+    private final static int BULK_PROGRESS_INTERVAL = 100;
+
+    /** The Constant KEY_EVENT_BATCH, binding the nodes published in a transaction. */
+    private final static String KEY_EVENT_BATCH = MarkLogicChannelType.class.getName() + ".eventBatch";
+
     /** The Constant DEFAULT_SUPPORTED_MIME_TYPES. */
  	private final static Set<String> DEFAULT_SUPPORTED_MIME_TYPES = MarkLogicPublishingHelper.getMimeTypesToBeSupported();
  	
@@ -75,9 +114,63 @@ public class MarkLogicChannelType extends AbstractChannelType {
     /** The content service. */
     private ContentService contentService;
 
+    /** The request executor, sends requests through the shared pooled http client. */
+    private MarkLogicRequestExecutor requestExecutor;
+
+    /** The compression policy for request bodies. May be null. */
+    private MarkLogicCompressionPolicy compressionPolicy;
+
+    /** The index of published content, used to skip unchanged republishes. May be null. */
+    private MarkLogicPublishedContentIndex publishedContentIndex;
+
+    /** The metadata serializer, the properties document is only sent when set. May be null. */
+    private MarkLogicMetadataSerializer metadataSerializer;
+
+    /** The routing policy, deciding endpoint, transfer, compression and lane per document. May be null. */
+    private MarkLogicRoutingPolicy routingPolicy;
+
+    /** The chunked uploader of very large documents. May be null. */
+    private MarkLogicChunkedUploader chunkedUploader;
+
+    /** The coalescer deferring publish and unpublish calls. May be null. */
+    private MarkLogicPublishCoalescer publishCoalescer;
+
+    /** The durable outbox of publish and unpublish calls. May be null. */
+    private MarkLogicPublishOutbox publishOutbox;
+
+    /** The publishing metrics. May be null. */
+    private MarkLogicPublishingMetrics metrics;
+
+    /** The sampler of the per-request debug logging. */
+    private final MarkLogicLogSampler logSampler = new MarkLogicLogSampler(100);
+
     /** The supported mime types. */
     private Set<String> supportedMimeTypes = DEFAULT_SUPPORTED_MIME_TYPES;
 
+    /** Whether content without a backing file is streamed instead of copied to a temp file. */
+    private boolean streamContent = true;
+
+    /** The max number of documents sent in one batch request. */
+    private int batchMaxDocuments = 100;
+
+    /** The max number of content bytes sent in one batch request. */
+    private long batchMaxBytes = 32L * 1024 * 1024;
+
+    /** Whether the nodes of a publishing event are sent together through the batch endpoint. */
+    private boolean batchPublishingEvents;
+
+    /** The max number of uris sent in one bulk unpublish request. */
+    private int bulkUnpublishMaxUris = 1000;
+
+    /** The max size of content held in memory while it is sent to several channels. */
+    private long fanOutMaxBufferBytes = 4L * 1024 * 1024;
+
+    /** The threads sending fan out content to the channels, shared by all fan out publishes. */
+    private int fanOutThreads = 8;
+
+    /** The fan out executor, created on first use. */
+    private ExecutorService fanOutExecutor;
+
     /**
      * Sets the supported mime types.
      *
@@ -87,6 +180,73 @@ public class MarkLogicChannelType extends AbstractChannelType {
         supportedMimeTypes = Collections.unmodifiableSet(new TreeSet<String>(mimeTypes));
     }
 
+    /**
+     * Sets whether content which is not backed by a local file is streamed directly to MarkLogic.<br/>
+     * When false the content is copied to a temp file first, as in earlier versions.
+     *
+     * @param streamContent the new stream content
+     */
+    public void setStreamContent(final boolean streamContent) {
+        this.streamContent = streamContent;
+    }
+
+    /**
+     * Sets the max number of documents sent in one batch request.
+     *
+     * @param batchMaxDocuments the new batch max documents
+     */
+    public void setBatchMaxDocuments(final int batchMaxDocuments) {
+        this.batchMaxDocuments = batchMaxDocuments;
+    }
+
+    /**
+     * Sets the max number of content bytes sent in one batch request.<br/>
+     * A single document larger than this limit is still sent, in a batch of its own.
+     *
+     * @param batchMaxBytes the new batch max bytes
+     */
+    public void setBatchMaxBytes(final long batchMaxBytes) {
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+    /**
+     * Sets whether the nodes published in one transaction, as all nodes of a publishing event are, are
+     * collected and sent through {@link #publishBatch} just before it commits, instead of one request per node.
+     *
+     * @param batchPublishingEvents the new batch publishing events
+     */
+    public void setBatchPublishingEvents(final boolean batchPublishingEvents) {
+        this.batchPublishingEvents = batchPublishingEvents;
+    }
+
+    /**
+     * Sets the max number of uris sent in one bulk unpublish request.
+     *
+     * @param bulkUnpublishMaxUris the new bulk unpublish max uris
+     */
+    public void setBulkUnpublishMaxUris(final int bulkUnpublishMaxUris) {
+        this.bulkUnpublishMaxUris = bulkUnpublishMaxUris;
+    }
+
+    /**
+     * Sets the max size of content read into memory by {@link #publishFanOut}. Larger content not
+     * backed by a local file is copied to a single temp file shared by all channels.
+     *
+     * @param fanOutMaxBufferBytes the new fan out max buffer bytes
+     */
+    public void setFanOutMaxBufferBytes(final long fanOutMaxBufferBytes) {
+        this.fanOutMaxBufferBytes = fanOutMaxBufferBytes;
+    }
+
+    /**
+     * Sets the threads sending fan out content to the channels.
+     *
+     * @param fanOutThreads the new fan out threads
+     */
+    public void setFanOutThreads(final int fanOutThreads) {
+        this.fanOutThreads = fanOutThreads;
+    }
+
     /**
      * Sets the publishing helper.
      *
@@ -96,6 +256,103 @@ public class MarkLogicChannelType extends AbstractChannelType {
 		this.publishingHelper = markLogicPublishingHelper;
 	}
 
+    /**
+     * Sets the request executor.
+     *
+     * @param requestExecutor the new request executor
+     */
+	public void setRequestExecutor(final MarkLogicRequestExecutor requestExecutor) {
+		this.requestExecutor = requestExecutor;
+	}
+
+    /**
+     * Sets the compression policy, deciding which documents are sent gzip compressed.
+     *
+     * @param compressionPolicy the new compression policy
+     */
+	public void setCompressionPolicy(final MarkLogicCompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+	}
+
+    /**
+     * Sets the published content index, when set documents whose content has not changed since
+     * their last publish to the channel are not uploaded again.
+     *
+     * @param publishedContentIndex the new published content index
+     */
+	public void setPublishedContentIndex(final MarkLogicPublishedContentIndex publishedContentIndex) {
+		this.publishedContentIndex = publishedContentIndex;
+	}
+
+    /**
+     * Sets the metadata serializer, enabling the properties document and metadata only republishing.
+     *
+     * @param metadataSerializer the new metadata serializer
+     */
+	public void setMetadataSerializer(final MarkLogicMetadataSerializer metadataSerializer) {
+		this.metadataSerializer = metadataSerializer;
+	}
+
+    /**
+     * Sets the routing policy. When set it decides the endpoint, transfer and compression of every
+     * document instead of <code>streamContent</code> and the compression policy mimetypes, and it
+     * may replace the supported mimetypes.
+     *
+     * @param routingPolicy the new routing policy
+     */
+	public void setRoutingPolicy(final MarkLogicRoutingPolicy routingPolicy) {
+		this.routingPolicy = routingPolicy;
+	}
+
+    /**
+     * Sets the chunked uploader. Documents above its threshold are uploaded in resumable parts
+     * instead of a single request, whatever their route.
+     *
+     * @param chunkedUploader the new chunked uploader
+     */
+	public void setChunkedUploader(final MarkLogicChunkedUploader chunkedUploader) {
+		this.chunkedUploader = chunkedUploader;
+	}
+
+    /**
+     * Sets the publish coalescer. While it is enabled, {@link #publish} and {@link #unpublish} hand the
+     * node over to it and return, it makes the call after the transaction commits, see
+     * {@link MarkLogicPublishCoalescer}.
+     *
+     * @param publishCoalescer the new publish coalescer
+     */
+	public void setPublishCoalescer(final MarkLogicPublishCoalescer publishCoalescer) {
+		this.publishCoalescer = publishCoalescer;
+	}
+
+    /**
+     * Sets the publish outbox. While it is enabled, {@link #publish} and {@link #unpublish} only
+     * log the call to it and return, see {@link MarkLogicPublishOutbox}. It takes precedence over the coalescer.
+     *
+     * @param publishOutbox the new publish outbox
+     */
+	public void setPublishOutbox(final MarkLogicPublishOutbox publishOutbox) {
+		this.publishOutbox = publishOutbox;
+	}
+
+    /**
+     * Sets the publishing metrics.
+     *
+     * @param metrics the new metrics
+     */
+	public void setMetrics(final MarkLogicPublishingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+    /**
+     * Sets how many publish and unpublish calls are made per sampled debug log line.
+     *
+     * @param logSampleRate the new log sample rate, 1 logs every call
+     */
+	public void setLogSampleRate(final int logSampleRate) {
+		logSampler.setRate(logSampleRate);
+	}
+
     /**
      * Sets the content service.
      *
@@ -145,55 +402,155 @@ public class MarkLogicChannelType extends AbstractChannelType {
      */
     @Override
 	public Set<String> getSupportedMimeTypes() {
+		if (routingPolicy != null && routingPolicy.getSupportedMimeTypes() != null) {
+			return routingPolicy.getSupportedMimeTypes();
+		}
 		return supportedMimeTypes;
 	}
 
+    /**
+     * Gets the route of the content of a node.
+     *
+     * @param nodeRef the node ref
+     * @return the route, null without a routing policy or content
+     */
+	public MarkLogicRoute getRoute(final NodeRef nodeRef) {
+		if (routingPolicy == null) {
+			return null;
+		}
+		final ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+		return reader == null || !reader.exists() ? null : routingPolicy.route(reader.getMimetype(), reader.getSize());
+	}
+
     /* (non-Javadoc)
      * @see org.alfresco.repo.publishing.AbstractChannelType#publish(org.alfresco.service.cmr.repository.NodeRef, java.util.Map)
      */
     @Override
 	public void publish(final NodeRef nodeToPublish,
 			final Map<QName, Serializable> channelProperties) {
-        LOG.info("publish() invoked...");
+		if (publishOutbox != null && publishOutbox.isEnabled()) {
+			publishOutbox.publish(nodeToPublish, channelProperties);
+			return;
+		}
+		if (publishCoalescer != null && publishCoalescer.isEnabled()) {
+			publishCoalescer.publish(nodeToPublish, channelProperties);
+			return;
+		}
+		if (batchPublishingEvents
+				&& AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_READ_WRITE) {
+			EventBatch eventBatch = AlfrescoTransactionSupport.getResource(KEY_EVENT_BATCH);
+			if (eventBatch == null) {
+				eventBatch = new EventBatch();
+				AlfrescoTransactionSupport.bindResource(KEY_EVENT_BATCH, eventBatch);
+				AlfrescoTransactionSupport.bindListener(eventBatch);
+			}
+			eventBatch.add(nodeToPublish, channelProperties);
+			return;
+		}
+		publishNow(nodeToPublish, channelProperties);
+    }
+
+    /**
+     * Publishes a node right away, bypassing the publish coalescer.
+     *
+     * @param nodeToPublish the node to publish
+     * @param channelProperties the channel properties
+     * @return the result, SKIPPED when the node has no content or nothing changed since the last publish
+     */
+	public MarkLogicPublishResult publishNow(final NodeRef nodeToPublish,
+			final Map<QName, Serializable> channelProperties) {
+        // One publish in every logSampleRate logs all its per-node lines
+        final boolean debug = LOG.isDebugEnabled() && logSampler.sample();
+        if (debug) {
+            LOG.debug("publish() invoked...");
+        }
         final ContentReader reader = contentService.getReader(nodeToPublish, ContentModel.PROP_CONTENT);
-        if (reader.exists()) {
-            File contentFile;
+        if (reader != null && reader.exists()) {
+            final String channelKey = publishingHelper.getChannelKey(channelProperties);
+            final long fingerprint = MarkLogicPublishedContentIndex.fingerprint(reader);
+            final String metadata = metadataSerializer == null ? null : metadataSerializer.serialize(nodeToPublish);
+            if (isUnchanged(channelKey, nodeToPublish, fingerprint, metadata)) {
+                return new MarkLogicPublishResult(nodeToPublish, MarkLogicPublishResult.Status.SKIPPED, 0,
+                        "Content unchanged since last publish");
+            }
+            if (isMetadataOnly(channelKey, nodeToPublish, fingerprint, metadata)) {
+                try {
+                    publishMetadata(nodeToPublish, channelProperties, channelKey, metadata);
+                } catch (IOException ioex) {
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Exception in publish(): ", ioex);
+                    }
+                    throw new AlfrescoRuntimeException(ioex.getLocalizedMessage());
+                } catch (URISyntaxException uriSynEx) {
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Exception in publish(): ", uriSynEx);
+                    }
+                    throw new AlfrescoRuntimeException(uriSynEx.getLocalizedMessage());
+                }
+                if (metrics != null) {
+                    metrics.recordMetadataOnlyPublish();
+                }
+                return new MarkLogicPublishResult(nodeToPublish, MarkLogicPublishResult.Status.PUBLISHED,
+                        STATUS_DOCUMENT_INSERTED, null);
+            }
+
+            final String mimeType=reader.getMimetype();
+            final MarkLogicRoute route = routingPolicy == null ? null : routingPolicy.route(mimeType, reader.getSize());
+            final boolean chunked = chunkedUploader != null && chunkedUploader.accepts(reader.getSize());
+            File contentFile = null;
             boolean deleteContentFileOnCompletion = false;
             if (FileContentReader.class.isAssignableFrom(reader.getClass())) {
                 // Grab the content straight from the content store if we can...
                 contentFile = ((FileContentReader) reader).getFile();
             }
-            else {
-                // ...otherwise copy it to a temp file and use the copy...
+            else if (chunked || (route == null ? !streamContent : route.getTransfer() == MarkLogicRoute.Transfer.FILE)) {
+                // ...otherwise copy it to a temp file and use the copy, unless it can be streamed...
                 final File tempDir = TempFileProvider.getLongLifeTempDir("marklogic");
                 contentFile = TempFileProvider.createTempFile("marklogic", "", tempDir);
+                final long copyStart = System.currentTimeMillis();
                 reader.getContent(contentFile);
+                if (metrics != null) {
+                    metrics.recordTempFileCopy(System.currentTimeMillis() - copyStart);
+                }
                 deleteContentFileOnCompletion = true;
             }
 
-            HttpClient httpclient = new DefaultHttpClient();
             try {
-            	final String mimeType=reader.getMimetype();
-                if (LOG.isDebugEnabled()) {
+                if (debug) {
                     LOG.debug("Publishing node: " + nodeToPublish);
-                    LOG.debug("ContentFile_MIMETYPE: "+mimeType);
+                    LOG.debug("ContentFile_MIMETYPE: "+mimeType+", route: "+route);
                 }
                                 
-                URI uriPut = publishingHelper.getPutURIFromNodeRefAndChannelProperties(nodeToPublish, channelProperties);
-
-                final HttpPut httpput = new HttpPut(uriPut);                
-                final FileEntity filenEntity = new FileEntity(contentFile, mimeType);
-                httpput.setEntity(filenEntity);
+                if (chunked) {
+                    // Parts are checksummed and sent concurrently, a failed upload is resumed by the next publish
+                    chunkedUploader.upload(nodeToPublish, channelProperties, channelKey, contentFile, mimeType, fingerprint);
+                } else {
+                    URI uriPut = route == null
+                            ? publishingHelper.getPutURIFromNodeRefAndChannelProperties(nodeToPublish, channelProperties)
+                            : publishingHelper.getPutURIFromNodeRefAndChannelProperties(nodeToPublish, channelProperties,
+                                    route.getEndpoint());
 
-                final HttpResponse response = httpclient.execute(httpput,
-                        publishingHelper.getHttpContextFromChannelProperties(channelProperties));
+                    final HttpPut httpput = new HttpPut(uriPut);
+                    HttpEntity entity;
+                    if (contentFile != null) {
+                        entity = new FileEntity(contentFile, mimeType);
+                    } else if (route != null && route.getTransfer() == MarkLogicRoute.Transfer.BUFFER
+                            && reader.getSize() >= 0 && reader.getSize() <= routingPolicy.getMaxBufferBytes()) {
+                        // Small documents are read in one go, the connection is then held only for the send
+                        final ByteArrayEntity bufferedEntity = new ByteArrayEntity(readContent(reader));
+                        bufferedEntity.setContentType(mimeType);
+                        entity = bufferedEntity;
+                    } else {
+                        // Stream the content straight from the store into the request body
+                        entity = new ContentReaderEntity(reader, mimeType);
+                    }
+                    httpput.setEntity(compress(entity, mimeType, reader.getSize(), route));
 
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Response Status: " + response.getStatusLine().getStatusCode() + " - Message: "
-                            + response.getStatusLine().getReasonPhrase() + " - NodeRef: " + nodeToPublish.toString());
+                    requestExecutor.execute(httpput, channelProperties,
+                            new MarkLogicStatusResponseHandler(STATUS_DOCUMENT_INSERTED, nodeToPublish));
                 }
-                if (response.getStatusLine().getStatusCode() != STATUS_DOCUMENT_INSERTED) {
-                    throw new AlfrescoRuntimeException(response.getStatusLine().getReasonPhrase());
+				if (publishedContentIndex != null) {
+					publishedContentIndex.recordPublished(channelKey, nodeToPublish, fingerprint);
 				}
 			} catch (IllegalStateException illegalEx) {
 				if (LOG.isErrorEnabled()) {
@@ -211,12 +568,18 @@ public class MarkLogicChannelType extends AbstractChannelType {
 				}
 				throw new AlfrescoRuntimeException(uriSynEx.getLocalizedMessage());
 			}finally {
-				httpclient.getConnectionManager().shutdown();
 				if (deleteContentFileOnCompletion) {
 					contentFile.delete();
 				}
 			}
+			if (metadata != null) {
+				return sendMetadata(nodeToPublish, channelProperties, channelKey, metadata, false);
+			}
+			return new MarkLogicPublishResult(nodeToPublish, MarkLogicPublishResult.Status.PUBLISHED,
+					STATUS_DOCUMENT_INSERTED, null);
 		}
+		return new MarkLogicPublishResult(nodeToPublish, MarkLogicPublishResult.Status.SKIPPED, 0,
+				"No content to publish");
     }
 
     /* (non-Javadoc)
@@ -225,27 +588,42 @@ public class MarkLogicChannelType extends AbstractChannelType {
     @Override
 	public void unpublish(final NodeRef nodeToUnpublish,
 			final Map<QName, Serializable> channelProperties) {
+		if (publishOutbox != null && publishOutbox.isEnabled()) {
+			publishOutbox.unpublish(nodeToUnpublish, channelProperties);
+			return;
+		}
+		if (publishCoalescer != null && publishCoalescer.isEnabled()) {
+			publishCoalescer.unpublish(nodeToUnpublish, channelProperties);
+			return;
+		}
+		unpublishNow(nodeToUnpublish, channelProperties);
+    }
+
+    /**
+     * Unpublishes a node right away, bypassing the publish coalescer.
+     *
+     * @param nodeToUnpublish the node to unpublish
+     * @param channelProperties the channel properties
+     */
+	public void unpublishNow(final NodeRef nodeToUnpublish,
+			final Map<QName, Serializable> channelProperties) {
     	
-        LOG.info("unpublish() invoked...");
+        final boolean debug = LOG.isDebugEnabled() && logSampler.sample();
+        if (debug) {
+            LOG.debug("unpublish() invoked...");
+        }
 
-        final HttpClient httpclient = new DefaultHttpClient();
         try {
-			if (LOG.isDebugEnabled()) {
+			if (debug) {
 				LOG.debug("Unpublishing node: " + nodeToUnpublish);
 			}
 
             final URI uriDelete = publishingHelper.getDeleteURIFromNodeRefAndChannelProperties(nodeToUnpublish, channelProperties);
             final HttpDelete httpDelete = new HttpDelete(uriDelete);
-            final HttpResponse response = httpclient.execute(httpDelete,
-                    publishingHelper.getHttpContextFromChannelProperties(channelProperties));
-
-            if (LOG.isDebugEnabled()) {
-            	LOG.debug("Response Status: " + response.getStatusLine().getStatusCode() + " - Message: "
-                        + response.getStatusLine().getReasonPhrase() + " - NodeRef: " + nodeToUnpublish.toString());
-			}
-            
-			if (response.getStatusLine().getStatusCode() != STATUS_DOCUMENT_DELETED) {
-				throw new AlfrescoRuntimeException(response.getStatusLine().getReasonPhrase());
+            requestExecutor.execute(httpDelete, channelProperties,
+                    new MarkLogicStatusResponseHandler(STATUS_DOCUMENT_DELETED, nodeToUnpublish));
+			if (publishedContentIndex != null) {
+				publishedContentIndex.recordUnpublished(publishingHelper.getChannelKey(channelProperties), nodeToUnpublish);
 			}
 		} catch (IllegalStateException illegalEx) {
 			if (LOG.isErrorEnabled()) {
@@ -262,8 +640,1181 @@ public class MarkLogicChannelType extends AbstractChannelType {
 				LOG.error("Exception in Unpublish(): ", uriSynEx);
 			}
 			throw new AlfrescoRuntimeException(uriSynEx.getLocalizedMessage());
-		} finally {
-			httpclient.getConnectionManager().shutdown();
 		}
     }
+
+    /**
+     * Publishes a node without waiting for its retries. With the blocking transport the first attempt is
+     * sent on the calling thread, retries go out on the dispatch threads of the request executor.<br/>
+     * Unchanged and metadata only republishes are handled like {@link #publish}. The content is read
+     * when the request is sent, so the caller must stay in its transaction until the future is done
+     * unless the content store is file based. The future completes with a PUBLISHED, SKIPPED or FAILED
+     * result and never fails itself.
+     *
+     * @param nodeToPublish the node to publish
+     * @param channelProperties the channel properties
+     * @return the future publish result
+     */
+	public Future<MarkLogicPublishResult> publishAsync(final NodeRef nodeToPublish,
+			final Map<QName, Serializable> channelProperties) {
+		final MarkLogicFuture<MarkLogicPublishResult> future = new MarkLogicFuture<MarkLogicPublishResult>();
+		final ContentReader reader = contentService.getReader(nodeToPublish, ContentModel.PROP_CONTENT);
+		if (reader == null || !reader.exists()) {
+			future.completed(new MarkLogicPublishResult(nodeToPublish, MarkLogicPublishResult.Status.SKIPPED, 0,
+					"No content"));
+			return future;
+		}
+		final String channelKey = publishingHelper.getChannelKey(channelProperties);
+		final long fingerprint = MarkLogicPublishedContentIndex.fingerprint(reader);
+		final String metadata = metadataSerializer == null ? null : metadataSerializer.serialize(nodeToPublish);
+		if (isUnchanged(channelKey, nodeToPublish, fingerprint, metadata)) {
+			future.completed(new MarkLogicPublishResult(nodeToPublish, MarkLogicPublishResult.Status.SKIPPED, 0,
+					"Unchanged"));
+			return future;
+		}
+		if (isMetadataOnly(channelKey, nodeToPublish, fingerprint, metadata)) {
+			submitMetadata(nodeToPublish, channelProperties, channelKey, metadata, true, future);
+			return future;
+		}
+		if (chunkedUploader != null && chunkedUploader.accepts(reader.getSize())) {
+			// The parts are sent concurrently by the uploader, the calling thread waits for the commit
+			final MarkLogicPublishResult result = sendChunked(nodeToPublish, channelProperties, channelKey, reader,
+					fingerprint);
+			if (result.isFailed()) {
+				future.completed(result);
+			} else {
+				if (publishedContentIndex != null) {
+					publishedContentIndex.recordPublished(channelKey, nodeToPublish, fingerprint);
+				}
+				if (metadata != null) {
+					submitMetadata(nodeToPublish, channelProperties, channelKey, metadata, false, future);
+				} else {
+					future.completed(result);
+				}
+			}
+			return future;
+		}
+		final MarkLogicRoute route = routingPolicy == null ? null : routingPolicy.route(reader.getMimetype(), reader.getSize());
+		submitContent(nodeToPublish, channelProperties, channelKey, createContentEntity(reader), route, fingerprint,
+				metadata, future);
+		return future;
+	}
+
+    /**
+     * Publishes a node to several MarkLogic channels, reading its content from the content store only once.<br/>
+     * Content backed by a local file is sent from that file, content of up to <code>fanOutMaxBufferBytes</code>
+     * is read into memory, and larger content is copied to one temp file. Every channel is then sent the
+     * content concurrently on <code>fanOutThreads</code> threads, very large documents in parts from the shared
+     * file. Unchanged and metadata only republishes are decided per channel as in {@link #publish}.
+     * Must be called in a transaction; waits until every channel is done. Publishing events hold a single
+     * channel each and do not use it, this is for Java callers publishing to several channels at once.
+     *
+     * @param nodeToPublish the node to publish
+     * @param channelPropertiesByName the channel properties keyed by channel name
+     * @return the publish result of every channel, keyed by channel name
+     */
+	public Map<String, MarkLogicPublishResult> publishFanOut(final NodeRef nodeToPublish,
+			final Map<String, Map<QName, Serializable>> channelPropertiesByName) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("publishFanOut() invoked for " + channelPropertiesByName.size() + " channels");
+		}
+		final Map<String, MarkLogicPublishResult> results = new LinkedHashMap<String, MarkLogicPublishResult>();
+		final ContentReader reader = contentService.getReader(nodeToPublish, ContentModel.PROP_CONTENT);
+		if (reader == null || !reader.exists()) {
+			for (final String channelName : channelPropertiesByName.keySet()) {
+				results.put(channelName, new MarkLogicPublishResult(nodeToPublish, MarkLogicPublishResult.Status.SKIPPED,
+						0, "No content"));
+			}
+			return results;
+		}
+		final long fingerprint = MarkLogicPublishedContentIndex.fingerprint(reader);
+		final String metadata = metadataSerializer == null ? null : metadataSerializer.serialize(nodeToPublish);
+		final Map<String, MarkLogicFuture<MarkLogicPublishResult>> futures =
+				new LinkedHashMap<String, MarkLogicFuture<MarkLogicPublishResult>>();
+		final Map<String, Map<QName, Serializable>> contentChannels = new LinkedHashMap<String, Map<QName, Serializable>>();
+		for (final Map.Entry<String, Map<QName, Serializable>> channel : channelPropertiesByName.entrySet()) {
+			final String channelKey = publishingHelper.getChannelKey(channel.getValue());
+			final MarkLogicFuture<MarkLogicPublishResult> future = new MarkLogicFuture<MarkLogicPublishResult>();
+			futures.put(channel.getKey(), future);
+			if (isUnchanged(channelKey, nodeToPublish, fingerprint, metadata)) {
+				future.completed(new MarkLogicPublishResult(nodeToPublish, MarkLogicPublishResult.Status.SKIPPED, 0,
+						"Unchanged"));
+			} else if (isMetadataOnly(channelKey, nodeToPublish, fingerprint, metadata)) {
+				submitMetadata(nodeToPublish, channel.getValue(), channelKey, metadata, true, future);
+			} else {
+				contentChannels.put(channel.getKey(), channel.getValue());
+			}
+		}
+		if (!contentChannels.isEmpty()) {
+			fanOutContent(nodeToPublish, contentChannels, reader, fingerprint, metadata, futures);
+		}
+		for (final Map.Entry<String, MarkLogicFuture<MarkLogicPublishResult>> future : futures.entrySet()) {
+			results.put(future.getKey(), awaitResult(nodeToPublish, future.getValue()));
+		}
+		return results;
+	}
+
+    /**
+     * Reads the content once and sends it to every channel which needs it, waiting for all of them
+     * before a temp file copy is removed.
+     *
+     * @param nodeToPublish the node to publish
+     * @param contentChannels the channel properties of the channels to send the content to, keyed by channel name
+     * @param reader the content reader
+     * @param fingerprint the content fingerprint
+     * @param metadata the metadata document, may be null
+     * @param futures the futures of the channel results, keyed by channel name
+     */
+	private void fanOutContent(final NodeRef nodeToPublish, final Map<String, Map<QName, Serializable>> contentChannels,
+			final ContentReader reader, final long fingerprint, final String metadata,
+			final Map<String, MarkLogicFuture<MarkLogicPublishResult>> futures) {
+		final String mimeType = reader.getMimetype();
+		final long size = reader.getSize();
+		final MarkLogicRoute route = routingPolicy == null ? null : routingPolicy.route(mimeType, size);
+		final boolean chunked = chunkedUploader != null && chunkedUploader.accepts(size);
+		File contentFile = null;
+		boolean deleteContentFileOnCompletion = false;
+		byte[] content = null;
+		try {
+			if (FileContentReader.class.isAssignableFrom(reader.getClass())) {
+				contentFile = ((FileContentReader) reader).getFile();
+			} else if (!chunked && size >= 0 && size <= fanOutMaxBufferBytes) {
+				content = readContent(reader);
+			} else {
+				contentFile = TempFileProvider.createTempFile("marklogic", "",
+						TempFileProvider.getLongLifeTempDir("marklogic"));
+				deleteContentFileOnCompletion = true;
+				final long copyStart = System.currentTimeMillis();
+				reader.getContent(contentFile);
+				if (metrics != null) {
+					metrics.recordTempFileCopy(System.currentTimeMillis() - copyStart);
+				}
+			}
+			if (metrics != null && contentChannels.size() > 1) {
+				metrics.recordFanOut(contentChannels.size());
+			}
+			final File sharedFile = contentFile;
+			final byte[] sharedContent = content;
+			for (final Map.Entry<String, Map<QName, Serializable>> channel : contentChannels.entrySet()) {
+				final Map<QName, Serializable> channelProperties = channel.getValue();
+				final MarkLogicFuture<MarkLogicPublishResult> future = futures.get(channel.getKey());
+				// The content is already read, so the channels are sent from threads outside the transaction
+				getFanOutExecutor().execute(new Runnable() {
+					public void run() {
+						try {
+							sendFanOut(nodeToPublish, channelProperties, chunked, sharedContent, sharedFile, mimeType,
+									size, route, fingerprint, metadata, future);
+						} catch (RuntimeException runtimeEx) {
+							future.completed(failedResult(nodeToPublish, "publishFanOut", runtimeEx));
+						}
+					}
+				});
+			}
+		} catch (IOException ioex) {
+			for (final String channelName : contentChannels.keySet()) {
+				futures.get(channelName).completed(failedResult(nodeToPublish, "publishFanOut", ioex));
+			}
+		} catch (RuntimeException runtimeEx) {
+			// Channels not submitted yet must not be waited for
+			for (final String channelName : contentChannels.keySet()) {
+				futures.get(channelName).completed(failedResult(nodeToPublish, "publishFanOut", runtimeEx));
+			}
+		} finally {
+			if (deleteContentFileOnCompletion) {
+				for (final String channelName : contentChannels.keySet()) {
+					awaitResult(nodeToPublish, futures.get(channelName));
+				}
+				contentFile.delete();
+			}
+		}
+	}
+
+    /**
+     * Sends the content read by {@link #fanOutContent} to one channel.
+     *
+     * @param nodeToPublish the node to publish
+     * @param channelProperties the channel properties
+     * @param chunked whether the content is uploaded in parts
+     * @param content the content, null when it is sent from the content file
+     * @param contentFile the content file, null when the content is in memory
+     * @param mimeType the mime type
+     * @param size the content size
+     * @param route the route, may be null
+     * @param fingerprint the content fingerprint
+     * @param metadata the metadata document, may be null
+     * @param future the future of the channel's result
+     */
+	private void sendFanOut(final NodeRef nodeToPublish, final Map<QName, Serializable> channelProperties,
+			final boolean chunked, final byte[] content, final File contentFile, final String mimeType, final long size,
+			final MarkLogicRoute route, final long fingerprint, final String metadata,
+			final MarkLogicFuture<MarkLogicPublishResult> future) {
+		final String channelKey = publishingHelper.getChannelKey(channelProperties);
+		if (chunked) {
+			final MarkLogicPublishResult result = uploadChunked(nodeToPublish, channelProperties, channelKey,
+					contentFile, mimeType, fingerprint);
+			if (!result.isFailed() && publishedContentIndex != null) {
+				publishedContentIndex.recordPublished(channelKey, nodeToPublish, fingerprint);
+			}
+			if (!result.isFailed() && metadata != null) {
+				submitMetadata(nodeToPublish, channelProperties, channelKey, metadata, false, future);
+			} else {
+				future.completed(result);
+			}
+			return;
+		}
+		final HttpEntity entity;
+		if (content != null) {
+			final ByteArrayEntity bufferedEntity = new ByteArrayEntity(content);
+			bufferedEntity.setContentType(mimeType);
+			entity = bufferedEntity;
+		} else {
+			entity = new FileEntity(contentFile, mimeType);
+		}
+		submitContent(nodeToPublish, channelProperties, channelKey, compress(entity, mimeType, size, route), route,
+				fingerprint, metadata, future);
+	}
+
+    /**
+     * Gets the executor sending fan out content to the channels, creating it on first use. Its threads
+     * stop when idle.
+     *
+     * @return the fan out executor
+     */
+	private synchronized ExecutorService getFanOutExecutor() {
+		if (fanOutExecutor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(fanOutThreads, fanOutThreads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(final Runnable runnable) {
+							final Thread thread = new Thread(runnable, "MarkLogicFanOut-" + threadCount.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+			fanOutExecutor = executor;
+		}
+		return fanOutExecutor;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public synchronized void destroy() throws InterruptedException {
+		if (fanOutExecutor != null) {
+			fanOutExecutor.shutdownNow();
+			fanOutExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+
+    /**
+     * Waits for the result of a channel.
+     *
+     * @param nodeRef the node ref
+     * @param future the future
+     * @return the result
+     */
+	private static MarkLogicPublishResult awaitResult(final NodeRef nodeRef,
+			final Future<MarkLogicPublishResult> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException intEx) {
+			Thread.currentThread().interrupt();
+			return new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.FAILED, 0, "Interrupted");
+		} catch (ExecutionException execEx) {
+			return failedResult(nodeRef, "publishFanOut", execEx);
+		}
+	}
+
+    /**
+     * Sends the content of a node to one channel without waiting for MarkLogic, followed by the
+     * metadata document when there is one.
+     *
+     * @param nodeToPublish the node to publish
+     * @param channelProperties the channel properties
+     * @param channelKey the channel key
+     * @param entity the content entity
+     * @param route the route, may be null
+     * @param fingerprint the content fingerprint
+     * @param metadata the metadata document, may be null
+     * @param future the future of the node's result
+     */
+	private void submitContent(final NodeRef nodeToPublish, final Map<QName, Serializable> channelProperties,
+			final String channelKey, final HttpEntity entity, final MarkLogicRoute route, final long fingerprint,
+			final String metadata, final MarkLogicFuture<MarkLogicPublishResult> future) {
+		try {
+			final HttpPut httpput = new HttpPut(route == null
+					? publishingHelper.getPutURIFromNodeRefAndChannelProperties(nodeToPublish, channelProperties)
+					: publishingHelper.getPutURIFromNodeRefAndChannelProperties(nodeToPublish, channelProperties,
+							route.getEndpoint()));
+			httpput.setEntity(entity);
+			requestExecutor.submit(httpput, channelProperties,
+					new MarkLogicStatusResponseHandler(STATUS_DOCUMENT_INSERTED, nodeToPublish),
+					new MarkLogicTransportCallback<Integer>() {
+						public void completed(final Integer status) {
+							if (publishedContentIndex != null) {
+								publishedContentIndex.recordPublished(channelKey, nodeToPublish, fingerprint);
+							}
+							if (metadata != null) {
+								submitMetadata(nodeToPublish, channelProperties, channelKey, metadata, false, future);
+							} else {
+								future.completed(new MarkLogicPublishResult(nodeToPublish,
+										MarkLogicPublishResult.Status.PUBLISHED, status, null));
+							}
+						}
+
+						public void failed(final Exception failure) {
+							future.completed(failedResult(nodeToPublish, "publishAsync", failure));
+						}
+					});
+		} catch (URISyntaxException uriSynEx) {
+			future.completed(failedResult(nodeToPublish, "publishAsync", uriSynEx));
+		}
+	}
+
+    /**
+     * Unpublishes a node without waiting for its retries, like {@link #publishAsync}. The future completes with an UNPUBLISHED or
+     * FAILED result and never fails itself.
+     *
+     * @param nodeToUnpublish the node to unpublish
+     * @param channelProperties the channel properties
+     * @return the future unpublish result
+     */
+	public Future<MarkLogicPublishResult> unpublishAsync(final NodeRef nodeToUnpublish,
+			final Map<QName, Serializable> channelProperties) {
+		final MarkLogicFuture<MarkLogicPublishResult> future = new MarkLogicFuture<MarkLogicPublishResult>();
+		try {
+			final HttpDelete httpDelete = new HttpDelete(publishingHelper.getDeleteURIFromNodeRefAndChannelProperties(
+					nodeToUnpublish, channelProperties));
+			requestExecutor.submit(httpDelete, channelProperties,
+					new MarkLogicStatusResponseHandler(STATUS_DOCUMENT_DELETED, nodeToUnpublish),
+					new MarkLogicTransportCallback<Integer>() {
+						public void completed(final Integer status) {
+							if (publishedContentIndex != null) {
+								publishedContentIndex.recordUnpublished(publishingHelper.getChannelKey(channelProperties),
+										nodeToUnpublish);
+							}
+							future.completed(new MarkLogicPublishResult(nodeToUnpublish,
+									MarkLogicPublishResult.Status.UNPUBLISHED, status, null));
+						}
+
+						public void failed(final Exception failure) {
+							future.completed(failedResult(nodeToUnpublish, "unpublishAsync", failure));
+						}
+					});
+		} catch (URISyntaxException uriSynEx) {
+			future.completed(failedResult(nodeToUnpublish, "unpublishAsync", uriSynEx));
+		}
+		return future;
+	}
+
+    /**
+     * Publishes several nodes through the multi-document <code>alfrescopub/publish-batch</code> endpoint.<br/>
+     * Nodes are grouped into requests of at most <code>batchMaxDocuments</code> documents and
+     * <code>batchMaxBytes</code> bytes. MarkLogic reports a status per document, so a failure only
+     * marks the affected nodes as failed. Nodes without content are reported as skipped.
+     *
+     * @param nodesToPublish the nodes to publish
+     * @param channelProperties the channel properties
+     * @return the publish result for every node
+     */
+	public Map<NodeRef, MarkLogicPublishResult> publishBatch(final Collection<NodeRef> nodesToPublish,
+			final Map<QName, Serializable> channelProperties) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("publishBatch() invoked for " + nodesToPublish.size() + " nodes");
+		}
+		final String channelKey = publishingHelper.getChannelKey(channelProperties);
+		final Map<NodeRef, Long> fingerprints = new HashMap<NodeRef, Long>();
+		final Map<NodeRef, String> metadataDocuments = new HashMap<NodeRef, String>();
+		final Map<NodeRef, MarkLogicPublishResult> results = new LinkedHashMap<NodeRef, MarkLogicPublishResult>();
+		MarkLogicBatchEntity batch = new MarkLogicBatchEntity();
+		List<NodeRef> batchNodes = new ArrayList<NodeRef>();
+		long batchBytes = 0;
+		for (final NodeRef nodeToPublish : nodesToPublish) {
+			final ContentReader reader = contentService.getReader(nodeToPublish, ContentModel.PROP_CONTENT);
+			if (reader == null || !reader.exists()) {
+				results.put(nodeToPublish, new MarkLogicPublishResult(nodeToPublish,
+						MarkLogicPublishResult.Status.SKIPPED, 0, "No content to publish"));
+				continue;
+			}
+			final long fingerprint = MarkLogicPublishedContentIndex.fingerprint(reader);
+			final String metadata = metadataSerializer == null ? null : metadataSerializer.serialize(nodeToPublish);
+			if (isUnchanged(channelKey, nodeToPublish, fingerprint, metadata)) {
+				results.put(nodeToPublish, new MarkLogicPublishResult(nodeToPublish,
+						MarkLogicPublishResult.Status.SKIPPED, 0, "Content unchanged since last publish"));
+				continue;
+			}
+			if (isMetadataOnly(channelKey, nodeToPublish, fingerprint, metadata)) {
+				results.put(nodeToPublish, sendMetadata(nodeToPublish, channelProperties, channelKey, metadata, true));
+				if (metrics != null) {
+					metrics.recordMetadataOnlyPublish();
+				}
+				continue;
+			}
+			fingerprints.put(nodeToPublish, Long.valueOf(fingerprint));
+			if (metadata != null) {
+				metadataDocuments.put(nodeToPublish, metadata);
+			}
+			final long size = Math.max(reader.getSize(), 0);
+			if (chunkedUploader != null && chunkedUploader.accepts(size)) {
+				results.put(nodeToPublish, sendChunked(nodeToPublish, channelProperties, channelKey, reader, fingerprint));
+				continue;
+			}
+			if (!batchNodes.isEmpty()
+					&& (batchNodes.size() >= batchMaxDocuments || batchBytes + size > batchMaxBytes)) {
+				results.putAll(sendBatch(batch, batchNodes, channelProperties));
+				batch = new MarkLogicBatchEntity();
+				batchNodes = new ArrayList<NodeRef>();
+				batchBytes = 0;
+			}
+			batch.addPart(nodeToPublish.toString(), createContentEntity(reader));
+			batchNodes.add(nodeToPublish);
+			batchBytes += size;
+		}
+		if (!batchNodes.isEmpty()) {
+			results.putAll(sendBatch(batch, batchNodes, channelProperties));
+		}
+		for (final MarkLogicPublishResult result : results.values()) {
+			if (result.getStatus() != MarkLogicPublishResult.Status.PUBLISHED
+					|| !fingerprints.containsKey(result.getNodeRef())) {
+				continue;
+			}
+			if (publishedContentIndex != null) {
+				publishedContentIndex.recordPublished(channelKey, result.getNodeRef(),
+						fingerprints.get(result.getNodeRef()).longValue());
+			}
+			if (metadataDocuments.containsKey(result.getNodeRef())) {
+				// The properties document follows the content, a failure leaves it for a metadata only republish
+				results.put(result.getNodeRef(), sendMetadata(result.getNodeRef(), channelProperties, channelKey,
+						metadataDocuments.get(result.getNodeRef()), false));
+			}
+		}
+		return results;
+	}
+
+    /**
+     * Removes the documents of several nodes through the <code>alfrescopub/unpublish-batch</code> endpoint,
+     * sending at most <code>bulkUnpublishMaxUris</code> uris per request.
+     *
+     * @param nodesToUnpublish the nodes to unpublish
+     * @param channelProperties the channel properties
+     * @param listener the progress listener, may be null
+     * @return the result, listing the uris which could not be removed
+     */
+	public MarkLogicBulkUnpublishResult unpublishBatch(final Collection<NodeRef> nodesToUnpublish,
+			final Map<QName, Serializable> channelProperties, final MarkLogicBulkUnpublishListener listener) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("unpublishBatch() invoked for " + nodesToUnpublish.size() + " nodes");
+		}
+		final MarkLogicBulkUnpublishResult result = new MarkLogicBulkUnpublishResult();
+		final List<String> uris = new ArrayList<String>();
+		for (final NodeRef nodeToUnpublish : nodesToUnpublish) {
+			uris.add(nodeToUnpublish.toString());
+			if (uris.size() >= bulkUnpublishMaxUris) {
+				sendBulkUnpublish(uris, channelProperties, result, listener);
+				uris.clear();
+			}
+		}
+		if (!uris.isEmpty()) {
+			sendBulkUnpublish(uris, channelProperties, result, listener);
+		}
+		notifyProgress(listener, result);
+		return result;
+	}
+
+    /**
+     * Removes every document whose uri starts with the prefix in a single server side request,
+     * e.g. <code>workspace://SpacesStore/</code>.
+     *
+     * @param uriPrefix the uri prefix
+     * @param channelProperties the channel properties
+     * @param listener the progress listener, may be null
+     * @return the result, a failure of the whole request is keyed by the request query
+     */
+	public MarkLogicBulkUnpublishResult unpublishByPrefix(final String uriPrefix,
+			final Map<QName, Serializable> channelProperties, final MarkLogicBulkUnpublishListener listener) {
+		try {
+			return sendBulkUnpublish(publishingHelper.getBulkDeleteURIFromPrefixAndChannelProperties(uriPrefix,
+					channelProperties), channelProperties, listener);
+		} catch (URISyntaxException uriSynEx) {
+			throw new AlfrescoRuntimeException(uriSynEx.getLocalizedMessage());
+		}
+	}
+
+    /**
+     * Removes every document of a MarkLogic collection, e.g. the collection the MarkLogic
+     * extension assigns to the documents of a site, in a single server side request.
+     *
+     * @param collection the collection
+     * @param channelProperties the channel properties
+     * @param listener the progress listener, may be null
+     * @return the result, a failure of the whole request is keyed by the request query
+     */
+	public MarkLogicBulkUnpublishResult unpublishByCollection(final String collection,
+			final Map<QName, Serializable> channelProperties, final MarkLogicBulkUnpublishListener listener) {
+		try {
+			return sendBulkUnpublish(publishingHelper.getBulkDeleteURIFromCollectionAndChannelProperties(collection,
+					channelProperties), channelProperties, listener);
+		} catch (URISyntaxException uriSynEx) {
+			throw new AlfrescoRuntimeException(uriSynEx.getLocalizedMessage());
+		}
+	}
+
+    /**
+     * Sends one bulk unpublish request for a list of uris. When the request fails every uri not yet
+     * reported by MarkLogic is recorded as failed.
+     *
+     * @param uris the uris
+     * @param channelProperties the channel properties
+     * @param result the result to add to
+     * @param listener the listener
+     */
+	private void sendBulkUnpublish(final List<String> uris, final Map<QName, Serializable> channelProperties,
+			final MarkLogicBulkUnpublishResult result, final MarkLogicBulkUnpublishListener listener) {
+		final BulkUnpublishResponseHandler handler = new BulkUnpublishResponseHandler(
+				publishingHelper.getChannelKey(channelProperties), result, listener);
+		String failure;
+		try {
+			final StringBuilder body = new StringBuilder();
+			for (final String uri : uris) {
+				body.append(uri).append('\n');
+			}
+			final HttpPost httpPost = new HttpPost(publishingHelper.getBulkDeleteURIFromChannelProperties(channelProperties));
+			httpPost.setEntity(new StringEntity(body.toString(), "text/plain", "UTF-8"));
+			requestExecutor.execute(httpPost, channelProperties, handler);
+			return;
+		} catch (IOException ioex) {
+			failure = ioex.getLocalizedMessage();
+		} catch (URISyntaxException uriSynEx) {
+			failure = uriSynEx.getLocalizedMessage();
+		}
+		if (LOG.isErrorEnabled()) {
+			LOG.error("Exception in unpublishBatch(), " + (uris.size() - handler.reported.size()) + " uris failed: " + failure);
+		}
+		for (final String uri : uris) {
+			if (!handler.reported.contains(uri)) {
+				result.addFailure(uri, failure);
+			}
+		}
+	}
+
+    /**
+     * Sends one bulk unpublish request selecting the documents by query.
+     *
+     * @param uri the request uri
+     * @param channelProperties the channel properties
+     * @param listener the listener
+     * @return the result
+     */
+	private MarkLogicBulkUnpublishResult sendBulkUnpublish(final URI uri,
+			final Map<QName, Serializable> channelProperties, final MarkLogicBulkUnpublishListener listener) {
+		final MarkLogicBulkUnpublishResult result = new MarkLogicBulkUnpublishResult();
+		try {
+			requestExecutor.execute(new HttpPost(uri), channelProperties,
+					new BulkUnpublishResponseHandler(publishingHelper.getChannelKey(channelProperties), result, listener));
+		} catch (IOException ioex) {
+			if (LOG.isErrorEnabled()) {
+				LOG.error("Exception in bulk unpublish " + uri.getQuery() + " after " + result + ": ", ioex);
+			}
+			result.addFailure(uri.getQuery(), ioex.getLocalizedMessage());
+		}
+		notifyProgress(listener, result);
+		return result;
+	}
+
+    /**
+     * Notifies the listener, if any.
+     *
+     * @param listener the listener
+     * @param result the result so far
+     */
+	private static void notifyProgress(final MarkLogicBulkUnpublishListener listener, final MarkLogicBulkUnpublishResult result) {
+		if (listener != null) {
+			listener.onProgress(result.getProcessedCount(), result.getFailures().size());
+		}
+	}
+
+    /**
+     * Checks the published content index for an unchanged republish, content and metadata alike when
+     * a metadata document is published.
+     *
+     * @param channelKey the channel key
+     * @param nodeRef the node ref
+     * @param fingerprint the content fingerprint
+     * @param metadata the metadata document, null when not published
+     * @return true, if nothing changed since the last publish to the channel
+     */
+	private boolean isUnchanged(final String channelKey, final NodeRef nodeRef, final long fingerprint,
+			final String metadata) {
+		if (metadata == null) {
+			return isUnchanged(channelKey, nodeRef, fingerprint);
+		}
+		if (publishedContentIndex != null && publishedContentIndex.isUnchanged(channelKey, nodeRef, fingerprint,
+				MarkLogicPublishedContentIndex.fingerprint(metadata))) {
+			if (LOG.isDebugEnabled() && logSampler.sample()) {
+				LOG.debug("Content and metadata unchanged since last publish, skipping node: " + nodeRef);
+			}
+			return true;
+		}
+		return false;
+	}
+
+    /**
+     * Checks whether only the metadata of a node changed since it was last published to the channel.
+     *
+     * @param channelKey the channel key
+     * @param nodeRef the node ref
+     * @param fingerprint the content fingerprint
+     * @param metadata the metadata document, null when not published
+     * @return true, if the content upload can be skipped
+     */
+	private boolean isMetadataOnly(final String channelKey, final NodeRef nodeRef, final long fingerprint,
+			final String metadata) {
+		return metadata != null && publishedContentIndex != null
+				&& publishedContentIndex.isContentUnchanged(channelKey, nodeRef, fingerprint);
+	}
+
+    /**
+     * Sends the properties document of a node to the <code>alfrescopub/metadata</code> endpoint and
+     * records it in the published content index.
+     *
+     * @param nodeRef the node ref
+     * @param channelProperties the channel properties
+     * @param channelKey the channel key
+     * @param metadata the metadata document
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	private void publishMetadata(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties,
+			final String channelKey, final String metadata) throws IOException, URISyntaxException {
+		if (LOG.isDebugEnabled() && logSampler.sample()) {
+			LOG.debug("Publishing metadata of node: " + nodeRef);
+		}
+		final HttpPut httpput = new HttpPut(publishingHelper.getMetadataURIFromNodeRefAndChannelProperties(nodeRef,
+				channelProperties));
+		httpput.setEntity(new StringEntity(metadata, "application/json", "UTF-8"));
+		requestExecutor.execute(httpput, channelProperties,
+				new MarkLogicStatusResponseHandler(STATUS_DOCUMENT_INSERTED, nodeRef));
+		if (publishedContentIndex != null) {
+			publishedContentIndex.recordMetadataPublished(channelKey, nodeRef,
+					MarkLogicPublishedContentIndex.fingerprint(metadata));
+		}
+	}
+
+    /**
+     * Sends the properties document of a node, reporting a failure as the node's result. When the
+     * content was just published a failure only fails a metadata only publish, see
+     * {@link #metadataNotPublished}.
+     *
+     * @param nodeRef the node ref
+     * @param channelProperties the channel properties
+     * @param channelKey the channel key
+     * @param metadata the metadata document
+     * @param metadataOnly whether the content upload was skipped
+     * @return the publish result
+     */
+	private MarkLogicPublishResult sendMetadata(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties,
+			final String channelKey, final String metadata, final boolean metadataOnly) {
+		String failure;
+		int failureStatus = 0;
+		try {
+			publishMetadata(nodeRef, channelProperties, channelKey, metadata);
+			return new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.PUBLISHED,
+					STATUS_DOCUMENT_INSERTED, null);
+		} catch (HttpResponseException respEx) {
+			failureStatus = respEx.getStatusCode();
+			failure = respEx.getLocalizedMessage();
+		} catch (IOException ioex) {
+			failure = ioex.getLocalizedMessage();
+		} catch (URISyntaxException uriSynEx) {
+			failure = uriSynEx.getLocalizedMessage();
+		}
+		if (!metadataOnly) {
+			return metadataNotPublished(nodeRef, failure);
+		}
+		if (LOG.isErrorEnabled()) {
+			LOG.error("Exception publishing metadata of node " + nodeRef + ": " + failure);
+		}
+		return new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.FAILED, failureStatus,
+				"Metadata not published: " + failure);
+	}
+
+    /**
+     * Reports the properties document of a node which failed after its content was published. The
+     * content stays published; the index has no metadata fingerprint for the node yet, so the next
+     * publish sends the properties document as a metadata only publish.
+     *
+     * @param nodeRef the node ref
+     * @param failure the failure
+     * @return the published result
+     */
+	private static MarkLogicPublishResult metadataNotPublished(final NodeRef nodeRef, final String failure) {
+		if (LOG.isWarnEnabled()) {
+			LOG.warn("Content of node " + nodeRef + " published but not its metadata, left for the next publish: "
+					+ failure);
+		}
+		return new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.PUBLISHED, STATUS_DOCUMENT_INSERTED,
+				"Metadata not published: " + failure);
+	}
+
+    /**
+     * Submits the properties document of a node to the <code>alfrescopub/metadata</code> endpoint,
+     * completing the future with the node's result. Like {@link #sendMetadata}, a failure after the
+     * content was published does not fail the node.
+     *
+     * @param nodeRef the node ref
+     * @param channelProperties the channel properties
+     * @param channelKey the channel key
+     * @param metadata the metadata document
+     * @param metadataOnly whether the content upload was skipped
+     * @param future the future of the node's result
+     */
+	private void submitMetadata(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties,
+			final String channelKey, final String metadata, final boolean metadataOnly,
+			final MarkLogicFuture<MarkLogicPublishResult> future) {
+		final HttpPut httpput;
+		try {
+			httpput = new HttpPut(publishingHelper.getMetadataURIFromNodeRefAndChannelProperties(nodeRef, channelProperties));
+			httpput.setEntity(new StringEntity(metadata, "application/json", "UTF-8"));
+		} catch (IOException ioex) {
+			future.completed(metadataOnly ? failedResult(nodeRef, "publishAsync", ioex)
+					: metadataNotPublished(nodeRef, ioex.getLocalizedMessage()));
+			return;
+		} catch (URISyntaxException uriSynEx) {
+			future.completed(metadataOnly ? failedResult(nodeRef, "publishAsync", uriSynEx)
+					: metadataNotPublished(nodeRef, uriSynEx.getLocalizedMessage()));
+			return;
+		}
+		requestExecutor.submit(httpput, channelProperties,
+				new MarkLogicStatusResponseHandler(STATUS_DOCUMENT_INSERTED, nodeRef),
+				new MarkLogicTransportCallback<Integer>() {
+					public void completed(final Integer status) {
+						if (publishedContentIndex != null) {
+							publishedContentIndex.recordMetadataPublished(channelKey, nodeRef,
+									MarkLogicPublishedContentIndex.fingerprint(metadata));
+						}
+						if (metadataOnly && metrics != null) {
+							metrics.recordMetadataOnlyPublish();
+						}
+						future.completed(new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.PUBLISHED,
+								status, null));
+					}
+
+					public void failed(final Exception failure) {
+						future.completed(metadataOnly ? failedResult(nodeRef, "publishAsync", new IOException(
+								"Metadata not published: " + failure.getLocalizedMessage(), failure))
+								: metadataNotPublished(nodeRef, failure.getLocalizedMessage()));
+					}
+				});
+	}
+
+    /**
+     * Logs an asynchronous failure and turns it into the node's result.
+     *
+     * @param nodeRef the node ref
+     * @param operation the operation, for the log
+     * @param failure the failure
+     * @return the failed result
+     */
+	private static MarkLogicPublishResult failedResult(final NodeRef nodeRef, final String operation,
+			final Exception failure) {
+		if (LOG.isErrorEnabled()) {
+			LOG.error("Exception in " + operation + "() of node " + nodeRef + ": " + failure.getLocalizedMessage());
+		}
+		final Throwable cause = failure.getCause() instanceof HttpResponseException ? failure.getCause() : failure;
+		return new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.FAILED,
+				cause instanceof HttpResponseException ? ((HttpResponseException) cause).getStatusCode() : 0,
+				failure.getLocalizedMessage());
+	}
+
+    /**
+     * Uploads a very large document in parts within a batch or an asynchronous publish, reporting a
+     * failure as the node's result. Content not backed by a file is copied to a temp file first.
+     *
+     * @param nodeRef the node ref
+     * @param channelProperties the channel properties
+     * @param channelKey the channel key
+     * @param reader the content reader
+     * @param fingerprint the content fingerprint
+     * @return the publish result
+     */
+	private MarkLogicPublishResult sendChunked(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties,
+			final String channelKey, final ContentReader reader, final long fingerprint) {
+		if (FileContentReader.class.isAssignableFrom(reader.getClass())) {
+			return uploadChunked(nodeRef, channelProperties, channelKey, ((FileContentReader) reader).getFile(),
+					reader.getMimetype(), fingerprint);
+		}
+		final File contentFile = TempFileProvider.createTempFile("marklogic", "",
+				TempFileProvider.getLongLifeTempDir("marklogic"));
+		try {
+			final long copyStart = System.currentTimeMillis();
+			reader.getContent(contentFile);
+			if (metrics != null) {
+				metrics.recordTempFileCopy(System.currentTimeMillis() - copyStart);
+			}
+			return uploadChunked(nodeRef, channelProperties, channelKey, contentFile, reader.getMimetype(), fingerprint);
+		} finally {
+			contentFile.delete();
+		}
+	}
+
+    /**
+     * Uploads a content file in parts, reporting a failure as the node's result.
+     *
+     * @param nodeRef the node ref
+     * @param channelProperties the channel properties
+     * @param channelKey the channel key
+     * @param contentFile the content file
+     * @param mimeType the mime type
+     * @param fingerprint the content fingerprint
+     * @return the publish result
+     */
+	private MarkLogicPublishResult uploadChunked(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties,
+			final String channelKey, final File contentFile, final String mimeType, final long fingerprint) {
+		String failure;
+		int failureStatus = 0;
+		try {
+			chunkedUploader.upload(nodeRef, channelProperties, channelKey, contentFile, mimeType, fingerprint);
+			return new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.PUBLISHED,
+					STATUS_DOCUMENT_INSERTED, null);
+		} catch (HttpResponseException respEx) {
+			failureStatus = respEx.getStatusCode();
+			failure = respEx.getLocalizedMessage();
+		} catch (IOException ioex) {
+			failure = ioex.getLocalizedMessage();
+		} catch (URISyntaxException uriSynEx) {
+			failure = uriSynEx.getLocalizedMessage();
+		}
+		if (LOG.isErrorEnabled()) {
+			LOG.error("Exception uploading node " + nodeRef + " in parts: " + failure);
+		}
+		return new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.FAILED, failureStatus, failure);
+	}
+
+    /**
+     * Checks the published content index for an unchanged republish.
+     *
+     * @param channelKey the channel key
+     * @param nodeRef the node ref
+     * @param fingerprint the content fingerprint
+     * @return true, if the content was already published to the channel
+     */
+	private boolean isUnchanged(final String channelKey, final NodeRef nodeRef, final long fingerprint) {
+		if (publishedContentIndex != null && publishedContentIndex.isUnchanged(channelKey, nodeRef, fingerprint)) {
+			if (LOG.isDebugEnabled() && logSampler.sample()) {
+				LOG.debug("Content unchanged since last publish, skipping node: " + nodeRef);
+			}
+			return true;
+		}
+		return false;
+	}
+
+    /**
+     * Sends one batch request, a failure of the whole request marks every node of the batch as failed.
+     *
+     * @param batch the batch
+     * @param batchNodes the nodes in the batch
+     * @param channelProperties the channel properties
+     * @return the results of the batch
+     */
+	private Map<NodeRef, MarkLogicPublishResult> sendBatch(final MarkLogicBatchEntity batch,
+			final List<NodeRef> batchNodes, final Map<QName, Serializable> channelProperties) {
+		String failure;
+		int failureStatus = 0;
+		try {
+			final HttpPut httpput = new HttpPut(publishingHelper.getPublishBatchURIFromChannelProperties(channelProperties));
+			httpput.setEntity(batch);
+			return requestExecutor.execute(httpput, channelProperties, new BatchResponseHandler(batchNodes));
+		} catch (HttpResponseException respEx) {
+			failureStatus = respEx.getStatusCode();
+			failure = respEx.getLocalizedMessage();
+		} catch (IOException ioex) {
+			failure = ioex.getLocalizedMessage();
+		} catch (URISyntaxException uriSynEx) {
+			failure = uriSynEx.getLocalizedMessage();
+		}
+		if (LOG.isErrorEnabled()) {
+			LOG.error("Exception in publishBatch(), " + batchNodes.size() + " nodes failed: " + failure);
+		}
+		final Map<NodeRef, MarkLogicPublishResult> results = new LinkedHashMap<NodeRef, MarkLogicPublishResult>();
+		for (final NodeRef nodeRef : batchNodes) {
+			results.put(nodeRef, new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.FAILED,
+					failureStatus, failure));
+		}
+		return results;
+	}
+
+    /**
+     * Creates the request entity for a content reader, using the backing file when there is one.<br/>
+     * Either way the content is copied through a stream buffer, there is no zero-copy transfer.
+     *
+     * @param reader the reader
+     * @return the http entity
+     */
+	private HttpEntity createContentEntity(final ContentReader reader) {
+		final MarkLogicRoute route = routingPolicy == null ? null : routingPolicy.route(reader.getMimetype(), reader.getSize());
+		if (FileContentReader.class.isAssignableFrom(reader.getClass())) {
+			return compress(new FileEntity(((FileContentReader) reader).getFile(), reader.getMimetype()),
+					reader.getMimetype(), reader.getSize(), route);
+		}
+		return compress(new ContentReaderEntity(reader, reader.getMimetype()), reader.getMimetype(), reader.getSize(), route);
+	}
+
+    /**
+     * Reads the whole content into memory.
+     *
+     * @param reader the reader
+     * @return the content
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+	private static byte[] readContent(final ContentReader reader) throws IOException {
+		final byte[] content = new byte[(int) reader.getSize()];
+		final InputStream inStream = reader.getContentInputStream();
+		try {
+			int offset = 0;
+			int read;
+			while (offset < content.length && (read = inStream.read(content, offset, content.length - offset)) != -1) {
+				offset += read;
+			}
+			if (offset < content.length) {
+				throw new IOException("Content shorter than its size: " + offset + " of " + content.length + " bytes");
+			}
+		} finally {
+			inStream.close();
+		}
+		return content;
+	}
+
+    /**
+     * Applies the compression policy, if any, to a request entity. With a route the route decides
+     * whether the entity is compressed, otherwise the compression policy does. The min size of the
+     * policy applies either way.
+     *
+     * @param entity the entity
+     * @param mimeType the mime type
+     * @param size the content size
+     * @param route the route, may be null
+     * @return the entity to send
+     */
+	private HttpEntity compress(final HttpEntity entity, final String mimeType, final long size, final MarkLogicRoute route) {
+		if (compressionPolicy == null) {
+			return entity;
+		}
+		if (route != null) {
+			return route.isCompress() ? compressionPolicy.compress(entity, mimeType, size) : entity;
+		}
+		return compressionPolicy.apply(entity, mimeType, size);
+	}
+
+	/**
+	 * Nodes published in one transaction, sent through the batch endpoint before it commits. The transaction
+	 * still sees its own changes then, and a failure rolls it back like a failed {@link #publishNow} does.
+	 */
+	private final class EventBatch extends TransactionListenerAdapter {
+
+		/** The nodes by channel key. */
+		private final Map<String, Set<NodeRef>> nodeRefs = new LinkedHashMap<String, Set<NodeRef>>();
+
+		/** The channel properties by channel key. */
+		private final Map<String, Map<QName, Serializable>> channelProperties =
+				new HashMap<String, Map<QName, Serializable>>();
+
+		/**
+		 * Adds a node to the batch of its channel.
+		 *
+		 * @param nodeToPublish the node to publish
+		 * @param properties the channel properties
+		 */
+		private void add(final NodeRef nodeToPublish, final Map<QName, Serializable> properties) {
+			final String channelKey = publishingHelper.getChannelKey(properties);
+			Set<NodeRef> channelNodes = nodeRefs.get(channelKey);
+			if (channelNodes == null) {
+				channelNodes = new LinkedHashSet<NodeRef>();
+				nodeRefs.put(channelKey, channelNodes);
+			}
+			channelNodes.add(nodeToPublish);
+			channelProperties.put(channelKey, properties);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.alfresco.repo.transaction.TransactionListenerAdapter#beforeCommit(boolean)
+		 */
+		@Override
+		public void beforeCommit(final boolean readOnly) {
+			for (final Map.Entry<String, Set<NodeRef>> entry : nodeRefs.entrySet()) {
+				final Map<QName, Serializable> properties = channelProperties.get(entry.getKey());
+				if (entry.getValue().size() == 1) {
+					publishNow(entry.getValue().iterator().next(), properties);
+					continue;
+				}
+				final List<MarkLogicPublishResult> failures = new ArrayList<MarkLogicPublishResult>();
+				for (final MarkLogicPublishResult result : publishBatch(entry.getValue(), properties).values()) {
+					if (result.isFailed()) {
+						failures.add(result);
+					}
+				}
+				if (!failures.isEmpty()) {
+					throw new AlfrescoRuntimeException("Publishing " + failures.size() + " of "
+							+ entry.getValue().size() + " nodes failed: " + failures);
+				}
+			}
+		}
+	}
+
+    /**
+     * Reads the per-document status lines streamed back by the bulk unpublish endpoint as the
+     * documents are removed, <code>&lt;status&gt; &lt;uri&gt; [message]</code> like the batch publish
+     * endpoint. Removed documents are dropped from the published content index right away.
+     */
+	private final class BulkUnpublishResponseHandler implements ResponseHandler<MarkLogicBulkUnpublishResult> {
+
+		/** The channel key. */
+		private final String channelKey;
+
+		/** The result. */
+		private final MarkLogicBulkUnpublishResult result;
+
+		/** The listener. */
+		private final MarkLogicBulkUnpublishListener listener;
+
+		/** The uris reported by MarkLogic. */
+		private final Set<String> reported = new HashSet<String>();
+
+		/**
+		 * Instantiates a new bulk unpublish response handler.
+		 *
+		 * @param channelKey the channel key
+		 * @param result the result
+		 * @param listener the listener
+		 */
+		private BulkUnpublishResponseHandler(final String channelKey, final MarkLogicBulkUnpublishResult result,
+				final MarkLogicBulkUnpublishListener listener) {
+			this.channelKey = channelKey;
+			this.result = result;
+			this.listener = listener;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.http.client.ResponseHandler#handleResponse(org.apache.http.HttpResponse)
+		 */
+		public MarkLogicBulkUnpublishResult handleResponse(final HttpResponse response) throws IOException {
+			final HttpEntity entity = response.getEntity();
+			if (response.getStatusLine().getStatusCode() != STATUS_BATCH_PROCESSED) {
+				EntityUtils.consume(entity);
+				throw new HttpResponseException(response.getStatusLine().getStatusCode(),
+						response.getStatusLine().getReasonPhrase());
+			}
+			if (entity == null) {
+				return result;
+			}
+			final BufferedReader lineReader = new BufferedReader(new InputStreamReader(entity.getContent(), "UTF-8"));
+			try {
+				String line;
+				while ((line = lineReader.readLine()) != null) {
+					final String[] tokens = line.trim().split(" ", 3);
+					if (tokens.length < 2) {
+						continue;
+					}
+					reported.add(tokens[1]);
+					if (STATUS_DOCUMENT_DELETED == parseStatus(tokens[0]) || STATUS_DOCUMENT_NOT_FOUND == parseStatus(tokens[0])) {
+						result.addUnpublished();
+						if (publishedContentIndex != null && NodeRef.isNodeRef(tokens[1])) {
+							publishedContentIndex.recordUnpublished(channelKey, new NodeRef(tokens[1]));
+						}
+					} else {
+						result.addFailure(tokens[1], tokens.length > 2 ? tokens[0] + " " + tokens[2] : tokens[0]);
+					}
+					if (result.getProcessedCount() % BULK_PROGRESS_INTERVAL == 0) {
+						if (LOG.isDebugEnabled()) {
+							LOG.debug("Bulk unpublish progress: " + result);
+						}
+						notifyProgress(listener, result);
+					}
+				}
+			} finally {
+				lineReader.close();
+			}
+			return result;
+		}
+
+		/**
+		 * Parses a status code.
+		 *
+		 * @param status the status
+		 * @return the status code, 0 if it is not a number
+		 */
+		private int parseStatus(final String status) {
+			try {
+				return Integer.parseInt(status);
+			} catch (NumberFormatException numEx) {
+				return 0;
+			}
+		}
+	}
+
+    /**
+     * Reads the per-document status lines returned by the batch endpoint.<br/>
+     * Every line has the form <code>&lt;status&gt; &lt;uri&gt; [message]</code>, where status is the
+     * http status code MarkLogic would have returned for a single publish of that document.
+     */
+	private static final class BatchResponseHandler implements ResponseHandler<Map<NodeRef, MarkLogicPublishResult>> {
+
+		/** The batch nodes. */
+		private final List<NodeRef> batchNodes;
+
+		/**
+		 * Instantiates a new batch response handler.
+		 *
+		 * @param batchNodes the batch nodes
+		 */
+		private BatchResponseHandler(final List<NodeRef> batchNodes) {
+			this.batchNodes = batchNodes;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.http.client.ResponseHandler#handleResponse(org.apache.http.HttpResponse)
+		 */
+		public Map<NodeRef, MarkLogicPublishResult> handleResponse(final HttpResponse response) throws IOException {
+			final HttpEntity entity = response.getEntity();
+			if (response.getStatusLine().getStatusCode() != STATUS_BATCH_PROCESSED || entity == null) {
+				EntityUtils.consume(entity);
+				throw new HttpResponseException(response.getStatusLine().getStatusCode(),
+						response.getStatusLine().getReasonPhrase());
+			}
+			final Map<String, String[]> statusLines = new HashMap<String, String[]>();
+			final BufferedReader lineReader = new BufferedReader(new InputStreamReader(entity.getContent(), "UTF-8"));
+			try {
+				String line;
+				while ((line = lineReader.readLine()) != null) {
+					final String[] tokens = line.trim().split(" ", 3);
+					if (tokens.length >= 2) {
+						statusLines.put(tokens[1], tokens);
+					}
+				}
+			} finally {
+				lineReader.close();
+			}
+
+			final Map<NodeRef, MarkLogicPublishResult> results = new LinkedHashMap<NodeRef, MarkLogicPublishResult>();
+			for (final NodeRef nodeRef : batchNodes) {
+				final String[] tokens = statusLines.get(nodeRef.toString());
+				if (tokens == null) {
+					results.put(nodeRef, new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.FAILED,
+							0, "No status returned by MarkLogic"));
+					continue;
+				}
+				int documentStatus;
+				try {
+					documentStatus = Integer.parseInt(tokens[0]);
+				} catch (NumberFormatException numEx) {
+					documentStatus = 0;
+				}
+				final String message = tokens.length > 2 ? tokens[2] : null;
+				results.put(nodeRef, new MarkLogicPublishResult(nodeRef,
+						documentStatus == STATUS_DOCUMENT_INSERTED ? MarkLogicPublishResult.Status.PUBLISHED
+								: MarkLogicPublishResult.Status.FAILED, documentStatus, message));
+			}
+			return results;
+		}
+	}
 }
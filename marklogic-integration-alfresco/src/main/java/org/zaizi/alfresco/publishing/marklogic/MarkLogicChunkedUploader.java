@@ -0,0 +1,737 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Uploads documents of at least <code>thresholdBytes</code> in parts of <code>partSizeBytes</code>, so a
+ * network failure only costs the parts in flight and no request hits the MarkLogic request size or timeout limits.<br/>
+ * An upload is started on <code>alfrescopub/upload</code> with an id chosen here, its parts are sent
+ * concurrently to <code>alfrescopub/upload-part</code> with a <code>Content-MD5</code> checksum, and
+ * <code>alfrescopub/upload-commit</code> then assembles them into the document in a single transaction.
+ * After a failed part the acknowledged parts are read back from MarkLogic and only the missing ones are sent again.
+ * The upload id is kept in <code>stateDirectory</code> until the commit, so a publish retried later, even
+ * after a restart, resumes the upload as long as the content did not change.
+ */
+public class MarkLogicChunkedUploader implements InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicChunkedUploader.class);
+
+	/** The Constant STATUS_UPLOAD_STARTED. */
+	private final static int STATUS_UPLOAD_STARTED = 204;
+
+	/** The Constant STATUS_PART_STORED. */
+	private final static int STATUS_PART_STORED = 204;
+
+	/** The Constant STATUS_DOCUMENT_INSERTED. */
+	private final static int STATUS_DOCUMENT_INSERTED = 204;
+
+	/** The Constant COPY_BUFFER_SIZE. */
+	private final static int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/** The request executor. */
+	private MarkLogicRequestExecutor requestExecutor;
+
+	/** The publishing helper. */
+	private MarkLogicPublishingHelper publishingHelper;
+
+	/** The metrics. May be null. */
+	private MarkLogicPublishingMetrics metrics;
+
+	/** The size from which documents are uploaded in parts, 0 disables chunked uploads. */
+	private long thresholdBytes = 256L * 1024 * 1024;
+
+	/** The part size. */
+	private int partSizeBytes = 16 * 1024 * 1024;
+
+	/** The threads sending parts, shared by all uploads. */
+	private int partThreads = 4;
+
+	/** The rounds of sending the missing parts again after a failure. */
+	private int maxResumeAttempts = 3;
+
+	/** The state directory, required. */
+	private String stateDirectory;
+
+	/** The resolved state directory. */
+	private File stateDir;
+
+	/** The part executor. */
+	private ExecutorService partExecutor;
+
+	/**
+	 * Sets the request executor.
+	 *
+	 * @param requestExecutor the new request executor
+	 */
+	public void setRequestExecutor(final MarkLogicRequestExecutor requestExecutor) {
+		this.requestExecutor = requestExecutor;
+	}
+
+	/**
+	 * Sets the publishing helper.
+	 *
+	 * @param publishingHelper the new publishing helper
+	 */
+	public void setPublishingHelper(final MarkLogicPublishingHelper publishingHelper) {
+		this.publishingHelper = publishingHelper;
+	}
+
+	/**
+	 * Sets the metrics.
+	 *
+	 * @param metrics the new metrics
+	 */
+	public void setMetrics(final MarkLogicPublishingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the size from which documents are uploaded in parts.
+	 *
+	 * @param thresholdBytes the new threshold bytes, 0 disables chunked uploads
+	 */
+	public void setThresholdBytes(final long thresholdBytes) {
+		this.thresholdBytes = thresholdBytes;
+	}
+
+	/**
+	 * Sets the part size.
+	 *
+	 * @param partSizeBytes the new part size bytes
+	 */
+	public void setPartSizeBytes(final int partSizeBytes) {
+		this.partSizeBytes = partSizeBytes;
+	}
+
+	/**
+	 * Sets the threads sending parts.
+	 *
+	 * @param partThreads the new part threads
+	 */
+	public void setPartThreads(final int partThreads) {
+		this.partThreads = partThreads;
+	}
+
+	/**
+	 * Sets the rounds of sending the missing parts again after a failure.
+	 *
+	 * @param maxResumeAttempts the new max resume attempts
+	 */
+	public void setMaxResumeAttempts(final int maxResumeAttempts) {
+		this.maxResumeAttempts = maxResumeAttempts;
+	}
+
+	/**
+	 * Sets the directory keeping the ids of unfinished uploads.
+	 *
+	 * @param stateDirectory the new state directory
+	 */
+	public void setStateDirectory(final String stateDirectory) {
+		this.stateDirectory = stateDirectory;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() throws IOException {
+		if (stateDirectory == null || stateDirectory.length() == 0) {
+			throw new AlfrescoRuntimeException("MarkLogic chunked uploader has no state directory");
+		}
+		stateDir = new File(stateDirectory);
+		if (!stateDir.exists() && !stateDir.mkdirs()) {
+			throw new IOException("Unable to create MarkLogic upload state directory: " + stateDir);
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		partExecutor = Executors.newFixedThreadPool(partThreads, new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "MarkLogicUploadPart-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() throws InterruptedException {
+		if (partExecutor != null) {
+			partExecutor.shutdownNow();
+			partExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Checks whether a document is uploaded in parts.
+	 *
+	 * @param size the document size
+	 * @return true, if the document is at least thresholdBytes long
+	 */
+	public boolean accepts(final long size) {
+		return thresholdBytes > 0 && size >= thresholdBytes;
+	}
+
+	/**
+	 * Uploads a document in parts and commits it, resuming an unfinished upload of the same content.
+	 *
+	 * @param nodeRef the node ref
+	 * @param channelProperties the channel properties
+	 * @param channelKey the channel key
+	 * @param file the content
+	 * @param mimeType the mime type
+	 * @param fingerprint the content fingerprint
+	 * @throws IOException Signals that the upload failed, it is resumed by the next publish of the node
+	 * @throws URISyntaxException the uRI syntax exception
+	 */
+	public void upload(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties,
+			final String channelKey, final File file, final String mimeType, final long fingerprint)
+			throws IOException, URISyntaxException {
+		final long size = file.length();
+		final int parts = (int) ((size + partSizeBytes - 1) / partSizeBytes);
+		final File stateFile = new File(stateDir, "upload-"
+				+ Long.toHexString(MarkLogicPublishedContentIndex.fingerprint(channelKey + '|' + nodeRef)) + ".state");
+		final Upload upload = new Upload(nodeRef, channelProperties, file, size, parts);
+		String uploadId = readState(stateFile, fingerprint, size);
+		int partsSent = 0;
+		int partsResumed = 0;
+		for (int attempt = 0;; attempt++) {
+			Map<Integer, String> acknowledged = uploadId == null ? null : readAcknowledgedParts(uploadId, channelProperties);
+			if (acknowledged == null) {
+				// No upload to resume, or MarkLogic expired it
+				uploadId = UUID.randomUUID().toString();
+				start(nodeRef, uploadId, mimeType, size, parts, channelProperties);
+				writeState(stateFile, uploadId, fingerprint, size);
+				acknowledged = new HashMap<Integer, String>();
+			}
+			final List<Integer> missing = new ArrayList<Integer>();
+			for (int part = 0; part < parts; part++) {
+				final String checksum = acknowledged.get(Integer.valueOf(part));
+				if (checksum == null || !checksum.equals(upload.checksum(part))) {
+					missing.add(Integer.valueOf(part));
+				}
+			}
+			if (attempt == 0) {
+				partsResumed = parts - missing.size();
+				if (partsResumed > 0 && LOG.isInfoEnabled()) {
+					LOG.info("Resuming upload " + uploadId + " of node " + nodeRef + ", " + partsResumed + "/" + parts
+							+ " parts already acknowledged");
+				}
+			}
+			partsSent += missing.size();
+			final IOException failure = upload.sendParts(uploadId, missing);
+			if (failure == null) {
+				break;
+			}
+			if (attempt >= maxResumeAttempts) {
+				LOG.error("Giving up upload " + uploadId + " of node " + nodeRef + " after " + (attempt + 1)
+						+ " rounds, it is resumed by the next publish: " + failure.getLocalizedMessage());
+				throw failure;
+			}
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Upload " + uploadId + " of node " + nodeRef + " failed (" + failure.getLocalizedMessage()
+						+ "), resuming from the acknowledged parts");
+			}
+		}
+		commit(nodeRef, uploadId, upload, channelProperties);
+		if (!stateFile.delete() && stateFile.exists()) {
+			LOG.warn("Unable to delete MarkLogic upload state " + stateFile);
+		}
+		if (metrics != null) {
+			metrics.recordChunkedUpload(partsSent, partsResumed);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Uploaded node " + nodeRef + " in " + parts + " parts, " + partsSent + " sent, " + partsResumed
+					+ " resumed");
+		}
+	}
+
+	/**
+	 * Starts an upload. The request carries no body, its Content-Type is the document's mime type.
+	 *
+	 * @param nodeRef the node ref
+	 * @param uploadId the upload id
+	 * @param mimeType the mime type
+	 * @param size the document size
+	 * @param parts the part count
+	 * @param channelProperties the channel properties
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws URISyntaxException the uRI syntax exception
+	 */
+	private void start(final NodeRef nodeRef, final String uploadId, final String mimeType, final long size,
+			final int parts, final Map<QName, Serializable> channelProperties) throws IOException, URISyntaxException {
+		final HttpPut httpput = new HttpPut(publishingHelper.getUploadURIFromNodeRefAndChannelProperties(nodeRef, uploadId,
+				channelProperties));
+		final ByteArrayEntity entity = new ByteArrayEntity(new byte[0]);
+		entity.setContentType(mimeType);
+		httpput.setEntity(entity);
+		httpput.setHeader("X-Upload-Size", Long.toString(size));
+		httpput.setHeader("X-Upload-Parts", Integer.toString(parts));
+		requestExecutor.execute(httpput, channelProperties, new MarkLogicStatusResponseHandler(STATUS_UPLOAD_STARTED, nodeRef));
+	}
+
+	/**
+	 * Reads the parts of an upload acknowledged by MarkLogic.
+	 *
+	 * @param uploadId the upload id
+	 * @param channelProperties the channel properties
+	 * @return the checksum of each acknowledged part, null if MarkLogic does not know the upload
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws URISyntaxException the uRI syntax exception
+	 */
+	private Map<Integer, String> readAcknowledgedParts(final String uploadId,
+			final Map<QName, Serializable> channelProperties) throws IOException, URISyntaxException {
+		final HttpGet httpget = new HttpGet(publishingHelper.getUploadStatusURIFromChannelProperties(uploadId,
+				channelProperties));
+		return requestExecutor.execute(httpget, channelProperties, new ResponseHandler<Map<Integer, String>>() {
+			public Map<Integer, String> handleResponse(final HttpResponse response) throws IOException {
+				final int statusCode = response.getStatusLine().getStatusCode();
+				if (statusCode == HttpStatus.SC_NOT_FOUND) {
+					EntityUtils.consume(response.getEntity());
+					return null;
+				}
+				if (statusCode != HttpStatus.SC_OK) {
+					EntityUtils.consume(response.getEntity());
+					throw new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase());
+				}
+				final Map<Integer, String> acknowledged = new HashMap<Integer, String>();
+				if (response.getEntity() != null) {
+					for (final String line : EntityUtils.toString(response.getEntity(), "UTF-8").split("\n")) {
+						final String[] fields = line.trim().split("\\s+");
+						if (fields.length == 2) {
+							try {
+								acknowledged.put(Integer.valueOf(fields[0]), fields[1]);
+							} catch (NumberFormatException numEx) {
+								LOG.warn("Ignoring malformed MarkLogic upload status line: " + line);
+							}
+						}
+					}
+				}
+				return acknowledged;
+			}
+		});
+	}
+
+	/**
+	 * Commits an upload, MarkLogic verifies the parts against the checksums listed in the body and
+	 * inserts the assembled document. Committing an upload twice answers 204 again.
+	 *
+	 * @param nodeRef the node ref
+	 * @param uploadId the upload id
+	 * @param upload the upload
+	 * @param channelProperties the channel properties
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws URISyntaxException the uRI syntax exception
+	 */
+	private void commit(final NodeRef nodeRef, final String uploadId, final Upload upload,
+			final Map<QName, Serializable> channelProperties) throws IOException, URISyntaxException {
+		final StringBuilder manifest = new StringBuilder();
+		for (int part = 0; part < upload.parts; part++) {
+			manifest.append(part).append(' ').append(upload.checksum(part)).append('\n');
+		}
+		final HttpPut httpput = new HttpPut(publishingHelper.getUploadCommitURIFromChannelProperties(uploadId,
+				channelProperties));
+		httpput.setEntity(new StringEntity(manifest.toString(), "text/plain", "UTF-8"));
+		requestExecutor.execute(httpput, channelProperties,
+				new MarkLogicStatusResponseHandler(STATUS_DOCUMENT_INSERTED, nodeRef));
+	}
+
+	/**
+	 * Reads the id of an unfinished upload of the same content.
+	 *
+	 * @param stateFile the state file
+	 * @param fingerprint the content fingerprint
+	 * @param size the document size
+	 * @return the upload id, null if there is nothing to resume
+	 */
+	private String readState(final File stateFile, final long fingerprint, final long size) {
+		if (!stateFile.exists()) {
+			return null;
+		}
+		final Properties state = new Properties();
+		try {
+			final InputStream in = new FileInputStream(stateFile);
+			try {
+				state.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioex) {
+			LOG.warn("Ignoring unreadable MarkLogic upload state " + stateFile + ": " + ioex.getLocalizedMessage());
+			return null;
+		}
+		if (!Long.toString(fingerprint).equals(state.getProperty("fingerprint"))
+				|| !Long.toString(size).equals(state.getProperty("size"))
+				|| !Integer.toString(partSizeBytes).equals(state.getProperty("partSize"))) {
+			// The content or part size changed, the old parts are useless
+			return null;
+		}
+		return state.getProperty("id");
+	}
+
+	/**
+	 * Writes the id of an upload to a temp file and renames it over the previous state.
+	 *
+	 * @param stateFile the state file
+	 * @param uploadId the upload id
+	 * @param fingerprint the content fingerprint
+	 * @param size the document size
+	 */
+	private void writeState(final File stateFile, final String uploadId, final long fingerprint, final long size) {
+		final Properties state = new Properties();
+		state.setProperty("id", uploadId);
+		state.setProperty("fingerprint", Long.toString(fingerprint));
+		state.setProperty("size", Long.toString(size));
+		state.setProperty("partSize", Integer.toString(partSizeBytes));
+		final File tempFile = new File(stateFile.getParentFile(), stateFile.getName() + ".tmp");
+		try {
+			final FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				state.store(out, "MarkLogic chunked upload");
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (stateFile.exists() && !stateFile.delete()) {
+				throw new IOException("Unable to replace " + stateFile);
+			}
+			if (!tempFile.renameTo(stateFile)) {
+				throw new IOException("Unable to replace " + stateFile);
+			}
+		} catch (IOException ioex) {
+			// The upload still works, it just cannot be resumed by a later publish
+			LOG.error("Unable to write MarkLogic upload state: " + ioex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * The parts of a document and their checksums.
+	 */
+	private final class Upload {
+
+		/** The node ref. */
+		private final NodeRef nodeRef;
+
+		/** The channel properties. */
+		private final Map<QName, Serializable> channelProperties;
+
+		/** The file. */
+		private final File file;
+
+		/** The size. */
+		private final long size;
+
+		/** The part count. */
+		private final int parts;
+
+		/** The base64 MD5 of each part, computed on first use. */
+		private final String[] checksums;
+
+		/**
+		 * Instantiates a new upload.
+		 *
+		 * @param nodeRef the node ref
+		 * @param channelProperties the channel properties
+		 * @param file the file
+		 * @param size the size
+		 * @param parts the parts
+		 */
+		private Upload(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties, final File file,
+				final long size, final int parts) {
+			this.nodeRef = nodeRef;
+			this.channelProperties = channelProperties;
+			this.file = file;
+			this.size = size;
+			this.parts = parts;
+			this.checksums = new String[parts];
+		}
+
+		/**
+		 * Gets the offset of a part.
+		 *
+		 * @param part the part
+		 * @return the offset
+		 */
+		private long offset(final int part) {
+			return (long) part * partSizeBytes;
+		}
+
+		/**
+		 * Gets the length of a part.
+		 *
+		 * @param part the part
+		 * @return the length
+		 */
+		private long length(final int part) {
+			return Math.min(partSizeBytes, size - offset(part));
+		}
+
+		/**
+		 * Gets the base64 MD5 of a part, as sent in its <code>Content-MD5</code> header.
+		 *
+		 * @param part the part
+		 * @return the checksum
+		 * @throws IOException Signals that the file could not be read.
+		 */
+		private String checksum(final int part) throws IOException {
+			synchronized (checksums) {
+				if (checksums[part] != null) {
+					return checksums[part];
+				}
+			}
+			final MessageDigest md5;
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException noAlgEx) {
+				throw new IOException(noAlgEx);
+			}
+			final RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				in.seek(offset(part));
+				final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+				long remaining = length(part);
+				while (remaining > 0) {
+					final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (read < 0) {
+						throw new IOException("Content of node " + nodeRef + " shrank while uploading");
+					}
+					md5.update(buffer, 0, read);
+					remaining -= read;
+				}
+			} finally {
+				in.close();
+			}
+			final String checksum = Base64.encodeBase64String(md5.digest()).trim();
+			synchronized (checksums) {
+				checksums[part] = checksum;
+			}
+			return checksum;
+		}
+
+		/**
+		 * Sends parts concurrently on the part threads.
+		 *
+		 * @param uploadId the upload id
+		 * @param partsToSend the parts to send
+		 * @return the first failure, null if every part was acknowledged
+		 * @throws IOException if interrupted
+		 */
+		private IOException sendParts(final String uploadId, final List<Integer> partsToSend) throws IOException {
+			final List<Future<Void>> futures = new ArrayList<Future<Void>>(partsToSend.size());
+			for (final Integer part : partsToSend) {
+				futures.add(partExecutor.submit(new Callable<Void>() {
+					public Void call() throws IOException, URISyntaxException {
+						sendPart(uploadId, part.intValue());
+						return null;
+					}
+				}));
+			}
+			IOException failure = null;
+			for (final Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException intEx) {
+					Thread.currentThread().interrupt();
+					for (final Future<Void> pending : futures) {
+						pending.cancel(true);
+					}
+					throw new IOException("Interrupted while uploading node " + nodeRef);
+				} catch (ExecutionException execEx) {
+					if (failure == null) {
+						failure = execEx.getCause() instanceof IOException ? (IOException) execEx.getCause()
+								: new IOException(execEx.getCause());
+					}
+				}
+			}
+			return failure;
+		}
+
+		/**
+		 * Sends a part. MarkLogic answers 400 when the part does not match its checksum.
+		 *
+		 * @param uploadId the upload id
+		 * @param part the part
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 * @throws URISyntaxException the uRI syntax exception
+		 */
+		private void sendPart(final String uploadId, final int part) throws IOException, URISyntaxException {
+			final HttpPut httpput = new HttpPut(publishingHelper.getUploadPartURIFromChannelProperties(uploadId, part,
+					channelProperties));
+			httpput.setHeader("Content-MD5", checksum(part));
+			httpput.setEntity(new FileRangeEntity(file, offset(part), length(part)));
+			requestExecutor.execute(httpput, channelProperties, new MarkLogicStatusResponseHandler(STATUS_PART_STORED,
+					nodeRef + " part " + part));
+		}
+	}
+
+	/**
+	 * Repeatable request body sending a range of a file.
+	 */
+	private static final class FileRangeEntity extends AbstractHttpEntity {
+
+		/** The file. */
+		private final File file;
+
+		/** The offset. */
+		private final long offset;
+
+		/** The length. */
+		private final long length;
+
+		/**
+		 * Instantiates a new file range entity.
+		 *
+		 * @param file the file
+		 * @param offset the offset
+		 * @param length the length
+		 */
+		private FileRangeEntity(final File file, final long offset, final long length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			setContentType("application/octet-stream");
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.http.HttpEntity#isRepeatable()
+		 */
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.http.HttpEntity#getContentLength()
+		 */
+		public long getContentLength() {
+			return length;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.http.HttpEntity#getContent()
+		 */
+		public InputStream getContent() throws IOException {
+			final RandomAccessFile in = new RandomAccessFile(file, "r");
+			in.seek(offset);
+			return new InputStream() {
+				private long remaining = length;
+
+				@Override
+				public int read() throws IOException {
+					if (remaining <= 0) {
+						return -1;
+					}
+					final int b = in.read();
+					if (b >= 0) {
+						remaining--;
+					}
+					return b;
+				}
+
+				@Override
+				public int read(final byte[] b, final int off, final int len) throws IOException {
+					if (remaining <= 0) {
+						return -1;
+					}
+					final int read = in.read(b, off, (int) Math.min(len, remaining));
+					if (read > 0) {
+						remaining -= read;
+					}
+					return read;
+				}
+
+				@Override
+				public void close() throws IOException {
+					in.close();
+				}
+			};
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.http.HttpEntity#writeTo(java.io.OutputStream)
+		 */
+		public void writeTo(final OutputStream outstream) throws IOException {
+			final RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				in.seek(offset);
+				final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+				long remaining = length;
+				while (remaining > 0) {
+					final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (read < 0) {
+						throw new IOException("File " + file + " shrank while uploading");
+					}
+					outstream.write(buffer, 0, read);
+					remaining -= read;
+				}
+				outstream.flush();
+			} finally {
+				in.close();
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.http.HttpEntity#isStreaming()
+		 */
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Circuit breaker per MarkLogic host.<br/>
+ * After <code>failureThreshold</code> consecutive transient failures the circuit of a host opens and
+ * requests to it fail fast. Once <code>openMillis</code> have passed a single probe request is let
+ * through (half open); its success closes the circuit, its failure opens it again. A probe whose
+ * outcome says nothing about the host is released with {@link #recordIgnored}, and a probe not
+ * reported within <code>openMillis</code> is given up, so the next request probes again.
+ */
+public class MarkLogicCircuitBreaker {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicCircuitBreaker.class);
+
+	/**
+	 * The circuit state of a host.
+	 */
+	public enum State {
+		/** Requests flow normally. */
+		CLOSED,
+		/** Requests fail fast. */
+		OPEN,
+		/** A single probe request is in flight. */
+		HALF_OPEN
+	}
+
+	/** The consecutive failures which open the circuit. */
+	private int failureThreshold = 5;
+
+	/** The time a circuit stays open before it is probed. */
+	private long openMillis = 30000;
+
+	/** The circuits, keyed by host:port. */
+	private final Map<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+	/**
+	 * Sets the failure threshold.
+	 *
+	 * @param failureThreshold the new failure threshold
+	 */
+	public void setFailureThreshold(final int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * Sets the open millis.
+	 *
+	 * @param openMillis the new open millis
+	 */
+	public void setOpenMillis(final long openMillis) {
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Checks whether a request may be sent to the host.
+	 *
+	 * @param host the host
+	 * @return true, if allowed
+	 */
+	public boolean allowRequest(final String host) {
+		return getCircuit(host).allowRequest();
+	}
+
+	/**
+	 * Records a successful request.
+	 *
+	 * @param host the host
+	 */
+	public void recordSuccess(final String host) {
+		getCircuit(host).recordSuccess(host);
+	}
+
+	/**
+	 * Records a transient failure.
+	 *
+	 * @param host the host
+	 */
+	public void recordFailure(final String host) {
+		getCircuit(host).recordFailure(host);
+	}
+
+	/**
+	 * Records a request whose outcome says nothing about the health of the host, e.g. one that was
+	 * never sent or failed on the client side. A half open circuit lets the next request probe.
+	 *
+	 * @param host the host
+	 */
+	public void recordIgnored(final String host) {
+		getCircuit(host).recordIgnored();
+	}
+
+	/**
+	 * Gets the state of the host.
+	 *
+	 * @param host the host
+	 * @return the state
+	 */
+	public State getState(final String host) {
+		return getCircuit(host).state;
+	}
+
+	/**
+	 * Gets the state of every known host.
+	 *
+	 * @return the states, keyed by host
+	 */
+	public Map<String, State> getStates() {
+		final Map<String, State> states = new HashMap<String, State>();
+		for (final Map.Entry<String, Circuit> circuit : circuits.entrySet()) {
+			states.put(circuit.getKey(), circuit.getValue().state);
+		}
+		return states;
+	}
+
+	/**
+	 * Gets the circuit of a host, creating it on first use.
+	 *
+	 * @param host the host
+	 * @return the circuit
+	 */
+	private Circuit getCircuit(final String host) {
+		Circuit circuit = circuits.get(host);
+		if (circuit == null) {
+			synchronized (circuits) {
+				circuit = circuits.get(host);
+				if (circuit == null) {
+					circuit = new Circuit();
+					circuits.put(host, circuit);
+				}
+			}
+		}
+		return circuit;
+	}
+
+	/**
+	 * The circuit of a single host.
+	 */
+	private final class Circuit {
+
+		/** The state. */
+		private volatile State state = State.CLOSED;
+
+		/** The consecutive failures. */
+		private int failures;
+
+		/** The time the circuit opened. */
+		private long openedAt;
+
+		/** The time the probe of a half open circuit was let through. */
+		private long probeStartedAt;
+
+		/**
+		 * Allow request.
+		 *
+		 * @return true, if successful
+		 */
+		private synchronized boolean allowRequest() {
+			if (state == State.CLOSED) {
+				return true;
+			}
+			final long now = System.currentTimeMillis();
+			if ((state == State.OPEN && now - openedAt >= openMillis)
+					|| (state == State.HALF_OPEN && now - probeStartedAt >= openMillis)) {
+				// A half open circuit whose probe never reported back is probed again
+				state = State.HALF_OPEN;
+				probeStartedAt = now;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Record success.
+		 *
+		 * @param host the host
+		 */
+		private synchronized void recordSuccess(final String host) {
+			if (state != State.CLOSED) {
+				LOG.info("MarkLogic host " + host + " recovered, circuit closed");
+			}
+			state = State.CLOSED;
+			failures = 0;
+		}
+
+		/**
+		 * Record ignored.
+		 */
+		private synchronized void recordIgnored() {
+			if (state == State.HALF_OPEN) {
+				state = State.OPEN;
+				openedAt = System.currentTimeMillis() - openMillis;
+			}
+		}
+
+		/**
+		 * Record failure.
+		 *
+		 * @param host the host
+		 */
+		private synchronized void recordFailure(final String host) {
+			failures++;
+			if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+				if (state == State.CLOSED) {
+					LOG.warn("MarkLogic host " + host + " failed " + failures + " times in a row, circuit opened for "
+							+ openMillis + "ms");
+				} else if (LOG.isDebugEnabled()) {
+					LOG.debug("MarkLogic host " + host + " probe failed, circuit re-opened");
+				}
+				state = State.OPEN;
+				openedAt = System.currentTimeMillis();
+			}
+		}
+	}
+}
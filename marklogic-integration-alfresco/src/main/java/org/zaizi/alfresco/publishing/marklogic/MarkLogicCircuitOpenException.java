@@ -0,0 +1,36 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.IOException;
+
+/**
+ * Raised instead of sending a request while the circuit breaker of the MarkLogic host is open.
+ */
+public class MarkLogicCircuitOpenException extends IOException {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Instantiates a new circuit open exception.
+	 *
+	 * @param host the MarkLogic host
+	 */
+	public MarkLogicCircuitOpenException(final String host) {
+		super("MarkLogic host " + host + " is unavailable, circuit breaker is open");
+	}
+}
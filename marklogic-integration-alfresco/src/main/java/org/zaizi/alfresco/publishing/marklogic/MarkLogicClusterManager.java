@@ -0,0 +1,281 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Spreads the requests of a channel across the hosts of its MarkLogic cluster.<br/>
+ * Hosts are chosen by a pluggable {@link MarkLogicLoadBalancingStrategy}. A background health check
+ * requests <code>healthCheckPath</code> on every known host: a 2xx answer keeps the host in
+ * rotation, any other answer or a connection failure takes it out until a later check succeeds. Hosts which
+ * fail a publish request are also taken out until the next successful check.
+ */
+public class MarkLogicClusterManager implements InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicClusterManager.class);
+
+	/** The http client provider. */
+	private MarkLogicHttpClientProvider httpClientProvider;
+
+	/** The publishing helper. */
+	private MarkLogicPublishingHelper publishingHelper;
+
+	/** The load balancing strategy. */
+	private MarkLogicLoadBalancingStrategy loadBalancingStrategy = new RoundRobinLoadBalancingStrategy();
+
+	/** The health check interval millis. */
+	private long healthCheckIntervalMillis = 10000;
+
+	/** The health check timeout millis. */
+	private int healthCheckTimeoutMillis = 2000;
+
+	/** The health check path. */
+	private String healthCheckPath = "/";
+
+	/** The known hosts, keyed by host:port. */
+	private final Map<String, MarkLogicHost> hosts = new ConcurrentHashMap<String, MarkLogicHost>();
+
+	/** The health checker. */
+	private ScheduledExecutorService healthChecker;
+
+	/**
+	 * Sets the http client provider.
+	 *
+	 * @param httpClientProvider the new http client provider
+	 */
+	public void setHttpClientProvider(final MarkLogicHttpClientProvider httpClientProvider) {
+		this.httpClientProvider = httpClientProvider;
+	}
+
+	/**
+	 * Sets the publishing helper.
+	 *
+	 * @param publishingHelper the new publishing helper
+	 */
+	public void setPublishingHelper(final MarkLogicPublishingHelper publishingHelper) {
+		this.publishingHelper = publishingHelper;
+	}
+
+	/**
+	 * Sets the load balancing strategy.
+	 *
+	 * @param loadBalancingStrategy the new load balancing strategy
+	 */
+	public void setLoadBalancingStrategy(final MarkLogicLoadBalancingStrategy loadBalancingStrategy) {
+		this.loadBalancingStrategy = loadBalancingStrategy;
+	}
+
+	/**
+	 * Sets the health check interval millis.
+	 *
+	 * @param healthCheckIntervalMillis the new health check interval millis
+	 */
+	public void setHealthCheckIntervalMillis(final long healthCheckIntervalMillis) {
+		this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+	}
+
+	/**
+	 * Sets the health check timeout millis.
+	 *
+	 * @param healthCheckTimeoutMillis the new health check timeout millis
+	 */
+	public void setHealthCheckTimeoutMillis(final int healthCheckTimeoutMillis) {
+		this.healthCheckTimeoutMillis = healthCheckTimeoutMillis;
+	}
+
+	/**
+	 * Sets the health check path.
+	 *
+	 * @param healthCheckPath the new health check path
+	 */
+	public void setHealthCheckPath(final String healthCheckPath) {
+		this.healthCheckPath = healthCheckPath;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() {
+		healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "MarkLogicHealthCheck");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		healthChecker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				checkHosts();
+			}
+		}, healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() {
+		if (healthChecker != null) {
+			healthChecker.shutdownNow();
+		}
+	}
+
+	/**
+	 * Chooses the host for the next request of a channel.<br/>
+	 * Unhealthy hosts and the excluded ones are skipped. When no healthy host is left the excluded
+	 * hosts are still avoided but unhealthy ones are tried, so a stale health flag never blocks
+	 * publishing completely.
+	 *
+	 * @param channelProperties the channel properties
+	 * @param excluded the names of hosts not to use, e.g. hosts which already failed this request
+	 * @return the host, null if every host of the channel is excluded
+	 */
+	public MarkLogicHost chooseHost(final Map<QName, Serializable> channelProperties, final Set<String> excluded) {
+		final List<MarkLogicHost> candidates = new ArrayList<MarkLogicHost>();
+		final List<MarkLogicHost> fallbacks = new ArrayList<MarkLogicHost>();
+		for (final HttpHost httpHost : publishingHelper.getHosts(channelProperties)) {
+			final MarkLogicHost host = getHost(httpHost);
+			if (excluded.contains(host.getName())) {
+				continue;
+			}
+			if (host.isHealthy()) {
+				candidates.add(host);
+			} else {
+				fallbacks.add(host);
+			}
+		}
+		if (candidates.isEmpty()) {
+			if (fallbacks.isEmpty()) {
+				return null;
+			}
+			return loadBalancingStrategy.choose(fallbacks);
+		}
+		return loadBalancingStrategy.choose(candidates);
+	}
+
+	/**
+	 * Takes a host out of rotation until the next successful health check.
+	 *
+	 * @param host the host
+	 */
+	public void markUnhealthy(final MarkLogicHost host) {
+		if (host.isHealthy()) {
+			LOG.warn("MarkLogic host " + host.getName() + " taken out of rotation");
+			host.setHealthy(false);
+		}
+	}
+
+	/**
+	 * Gets the known hosts.
+	 *
+	 * @return the hosts
+	 */
+	public Collection<MarkLogicHost> getHosts() {
+		return hosts.values();
+	}
+
+	/**
+	 * Gets the host, registering it for health checks on first use.
+	 *
+	 * @param httpHost the http host
+	 * @return the host
+	 */
+	private MarkLogicHost getHost(final HttpHost httpHost) {
+		final String name = httpHost.toHostString();
+		MarkLogicHost host = hosts.get(name);
+		if (host == null) {
+			synchronized (hosts) {
+				host = hosts.get(name);
+				if (host == null) {
+					host = new MarkLogicHost(httpHost);
+					hosts.put(name, host);
+				}
+			}
+		}
+		return host;
+	}
+
+	/**
+	 * Checks every known host and updates its rotation state.
+	 */
+	private void checkHosts() {
+		for (final MarkLogicHost host : hosts.values()) {
+			final boolean reachable = isReachable(host);
+			if (reachable && !host.isHealthy()) {
+				LOG.info("MarkLogic host " + host.getName() + " is back in rotation");
+			} else if (!reachable && host.isHealthy()) {
+				LOG.warn("MarkLogic host " + host.getName() + " failed its health check, taken out of rotation");
+			}
+			host.setHealthy(reachable);
+		}
+	}
+
+	/**
+	 * Sends the health check request to a host.
+	 *
+	 * @param host the host
+	 * @return true, if the host answered with a 2xx status
+	 */
+	private boolean isReachable(final MarkLogicHost host) {
+		final HttpGet httpGet = new HttpGet(healthCheckPath);
+		HttpConnectionParams.setConnectionTimeout(httpGet.getParams(), healthCheckTimeoutMillis);
+		HttpConnectionParams.setSoTimeout(httpGet.getParams(), healthCheckTimeoutMillis);
+		try {
+			final HttpResponse response = httpClientProvider.getHttpClient().execute(host.getHttpHost(), httpGet);
+			EntityUtils.consume(response.getEntity());
+			final int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode < 200 || statusCode >= 300) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Health check of MarkLogic host " + host.getName() + " answered " + statusCode);
+				}
+				return false;
+			}
+			return true;
+		} catch (IOException ioex) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Health check of MarkLogic host " + host.getName() + " failed: " + ioex.getLocalizedMessage());
+			}
+			return false;
+		} catch (RuntimeException rtex) {
+			httpGet.abort();
+			LOG.error("Health check of MarkLogic host " + host.getName() + " failed", rtex);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * Decides which publish requests are gzip compressed (<code>Content-Encoding: gzip</code>) and
+ * counts the bytes saved.<br/>
+ * Only the configured mimetypes are compressed, and only when the document is at least
+ * <code>minSizeBytes</code> long. Formats which are already compressed (archives, images, audio,
+ * video and OOXML documents) are never compressed, whatever the configuration says.
+ */
+public class MarkLogicCompressionPolicy {
+
+	/** The mimetype prefixes of formats which are already compressed. */
+	private final static String[] COMPRESSED_MIMETYPE_PREFIXES = {"image/", "audio/", "video/",
+			"application/zip", "application/x-zip", "application/gzip", "application/x-gzip",
+			"application/x-bzip", "application/x-7z", "application/x-rar", "application/vnd.openxmlformats"};
+
+	/** Whether compression is enabled. */
+	private boolean enabled;
+
+	/** The compressible mimetypes. */
+	private Set<String> mimeTypes = Collections.emptySet();
+
+	/** The min size of a compressed document. */
+	private long minSizeBytes = 4096;
+
+	/** The compressed requests. */
+	private final AtomicLong compressedRequests = new AtomicLong();
+
+	/** The bytes before compression. */
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+
+	/** The bytes after compression. */
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+	/**
+	 * Sets whether compression is enabled.
+	 *
+	 * @param enabled the new enabled
+	 */
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Sets the compressible mimetypes.
+	 *
+	 * @param mimeTypes the new mime types
+	 */
+	public void setMimeTypes(final Collection<String> mimeTypes) {
+		this.mimeTypes = Collections.unmodifiableSet(new HashSet<String>(mimeTypes));
+	}
+
+	/**
+	 * Sets the min size bytes.
+	 *
+	 * @param minSizeBytes the new min size bytes
+	 */
+	public void setMinSizeBytes(final long minSizeBytes) {
+		this.minSizeBytes = minSizeBytes;
+	}
+
+	/**
+	 * Checks whether a document should be compressed.
+	 *
+	 * @param mimeType the mime type
+	 * @param size the size, negative if unknown
+	 * @return true, if it should be compressed
+	 */
+	public boolean shouldCompress(final String mimeType, final long size) {
+		return enabled && mimeType != null && size >= minSizeBytes && mimeTypes.contains(mimeType)
+				&& !isCompressedFormat(mimeType);
+	}
+
+	/**
+	 * Wraps the entity for compression when the policy applies to it.
+	 *
+	 * @param entity the entity
+	 * @param mimeType the mime type
+	 * @param size the size, negative if unknown
+	 * @return the entity to send
+	 */
+	public HttpEntity apply(final HttpEntity entity, final String mimeType, final long size) {
+		return shouldCompress(mimeType, size) ? new GzipCompressingEntity(entity, this) : entity;
+	}
+
+	/**
+	 * Wraps the entity for compression regardless of the configured mimetypes, used for routes which
+	 * ask for compression. Documents below the min size and already compressed formats are still sent
+	 * as they are.
+	 *
+	 * @param entity the entity
+	 * @param mimeType the mime type
+	 * @param size the size, negative if unknown
+	 * @return the entity to send
+	 */
+	public HttpEntity compress(final HttpEntity entity, final String mimeType, final long size) {
+		return enabled && mimeType != null && size >= minSizeBytes && !isCompressedFormat(mimeType) ? new GzipCompressingEntity(
+				entity, this) : entity;
+	}
+
+	/**
+	 * Records a compressed request.
+	 *
+	 * @param bytesIn the bytes before compression
+	 * @param bytesOut the bytes after compression
+	 */
+	void recordCompression(final long bytesIn, final long bytesOut) {
+		compressedRequests.incrementAndGet();
+		uncompressedBytes.addAndGet(bytesIn);
+		compressedBytes.addAndGet(bytesOut);
+	}
+
+	/**
+	 * Gets the number of compressed requests.
+	 *
+	 * @return the compressed requests
+	 */
+	public long getCompressedRequests() {
+		return compressedRequests.get();
+	}
+
+	/**
+	 * Gets the bytes of compressed documents before compression.
+	 *
+	 * @return the uncompressed bytes
+	 */
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	/**
+	 * Gets the bytes of compressed documents after compression.
+	 *
+	 * @return the compressed bytes
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	/**
+	 * Gets the bytes saved by compression.
+	 *
+	 * @return the bytes saved
+	 */
+	public long getBytesSaved() {
+		return uncompressedBytes.get() - compressedBytes.get();
+	}
+
+	/**
+	 * Checks for a format which is already compressed.
+	 *
+	 * @param mimeType the mime type
+	 * @return true, if compressed
+	 */
+	private static boolean isCompressedFormat(final String mimeType) {
+		for (final String prefix : COMPRESSED_MIMETYPE_PREFIXES) {
+			if (mimeType.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
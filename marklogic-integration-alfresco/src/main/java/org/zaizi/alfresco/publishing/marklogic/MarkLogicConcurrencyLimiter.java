@@ -0,0 +1,411 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Adaptive limit of the requests in flight per MarkLogic host (AIMD).<br/>
+ * Every host starts at <code>initialLimit</code>. While the smoothed latency stays within
+ * <code>latencyTolerance</code> times the lowest latency seen in the last <code>baselineWindowMillis</code>
+ * and the limit is in use, it grows by one per limit's worth of completed requests. An overload, i.e. a
+ * 502/503/504/429 status or a transient i/o error, or a latency beyond the tolerance cuts it by
+ * <code>backoffRatio</code>, at most once per smoothed latency. Requests with a body larger than
+ * <code>latencySampleMaxBytes</code>, or of unknown size, do not count as latency samples, since their
+ * latency reflects their size rather than the load of the host. Requests beyond the limit wait for a slot.<br/>
+ * Requests are only limited once <code>enabled</code> is set.
+ */
+public class MarkLogicConcurrencyLimiter {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicConcurrencyLimiter.class);
+
+	/** The weight of a new sample in the smoothed latency. */
+	private final static double SMOOTHING = 0.1;
+
+	/** Whether requests are limited. */
+	private boolean enabled;
+
+	/** The limit a host starts with. */
+	private int initialLimit = 8;
+
+	/** The lowest limit. */
+	private int minLimit = 1;
+
+	/** The highest limit. */
+	private int maxLimit = 64;
+
+	/** The factor applied to the limit on overload. */
+	private double backoffRatio = 0.9;
+
+	/** The ratio of smoothed to baseline latency above which the host counts as overloaded. */
+	private double latencyTolerance = 2.0;
+
+	/** The window after which the baseline latency is learned again. */
+	private long baselineWindowMillis = 60000;
+
+	/** The largest request body whose latency is sampled. */
+	private long latencySampleMaxBytes = 1024 * 1024;
+
+	/** The longest wait of a blocking request for a slot. */
+	private long acquireTimeoutMillis = 60000;
+
+	/** The limits, keyed by host:port. */
+	private final Map<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+	/**
+	 * Sets whether requests are limited.
+	 *
+	 * @param enabled the new enabled
+	 */
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Sets the initial limit.
+	 *
+	 * @param initialLimit the new initial limit
+	 */
+	public void setInitialLimit(final int initialLimit) {
+		this.initialLimit = initialLimit;
+	}
+
+	/**
+	 * Sets the min limit.
+	 *
+	 * @param minLimit the new min limit
+	 */
+	public void setMinLimit(final int minLimit) {
+		this.minLimit = minLimit;
+	}
+
+	/**
+	 * Sets the max limit.
+	 *
+	 * @param maxLimit the new max limit
+	 */
+	public void setMaxLimit(final int maxLimit) {
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * Sets the backoff ratio.
+	 *
+	 * @param backoffRatio the new backoff ratio
+	 */
+	public void setBackoffRatio(final double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * Sets the latency tolerance.
+	 *
+	 * @param latencyTolerance the new latency tolerance
+	 */
+	public void setLatencyTolerance(final double latencyTolerance) {
+		this.latencyTolerance = latencyTolerance;
+	}
+
+	/**
+	 * Sets the baseline window.
+	 *
+	 * @param baselineWindowMillis the new baseline window
+	 */
+	public void setBaselineWindowMillis(final long baselineWindowMillis) {
+		this.baselineWindowMillis = baselineWindowMillis;
+	}
+
+	/**
+	 * Sets the latency sample max bytes.
+	 *
+	 * @param latencySampleMaxBytes the new latency sample max bytes
+	 */
+	public void setLatencySampleMaxBytes(final long latencySampleMaxBytes) {
+		this.latencySampleMaxBytes = latencySampleMaxBytes;
+	}
+
+	/**
+	 * Sets the acquire timeout.
+	 *
+	 * @param acquireTimeoutMillis the new acquire timeout
+	 */
+	public void setAcquireTimeoutMillis(final long acquireTimeoutMillis) {
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+	}
+
+	/**
+	 * Checks if requests are limited.
+	 *
+	 * @return true, if enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Takes a slot for a request to the host, waiting up to <code>acquireTimeoutMillis</code>.
+	 *
+	 * @param host the host
+	 * @return true, if a slot was taken, false on timeout
+	 * @throws InterruptedIOException if the thread is interrupted
+	 */
+	public boolean acquire(final String host) throws InterruptedIOException {
+		try {
+			return getHostLimit(host).acquire();
+		} catch (InterruptedException intEx) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a request slot on MarkLogic host " + host);
+		}
+	}
+
+	/**
+	 * Takes a slot for a request to the host if one is free, otherwise queues the request. A queued request
+	 * is given its slot when one is released, and then run on the releasing thread.
+	 *
+	 * @param host the host
+	 * @param onAcquired run with the slot taken when the request had to wait
+	 * @return true, if the slot was taken right away
+	 */
+	public boolean tryAcquire(final String host, final Runnable onAcquired) {
+		return getHostLimit(host).tryAcquire(onAcquired);
+	}
+
+	/**
+	 * Releases the slot of a completed request and adapts the limit of the host.
+	 *
+	 * @param host the host
+	 * @param latencyMillis the latency of the request
+	 * @param bodyBytes the request body size, 0 without body, negative if unknown
+	 * @param overloaded whether the host answered or failed in a way showing overload
+	 */
+	public void release(final String host, final long latencyMillis, final long bodyBytes, final boolean overloaded) {
+		final boolean latencySample = bodyBytes >= 0 && bodyBytes <= latencySampleMaxBytes;
+		for (final Runnable granted : getHostLimit(host).release(host, latencyMillis, latencySample, overloaded)) {
+			granted.run();
+		}
+	}
+
+	/**
+	 * Gets the current limit of a host.
+	 *
+	 * @param host the host
+	 * @return the limit
+	 */
+	public int getLimit(final String host) {
+		return getHostLimit(host).currentLimit();
+	}
+
+	/**
+	 * Gets the current limit of every known host.
+	 *
+	 * @return the limits, keyed by host
+	 */
+	public Map<String, Integer> getLimits() {
+		final Map<String, Integer> currentLimits = new HashMap<String, Integer>();
+		for (final Map.Entry<String, Limit> limit : limits.entrySet()) {
+			currentLimits.put(limit.getKey(), Integer.valueOf(limit.getValue().currentLimit()));
+		}
+		return currentLimits;
+	}
+
+	/**
+	 * Gets the limit of a host, creating it on first use.
+	 *
+	 * @param host the host
+	 * @return the limit
+	 */
+	private Limit getHostLimit(final String host) {
+		Limit limit = limits.get(host);
+		if (limit == null) {
+			synchronized (limits) {
+				limit = limits.get(host);
+				if (limit == null) {
+					limit = new Limit();
+					limits.put(host, limit);
+				}
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * The limit of a single host.
+	 */
+	private final class Limit {
+
+		/** The limit, fractional so that it grows by one per limit's worth of requests. */
+		private double limit = initialLimit;
+
+		/** The requests in flight. */
+		private int inFlight;
+
+		/** The queued requests. */
+		private final LinkedList<Runnable> waiters = new LinkedList<Runnable>();
+
+		/** The smoothed latency, negative before the first sample. */
+		private double smoothedLatency = -1;
+
+		/** The baseline latency, negative before the first sample. */
+		private long baselineLatency = -1;
+
+		/** The lowest latency of the current window, negative before its first sample. */
+		private long windowMinLatency = -1;
+
+		/** The start of the current baseline window. */
+		private long windowStart = System.currentTimeMillis();
+
+		/** The time of the last decrease. */
+		private long lastDecrease;
+
+		/**
+		 * Gets the current limit.
+		 *
+		 * @return the limit
+		 */
+		private synchronized int currentLimit() {
+			return (int) limit;
+		}
+
+		/**
+		 * Waits for a free slot.
+		 *
+		 * @return true, if a slot was taken
+		 * @throws InterruptedException if interrupted
+		 */
+		private synchronized boolean acquire() throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + acquireTimeoutMillis;
+			while (inFlight >= (int) limit || !waiters.isEmpty()) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+			inFlight++;
+			return true;
+		}
+
+		/**
+		 * Takes a free slot or queues the request.
+		 *
+		 * @param onAcquired the queued request
+		 * @return true, if a slot was taken
+		 */
+		private synchronized boolean tryAcquire(final Runnable onAcquired) {
+			if (inFlight < (int) limit && waiters.isEmpty()) {
+				inFlight++;
+				return true;
+			}
+			waiters.add(onAcquired);
+			return false;
+		}
+
+		/**
+		 * Releases a slot, adapts the limit and hands the free slots to queued requests.
+		 *
+		 * @param host the host
+		 * @param latencyMillis the latency
+		 * @param latencySample whether the latency counts as a sample
+		 * @param overloaded whether the host showed overload
+		 * @return the queued requests given a slot
+		 */
+		private synchronized List<Runnable> release(final String host, final long latencyMillis,
+				final boolean latencySample, final boolean overloaded) {
+			inFlight--;
+			final int previousLimit = (int) limit;
+			adapt(latencyMillis, latencySample, overloaded);
+			if ((int) limit != previousLimit && LOG.isDebugEnabled()) {
+				LOG.debug("MarkLogic host " + host + " concurrency limit " + previousLimit + " -> " + (int) limit
+						+ " (latency " + (long) smoothedLatency + "ms, baseline " + baselineLatency + "ms"
+						+ (overloaded ? ", overloaded" : "") + ")");
+			}
+			if (waiters.isEmpty()) {
+				notifyAll();
+				return Collections.emptyList();
+			}
+			final List<Runnable> granted = new ArrayList<Runnable>();
+			while (inFlight < (int) limit && !waiters.isEmpty()) {
+				inFlight++;
+				granted.add(waiters.removeFirst());
+			}
+			return granted;
+		}
+
+		/**
+		 * Adapts the limit to a completed request.
+		 *
+		 * @param latencyMillis the latency
+		 * @param latencySample whether the latency counts as a sample
+		 * @param overloaded whether the host showed overload
+		 */
+		private void adapt(final long latencyMillis, final boolean latencySample, final boolean overloaded) {
+			final long now = System.currentTimeMillis();
+			if (overloaded) {
+				decrease(now, latencyMillis);
+				return;
+			}
+			if (!latencySample) {
+				return;
+			}
+			smoothedLatency = smoothedLatency < 0 ? latencyMillis
+					: smoothedLatency * (1 - SMOOTHING) + latencyMillis * SMOOTHING;
+			if (now - windowStart >= baselineWindowMillis) {
+				// Learn the baseline again, so that a lasting change of the host is not taken for overload
+				baselineLatency = windowMinLatency;
+				windowMinLatency = -1;
+				windowStart = now;
+			}
+			if (windowMinLatency < 0 || latencyMillis < windowMinLatency) {
+				windowMinLatency = latencyMillis;
+			}
+			if (baselineLatency < 0 || latencyMillis < baselineLatency) {
+				baselineLatency = latencyMillis;
+			}
+			if (smoothedLatency > Math.max(baselineLatency, 1) * latencyTolerance) {
+				decrease(now, latencyMillis);
+			} else if (inFlight + 1 >= (int) limit / 2) {
+				// Only grow a limit which is in use
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+		}
+
+		/**
+		 * Cuts the limit, once per smoothed latency so that the requests in flight during an overload
+		 * count only once.
+		 *
+		 * @param now the current time
+		 * @param latencyMillis the latency of the request
+		 */
+		private void decrease(final long now, final long latencyMillis) {
+			if (now - lastDecrease < (smoothedLatency < 0 ? latencyMillis : (long) smoothedLatency)) {
+				return;
+			}
+			limit = Math.max(minLimit, limit * backoffRatio);
+			lastDecrease = now;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the requests sent by one channel to one MarkLogic host.
+ */
+public class MarkLogicEndpointMetrics implements MarkLogicEndpointMetricsMBean {
+
+	/**
+	 * The outcome of a request.
+	 */
+	public enum Outcome {
+		/** Answered with the expected status. */
+		SUCCEEDED,
+		/** Answered with an unexpected status. */
+		HTTP_ERROR,
+		/** Failed without a response. */
+		IO_ERROR
+	}
+
+	/** The channel. */
+	private final String channel;
+
+	/** The host. */
+	private final String host;
+
+	/** The succeeded count. */
+	private final AtomicLong succeeded = new AtomicLong();
+
+	/** The http error count. */
+	private final AtomicLong httpErrors = new AtomicLong();
+
+	/** The io error count. */
+	private final AtomicLong ioErrors = new AtomicLong();
+
+	/** The rejected count. */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** The in flight count. */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/** The bytes sent. */
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	/** The concurrency limit of the host, 0 without concurrency limiter. */
+	private volatile int concurrencyLimit;
+
+	/** The publish latency. */
+	private final LatencyHistogram publishLatency = new LatencyHistogram();
+
+	/** The unpublish latency. */
+	private final LatencyHistogram unpublishLatency = new LatencyHistogram();
+
+	/** The batch latency. */
+	private final LatencyHistogram batchLatency = new LatencyHistogram();
+
+	/**
+	 * Instantiates new endpoint metrics.
+	 *
+	 * @param channel the channel key
+	 * @param host the host
+	 */
+	public MarkLogicEndpointMetrics(final String channel, final String host) {
+		this.channel = channel;
+		this.host = host;
+	}
+
+	/**
+	 * Records the start of a request.
+	 */
+	public void requestStarted() {
+		inFlight.incrementAndGet();
+	}
+
+	/**
+	 * Records the end of a request.
+	 *
+	 * @param task the MarkLogic task, i.e. the request path
+	 * @param outcome the outcome
+	 * @param latencyMillis the latency millis
+	 * @param bytes the request body bytes sent
+	 */
+	public void requestCompleted(final String task, final Outcome outcome, final long latencyMillis, final long bytes) {
+		inFlight.decrementAndGet();
+		bytesSent.addAndGet(bytes);
+		switch (outcome) {
+		case SUCCEEDED:
+			succeeded.incrementAndGet();
+			break;
+		case HTTP_ERROR:
+			httpErrors.incrementAndGet();
+			break;
+		default:
+			ioErrors.incrementAndGet();
+		}
+		final LatencyHistogram histogram = getHistogram(task);
+		if (histogram != null) {
+			histogram.record(latencyMillis);
+		}
+	}
+
+	/**
+	 * Records the concurrency limit of the host after a request.
+	 *
+	 * @param limit the limit
+	 */
+	public void recordConcurrencyLimit(final int limit) {
+		concurrencyLimit = limit;
+	}
+
+	/**
+	 * Records a request rejected by the circuit breaker.
+	 */
+	public void requestRejected() {
+		rejected.incrementAndGet();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getChannel()
+	 */
+	public String getChannel() {
+		return channel;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getHost()
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getSucceeded()
+	 */
+	public long getSucceeded() {
+		return succeeded.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getHttpErrors()
+	 */
+	public long getHttpErrors() {
+		return httpErrors.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getIoErrors()
+	 */
+	public long getIoErrors() {
+		return ioErrors.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getRejected()
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getInFlight()
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getConcurrencyLimit()
+	 */
+	public int getConcurrencyLimit() {
+		return concurrencyLimit;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getBytesSent()
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getPublishCount()
+	 */
+	public long getPublishCount() {
+		return publishLatency.getCount();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getPublishLatencyP50()
+	 */
+	public long getPublishLatencyP50() {
+		return publishLatency.getPercentile(0.50);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getPublishLatencyP95()
+	 */
+	public long getPublishLatencyP95() {
+		return publishLatency.getPercentile(0.95);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getPublishLatencyP99()
+	 */
+	public long getPublishLatencyP99() {
+		return publishLatency.getPercentile(0.99);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getUnpublishCount()
+	 */
+	public long getUnpublishCount() {
+		return unpublishLatency.getCount();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getUnpublishLatencyP50()
+	 */
+	public long getUnpublishLatencyP50() {
+		return unpublishLatency.getPercentile(0.50);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getUnpublishLatencyP95()
+	 */
+	public long getUnpublishLatencyP95() {
+		return unpublishLatency.getPercentile(0.95);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getUnpublishLatencyP99()
+	 */
+	public long getUnpublishLatencyP99() {
+		return unpublishLatency.getPercentile(0.99);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getBatchCount()
+	 */
+	public long getBatchCount() {
+		return batchLatency.getCount();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicEndpointMetricsMBean#getBatchLatencyP95()
+	 */
+	public long getBatchLatencyP95() {
+		return batchLatency.getPercentile(0.95);
+	}
+
+	/**
+	 * Gets the latency histogram of a task.
+	 *
+	 * @param task the task
+	 * @return the histogram, null for tasks which are not tracked
+	 */
+	private LatencyHistogram getHistogram(final String task) {
+		if (MarkLogicPublishingModel.PUBLISH_URI_KEY.equals(task)) {
+			return publishLatency;
+		}
+		if (MarkLogicPublishingModel.UNPUBLISH_URI_KEY.equals(task)) {
+			return unpublishLatency;
+		}
+		if (MarkLogicPublishingModel.PUBLISH_BATCH_URI_KEY.equals(task)) {
+			return batchLatency;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,156 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+/**
+ * JMX view of the requests sent by one channel to one MarkLogic host.
+ */
+public interface MarkLogicEndpointMetricsMBean {
+
+	/**
+	 * Gets the channel key.
+	 *
+	 * @return the channel
+	 */
+	String getChannel();
+
+	/**
+	 * Gets the host, host:port.
+	 *
+	 * @return the host
+	 */
+	String getHost();
+
+	/**
+	 * Gets the number of requests answered with the expected status.
+	 *
+	 * @return the succeeded count
+	 */
+	long getSucceeded();
+
+	/**
+	 * Gets the number of requests answered with an unexpected status.
+	 *
+	 * @return the http error count
+	 */
+	long getHttpErrors();
+
+	/**
+	 * Gets the number of requests which failed without a response, e.g. refused or timed out.
+	 *
+	 * @return the io error count
+	 */
+	long getIoErrors();
+
+	/**
+	 * Gets the number of requests not sent because the circuit of every host was open.
+	 *
+	 * @return the rejected count
+	 */
+	long getRejected();
+
+	/**
+	 * Gets the number of requests currently in flight.
+	 *
+	 * @return the in flight count
+	 */
+	int getInFlight();
+
+	/**
+	 * Gets the number of requests the concurrency limiter currently allows in flight to the host,
+	 * 0 when requests are not limited.
+	 *
+	 * @return the concurrency limit
+	 */
+	int getConcurrencyLimit();
+
+	/**
+	 * Gets the number of request body bytes sent, after compression.
+	 *
+	 * @return the bytes sent
+	 */
+	long getBytesSent();
+
+	/**
+	 * Gets the number of publish requests.
+	 *
+	 * @return the publish count
+	 */
+	long getPublishCount();
+
+	/**
+	 * Gets the median publish latency.
+	 *
+	 * @return the millis
+	 */
+	long getPublishLatencyP50();
+
+	/**
+	 * Gets the 95th percentile publish latency.
+	 *
+	 * @return the millis
+	 */
+	long getPublishLatencyP95();
+
+	/**
+	 * Gets the 99th percentile publish latency.
+	 *
+	 * @return the millis
+	 */
+	long getPublishLatencyP99();
+
+	/**
+	 * Gets the number of unpublish requests.
+	 *
+	 * @return the unpublish count
+	 */
+	long getUnpublishCount();
+
+	/**
+	 * Gets the median unpublish latency.
+	 *
+	 * @return the millis
+	 */
+	long getUnpublishLatencyP50();
+
+	/**
+	 * Gets the 95th percentile unpublish latency.
+	 *
+	 * @return the millis
+	 */
+	long getUnpublishLatencyP95();
+
+	/**
+	 * Gets the 99th percentile unpublish latency.
+	 *
+	 * @return the millis
+	 */
+	long getUnpublishLatencyP99();
+
+	/**
+	 * Gets the number of batch publish requests.
+	 *
+	 * @return the batch count
+	 */
+	long getBatchCount();
+
+	/**
+	 * Gets the 95th percentile batch publish latency.
+	 *
+	 * @return the millis
+	 */
+	long getBatchLatencyP95();
+}
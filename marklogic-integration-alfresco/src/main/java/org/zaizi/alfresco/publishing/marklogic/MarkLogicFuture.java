@@ -0,0 +1,133 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future completed by a {@link MarkLogicTransportCallback}, returned by the asynchronous
+ * publishing calls. Cancelling it only discards the result, a request already sent is not aborted.
+ *
+ * @param <T> the result type
+ */
+public class MarkLogicFuture<T> implements Future<T>, MarkLogicTransportCallback<T> {
+
+	/** The latch released on completion. */
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/** The result. */
+	private volatile T result;
+
+	/** The failure. */
+	private volatile Exception failure;
+
+	/** Whether the future was cancelled. */
+	private volatile boolean cancelled;
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicTransportCallback#completed(java.lang.Object)
+	 */
+	public void completed(final T result) {
+		synchronized (done) {
+			if (done.getCount() == 0) {
+				return;
+			}
+			this.result = result;
+			done.countDown();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicTransportCallback#failed(java.lang.Exception)
+	 */
+	public void failed(final Exception failure) {
+		synchronized (done) {
+			if (done.getCount() == 0) {
+				return;
+			}
+			this.failure = failure;
+			done.countDown();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		synchronized (done) {
+			if (done.getCount() == 0) {
+				return false;
+			}
+			cancelled = true;
+			done.countDown();
+			return true;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#get()
+	 */
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	/**
+	 * Gets the result of a completed future.
+	 *
+	 * @return the result
+	 * @throws ExecutionException the execution exception
+	 */
+	private T getResult() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,132 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+
+/**
+ * A MarkLogic e-node taking publishing requests, with the load and health figures used to
+ * balance requests across a cluster.
+ */
+public class MarkLogicHost {
+
+	/** The weight of the latest sample in the latency moving average. */
+	private final static double LATENCY_SMOOTHING = 0.2;
+
+	/** The http host. */
+	private final HttpHost httpHost;
+
+	/** The outstanding requests. */
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	/** Whether the host is in rotation. */
+	private volatile boolean healthy = true;
+
+	/** The moving average of the request latency, 0 until the first sample. */
+	private volatile double averageLatencyMillis;
+
+	/**
+	 * Instantiates a new mark logic host.
+	 *
+	 * @param httpHost the http host
+	 */
+	public MarkLogicHost(final HttpHost httpHost) {
+		this.httpHost = httpHost;
+	}
+
+	/**
+	 * Gets the http host.
+	 *
+	 * @return the http host
+	 */
+	public HttpHost getHttpHost() {
+		return httpHost;
+	}
+
+	/**
+	 * Gets the host name and port, e.g. <code>ml1.example.com:8004</code>.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return httpHost.toHostString();
+	}
+
+	/**
+	 * Checks if the host is in rotation.
+	 *
+	 * @return true, if healthy
+	 */
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * Sets whether the host is in rotation.
+	 *
+	 * @param healthy the new healthy
+	 */
+	public void setHealthy(final boolean healthy) {
+		this.healthy = healthy;
+	}
+
+	/**
+	 * Gets the outstanding requests.
+	 *
+	 * @return the outstanding requests
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Gets the average latency millis.
+	 *
+	 * @return the average latency millis, 0 if unknown
+	 */
+	public double getAverageLatencyMillis() {
+		return averageLatencyMillis;
+	}
+
+	/**
+	 * Marks the start of a request.
+	 */
+	public void requestStarted() {
+		outstanding.incrementAndGet();
+	}
+
+	/**
+	 * Marks the end of a request.
+	 *
+	 * @param latencyMillis the latency millis
+	 */
+	public synchronized void requestCompleted(final long latencyMillis) {
+		outstanding.decrementAndGet();
+		averageLatencyMillis = averageLatencyMillis == 0 ? latencyMillis
+				: averageLatencyMillis + LATENCY_SMOOTHING * (latencyMillis - averageLatencyMillis);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return getName() + (healthy ? "" : " (unhealthy)") + ", outstanding: " + outstanding.get()
+				+ ", latency: " + Math.round(averageLatencyMillis) + "ms";
+	}
+}
@@ -0,0 +1,216 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Holds the single, long lived {@link HttpClient} used by the MarkLogic publishing channel.<br/>
+ * Connections are pooled per MarkLogic host:port (route) and kept alive between requests, so a
+ * publishing event re-uses open sockets instead of opening a new connection for every node.
+ * Idle and expired connections are evicted by a background thread, and the pool is shut down
+ * when the Spring context closes.
+ */
+public class MarkLogicHttpClientProvider implements InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicHttpClientProvider.class);
+
+	/** The max connections per route (MarkLogic host:port). */
+	private int maxConnectionsPerRoute = 20;
+
+	/** The max connections in total. */
+	private int maxConnectionsTotal = 100;
+
+	/** The connection timeout in milliseconds. */
+	private int connectionTimeout = 10000;
+
+	/** The socket timeout in milliseconds. */
+	private int socketTimeout = 60000;
+
+	/** The keep alive in milliseconds, used when the server does not send a Keep-Alive header. */
+	private long keepAliveMillis = 30000;
+
+	/** The idle connection timeout in milliseconds. */
+	private long idleConnectionTimeoutMillis = 30000;
+
+	/** The interval between idle connection eviction runs in milliseconds. */
+	private long evictionIntervalMillis = 5000;
+
+	/** The connection manager. */
+	private ThreadSafeClientConnManager connectionManager;
+
+	/** The http client. */
+	private DefaultHttpClient httpClient;
+
+	/** The evictor. */
+	private ScheduledExecutorService evictor;
+
+	/**
+	 * Sets the max connections per route.
+	 *
+	 * @param maxConnectionsPerRoute the new max connections per route
+	 */
+	public void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	/**
+	 * Sets the max connections total.
+	 *
+	 * @param maxConnectionsTotal the new max connections total
+	 */
+	public void setMaxConnectionsTotal(final int maxConnectionsTotal) {
+		this.maxConnectionsTotal = maxConnectionsTotal;
+	}
+
+	/**
+	 * Sets the connection timeout.
+	 *
+	 * @param connectionTimeout the new connection timeout
+	 */
+	public void setConnectionTimeout(final int connectionTimeout) {
+		this.connectionTimeout = connectionTimeout;
+	}
+
+	/**
+	 * Sets the socket timeout.
+	 *
+	 * @param socketTimeout the new socket timeout
+	 */
+	public void setSocketTimeout(final int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+
+	/**
+	 * Sets the keep alive millis.
+	 *
+	 * @param keepAliveMillis the new keep alive millis
+	 */
+	public void setKeepAliveMillis(final long keepAliveMillis) {
+		this.keepAliveMillis = keepAliveMillis;
+	}
+
+	/**
+	 * Sets the idle connection timeout millis.
+	 *
+	 * @param idleConnectionTimeoutMillis the new idle connection timeout millis
+	 */
+	public void setIdleConnectionTimeoutMillis(final long idleConnectionTimeoutMillis) {
+		this.idleConnectionTimeoutMillis = idleConnectionTimeoutMillis;
+	}
+
+	/**
+	 * Sets the eviction interval millis.
+	 *
+	 * @param evictionIntervalMillis the new eviction interval millis
+	 */
+	public void setEvictionIntervalMillis(final long evictionIntervalMillis) {
+		this.evictionIntervalMillis = evictionIntervalMillis;
+	}
+
+	/**
+	 * Gets the shared http client.
+	 *
+	 * @return the http client
+	 */
+	public HttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() {
+		final SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+		schemeRegistry.register(new Scheme("https", 443, SSLSocketFactory.getSocketFactory()));
+
+		connectionManager = new ThreadSafeClientConnManager(schemeRegistry);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+		connectionManager.setMaxTotal(maxConnectionsTotal);
+
+		final HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+		HttpConnectionParams.setSoTimeout(params, socketTimeout);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+
+		httpClient = new DefaultHttpClient(connectionManager, params);
+		httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			private final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+			public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+				final long serverKeepAlive = serverStrategy.getKeepAliveDuration(response, context);
+				return serverKeepAlive > 0 ? serverKeepAlive : keepAliveMillis;
+			}
+		});
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "MarkLogicIdleConnectionEvictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleConnectionTimeoutMillis, TimeUnit.MILLISECONDS);
+			}
+		}, evictionIntervalMillis, evictionIntervalMillis, TimeUnit.MILLISECONDS);
+
+		if (LOG.isInfoEnabled()) {
+			LOG.info("MarkLogic connection pool initialized, maxPerRoute: " + maxConnectionsPerRoute
+					+ ", maxTotal: " + maxConnectionsTotal);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() {
+		if (evictor != null) {
+			evictor.shutdownNow();
+		}
+		if (connectionManager != null) {
+			connectionManager.shutdown();
+		}
+		LOG.info("MarkLogic connection pool shut down");
+	}
+}
@@ -0,0 +1,32 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.List;
+
+/**
+ * Picks the MarkLogic host which receives the next request of a channel.
+ */
+public interface MarkLogicLoadBalancingStrategy {
+
+	/**
+	 * Chooses a host.
+	 *
+	 * @param candidates the healthy hosts of the channel, never empty
+	 * @return the chosen host
+	 */
+	MarkLogicHost choose(List<MarkLogicHost> candidates);
+}
@@ -0,0 +1,58 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets one call in every <code>rate</code> through, keeping per-request debug logging on busy
+ * publish threads down to a sample.
+ */
+public class MarkLogicLogSampler {
+
+	/** The counter. */
+	private final AtomicLong counter = new AtomicLong();
+
+	/** The rate. */
+	private volatile int rate;
+
+	/**
+	 * Instantiates a new log sampler.
+	 *
+	 * @param rate log one call in every rate calls, 1 logs every call
+	 */
+	public MarkLogicLogSampler(final int rate) {
+		setRate(rate);
+	}
+
+	/**
+	 * Sets the rate.
+	 *
+	 * @param rate the new rate
+	 */
+	public void setRate(final int rate) {
+		this.rate = Math.max(1, rate);
+	}
+
+	/**
+	 * Checks whether this call is sampled.
+	 *
+	 * @return true, if it should be logged
+	 */
+	public boolean sample() {
+		return counter.getAndIncrement() % rate == 0;
+	}
+}
@@ -0,0 +1,207 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.ISO8601DateFormat;
+
+/**
+ * Serializes the metadata of a node into the compact JSON properties document sent to the
+ * <code>alfrescopub/metadata</code> endpoint, e.g.<br/>
+ * <code>{"uri":"workspace://SpacesStore/...","type":"cm:content","aspects":["cm:titled"],"properties":{"cm:title":"..."}}</code><br/>
+ * Names are prefixed, aspects and properties are sorted, so an unchanged node always produces the same
+ * document and fingerprint. Content properties, the excluded namespaces and the excluded properties are left out.
+ */
+public class MarkLogicMetadataSerializer {
+
+	/** The node service. */
+	private NodeService nodeService;
+
+	/** The namespace service. */
+	private NamespaceService namespaceService;
+
+	/** The namespace uris whose properties are not sent. */
+	private Set<String> excludedNamespaces = Collections.singleton(NamespaceService.SYSTEM_MODEL_1_0_URI);
+
+	/** The prefixed names of the properties which are not sent. */
+	private Set<String> excludedProperties = Collections.emptySet();
+
+	/**
+	 * Sets the node service.
+	 *
+	 * @param nodeService the new node service
+	 */
+	public void setNodeService(final NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * Sets the namespace service.
+	 *
+	 * @param namespaceService the new namespace service
+	 */
+	public void setNamespaceService(final NamespaceService namespaceService) {
+		this.namespaceService = namespaceService;
+	}
+
+	/**
+	 * Sets the namespace uris whose properties are not sent.
+	 *
+	 * @param excludedNamespaces the new excluded namespaces
+	 */
+	public void setExcludedNamespaces(final List<String> excludedNamespaces) {
+		this.excludedNamespaces = new HashSet<String>(excludedNamespaces);
+	}
+
+	/**
+	 * Sets the prefixed names of the properties which are not sent, e.g. cm:lastThumbnailModification.
+	 *
+	 * @param excludedProperties the new excluded properties
+	 */
+	public void setExcludedProperties(final List<String> excludedProperties) {
+		this.excludedProperties = new HashSet<String>(excludedProperties);
+	}
+
+	/**
+	 * Builds the properties document of a node.
+	 *
+	 * @param nodeRef the node ref
+	 * @return the JSON document
+	 */
+	public String serialize(final NodeRef nodeRef) {
+		final Set<String> aspects = new TreeSet<String>();
+		for (final QName aspect : nodeService.getAspects(nodeRef)) {
+			if (!excludedNamespaces.contains(aspect.getNamespaceURI())) {
+				aspects.add(aspect.toPrefixString(namespaceService));
+			}
+		}
+		final Map<String, Serializable> properties = new TreeMap<String, Serializable>();
+		for (final Map.Entry<QName, Serializable> property : nodeService.getProperties(nodeRef).entrySet()) {
+			final String name = property.getKey().toPrefixString(namespaceService);
+			if (property.getValue() != null && !(property.getValue() instanceof ContentData)
+					&& !excludedNamespaces.contains(property.getKey().getNamespaceURI())
+					&& !excludedProperties.contains(name)) {
+				properties.put(name, property.getValue());
+			}
+		}
+
+		final StringBuilder json = new StringBuilder(256);
+		json.append("{\"uri\":");
+		appendString(json, nodeRef.toString());
+		json.append(",\"type\":");
+		appendString(json, nodeService.getType(nodeRef).toPrefixString(namespaceService));
+		json.append(",\"aspects\":");
+		appendValue(json, aspects);
+		json.append(",\"properties\":{");
+		boolean first = true;
+		for (final Map.Entry<String, Serializable> property : properties.entrySet()) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+			appendString(json, property.getKey());
+			json.append(':');
+			appendValue(json, property.getValue());
+		}
+		return json.append("}}").toString();
+	}
+
+	/**
+	 * Appends a property value, multi-valued properties as arrays.
+	 *
+	 * @param json the json
+	 * @param value the value
+	 */
+	private void appendValue(final StringBuilder json, final Object value) {
+		if (value == null) {
+			json.append("null");
+		} else if (value instanceof Collection) {
+			json.append('[');
+			boolean first = true;
+			for (final Object item : (Collection<?>) value) {
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				appendValue(json, item);
+			}
+			json.append(']');
+		} else if (value instanceof Boolean) {
+			json.append(value);
+		} else if (value instanceof Number && !Double.isNaN(((Number) value).doubleValue())
+				&& !Double.isInfinite(((Number) value).doubleValue())) {
+			json.append(value);
+		} else if (value instanceof Date) {
+			appendString(json, ISO8601DateFormat.format((Date) value));
+		} else if (value instanceof QName) {
+			appendString(json, ((QName) value).toPrefixString(namespaceService));
+		} else {
+			appendString(json, value.toString());
+		}
+	}
+
+	/**
+	 * Appends a quoted and escaped JSON string.
+	 *
+	 * @param json the json
+	 * @param value the value
+	 */
+	private static void appendString(final StringBuilder json, final String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+					json.append(String.format("\\u%04x", Integer.valueOf(c)));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+}
@@ -0,0 +1,158 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.jscript.ScriptNode;
+import org.alfresco.repo.processor.BaseProcessorExtension;
+import org.alfresco.service.cmr.publishing.PublishingDetails;
+import org.alfresco.service.cmr.publishing.PublishingService;
+import org.alfresco.service.cmr.publishing.channels.Channel;
+import org.alfresco.service.cmr.publishing.channels.ChannelService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Script root object <code>marklogicPublishing</code>, publishing a whole workflow package to MarkLogic
+ * channels as one publishing event per channel.<br/>
+ * The event is scheduled with the {@link PublishingService} and the call returns its id straight away, so
+ * the publishing history, the published copies and the outbox or coalescer of the channel apply as for any
+ * other event. With <code>batchPublishingEvents</code> set on the channel type, the nodes of the event are
+ * sent through the batch endpoint instead of one request each.
+ */
+public class MarkLogicPackagePublisher extends BaseProcessorExtension {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicPackagePublisher.class);
+
+	/** The channel type. */
+	private MarkLogicChannelType channelType;
+
+	/** The channel service. */
+	private ChannelService channelService;
+
+	/** The publishing service. */
+	private PublishingService publishingService;
+
+	/** The node service. */
+	private NodeService nodeService;
+
+	/**
+	 * Sets the channel type.
+	 *
+	 * @param channelType the new channel type
+	 */
+	public void setChannelType(final MarkLogicChannelType channelType) {
+		this.channelType = channelType;
+	}
+
+	/**
+	 * Sets the channel service.
+	 *
+	 * @param channelService the new channel service
+	 */
+	public void setChannelService(final ChannelService channelService) {
+		this.channelService = channelService;
+	}
+
+	/**
+	 * Sets the publishing service.
+	 *
+	 * @param publishingService the new publishing service
+	 */
+	public void setPublishingService(final PublishingService publishingService) {
+		this.publishingService = publishingService;
+	}
+
+	/**
+	 * Sets the node service.
+	 *
+	 * @param nodeService the new node service
+	 */
+	public void setNodeService(final NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * Schedules one publishing event holding all items of a workflow package.
+	 *
+	 * @param workflowPackage the workflow package, <code>bpm_package</code>
+	 * @param channelName the channel name
+	 * @return the id of the publishing event
+	 */
+	public String publishPackage(final ScriptNode workflowPackage, final String channelName) {
+		return scheduleEvent(getPackageItems(workflowPackage), channelName);
+	}
+
+	/**
+	 * Schedules one publishing event per channel, each holding all items of a workflow package.
+	 *
+	 * @param workflowPackage the workflow package, <code>bpm_package</code>
+	 * @param channelNames the channel names, separated by commas
+	 * @return the ids of the publishing events, in the order of the channels
+	 */
+	public ArrayList<String> publishPackageToChannels(final ScriptNode workflowPackage, final String channelNames) {
+		final List<NodeRef> nodeRefs = getPackageItems(workflowPackage);
+		final ArrayList<String> eventIds = new ArrayList<String>();
+		for (final String channelName : channelNames.split(",")) {
+			if (channelName.trim().length() > 0) {
+				eventIds.add(scheduleEvent(nodeRefs, channelName.trim()));
+			}
+		}
+		return eventIds;
+	}
+
+	/**
+	 * Gets the items of a workflow package.
+	 *
+	 * @param workflowPackage the workflow package
+	 * @return the item nodes
+	 */
+	private List<NodeRef> getPackageItems(final ScriptNode workflowPackage) {
+		final List<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+		for (final ChildAssociationRef child : nodeService.getChildAssocs(workflowPackage.getNodeRef())) {
+			nodeRefs.add(child.getChildRef());
+		}
+		return nodeRefs;
+	}
+
+	/**
+	 * Schedules a publishing event publishing nodes to a MarkLogic channel.
+	 *
+	 * @param nodeRefs the nodes to publish
+	 * @param channelName the channel name
+	 * @return the id of the publishing event
+	 */
+	private String scheduleEvent(final List<NodeRef> nodeRefs, final String channelName) {
+		final Channel channel = channelService.getChannelByName(channelName);
+		if (channel == null || !channelType.getId().equals(channel.getChannelType().getId())) {
+			throw new AlfrescoRuntimeException("No MarkLogic publishing channel named " + channelName);
+		}
+		final PublishingDetails details = publishingService.createPublishingDetails()
+				.setPublishChannelId(channel.getId())
+				.addNodesToPublish(nodeRefs);
+		final String eventId = publishingService.scheduleNewEvent(details);
+		LOG.info("Scheduled publishing event " + eventId + " of " + nodeRefs.size() + " nodes to channel "
+				+ channelName);
+		return eventId;
+	}
+}
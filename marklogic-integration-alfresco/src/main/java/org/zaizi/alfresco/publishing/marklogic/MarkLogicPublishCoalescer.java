@@ -0,0 +1,468 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Debounces publish and unpublish requests per node and channel, so a node edited in a burst is sent to
+ * MarkLogic once with its final state instead of once per edit.<br/>
+ * A request opens a window of <code>windowMillis</code> for its node, extended by every further request
+ * for the same node but never past <code>maxDelayMillis</code> after the first one. When the window ends
+ * only the last operation is queued on the {@link MarkLogicPublishExecutor}, and a publish followed by an
+ * unpublish of a node that was not published before the window is dropped without any request.<br/>
+ * A request made inside a transaction only joins a window once that transaction commits, so the worker
+ * reads the committed node, and is dropped when it rolls back. The channel does not wait for the returned
+ * futures, which would hold the transaction open, so a failed call is only logged; use the outbox when
+ * failures must be retried. Coalescing is disabled unless <code>windowMillis</code> is set.
+ */
+public class MarkLogicPublishCoalescer implements InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicPublishCoalescer.class);
+
+	/** The Constant KEY_TXN_REQUESTS, binding the requests of a transaction. */
+	private final static String KEY_TXN_REQUESTS = MarkLogicPublishCoalescer.class.getName() + ".requests";
+
+	/** The publish executor. */
+	private MarkLogicPublishExecutor publishExecutor;
+
+	/** The publishing helper. */
+	private MarkLogicPublishingHelper publishingHelper;
+
+	/** The published content index. May be null, then a publish followed by an unpublish is always sent. */
+	private MarkLogicPublishedContentIndex publishedContentIndex;
+
+	/** The metrics. May be null. */
+	private MarkLogicPublishingMetrics metrics;
+
+	/** The quiet period after the last request of a node, 0 disables coalescing. */
+	private long windowMillis;
+
+	/** The longest delay of a request, from the first request of the window. */
+	private long maxDelayMillis = 10000;
+
+	/** The pending requests by channel and node. */
+	private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+	/** The scheduler flushing the windows. */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Requests for a node collected during a window.
+	 */
+	private static class Pending {
+
+		/** The node ref. */
+		private final NodeRef nodeRef;
+
+		/** Whether the node was published when the window opened. */
+		private final boolean publishedBefore;
+
+		/** The time of the first request. */
+		private final long firstMillis;
+
+		/** The end of the window. */
+		private long dueMillis;
+
+		/** Whether the last request is a publish. */
+		private boolean publish;
+
+		/** Whether the window holds a publish. */
+		private boolean sawPublish;
+
+		/** The channel properties of the last request. */
+		private Map<QName, Serializable> channelProperties;
+
+		/** The number of requests. */
+		private int requests;
+
+		/** The futures of the requests. */
+		private final List<MarkLogicFuture<MarkLogicPublishResult>> waiters =
+				new ArrayList<MarkLogicFuture<MarkLogicPublishResult>>();
+
+		/**
+		 * Instantiates a new pending entry.
+		 *
+		 * @param nodeRef the node ref
+		 * @param publishedBefore whether the node was published when the window opened
+		 * @param firstMillis the time of the first request
+		 */
+		private Pending(final NodeRef nodeRef, final boolean publishedBefore, final long firstMillis) {
+			this.nodeRef = nodeRef;
+			this.publishedBefore = publishedBefore;
+			this.firstMillis = firstMillis;
+		}
+	}
+
+	/**
+	 * Requests made in a transaction, added to the windows once it commits.
+	 */
+	private final class TransactionRequests extends TransactionListenerAdapter {
+
+		/** The nodes. */
+		private final List<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+
+		/** The channel properties. */
+		private final List<Map<QName, Serializable>> channelProperties = new ArrayList<Map<QName, Serializable>>();
+
+		/** The operations, true for a publish. */
+		private final List<Boolean> publishes = new ArrayList<Boolean>();
+
+		/** The futures. */
+		private final List<MarkLogicFuture<MarkLogicPublishResult>> futures =
+				new ArrayList<MarkLogicFuture<MarkLogicPublishResult>>();
+
+		/* (non-Javadoc)
+		 * @see org.alfresco.repo.transaction.TransactionListenerAdapter#afterCommit()
+		 */
+		@Override
+		public void afterCommit() {
+			for (int i = 0; i < nodeRefs.size(); i++) {
+				addToWindow(nodeRefs.get(i), channelProperties.get(i), publishes.get(i).booleanValue(),
+						futures.get(i));
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see org.alfresco.repo.transaction.TransactionListenerAdapter#afterRollback()
+		 */
+		@Override
+		public void afterRollback() {
+			for (int i = 0; i < nodeRefs.size(); i++) {
+				futures.get(i).completed(new MarkLogicPublishResult(nodeRefs.get(i),
+						MarkLogicPublishResult.Status.SKIPPED, 0, "Transaction rolled back"));
+			}
+		}
+	}
+
+	/**
+	 * Sets the publish executor.
+	 *
+	 * @param publishExecutor the new publish executor
+	 */
+	public void setPublishExecutor(final MarkLogicPublishExecutor publishExecutor) {
+		this.publishExecutor = publishExecutor;
+	}
+
+	/**
+	 * Sets the publishing helper.
+	 *
+	 * @param publishingHelper the new publishing helper
+	 */
+	public void setPublishingHelper(final MarkLogicPublishingHelper publishingHelper) {
+		this.publishingHelper = publishingHelper;
+	}
+
+	/**
+	 * Sets the published content index.
+	 *
+	 * @param publishedContentIndex the new published content index
+	 */
+	public void setPublishedContentIndex(final MarkLogicPublishedContentIndex publishedContentIndex) {
+		this.publishedContentIndex = publishedContentIndex;
+	}
+
+	/**
+	 * Sets the metrics.
+	 *
+	 * @param metrics the new metrics
+	 */
+	public void setMetrics(final MarkLogicPublishingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the window.
+	 *
+	 * @param windowMillis the new window, 0 disables coalescing
+	 */
+	public void setWindowMillis(final long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Sets the max delay.
+	 *
+	 * @param maxDelayMillis the new max delay
+	 */
+	public void setMaxDelayMillis(final long maxDelayMillis) {
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Checks if coalescing is enabled.
+	 *
+	 * @return true, if the window is not 0
+	 */
+	public boolean isEnabled() {
+		return windowMillis > 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() {
+		if (!isEnabled()) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "MarkLogicPublishCoalescer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() throws InterruptedException {
+		if (scheduler == null) {
+			return;
+		}
+		scheduler.shutdownNow();
+		scheduler.awaitTermination(5, TimeUnit.SECONDS);
+		final List<Pending> remaining;
+		synchronized (pending) {
+			remaining = new ArrayList<Pending>(pending.values());
+			pending.clear();
+		}
+		for (final Pending entry : remaining) {
+			send(entry);
+		}
+	}
+
+	/**
+	 * Records a publish of the node.
+	 *
+	 * @param nodeToPublish the node to publish
+	 * @param channelProperties the channel properties
+	 * @return the future result of the call made at the end of the window
+	 */
+	public Future<MarkLogicPublishResult> publish(final NodeRef nodeToPublish,
+			final Map<QName, Serializable> channelProperties) {
+		return add(nodeToPublish, channelProperties, true);
+	}
+
+	/**
+	 * Records an unpublish of the node.
+	 *
+	 * @param nodeToUnpublish the node to unpublish
+	 * @param channelProperties the channel properties
+	 * @return the future result of the call made at the end of the window
+	 */
+	public Future<MarkLogicPublishResult> unpublish(final NodeRef nodeToUnpublish,
+			final Map<QName, Serializable> channelProperties) {
+		return add(nodeToUnpublish, channelProperties, false);
+	}
+
+	/**
+	 * Gets the number of nodes waiting for their window to end.
+	 *
+	 * @return the pending nodes
+	 */
+	public int getPendingNodes() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Adds a request to the window of its node, after the commit of the current transaction if there is one.
+	 *
+	 * @param nodeRef the node ref
+	 * @param channelProperties the channel properties
+	 * @param publish true to publish, false to unpublish
+	 * @return the future result
+	 */
+	private Future<MarkLogicPublishResult> add(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties,
+			final boolean publish) {
+		final MarkLogicFuture<MarkLogicPublishResult> future = new MarkLogicFuture<MarkLogicPublishResult>();
+		if (AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_NONE) {
+			addToWindow(nodeRef, channelProperties, publish, future);
+			return future;
+		}
+		TransactionRequests requests = AlfrescoTransactionSupport.getResource(KEY_TXN_REQUESTS);
+		if (requests == null) {
+			requests = new TransactionRequests();
+			AlfrescoTransactionSupport.bindResource(KEY_TXN_REQUESTS, requests);
+			AlfrescoTransactionSupport.bindListener(requests);
+		}
+		requests.nodeRefs.add(nodeRef);
+		requests.channelProperties.add(channelProperties);
+		requests.publishes.add(Boolean.valueOf(publish));
+		requests.futures.add(future);
+		return future;
+	}
+
+	/**
+	 * Adds a request to the window of its node, opening a window when there is none.
+	 *
+	 * @param nodeRef the node ref
+	 * @param channelProperties the channel properties
+	 * @param publish true to publish, false to unpublish
+	 * @param future the future result
+	 */
+	private void addToWindow(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties,
+			final boolean publish, final MarkLogicFuture<MarkLogicPublishResult> future) {
+		final String channelKey = publishingHelper.getChannelKey(channelProperties);
+		final String key = channelKey + "|" + nodeRef;
+		final long now = System.currentTimeMillis();
+		long openedDelayMillis = -1;
+		synchronized (pending) {
+			Pending entry = pending.get(key);
+			if (entry == null) {
+				entry = new Pending(nodeRef, publishedContentIndex == null
+						|| publishedContentIndex.isPublished(channelKey, nodeRef), now);
+				pending.put(key, entry);
+			}
+			entry.publish = publish;
+			entry.sawPublish |= publish;
+			entry.channelProperties = channelProperties;
+			entry.requests++;
+			entry.dueMillis = Math.min(now + windowMillis, entry.firstMillis + maxDelayMillis);
+			entry.waiters.add(future);
+			if (entry.requests == 1) {
+				openedDelayMillis = entry.dueMillis - now;
+			}
+		}
+		if (openedDelayMillis >= 0) {
+			schedule(key, openedDelayMillis);
+		}
+	}
+
+	/**
+	 * Schedules a check of the window of a node.
+	 *
+	 * @param key the pending key
+	 * @param delayMillis the delay
+	 */
+	private void schedule(final String key, final long delayMillis) {
+		try {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					flush(key);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException rejectEx) {
+			// shutting down, destroy() sends the remaining windows
+			LOG.debug("Coalescer shut down, leaving " + key + " to be flushed on destroy");
+		}
+	}
+
+	/**
+	 * Sends the requests of a node once its window has ended, or checks again at its end.
+	 *
+	 * @param key the pending key
+	 */
+	private void flush(final String key) {
+		final Pending entry;
+		synchronized (pending) {
+			final Pending candidate = pending.get(key);
+			if (candidate == null) {
+				return;
+			}
+			final long remainingMillis = candidate.dueMillis - System.currentTimeMillis();
+			if (remainingMillis > 0) {
+				schedule(key, remainingMillis);
+				return;
+			}
+			entry = pending.remove(key);
+		}
+		send(entry);
+	}
+
+	/**
+	 * Queues the last request of a window on the publish executor, or completes all its requests
+	 * as skipped when they cancel each other out.
+	 *
+	 * @param entry the pending entry
+	 */
+	private void send(final Pending entry) {
+		final boolean cancelled = publishedContentIndex != null && entry.sawPublish && !entry.publish
+				&& !entry.publishedBefore;
+		if (metrics != null) {
+			metrics.recordCoalesced(entry.requests, cancelled);
+		}
+		if (cancelled) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Dropping " + entry.requests + " requests for never published node " + entry.nodeRef);
+			}
+			complete(entry, new MarkLogicPublishResult(entry.nodeRef, MarkLogicPublishResult.Status.SKIPPED, 0,
+					"Published and unpublished within the coalescing window"));
+			return;
+		}
+		try {
+			publishExecutor.submit(entry.nodeRef, entry.channelProperties, entry.publish,
+					new MarkLogicTransportCallback<MarkLogicPublishResult>() {
+						public void completed(final MarkLogicPublishResult result) {
+							if (result.isFailed()) {
+								LOG.error("Deferred " + (entry.publish ? "publish" : "unpublish") + " failed: " + result);
+							}
+							complete(entry, result);
+						}
+
+						public void failed(final Exception failure) {
+							LOG.error("Deferred " + (entry.publish ? "publish" : "unpublish") + " of node "
+									+ entry.nodeRef + " failed", failure);
+							for (final MarkLogicFuture<MarkLogicPublishResult> waiter : entry.waiters) {
+								waiter.failed(failure);
+							}
+						}
+					});
+		} catch (RuntimeException runtimeEx) {
+			LOG.error("Unable to queue " + (entry.publish ? "publish" : "unpublish") + " of node " + entry.nodeRef,
+					runtimeEx);
+			for (final MarkLogicFuture<MarkLogicPublishResult> waiter : entry.waiters) {
+				waiter.failed(runtimeEx);
+			}
+		}
+	}
+
+	/**
+	 * Completes all requests of a window with the same result.
+	 *
+	 * @param entry the pending entry
+	 * @param result the result
+	 */
+	private static void complete(final Pending entry, final MarkLogicPublishResult result) {
+		for (final MarkLogicFuture<MarkLogicPublishResult> waiter : entry.waiters) {
+			waiter.completed(result);
+		}
+	}
+}
@@ -0,0 +1,464 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Runs MarkLogic publish and unpublish calls on a dedicated, bounded worker pool.<br/>
+ * Work is queued on a bounded queue. When the queue is full the submitting thread either blocks
+ * until there is room (backpressure) or the submission is rejected, depending on
+ * <code>blockWhenFull</code>. Every call runs as the submitting user in its own read-only
+ * transaction and yields a {@link MarkLogicPublishResult}, so failures can still be reported
+ * back against the publishing event.<br/>
+ * With a {@link MarkLogicRoutingPolicy} on the channel, publishes are queued on the lane of their
+ * route, each lane having its own workers and queue, so small documents are not held up behind
+ * large uploads. Unpublishes always use the normal lane.<br/>
+ * Calls go straight to the channel, bypassing its {@link MarkLogicPublishCoalescer}. The pool is used by
+ * the backfill crawler and the coalescer; a plain {@link MarkLogicChannelType#publish} runs in the caller's
+ * thread, so that the publishing event sees its outcome.<br/>
+ * A node without content, or unchanged since its last publish, yields a SKIPPED result.
+ */
+public class MarkLogicPublishExecutor implements InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicPublishExecutor.class);
+
+	/** The channel type. */
+	private MarkLogicChannelType channelType;
+
+	/** The transaction service. */
+	private TransactionService transactionService;
+
+	/** The number of worker threads of the normal lane. */
+	private int workerThreads = 8;
+
+	/** The number of worker threads of the fast lane. */
+	private int fastLaneThreads = 4;
+
+	/** The number of worker threads of the bulk lane. */
+	private int bulkLaneThreads = 2;
+
+	/** The queue capacity. */
+	private int queueCapacity = 500;
+
+	/** Whether submitters block when the queue is full, otherwise the work is rejected. */
+	private boolean blockWhenFull = true;
+
+	/** The seconds to wait for queued work on shutdown. */
+	private int shutdownTimeoutSeconds = 30;
+
+	/** The executors, per lane. */
+	private final Map<MarkLogicRoute.Lane, ThreadPoolExecutor> lanes = new EnumMap<MarkLogicRoute.Lane, ThreadPoolExecutor>(MarkLogicRoute.Lane.class);
+
+	/**
+	 * Sets the channel type.
+	 *
+	 * @param channelType the new channel type
+	 */
+	public void setChannelType(final MarkLogicChannelType channelType) {
+		this.channelType = channelType;
+	}
+
+	/**
+	 * Sets the transaction service.
+	 *
+	 * @param transactionService the new transaction service
+	 */
+	public void setTransactionService(final TransactionService transactionService) {
+		this.transactionService = transactionService;
+	}
+
+	/**
+	 * Sets the worker threads.
+	 *
+	 * @param workerThreads the new worker threads
+	 */
+	public void setWorkerThreads(final int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * Sets the fast lane threads.
+	 *
+	 * @param fastLaneThreads the new fast lane threads
+	 */
+	public void setFastLaneThreads(final int fastLaneThreads) {
+		this.fastLaneThreads = fastLaneThreads;
+	}
+
+	/**
+	 * Sets the bulk lane threads.
+	 *
+	 * @param bulkLaneThreads the new bulk lane threads
+	 */
+	public void setBulkLaneThreads(final int bulkLaneThreads) {
+		this.bulkLaneThreads = bulkLaneThreads;
+	}
+
+	/**
+	 * Sets the queue capacity of every lane.
+	 *
+	 * @param queueCapacity the new queue capacity
+	 */
+	public void setQueueCapacity(final int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Sets whether submitters block when the queue is full.
+	 *
+	 * @param blockWhenFull the new block when full
+	 */
+	public void setBlockWhenFull(final boolean blockWhenFull) {
+		this.blockWhenFull = blockWhenFull;
+	}
+
+	/**
+	 * Sets the shutdown timeout seconds.
+	 *
+	 * @param shutdownTimeoutSeconds the new shutdown timeout seconds
+	 */
+	public void setShutdownTimeoutSeconds(final int shutdownTimeoutSeconds) {
+		this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() {
+		lanes.put(MarkLogicRoute.Lane.FAST, createLane("MarkLogicPublisher-fast-", fastLaneThreads));
+		lanes.put(MarkLogicRoute.Lane.NORMAL, createLane("MarkLogicPublisher-", workerThreads));
+		lanes.put(MarkLogicRoute.Lane.BULK, createLane("MarkLogicPublisher-bulk-", bulkLaneThreads));
+	}
+
+	/**
+	 * Creates the worker pool of a lane.
+	 *
+	 * @param threadPrefix the thread name prefix
+	 * @param threads the number of threads
+	 * @return the executor
+	 */
+	private ThreadPoolExecutor createLane(final String threadPrefix, final int threads) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, threadPrefix + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new RejectedExecutionHandler() {
+					public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor pool) {
+						if (!blockWhenFull || pool.isShutdown()) {
+							throw new RejectedExecutionException("MarkLogic publish queue is full ("
+									+ queueCapacity + " pending)");
+						}
+						try {
+							pool.getQueue().put(runnable);
+						} catch (InterruptedException intEx) {
+							Thread.currentThread().interrupt();
+							throw new RejectedExecutionException("Interrupted while waiting for the MarkLogic publish queue");
+						}
+					}
+				});
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() throws InterruptedException {
+		for (final ThreadPoolExecutor executor : lanes.values()) {
+			executor.shutdown();
+		}
+		final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(shutdownTimeoutSeconds);
+		for (final Map.Entry<MarkLogicRoute.Lane, ThreadPoolExecutor> lane : lanes.entrySet()) {
+			final ThreadPoolExecutor executor = lane.getValue();
+			if (!executor.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS)) {
+				LOG.warn("MarkLogic " + lane.getKey().name().toLowerCase() + " publish queue not drained on shutdown, "
+						+ executor.getQueue().size() + " tasks dropped");
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Queues a publish of the node.
+	 *
+	 * @param nodeToPublish the node to publish
+	 * @param channelProperties the channel properties
+	 * @return the future result
+	 */
+	public Future<MarkLogicPublishResult> submitPublish(final NodeRef nodeToPublish,
+			final Map<QName, Serializable> channelProperties) {
+		return submit(nodeToPublish, channelProperties, true);
+	}
+
+	/**
+	 * Queues an unpublish of the node.
+	 *
+	 * @param nodeToUnpublish the node to unpublish
+	 * @param channelProperties the channel properties
+	 * @return the future result
+	 */
+	public Future<MarkLogicPublishResult> submitUnpublish(final NodeRef nodeToUnpublish,
+			final Map<QName, Serializable> channelProperties) {
+		return submit(nodeToUnpublish, channelProperties, false);
+	}
+
+	/**
+	 * Queues a publish or unpublish of the node, reporting its result to a callback on the worker thread.
+	 *
+	 * @param nodeRef the node ref
+	 * @param channelProperties the channel properties
+	 * @param publish true to publish, false to unpublish
+	 * @param callback the callback
+	 */
+	public void submit(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties, final boolean publish,
+			final MarkLogicTransportCallback<MarkLogicPublishResult> callback) {
+		submit(nodeRef, channelProperties, publish, callback, AuthenticationUtil.getRunAsUser());
+	}
+
+	/**
+	 * Publishes the nodes concurrently and waits for all of them to finish.
+	 *
+	 * @param nodesToPublish the nodes to publish
+	 * @param channelProperties the channel properties
+	 * @return the result for every node
+	 */
+	public Map<NodeRef, MarkLogicPublishResult> publishAll(final Collection<NodeRef> nodesToPublish,
+			final Map<QName, Serializable> channelProperties) {
+		return runAll(nodesToPublish, channelProperties, true);
+	}
+
+	/**
+	 * Unpublishes the nodes concurrently and waits for all of them to finish.
+	 *
+	 * @param nodesToUnpublish the nodes to unpublish
+	 * @param channelProperties the channel properties
+	 * @return the result for every node
+	 */
+	public Map<NodeRef, MarkLogicPublishResult> unpublishAll(final Collection<NodeRef> nodesToUnpublish,
+			final Map<QName, Serializable> channelProperties) {
+		return runAll(nodesToUnpublish, channelProperties, false);
+	}
+
+	/**
+	 * Gets the number of queued tasks.
+	 *
+	 * @return the queue size
+	 */
+	public int getQueueSize() {
+		int queueSize = 0;
+		for (final ThreadPoolExecutor executor : lanes.values()) {
+			queueSize += executor.getQueue().size();
+		}
+		return queueSize;
+	}
+
+	/**
+	 * Gets the number of queued tasks of a lane.
+	 *
+	 * @param lane the lane
+	 * @return the queue size
+	 */
+	public int getQueueSize(final MarkLogicRoute.Lane lane) {
+		return lanes.get(lane).getQueue().size();
+	}
+
+	/**
+	 * Gets the number of running tasks.
+	 *
+	 * @return the active count
+	 */
+	public int getActiveCount() {
+		int activeCount = 0;
+		for (final ThreadPoolExecutor executor : lanes.values()) {
+			activeCount += executor.getActiveCount();
+		}
+		return activeCount;
+	}
+
+	/**
+	 * Submits all nodes and collects their results.
+	 *
+	 * @param nodeRefs the node refs
+	 * @param channelProperties the channel properties
+	 * @param publish true to publish, false to unpublish
+	 * @return the results
+	 */
+	private Map<NodeRef, MarkLogicPublishResult> runAll(final Collection<NodeRef> nodeRefs,
+			final Map<QName, Serializable> channelProperties, final boolean publish) {
+		final Map<NodeRef, Future<MarkLogicPublishResult>> futures = new LinkedHashMap<NodeRef, Future<MarkLogicPublishResult>>();
+		for (final NodeRef nodeRef : nodeRefs) {
+			futures.put(nodeRef, submit(nodeRef, channelProperties, publish));
+		}
+		final Map<NodeRef, MarkLogicPublishResult> results = new LinkedHashMap<NodeRef, MarkLogicPublishResult>();
+		for (final Map.Entry<NodeRef, Future<MarkLogicPublishResult>> future : futures.entrySet()) {
+			results.put(future.getKey(), await(future.getKey(), future.getValue()));
+		}
+		return results;
+	}
+
+	/**
+	 * Waits for a single result.
+	 *
+	 * @param nodeRef the node ref
+	 * @param future the future
+	 * @return the result
+	 */
+	private MarkLogicPublishResult await(final NodeRef nodeRef, final Future<MarkLogicPublishResult> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException intEx) {
+			Thread.currentThread().interrupt();
+			throw new AlfrescoRuntimeException("Interrupted while waiting for MarkLogic publishing of " + nodeRef);
+		} catch (ExecutionException execEx) {
+			return new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.FAILED, 0,
+					execEx.getCause().getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Submits a single publish or unpublish call.
+	 *
+	 * @param nodeRef the node ref
+	 * @param channelProperties the channel properties
+	 * @param publish true to publish, false to unpublish
+	 * @return the future result
+	 */
+	private Future<MarkLogicPublishResult> submit(final NodeRef nodeRef,
+			final Map<QName, Serializable> channelProperties, final boolean publish) {
+		return submit(nodeRef, channelProperties, publish, null, AuthenticationUtil.getRunAsUser());
+	}
+
+	/**
+	 * Submits a single publish or unpublish call, run as the given user.
+	 *
+	 * @param nodeRef the node ref
+	 * @param channelProperties the channel properties
+	 * @param publish true to publish, false to unpublish
+	 * @param callback the callback, may be null
+	 * @param user the user, the system user when null
+	 * @return the future result
+	 */
+	private Future<MarkLogicPublishResult> submit(final NodeRef nodeRef,
+			final Map<QName, Serializable> channelProperties, final boolean publish,
+			final MarkLogicTransportCallback<MarkLogicPublishResult> callback, final String user) {
+		final String runAsUser = user != null ? user : AuthenticationUtil.getSystemUserName();
+		try {
+			return lanes.get(laneOf(nodeRef, publish)).submit(new Callable<MarkLogicPublishResult>() {
+				public MarkLogicPublishResult call() {
+					final MarkLogicPublishResult result;
+					try {
+						result = AuthenticationUtil.runAs(new RunAsWork<MarkLogicPublishResult>() {
+							public MarkLogicPublishResult doWork() {
+								return transactionService.getRetryingTransactionHelper().doInTransaction(
+										new RetryingTransactionCallback<MarkLogicPublishResult>() {
+											public MarkLogicPublishResult execute() {
+												return run(nodeRef, channelProperties, publish);
+											}
+										}, true, true);
+							}
+						}, runAsUser);
+					} catch (RuntimeException runtimeEx) {
+						if (callback != null) {
+							callback.failed(runtimeEx);
+						}
+						throw runtimeEx;
+					}
+					if (callback != null) {
+						callback.completed(result);
+					}
+					return result;
+				}
+			});
+		} catch (RejectedExecutionException rejectEx) {
+			throw new AlfrescoRuntimeException(rejectEx.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Gets the lane of a call from the route of the node content.
+	 *
+	 * @param nodeRef the node ref
+	 * @param publish true to publish, false to unpublish
+	 * @return the lane
+	 */
+	private MarkLogicRoute.Lane laneOf(final NodeRef nodeRef, final boolean publish) {
+		if (!publish) {
+			return MarkLogicRoute.Lane.NORMAL;
+		}
+		try {
+			final MarkLogicRoute route = channelType.getRoute(nodeRef);
+			return route == null ? MarkLogicRoute.Lane.NORMAL : route.getLane();
+		} catch (RuntimeException runtimeEx) {
+			// The content is read again by the worker, which reports the failure
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Unable to route " + nodeRef + ", using the normal lane: " + runtimeEx.getLocalizedMessage());
+			}
+			return MarkLogicRoute.Lane.NORMAL;
+		}
+	}
+
+	/**
+	 * Runs the channel call and turns its outcome into a result.
+	 *
+	 * @param nodeRef the node ref
+	 * @param channelProperties the channel properties
+	 * @param publish true to publish, false to unpublish
+	 * @return the result
+	 */
+	private MarkLogicPublishResult run(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties,
+			final boolean publish) {
+		try {
+			if (publish) {
+				return channelType.publishNow(nodeRef, channelProperties);
+			}
+			channelType.unpublishNow(nodeRef, channelProperties);
+			return new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.UNPUBLISHED, 0, null);
+		} catch (AlfrescoRuntimeException alfEx) {
+			return new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.FAILED, 0,
+					alfEx.getLocalizedMessage());
+		}
+	}
+}
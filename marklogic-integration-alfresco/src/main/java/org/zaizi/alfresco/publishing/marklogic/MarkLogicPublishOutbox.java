@@ -0,0 +1,849 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.publishing.channels.Channel;
+import org.alfresco.service.cmr.publishing.channels.ChannelService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Durable queue of the publish and unpublish calls of the publishing framework.<br/>
+ * A call is appended to a write-ahead log once the transaction which made it commits, so the drain thread
+ * only ever reads committed nodes, and it survives a restart or an unreachable MarkLogic server from then on.
+ * Calls of a rolled back transaction are dropped. A call is acknowledged in the log once MarkLogic stored or
+ * removed the document.
+ * A drain thread sends the pending calls in log order, <code>drainBatchSize</code> at a time: repeated calls
+ * for the same node collapse into the last one, publishes go out through {@link MarkLogicChannelType#publishBatch}
+ * and unpublishes through {@link MarkLogicChannelType#unpublishBatch}. Failed calls stay pending and are retried
+ * with a growing delay, up to <code>maxAttempts</code>. The log is replayed on startup and compacted to the
+ * pending calls when it grows well beyond them.<br/>
+ * The outbox is disabled unless <code>enabled</code> is set, and then needs an <code>outboxDirectory</code>
+ * which outlives the temp dir.
+ */
+public class MarkLogicPublishOutbox implements InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicPublishOutbox.class);
+
+	/** The Constant OUTBOX_FILE_NAME. */
+	private final static String OUTBOX_FILE_NAME = "publish-outbox.wal";
+
+	/** The Constant RECORD_ADDED. */
+	private final static char RECORD_ADDED = 'A';
+
+	/** The Constant RECORD_DONE. */
+	private final static char RECORD_DONE = 'D';
+
+	/** The Constant OPERATION_PUBLISH. */
+	private final static char OPERATION_PUBLISH = 'P';
+
+	/** The Constant OPERATION_UNPUBLISH. */
+	private final static char OPERATION_UNPUBLISH = 'U';
+
+	/** The Constant KEY_TXN_CALLS, binding the calls of a transaction. */
+	private final static String KEY_TXN_CALLS = MarkLogicPublishOutbox.class.getName() + ".calls";
+
+	/** The channel type. */
+	private MarkLogicChannelType channelType;
+
+	/** The channel service, resolving the channels of replayed calls. */
+	private ChannelService channelService;
+
+	/** The node service. */
+	private NodeService nodeService;
+
+	/** The transaction service. */
+	private TransactionService transactionService;
+
+	/** Whether calls go through the outbox. */
+	private boolean enabled;
+
+	/** The outbox directory, required when enabled. */
+	private String outboxDirectory;
+
+	/** Whether every logged call is forced to disk straight away. */
+	private boolean syncOnWrite = true;
+
+	/** The log to pending call ratio above which the log is compacted. */
+	private int compactionRatio = 3;
+
+	/** The pending calls above which new calls are rejected. */
+	private int maxPendingEntries = 1000000;
+
+	/** The calls sent per drain round. */
+	private int drainBatchSize = 500;
+
+	/** The time calls are left to gather before a drain round, so bursts go out together. */
+	private long lingerMillis = 200;
+
+	/** The delay before draining after startup, leaving the repository time to start. */
+	private long startupDelayMillis = 60000;
+
+	/** The delay after a round with failures, doubled on every further failing round. */
+	private long retryDelayMillis = 1000;
+
+	/** The longest delay between failing rounds. */
+	private long maxRetryDelayMillis = 60000;
+
+	/** The attempts after which a call is dropped. */
+	private int maxAttempts = 20;
+
+	/** The pending calls in log order. */
+	private final TreeMap<Long, Entry> pending = new TreeMap<Long, Entry>();
+
+	/** The next sequence number. */
+	private long nextSequence = 1;
+
+	/** The log record count. */
+	private long journalRecords;
+
+	/** The log file. */
+	private File outboxFile;
+
+	/** The log stream. */
+	private FileOutputStream journalStream;
+
+	/** The log writer. */
+	private Writer journal;
+
+	/** The drain thread. */
+	private Thread drainer;
+
+	/** Whether the drain thread runs. */
+	private volatile boolean running;
+
+	/**
+	 * A pending call.
+	 */
+	private static final class Entry {
+
+		/** The sequence number. */
+		private final long sequence;
+
+		/** True to publish, false to unpublish. */
+		private final boolean publish;
+
+		/** The channel id. */
+		private final String channelId;
+
+		/** The node ref. */
+		private final NodeRef nodeRef;
+
+		/** The channel properties, null for replayed calls until their channel is resolved. */
+		private Map<QName, Serializable> channelProperties;
+
+		/** The failed attempts. */
+		private int attempts;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param sequence the sequence number
+		 * @param publish true to publish, false to unpublish
+		 * @param channelId the channel id
+		 * @param nodeRef the node ref
+		 * @param channelProperties the channel properties, may be null
+		 */
+		private Entry(final long sequence, final boolean publish, final String channelId, final NodeRef nodeRef,
+				final Map<QName, Serializable> channelProperties) {
+			this.sequence = sequence;
+			this.publish = publish;
+			this.channelId = channelId;
+			this.nodeRef = nodeRef;
+			this.channelProperties = channelProperties;
+		}
+	}
+
+	/**
+	 * The calls of a transaction, logged once it commits.
+	 */
+	private final class TransactionCalls extends TransactionListenerAdapter {
+
+		/** The nodes. */
+		private final List<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+
+		/** The channel properties. */
+		private final List<Map<QName, Serializable>> channelProperties = new ArrayList<Map<QName, Serializable>>();
+
+		/** The operations, true for a publish. */
+		private final List<Boolean> publishes = new ArrayList<Boolean>();
+
+		/* (non-Javadoc)
+		 * @see org.alfresco.repo.transaction.TransactionListenerAdapter#afterCommit()
+		 */
+		@Override
+		public void afterCommit() {
+			for (int i = 0; i < nodeRefs.size(); i++) {
+				try {
+					enqueue(publishes.get(i).booleanValue(), nodeRefs.get(i), channelProperties.get(i));
+				} catch (AlfrescoRuntimeException alfEx) {
+					// Too late to fail the transaction, the reconciler repairs the copy
+					LOG.error("MarkLogic publish outbox lost " + (publishes.get(i).booleanValue() ? "publish" : "unpublish")
+							+ " of " + nodeRefs.get(i) + ": " + alfEx.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the channel type.
+	 *
+	 * @param channelType the new channel type
+	 */
+	public void setChannelType(final MarkLogicChannelType channelType) {
+		this.channelType = channelType;
+	}
+
+	/**
+	 * Sets the channel service.
+	 *
+	 * @param channelService the new channel service
+	 */
+	public void setChannelService(final ChannelService channelService) {
+		this.channelService = channelService;
+	}
+
+	/**
+	 * Sets the node service.
+	 *
+	 * @param nodeService the new node service
+	 */
+	public void setNodeService(final NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * Sets the transaction service.
+	 *
+	 * @param transactionService the new transaction service
+	 */
+	public void setTransactionService(final TransactionService transactionService) {
+		this.transactionService = transactionService;
+	}
+
+	/**
+	 * Sets whether calls go through the outbox.
+	 *
+	 * @param enabled the new enabled
+	 */
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Sets the outbox directory.
+	 *
+	 * @param outboxDirectory the new outbox directory
+	 */
+	public void setOutboxDirectory(final String outboxDirectory) {
+		this.outboxDirectory = outboxDirectory;
+	}
+
+	/**
+	 * Sets whether every append is forced to disk.
+	 *
+	 * @param syncOnWrite the new sync on write
+	 */
+	public void setSyncOnWrite(final boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	/**
+	 * Sets the compaction ratio.
+	 *
+	 * @param compactionRatio the new compaction ratio
+	 */
+	public void setCompactionRatio(final int compactionRatio) {
+		this.compactionRatio = compactionRatio;
+	}
+
+	/**
+	 * Sets the max pending entries.
+	 *
+	 * @param maxPendingEntries the new max pending entries
+	 */
+	public void setMaxPendingEntries(final int maxPendingEntries) {
+		this.maxPendingEntries = maxPendingEntries;
+	}
+
+	/**
+	 * Sets the drain batch size.
+	 *
+	 * @param drainBatchSize the new drain batch size
+	 */
+	public void setDrainBatchSize(final int drainBatchSize) {
+		this.drainBatchSize = drainBatchSize;
+	}
+
+	/**
+	 * Sets the linger time.
+	 *
+	 * @param lingerMillis the new linger time
+	 */
+	public void setLingerMillis(final long lingerMillis) {
+		this.lingerMillis = lingerMillis;
+	}
+
+	/**
+	 * Sets the startup delay.
+	 *
+	 * @param startupDelayMillis the new startup delay
+	 */
+	public void setStartupDelayMillis(final long startupDelayMillis) {
+		this.startupDelayMillis = startupDelayMillis;
+	}
+
+	/**
+	 * Sets the retry delay.
+	 *
+	 * @param retryDelayMillis the new retry delay
+	 */
+	public void setRetryDelayMillis(final long retryDelayMillis) {
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	/**
+	 * Sets the max retry delay.
+	 *
+	 * @param maxRetryDelayMillis the new max retry delay
+	 */
+	public void setMaxRetryDelayMillis(final long maxRetryDelayMillis) {
+		this.maxRetryDelayMillis = maxRetryDelayMillis;
+	}
+
+	/**
+	 * Sets the max attempts.
+	 *
+	 * @param maxAttempts the new max attempts
+	 */
+	public void setMaxAttempts(final int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Checks if the outbox is enabled.
+	 *
+	 * @return true, if enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() throws IOException {
+		if (!enabled) {
+			return;
+		}
+		if (outboxDirectory == null || outboxDirectory.length() == 0) {
+			throw new AlfrescoRuntimeException("MarkLogic publish outbox is enabled without an outbox directory");
+		}
+		final File directory = new File(outboxDirectory);
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new AlfrescoRuntimeException("Unable to create MarkLogic outbox directory: " + directory);
+		}
+		outboxFile = new File(directory, OUTBOX_FILE_NAME);
+		final File compacted = new File(directory, OUTBOX_FILE_NAME + ".tmp");
+		if (!outboxFile.exists() && compacted.exists() && !compacted.renameTo(outboxFile)) {
+			// A crash between removing the log and renaming its complete compacted copy
+			throw new AlfrescoRuntimeException("Unable to recover MarkLogic outbox file from: " + compacted);
+		}
+		if (outboxFile.exists()) {
+			load();
+		}
+		compact();
+		if (LOG.isInfoEnabled()) {
+			LOG.info("MarkLogic publish outbox loaded " + pending.size() + " pending calls from " + outboxFile);
+		}
+		running = true;
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				drainLoop();
+			}
+		}, "MarkLogicOutbox");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() throws IOException, InterruptedException {
+		running = false;
+		if (drainer != null) {
+			drainer.interrupt();
+			drainer.join(30000);
+		}
+		synchronized (this) {
+			if (journal != null) {
+				try {
+					compact();
+				} finally {
+					journal.close();
+					journal = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues a publish of the node.
+	 *
+	 * @param nodeToPublish the node to publish
+	 * @param channelProperties the channel properties
+	 */
+	public void publish(final NodeRef nodeToPublish, final Map<QName, Serializable> channelProperties) {
+		add(true, nodeToPublish, channelProperties);
+	}
+
+	/**
+	 * Queues an unpublish of the node.
+	 *
+	 * @param nodeToUnpublish the node to unpublish
+	 * @param channelProperties the channel properties
+	 */
+	public void unpublish(final NodeRef nodeToUnpublish, final Map<QName, Serializable> channelProperties) {
+		add(false, nodeToUnpublish, channelProperties);
+	}
+
+	/**
+	 * Gets the number of calls not yet acknowledged.
+	 *
+	 * @return the pending count
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Gets the id of the channel a call was made for, the channel node ref.
+	 *
+	 * @param channelProperties the channel properties
+	 * @return the channel id
+	 */
+	private static String channelId(final Map<QName, Serializable> channelProperties) {
+		final Serializable protocol = channelProperties.get(ContentModel.PROP_STORE_PROTOCOL);
+		final Serializable identifier = channelProperties.get(ContentModel.PROP_STORE_IDENTIFIER);
+		final Serializable uuid = channelProperties.get(ContentModel.PROP_NODE_UUID);
+		if (protocol == null || identifier == null || uuid == null) {
+			throw new AlfrescoRuntimeException("MarkLogic channel properties do not identify the channel node");
+		}
+		return protocol + "://" + identifier + "/" + uuid;
+	}
+
+	/**
+	 * Queues a call, holding it back until the current transaction commits.<br/>
+	 * A full or closed outbox fails the call straight away, so the caller's transaction rolls back.
+	 *
+	 * @param publish true to publish, false to unpublish
+	 * @param nodeRef the node ref
+	 * @param channelProperties the channel properties
+	 */
+	private void add(final boolean publish, final NodeRef nodeRef, final Map<QName, Serializable> channelProperties) {
+		final String channelId = channelId(channelProperties);
+		synchronized (this) {
+			checkAccepting();
+		}
+		if (AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_NONE) {
+			enqueue(publish, nodeRef, channelProperties);
+			return;
+		}
+		TransactionCalls calls = AlfrescoTransactionSupport.getResource(KEY_TXN_CALLS);
+		if (calls == null) {
+			calls = new TransactionCalls();
+			AlfrescoTransactionSupport.bindResource(KEY_TXN_CALLS, calls);
+			AlfrescoTransactionSupport.bindListener(calls);
+		}
+		calls.nodeRefs.add(nodeRef);
+		calls.channelProperties.add(channelProperties);
+		calls.publishes.add(Boolean.valueOf(publish));
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("MarkLogic publish outbox holding " + (publish ? "publish" : "unpublish") + " of " + nodeRef
+					+ " until commit (" + channelId + ")");
+		}
+	}
+
+	/**
+	 * Checks the outbox is open and has room for another call.
+	 */
+	private void checkAccepting() {
+		if (journal == null) {
+			throw new AlfrescoRuntimeException("MarkLogic publish outbox is not open");
+		}
+		if (pending.size() >= maxPendingEntries) {
+			throw new AlfrescoRuntimeException("MarkLogic publish outbox is full with " + pending.size()
+					+ " pending calls");
+		}
+	}
+
+	/**
+	 * Appends a call to the log and queues it for the drain thread.
+	 *
+	 * @param publish true to publish, false to unpublish
+	 * @param nodeRef the node ref
+	 * @param channelProperties the channel properties
+	 */
+	private void enqueue(final boolean publish, final NodeRef nodeRef, final Map<QName, Serializable> channelProperties) {
+		final String channelId = channelId(channelProperties);
+		synchronized (this) {
+			checkAccepting();
+			final Entry entry = new Entry(nextSequence++, publish, channelId, nodeRef, channelProperties);
+			try {
+				append(RECORD_ADDED + " " + entry.sequence + " " + (publish ? OPERATION_PUBLISH : OPERATION_UNPUBLISH)
+						+ " " + channelId + " " + nodeRef, syncOnWrite);
+			} catch (IOException ioex) {
+				LOG.error("Unable to write MarkLogic publish outbox: " + ioex.getLocalizedMessage());
+				throw new AlfrescoRuntimeException(ioex.getLocalizedMessage());
+			}
+			pending.put(Long.valueOf(entry.sequence), entry);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Acknowledges calls, compacting the log when it has grown too large.
+	 *
+	 * @param entries the entries
+	 */
+	private synchronized void acknowledge(final List<Entry> entries) {
+		try {
+			for (final Entry entry : entries) {
+				if (pending.remove(Long.valueOf(entry.sequence)) != null) {
+					append(RECORD_DONE + " " + entry.sequence, false);
+				}
+			}
+			if (journalRecords > (long) compactionRatio * Math.max(pending.size(), 1000)) {
+				compact();
+			}
+		} catch (IOException ioex) {
+			// The calls are sent again after a restart, which publishing tolerates
+			LOG.error("Unable to write MarkLogic publish outbox: " + ioex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Appends a record to the log.
+	 *
+	 * @param record the record
+	 * @param sync whether to force the record to disk
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void append(final String record, final boolean sync) throws IOException {
+		journal.write(record);
+		journal.write('\n');
+		journal.flush();
+		if (sync) {
+			journalStream.getChannel().force(false);
+		}
+		journalRecords++;
+	}
+
+	/**
+	 * Sends the pending calls until the outbox is destroyed.
+	 */
+	private void drainLoop() {
+		long failureDelay = 0;
+		try {
+			Thread.sleep(startupDelayMillis);
+			while (running) {
+				synchronized (this) {
+					while (pending.isEmpty()) {
+						wait();
+					}
+				}
+				Thread.sleep(failureDelay > 0 ? failureDelay : lingerMillis);
+				if (drain()) {
+					failureDelay = 0;
+				} else {
+					failureDelay = Math.min(failureDelay == 0 ? retryDelayMillis : failureDelay * 2, maxRetryDelayMillis);
+				}
+			}
+		} catch (InterruptedException intEx) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Sends the first <code>drainBatchSize</code> pending calls.
+	 *
+	 * @return false if any call failed
+	 */
+	private boolean drain() {
+		final List<Entry> batch = new ArrayList<Entry>(drainBatchSize);
+		synchronized (this) {
+			for (final Entry entry : pending.values()) {
+				if (batch.size() == drainBatchSize) {
+					break;
+				}
+				batch.add(entry);
+			}
+		}
+		// The last call for a node wins, all its calls are acknowledged with it
+		final Map<String, List<Entry>> byChannel = new LinkedHashMap<String, List<Entry>>();
+		final Map<String, List<Entry>> collapsed = new HashMap<String, List<Entry>>();
+		for (final Entry entry : batch) {
+			final String key = entry.channelId + "|" + entry.nodeRef;
+			List<Entry> calls = collapsed.get(key);
+			if (calls == null) {
+				calls = new ArrayList<Entry>();
+				collapsed.put(key, calls);
+			}
+			calls.add(entry);
+			List<Entry> channelCalls = byChannel.get(entry.channelId);
+			if (channelCalls == null) {
+				channelCalls = new ArrayList<Entry>();
+				byChannel.put(entry.channelId, channelCalls);
+			}
+			channelCalls.add(entry);
+		}
+		boolean succeeded = true;
+		for (final Map.Entry<String, List<Entry>> channelCalls : byChannel.entrySet()) {
+			final Map<NodeRef, Entry> lastCalls = new LinkedHashMap<NodeRef, Entry>();
+			for (final Entry entry : channelCalls.getValue()) {
+				lastCalls.remove(entry.nodeRef);
+				lastCalls.put(entry.nodeRef, entry);
+			}
+			final List<Entry> done = new ArrayList<Entry>();
+			final List<Entry> failed = new ArrayList<Entry>();
+			try {
+				send(channelCalls.getKey(), lastCalls.values(), done, failed);
+			} catch (RuntimeException runtimeEx) {
+				LOG.error("MarkLogic publish outbox could not send " + lastCalls.size() + " calls for channel "
+						+ channelCalls.getKey(), runtimeEx);
+				done.clear();
+				failed.clear();
+				failed.addAll(lastCalls.values());
+			}
+			final List<Entry> acknowledged = new ArrayList<Entry>();
+			for (final Entry entry : done) {
+				acknowledged.addAll(collapsed.get(entry.channelId + "|" + entry.nodeRef));
+			}
+			for (final Entry entry : failed) {
+				succeeded = false;
+				if (++entry.attempts >= maxAttempts) {
+					LOG.error("MarkLogic publish outbox dropping " + (entry.publish ? "publish" : "unpublish")
+							+ " of " + entry.nodeRef + " after " + entry.attempts + " attempts");
+					acknowledged.addAll(collapsed.get(entry.channelId + "|" + entry.nodeRef));
+				}
+			}
+			acknowledge(acknowledged);
+		}
+		return succeeded;
+	}
+
+	/**
+	 * Sends the calls of a channel, sorting them into done and failed.
+	 *
+	 * @param channelId the channel id
+	 * @param calls the calls, at most one per node
+	 * @param done the calls which succeeded or no longer apply
+	 * @param failed the calls to retry
+	 */
+	private void send(final String channelId, final Collection<Entry> calls, final List<Entry> done,
+			final List<Entry> failed) {
+		final Map<QName, Serializable> channelProperties = resolve(channelId, calls);
+		if (channelProperties == null) {
+			LOG.warn("MarkLogic publish outbox dropping " + calls.size() + " calls for missing channel " + channelId);
+			done.addAll(calls);
+			return;
+		}
+		final Map<NodeRef, Entry> publishes = new LinkedHashMap<NodeRef, Entry>();
+		final Map<NodeRef, Entry> unpublishes = new LinkedHashMap<NodeRef, Entry>();
+		for (final Entry entry : calls) {
+			(entry.publish ? publishes : unpublishes).put(entry.nodeRef, entry);
+		}
+		if (!publishes.isEmpty()) {
+			final Map<NodeRef, MarkLogicPublishResult> results = AuthenticationUtil.runAsSystem(
+					new RunAsWork<Map<NodeRef, MarkLogicPublishResult>>() {
+						public Map<NodeRef, MarkLogicPublishResult> doWork() {
+							return transactionService.getRetryingTransactionHelper().doInTransaction(
+									new RetryingTransactionCallback<Map<NodeRef, MarkLogicPublishResult>>() {
+										public Map<NodeRef, MarkLogicPublishResult> execute() {
+											// Calls are logged after their transaction commits, so a missing
+											// node was deleted since and has nothing left to publish
+											final List<NodeRef> existing = new ArrayList<NodeRef>(publishes.size());
+											for (final NodeRef nodeRef : publishes.keySet()) {
+												if (nodeService.exists(nodeRef)) {
+													existing.add(nodeRef);
+												}
+											}
+											return channelType.publishBatch(existing, channelProperties);
+										}
+									}, true, true);
+						}
+					});
+			for (final Entry entry : publishes.values()) {
+				final MarkLogicPublishResult result = results.get(entry.nodeRef);
+				if (result != null && result.isFailed()) {
+					LOG.warn("MarkLogic publish outbox failed to publish " + result);
+					failed.add(entry);
+				} else {
+					done.add(entry);
+				}
+			}
+		}
+		if (!unpublishes.isEmpty()) {
+			final MarkLogicBulkUnpublishResult result = channelType.unpublishBatch(unpublishes.keySet(),
+					channelProperties, null);
+			for (final Entry entry : unpublishes.values()) {
+				if (result.getFailures().containsKey(entry.nodeRef.toString())) {
+					LOG.warn("MarkLogic publish outbox failed to unpublish " + entry.nodeRef + ": "
+							+ result.getFailures().get(entry.nodeRef.toString()));
+					failed.add(entry);
+				} else {
+					done.add(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the channel properties of calls, looking the channel up for replayed calls.
+	 *
+	 * @param channelId the channel id
+	 * @param calls the calls
+	 * @return the channel properties, null if the channel no longer exists
+	 */
+	private Map<QName, Serializable> resolve(final String channelId, final Collection<Entry> calls) {
+		Map<QName, Serializable> channelProperties = null;
+		for (final Entry entry : calls) {
+			if (entry.channelProperties != null) {
+				channelProperties = entry.channelProperties;
+			}
+		}
+		if (channelProperties == null) {
+			channelProperties = AuthenticationUtil.runAsSystem(new RunAsWork<Map<QName, Serializable>>() {
+				public Map<QName, Serializable> doWork() {
+					return transactionService.getRetryingTransactionHelper().doInTransaction(
+							new RetryingTransactionCallback<Map<QName, Serializable>>() {
+								public Map<QName, Serializable> execute() {
+									final Channel channel = channelService.getChannelById(channelId);
+									return channel == null ? null : new HashMap<QName, Serializable>(channel.getProperties());
+								}
+							}, true);
+				}
+			});
+		}
+		if (channelProperties != null) {
+			for (final Entry entry : calls) {
+				entry.channelProperties = channelProperties;
+			}
+		}
+		return channelProperties;
+	}
+
+	/**
+	 * Replays the log into memory.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void load() throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(outboxFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] tokens = line.split(" ");
+				try {
+					if (tokens.length == 5 && tokens[0].charAt(0) == RECORD_ADDED) {
+						final long sequence = Long.parseLong(tokens[1]);
+						pending.put(Long.valueOf(sequence), new Entry(sequence, tokens[2].charAt(0) == OPERATION_PUBLISH,
+								tokens[3], new NodeRef(tokens[4]), null));
+						nextSequence = Math.max(nextSequence, sequence + 1);
+					} else if (tokens.length == 2 && tokens[0].charAt(0) == RECORD_DONE) {
+						pending.remove(Long.valueOf(Long.parseLong(tokens[1])));
+					}
+				} catch (RuntimeException corruptEx) {
+					// A torn last record after a crash, ignore it
+					LOG.warn("Ignoring corrupt MarkLogic outbox record: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Rewrites the log with only the pending calls and reopens it for appending.<br/>
+	 * The compacted copy is complete before it replaces the log, and the log is reopened whether or
+	 * not the replacement succeeded.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private synchronized void compact() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+		try {
+			final File compacted = new File(outboxFile.getParentFile(), OUTBOX_FILE_NAME + ".tmp");
+			final FileOutputStream compactedStream = new FileOutputStream(compacted);
+			final Writer writer = new BufferedWriter(new OutputStreamWriter(compactedStream, "UTF-8"));
+			try {
+				for (final Entry entry : pending.values()) {
+					writer.write(RECORD_ADDED + " " + entry.sequence + " "
+							+ (entry.publish ? OPERATION_PUBLISH : OPERATION_UNPUBLISH) + " " + entry.channelId + " "
+							+ entry.nodeRef + "\n");
+				}
+				writer.flush();
+				compactedStream.getFD().sync();
+			} finally {
+				writer.close();
+			}
+			// Renaming over the log is atomic where the platform allows it, otherwise
+			// afterPropertiesSet recovers the compacted copy if the log is gone
+			if (!compacted.renameTo(outboxFile) && !(outboxFile.delete() && compacted.renameTo(outboxFile))) {
+				throw new IOException("Unable to replace MarkLogic outbox file: " + outboxFile);
+			}
+			journalRecords = pending.size();
+		} finally {
+			journalStream = new FileOutputStream(outboxFile, true);
+			journal = new BufferedWriter(new OutputStreamWriter(journalStream, "UTF-8"));
+		}
+	}
+}
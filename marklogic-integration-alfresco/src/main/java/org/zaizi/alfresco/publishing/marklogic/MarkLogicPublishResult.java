@@ -0,0 +1,119 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Outcome of publishing or unpublishing a single node to MarkLogic as part of a multi-node operation.
+ */
+public class MarkLogicPublishResult {
+
+	/**
+	 * The publish status of a node.
+	 */
+	public enum Status {
+		/** The document was stored in MarkLogic. */
+		PUBLISHED,
+		/** The document was removed from MarkLogic. */
+		UNPUBLISHED,
+		/** Nothing was sent for the node. */
+		SKIPPED,
+		/** The document could not be stored. */
+		FAILED
+	}
+
+	/** The node ref. */
+	private final NodeRef nodeRef;
+
+	/** The status. */
+	private final Status status;
+
+	/** The http status code returned by MarkLogic, 0 if no request was made. */
+	private final int statusCode;
+
+	/** The message. */
+	private final String message;
+
+	/**
+	 * Instantiates a new mark logic publish result.
+	 *
+	 * @param nodeRef the node ref
+	 * @param status the status
+	 * @param statusCode the status code
+	 * @param message the message
+	 */
+	public MarkLogicPublishResult(final NodeRef nodeRef, final Status status,
+			final int statusCode, final String message) {
+		this.nodeRef = nodeRef;
+		this.status = status;
+		this.statusCode = statusCode;
+		this.message = message;
+	}
+
+	/**
+	 * Gets the node ref.
+	 *
+	 * @return the node ref
+	 */
+	public NodeRef getNodeRef() {
+		return nodeRef;
+	}
+
+	/**
+	 * Gets the status.
+	 *
+	 * @return the status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Gets the status code.
+	 *
+	 * @return the status code
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Gets the message.
+	 *
+	 * @return the message
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Checks if the node failed.
+	 *
+	 * @return true, if failed
+	 */
+	public boolean isFailed() {
+		return status == Status.FAILED;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return nodeRef + " " + status + " (" + statusCode + ")" + (message == null ? "" : " - " + message);
+	}
+}
@@ -0,0 +1,420 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Local index of the content last published to MarkLogic, per channel and node.<br/>
+ * Every entry holds a 64 bit fingerprint of the published content (content url, size, mimetype
+ * and encoding; content urls change whenever the content changes), so an unchanged document can
+ * be detected without reading it, and a fingerprint of the metadata document last sent, so a
+ * change of properties only can be published without the content. The index is kept in memory and journalled to an append-only
+ * file which is replayed on startup and compacted when it grows well beyond the live entries. The
+ * <code>indexDirectory</code> is required and should outlive the temp dir.
+ */
+public class MarkLogicPublishedContentIndex implements InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicPublishedContentIndex.class);
+
+	/** The Constant INDEX_FILE_NAME. */
+	private final static String INDEX_FILE_NAME = "published-content.idx";
+
+	/** The Constant RECORD_PUBLISHED. */
+	private final static char RECORD_PUBLISHED = 'P';
+
+	/** The Constant RECORD_METADATA. */
+	private final static char RECORD_METADATA = 'M';
+
+	/** The Constant RECORD_REMOVED. */
+	private final static char RECORD_REMOVED = 'R';
+
+	/** The Constant FNV_OFFSET_BASIS. */
+	private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	/** The Constant FNV_PRIME. */
+	private final static long FNV_PRIME = 0x100000001b3L;
+
+	/** The index directory, required. */
+	private String indexDirectory;
+
+	/** The journal to live entry ratio above which the journal is compacted. */
+	private int compactionRatio = 3;
+
+	/** The entries. */
+	private final Map<String, Long> entries = new ConcurrentHashMap<String, Long>();
+
+	/** The metadata fingerprints, only for nodes whose metadata was published. */
+	private final Map<String, Long> metadataEntries = new ConcurrentHashMap<String, Long>();
+
+	/** The skipped publish count. */
+	private final AtomicLong skipCount = new AtomicLong();
+
+	/** The journal record count. */
+	private long journalRecords;
+
+	/** The index file. */
+	private File indexFile;
+
+	/** The journal. */
+	private Writer journal;
+
+	/**
+	 * Sets the index directory.
+	 *
+	 * @param indexDirectory the new index directory
+	 */
+	public void setIndexDirectory(final String indexDirectory) {
+		this.indexDirectory = indexDirectory;
+	}
+
+	/**
+	 * Sets the compaction ratio.
+	 *
+	 * @param compactionRatio the new compaction ratio
+	 */
+	public void setCompactionRatio(final int compactionRatio) {
+		this.compactionRatio = compactionRatio;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() throws IOException {
+		if (indexDirectory == null || indexDirectory.length() == 0) {
+			throw new AlfrescoRuntimeException("MarkLogic published content index has no index directory");
+		}
+		final File directory = new File(indexDirectory);
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new AlfrescoRuntimeException("Unable to create MarkLogic index directory: " + directory);
+		}
+		indexFile = new File(directory, INDEX_FILE_NAME);
+		final File compacted = new File(directory, INDEX_FILE_NAME + ".tmp");
+		if (!indexFile.exists() && compacted.exists() && !compacted.renameTo(indexFile)) {
+			// A crash between removing the journal and renaming its complete compacted copy
+			throw new AlfrescoRuntimeException("Unable to recover MarkLogic index file from: " + compacted);
+		}
+		if (indexFile.exists()) {
+			load();
+		}
+		compact();
+		if (LOG.isInfoEnabled()) {
+			LOG.info("MarkLogic published content index loaded " + entries.size() + " entries from " + indexFile);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public synchronized void destroy() throws IOException {
+		if (journal != null) {
+			try {
+				compact();
+			} finally {
+				journal.close();
+				journal = null;
+			}
+		}
+	}
+
+	/**
+	 * Computes the fingerprint of the content held by a reader.
+	 *
+	 * @param reader the reader
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(final ContentReader reader) {
+		return fingerprint(reader.getContentUrl() + '|' + reader.getSize() + '|' + reader.getMimetype() + '|'
+				+ reader.getEncoding());
+	}
+
+	/**
+	 * Computes a 64 bit FNV-1a hash of a string.
+	 *
+	 * @param value the value
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(final String value) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Checks whether the given content is what was last published for the node on the channel.<br/>
+	 * A positive answer is counted as a skipped publish.
+	 *
+	 * @param channelKey the channel key
+	 * @param nodeRef the node ref
+	 * @param fingerprint the fingerprint
+	 * @return true, if unchanged
+	 */
+	public boolean isUnchanged(final String channelKey, final NodeRef nodeRef, final long fingerprint) {
+		final Long published = entries.get(key(channelKey, nodeRef));
+		if (published != null && published.longValue() == fingerprint) {
+			skipCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether both the content and the metadata are what was last published for the node on
+	 * the channel.<br/>
+	 * A positive answer is counted as a skipped publish.
+	 *
+	 * @param channelKey the channel key
+	 * @param nodeRef the node ref
+	 * @param fingerprint the content fingerprint
+	 * @param metadataFingerprint the metadata fingerprint
+	 * @return true, if unchanged
+	 */
+	public boolean isUnchanged(final String channelKey, final NodeRef nodeRef, final long fingerprint,
+			final long metadataFingerprint) {
+		final String key = key(channelKey, nodeRef);
+		final Long published = entries.get(key);
+		final Long publishedMetadata = metadataEntries.get(key);
+		if (published != null && published.longValue() == fingerprint
+				&& publishedMetadata != null && publishedMetadata.longValue() == metadataFingerprint) {
+			skipCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the given content is what was last published for the node on the channel,
+	 * without counting a skipped publish.
+	 *
+	 * @param channelKey the channel key
+	 * @param nodeRef the node ref
+	 * @param fingerprint the content fingerprint
+	 * @return true, if the content is unchanged
+	 */
+	public boolean isContentUnchanged(final String channelKey, final NodeRef nodeRef, final long fingerprint) {
+		final Long published = entries.get(key(channelKey, nodeRef));
+		return published != null && published.longValue() == fingerprint;
+	}
+
+	/**
+	 * Checks whether the node is known to be published on the channel.
+	 *
+	 * @param channelKey the channel key
+	 * @param nodeRef the node ref
+	 * @return true, if published
+	 */
+	public boolean isPublished(final String channelKey, final NodeRef nodeRef) {
+		return entries.containsKey(key(channelKey, nodeRef));
+	}
+
+	/**
+	 * Records the content published for the node on the channel, the metadata is unknown until
+	 * {@link #recordMetadataPublished(String, NodeRef, long)}.
+	 *
+	 * @param channelKey the channel key
+	 * @param nodeRef the node ref
+	 * @param fingerprint the fingerprint
+	 */
+	public void recordPublished(final String channelKey, final NodeRef nodeRef, final long fingerprint) {
+		final String key = key(channelKey, nodeRef);
+		entries.put(key, Long.valueOf(fingerprint));
+		metadataEntries.remove(key);
+		append(RECORD_PUBLISHED + " " + key + " " + Long.toHexString(fingerprint));
+	}
+
+	/**
+	 * Records the metadata published for a node whose content was already published.
+	 *
+	 * @param channelKey the channel key
+	 * @param nodeRef the node ref
+	 * @param metadataFingerprint the metadata fingerprint
+	 */
+	public void recordMetadataPublished(final String channelKey, final NodeRef nodeRef, final long metadataFingerprint) {
+		final String key = key(channelKey, nodeRef);
+		metadataEntries.put(key, Long.valueOf(metadataFingerprint));
+		append(RECORD_METADATA + " " + key + " " + Long.toHexString(metadataFingerprint));
+	}
+
+	/**
+	 * Records that the node was removed from the channel.
+	 *
+	 * @param channelKey the channel key
+	 * @param nodeRef the node ref
+	 */
+	public void recordUnpublished(final String channelKey, final NodeRef nodeRef) {
+		final String key = key(channelKey, nodeRef);
+		metadataEntries.remove(key);
+		if (entries.remove(key) != null) {
+			append(RECORD_REMOVED + " " + key);
+		}
+	}
+
+	/**
+	 * Gets the number of publishes skipped because the content was unchanged.
+	 *
+	 * @return the skip count
+	 */
+	public long getSkipCount() {
+		return skipCount.get();
+	}
+
+	/**
+	 * Gets the number of indexed nodes.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Builds the index key.
+	 *
+	 * @param channelKey the channel key
+	 * @param nodeRef the node ref
+	 * @return the key
+	 */
+	private static String key(final String channelKey, final NodeRef nodeRef) {
+		return channelKey + '|' + nodeRef;
+	}
+
+	/**
+	 * Appends a record to the journal, compacting it when it has grown too large.<br/>
+	 * Does nothing once the index is destroyed, the record is then only kept in memory.
+	 *
+	 * @param record the record
+	 */
+	private synchronized void append(final String record) {
+		if (journal == null) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("MarkLogic published content index closed, not journalling: " + record);
+			}
+			return;
+		}
+		try {
+			journal.write(record);
+			journal.write('\n');
+			journal.flush();
+			journalRecords++;
+			if (journalRecords > (long) compactionRatio * Math.max(entries.size(), 1000)) {
+				compact();
+			}
+		} catch (IOException ioex) {
+			LOG.error("Unable to write MarkLogic published content index: " + ioex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Replays the journal into memory.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void load() throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] tokens = line.split(" ");
+				if (tokens.length == 0 || tokens[0].length() != 1) {
+					// A blank line or a torn record after a crash, ignore it
+					if (line.trim().length() > 0) {
+						LOG.warn("Ignoring corrupt MarkLogic index record: " + line);
+					}
+					continue;
+				}
+				try {
+					if (tokens.length == 3 && tokens[0].charAt(0) == RECORD_PUBLISHED) {
+						entries.put(tokens[1], Long.valueOf(new BigInteger(tokens[2], 16).longValue()));
+						metadataEntries.remove(tokens[1]);
+					} else if (tokens.length == 3 && tokens[0].charAt(0) == RECORD_METADATA) {
+						metadataEntries.put(tokens[1], Long.valueOf(new BigInteger(tokens[2], 16).longValue()));
+					} else if (tokens.length == 2 && tokens[0].charAt(0) == RECORD_REMOVED) {
+						entries.remove(tokens[1]);
+						metadataEntries.remove(tokens[1]);
+					}
+				} catch (NumberFormatException numEx) {
+					// A torn last record after a crash, ignore it
+					LOG.warn("Ignoring corrupt MarkLogic index record: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Rewrites the journal with only the live entries and reopens it for appending.<br/>
+	 * The compacted copy is complete before it replaces the journal, and the journal is reopened
+	 * whether or not the replacement succeeded.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private synchronized void compact() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+		try {
+			final File compacted = new File(indexFile.getParentFile(), INDEX_FILE_NAME + ".tmp");
+			final FileOutputStream out = new FileOutputStream(compacted);
+			final Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			try {
+				for (final Map.Entry<String, Long> entry : entries.entrySet()) {
+					writer.write(RECORD_PUBLISHED + " " + entry.getKey() + " " + Long.toHexString(entry.getValue().longValue()) + "\n");
+					final Long metadataFingerprint = metadataEntries.get(entry.getKey());
+					if (metadataFingerprint != null) {
+						writer.write(RECORD_METADATA + " " + entry.getKey() + " " + Long.toHexString(metadataFingerprint.longValue()) + "\n");
+					}
+				}
+				writer.flush();
+				out.getFD().sync();
+			} finally {
+				writer.close();
+			}
+			// Renaming over the journal is atomic where the platform allows it, otherwise
+			// afterPropertiesSet recovers the compacted copy if the journal is gone
+			if (!compacted.renameTo(indexFile) && !(indexFile.delete() && compacted.renameTo(indexFile))) {
+				throw new IOException("Unable to replace MarkLogic index file: " + indexFile);
+			}
+			journalRecords = entries.size() + metadataEntries.size();
+		} finally {
+			journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8"));
+		}
+	}
+}
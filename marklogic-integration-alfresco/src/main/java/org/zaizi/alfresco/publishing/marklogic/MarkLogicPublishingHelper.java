@@ -18,20 +18,30 @@ package org.zaizi.alfresco.publishing.marklogic;
 import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.alfresco.model.ContentModel;
 import org.alfresco.repo.node.encryption.MetadataEncryptor;
 import org.alfresco.repo.publishing.PublishingModel;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.namespace.QName;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.AuthCache;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.client.utils.URIUtils;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
@@ -54,6 +64,18 @@ public class MarkLogicPublishingHelper {
     
     /** The Constant log. */
     private final static Log LOG = LogFactory.getLog(MarkLogicPublishingHelper.class);
+
+    /** The cached authentication state, keyed by channel. */
+    private final Map<String, ChannelAuthentication> channelAuthentications = new ConcurrentHashMap<String, ChannelAuthentication>();
+
+    /** The parsed <code>marklogic:hosts</code> lists, keyed by list and default port. */
+    private final Map<String, List<HttpHost>> hostLists = new ConcurrentHashMap<String, List<HttpHost>>();
+
+    /** Whether basic authentication is sent without waiting for a challenge. */
+    private boolean preemptiveBasicAuth;
+
+    /** The sampler of the per-request debug logging. */
+    private final MarkLogicLogSampler logSampler = new MarkLogicLogSampler(100);
 	
     /**
      * Sets the encryptor.
@@ -65,29 +87,188 @@ public class MarkLogicPublishingHelper {
 	}
 
     /**
-     * Build a httpContext from channel properties.
+     * Sets whether basic authentication is sent preemptively, without waiting for a challenge.<br/>
+     * Digest authentication is always re-used once a thread has answered its first challenge.
+     *
+     * @param preemptiveBasicAuth the new preemptive basic auth
+     */
+	public void setPreemptiveBasicAuth(final boolean preemptiveBasicAuth) {
+		this.preemptiveBasicAuth = preemptiveBasicAuth;
+	}
+
+    /**
+     * Sets how many uris are built per sampled debug log line.
+     *
+     * @param logSampleRate the new log sample rate, 1 logs every uri
+     */
+	public void setLogSampleRate(final int logSampleRate) {
+		logSampler.setRate(logSampleRate);
+	}
+
+    /**
+     * Build a httpContext from channel properties.<br/>
+     * The decrypted credentials are cached per channel and shared by all requests to it. The
+     * authentication schemes are cached per channel and thread, since a digest scheme keeps a nonce
+     * count and must not be used by concurrent requests; a steady publish stream answers the
+     * challenge once per thread instead of once per document. The cache entry is kept while the
+     * channel node is unmodified; once it was modified, the entry is only rebuilt when the decrypted
+     * credentials or the hosts changed. The context must be used by the calling thread.
      *
      * @param channelProperties the channel properties
      * @return the http context from channel properties
      */
 	public HttpContext getHttpContextFromChannelProperties(
 			final Map<QName, Serializable> channelProperties) {
-		
-		String markLogicUsername = (String) encryptor.decrypt(
-				PublishingModel.PROP_CHANNEL_USERNAME,
-				channelProperties.get(PublishingModel.PROP_CHANNEL_USERNAME));
-		String markLogicPassword = (String) encryptor.decrypt(
-				PublishingModel.PROP_CHANNEL_PASSWORD,
-				channelProperties.get(PublishingModel.PROP_CHANNEL_PASSWORD));
+		final String channelKey = getChannelKey(channelProperties);
+		ChannelAuthentication channelAuth = channelAuthentications.get(channelKey);
+		if (channelAuth == null || !channelAuth.isUnmodified(channelProperties)) {
+			// The encrypted credentials have no value equality, compare them decrypted
+			final String username = decrypt(PublishingModel.PROP_CHANNEL_USERNAME, channelProperties);
+			final String password = decrypt(PublishingModel.PROP_CHANNEL_PASSWORD, channelProperties);
+			channelAuth = channelAuth != null && channelAuth.isCurrent(channelProperties, username, password)
+					? channelAuth.withModified(channelProperties)
+					: createChannelAuthentication(channelProperties, username, password);
+			channelAuthentications.put(channelKey, channelAuth);
+		}
+
+		final HttpContext context = new BasicHttpContext();
+		context.setAttribute(ClientContext.CREDS_PROVIDER, channelAuth.credentialsProvider);
+		context.setAttribute(ClientContext.AUTH_CACHE, channelAuth.authCaches.get());
+		return context;
+	}
+
+    /**
+     * Drops all cached channel credentials and authentication state.
+     */
+	public void clearAuthenticationCache() {
+		channelAuthentications.clear();
+	}
 
+    /**
+     * Decrypts a channel credential.
+     *
+     * @param propertyQName the property
+     * @param channelProperties the channel properties
+     * @return the decrypted value
+     */
+	private String decrypt(final QName propertyQName, final Map<QName, Serializable> channelProperties) {
+		return (String) encryptor.decrypt(propertyQName, channelProperties.get(propertyQName));
+	}
+
+    /**
+     * Creates the shared authentication state of a channel.
+     *
+     * @param channelProperties the channel properties
+     * @param markLogicUsername the decrypted username
+     * @param markLogicPassword the decrypted password
+     * @return the channel authentication
+     */
+	private ChannelAuthentication createChannelAuthentication(final Map<QName, Serializable> channelProperties,
+			final String markLogicUsername, final String markLogicPassword) {
 		UsernamePasswordCredentials creds = new UsernamePasswordCredentials(
 				markLogicUsername, markLogicPassword);
-		HttpContext context = new BasicHttpContext();
 		CredentialsProvider credsProvider = new BasicCredentialsProvider();
 		credsProvider.setCredentials(AuthScope.ANY, creds);
-		context.setAttribute(ClientContext.CREDS_PROVIDER, credsProvider);
 
-		return context;
+		final List<HttpHost> preemptiveHosts = preemptiveBasicAuth ? getHosts(channelProperties) : null;
+		final ThreadLocal<AuthCache> authCaches = new ThreadLocal<AuthCache>() {
+			@Override
+			protected AuthCache initialValue() {
+				final AuthCache authCache = new BasicAuthCache();
+				if (preemptiveHosts != null) {
+					for (final HttpHost host : preemptiveHosts) {
+						authCache.put(host, new BasicScheme());
+					}
+				}
+				return authCache;
+			}
+		};
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Cached credentials for MarkLogic channel: " + getChannelKey(channelProperties));
+		}
+		return new ChannelAuthentication(channelProperties, markLogicUsername, markLogicPassword, credsProvider,
+				authCaches);
+	}
+
+    /**
+     * Gets a key identifying the channel, the channel node id when known, otherwise host:port.
+     *
+     * @param channelProperties the channel properties
+     * @return the channel key
+     */
+	public String getChannelKey(final Map<QName, Serializable> channelProperties) {
+		final Serializable channelNodeId = channelProperties.get(ContentModel.PROP_NODE_UUID);
+		if (channelNodeId != null) {
+			return channelNodeId.toString();
+		}
+		return channelProperties.get(MarkLogicPublishingModel.PROP_HOST) + ":"
+				+ channelProperties.get(MarkLogicPublishingModel.PROP_PORT);
+	}
+
+    /**
+     * Gets the MarkLogic hosts of the channel.<br/>
+     * These are the entries of <code>marklogic:hosts</code> (host[:port], comma separated, the port
+     * defaults to <code>marklogic:port</code>) or, when that is not set, the single
+     * <code>marklogic:host</code>. Each list is parsed once; entries without a valid port are
+     * skipped with a warning.
+     *
+     * @param channelProperties the channel properties
+     * @return the hosts, the first one is the primary host
+     */
+	public List<HttpHost> getHosts(final Map<QName, Serializable> channelProperties) {
+		final Integer defaultPort = (Integer) channelProperties.get(MarkLogicPublishingModel.PROP_PORT);
+		final int port = defaultPort == null ? -1 : defaultPort.intValue();
+		final String hostList = (String) channelProperties.get(MarkLogicPublishingModel.PROP_HOSTS);
+		if (hostList != null) {
+			final String key = hostList + '|' + port;
+			List<HttpHost> hosts = hostLists.get(key);
+			if (hosts == null) {
+				hosts = parseHosts(hostList, port);
+				hostLists.put(key, hosts);
+			}
+			if (!hosts.isEmpty()) {
+				return hosts;
+			}
+		}
+		final List<HttpHost> hosts = new ArrayList<HttpHost>(1);
+		hosts.add(new HttpHost((String) channelProperties.get(MarkLogicPublishingModel.PROP_HOST), port,
+				MarkLogicPublishingModel.PROTOCOL));
+		return hosts;
+	}
+
+    /**
+     * Parses a <code>marklogic:hosts</code> list, skipping invalid entries.
+     *
+     * @param hostList the host list
+     * @param defaultPort the default port
+     * @return the valid hosts, empty if there is none
+     */
+	private static List<HttpHost> parseHosts(final String hostList, final int defaultPort) {
+		final List<HttpHost> hosts = new ArrayList<HttpHost>();
+		final StringTokenizer tokens = new StringTokenizer(hostList, ", ");
+		while (tokens.hasMoreTokens()) {
+			final String token = tokens.nextToken();
+			final int separator = token.lastIndexOf(':');
+			if (separator < 0) {
+				hosts.add(new HttpHost(token, defaultPort, MarkLogicPublishingModel.PROTOCOL));
+				continue;
+			}
+			int port = -1;
+			try {
+				port = Integer.parseInt(token.substring(separator + 1));
+			} catch (NumberFormatException numEx) {
+				// reported below
+			}
+			if (separator == 0 || port < 1 || port > 65535) {
+				LOG.warn("Skipping invalid MarkLogic host '" + token + "' in host list: " + hostList);
+				continue;
+			}
+			hosts.add(new HttpHost(token.substring(0, separator), port, MarkLogicPublishingModel.PROTOCOL));
+		}
+		if (hosts.isEmpty()) {
+			LOG.warn("No valid MarkLogic host in host list, using marklogic:host instead: " + hostList);
+		}
+		return Collections.unmodifiableList(hosts);
 	}
 
     /**
@@ -102,7 +283,34 @@ public class MarkLogicPublishingHelper {
 			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
 		return getUri(nodeToPublish, channelProperties,MarkLogicPublishingModel.PUBLISH_URI_KEY);
 	}
+
+    /**
+     * Build URI for a nodeRef on the given publish endpoint, as chosen by the routing policy.
+     *
+     * @param nodeToPublish the node to publish
+     * @param channelProperties the channel properties
+     * @param endpoint the endpoint, e.g. alfrescopub/publish
+     * @return the put uri
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getPutURIFromNodeRefAndChannelProperties(final NodeRef nodeToPublish,
+			final Map<QName, Serializable> channelProperties, final String endpoint) throws URISyntaxException {
+		return getUri(nodeToPublish, channelProperties, endpoint);
+	}
     
+    /**
+     * Gets the uri of the metadata endpoint receiving the properties document of a node.
+     *
+     * @param nodeToPublish the node to publish
+     * @param channelProperties the channel properties
+     * @return the metadata uri
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getMetadataURIFromNodeRefAndChannelProperties(final NodeRef nodeToPublish,
+			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
+		return getUri(nodeToPublish, channelProperties, MarkLogicPublishingModel.METADATA_URI_KEY);
+	}
+
     /**
      * Gets the delete uri from node ref and channel properties.
      *
@@ -116,6 +324,136 @@ public class MarkLogicPublishingHelper {
 		return getUri(nodeToPublish, channelProperties,MarkLogicPublishingModel.UNPUBLISH_URI_KEY);
 	}
 
+    /**
+     * Gets the uri of the bulk unpublish endpoint, the uris to remove are sent in the request body.
+     *
+     * @param channelProperties the channel properties
+     * @return the bulk delete uri
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getBulkDeleteURIFromChannelProperties(
+			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
+		return getUri(channelProperties, MarkLogicPublishingModel.UNPUBLISH_BATCH_URI_KEY, null);
+	}
+
+    /**
+     * Gets the uri of the bulk unpublish endpoint removing every document whose uri starts with the prefix.
+     *
+     * @param uriPrefix the uri prefix
+     * @param channelProperties the channel properties
+     * @return the bulk delete uri
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getBulkDeleteURIFromPrefixAndChannelProperties(final String uriPrefix,
+			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
+		return getUri(channelProperties, MarkLogicPublishingModel.UNPUBLISH_BATCH_URI_KEY,
+				MarkLogicPublishingModel.URI_PREFIX + uriPrefix);
+	}
+
+    /**
+     * Gets the uri of the bulk unpublish endpoint removing every document of a MarkLogic collection.
+     *
+     * @param collection the collection
+     * @param channelProperties the channel properties
+     * @return the bulk delete uri
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getBulkDeleteURIFromCollectionAndChannelProperties(final String collection,
+			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
+		return getUri(channelProperties, MarkLogicPublishingModel.UNPUBLISH_BATCH_URI_KEY,
+				MarkLogicPublishingModel.COLLECTION + collection);
+	}
+
+    /**
+     * Gets the uri starting a chunked upload of a node's content, the upload id being chosen by the client.
+     *
+     * @param nodeToPublish the node to publish
+     * @param uploadId the upload id
+     * @param channelProperties the channel properties
+     * @return the upload uri
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getUploadURIFromNodeRefAndChannelProperties(final NodeRef nodeToPublish, final String uploadId,
+			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
+		return getUri(channelProperties, MarkLogicPublishingModel.UPLOAD_URI_KEY, MarkLogicPublishingModel.URI
+				+ nodeToPublish.toString() + '&' + MarkLogicPublishingModel.UPLOAD_ID + uploadId);
+	}
+
+    /**
+     * Gets the uri listing the acknowledged parts of a chunked upload.
+     *
+     * @param uploadId the upload id
+     * @param channelProperties the channel properties
+     * @return the upload status uri
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getUploadStatusURIFromChannelProperties(final String uploadId,
+			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
+		return getUri(channelProperties, MarkLogicPublishingModel.UPLOAD_URI_KEY, MarkLogicPublishingModel.UPLOAD_ID
+				+ uploadId);
+	}
+
+    /**
+     * Gets the uri listing a page of the documents whose uri starts with the prefix, in uri order.
+     *
+     * @param uriPrefix the uri prefix
+     * @param after the last uri of the previous page, null for the first page
+     * @param limit the page size
+     * @param channelProperties the channel properties
+     * @return the listing uri
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getListURIFromChannelProperties(final String uriPrefix, final String after, final int limit,
+			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
+		final StringBuilder query = new StringBuilder(MarkLogicPublishingModel.URI_PREFIX).append(uriPrefix)
+				.append('&').append(MarkLogicPublishingModel.LIST_LIMIT).append(limit);
+		if (after != null) {
+			query.append('&').append(MarkLogicPublishingModel.LIST_AFTER).append(after);
+		}
+		return getUri(channelProperties, MarkLogicPublishingModel.LIST_URI_KEY, query.toString());
+	}
+
+    /**
+     * Gets the uri receiving one part of a chunked upload.
+     *
+     * @param uploadId the upload id
+     * @param part the part number, starting at 0
+     * @param channelProperties the channel properties
+     * @return the upload part uri
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getUploadPartURIFromChannelProperties(final String uploadId, final int part,
+			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
+		return getUri(channelProperties, MarkLogicPublishingModel.UPLOAD_PART_URI_KEY, MarkLogicPublishingModel.UPLOAD_ID
+				+ uploadId + '&' + MarkLogicPublishingModel.UPLOAD_PART + part);
+	}
+
+    /**
+     * Gets the uri assembling the parts of a chunked upload into the document.
+     *
+     * @param uploadId the upload id
+     * @param channelProperties the channel properties
+     * @return the upload commit uri
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getUploadCommitURIFromChannelProperties(final String uploadId,
+			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
+		return getUri(channelProperties, MarkLogicPublishingModel.UPLOAD_COMMIT_URI_KEY, MarkLogicPublishingModel.UPLOAD_ID
+				+ uploadId);
+	}
+
+    /**
+     * Gets the uri of the multi-document publish endpoint.
+     *
+     * @param channelProperties the channel properties
+     * @return the publish batch uri from channel properties
+     * @throws URISyntaxException the uRI syntax exception
+     */
+	public URI getPublishBatchURIFromChannelProperties(
+			final Map<QName, Serializable> channelProperties) throws URISyntaxException {
+		return getUri(channelProperties, MarkLogicPublishingModel.PUBLISH_BATCH_URI_KEY, null);
+	}
+
 	/**
 	 * Gets the uri.
 	 *
@@ -128,11 +466,27 @@ public class MarkLogicPublishingHelper {
 	private URI getUri(final NodeRef nodeToPublish,
 			final Map<QName, Serializable> channelProperties,
 			String taskToPerform) throws URISyntaxException {
+		return getUri(channelProperties, taskToPerform, MarkLogicPublishingModel.URI + nodeToPublish.toString());
+	}
+
+	/**
+	 * Gets the uri.
+	 *
+	 * @param channelProperties the channel properties
+	 * @param taskToPerform the task to perform
+	 * @param query the query, may be null
+	 * @return the uri
+	 * @throws URISyntaxException the uRI syntax exception
+	 */
+	private URI getUri(final Map<QName, Serializable> channelProperties,
+			final String taskToPerform, final String query) throws URISyntaxException {
+		final HttpHost primaryHost = getHosts(channelProperties).get(0);
 		URI uri = URIUtils.createURI(MarkLogicPublishingModel.PROTOCOL,
-				(String) channelProperties.get(MarkLogicPublishingModel.PROP_HOST),
-				(Integer) channelProperties.get(MarkLogicPublishingModel.PROP_PORT),
-				taskToPerform,MarkLogicPublishingModel.URI + nodeToPublish.toString(), null);
-		LOG.info("URI For MarkLogic Publishing channel:>>>> "+uri.toString());
+				primaryHost.getHostName(), primaryHost.getPort(),
+				taskToPerform, query, null);
+		if (LOG.isDebugEnabled() && logSampler.sample()) {
+			LOG.debug("URI For MarkLogic Publishing channel:>>>> "+uri.toString());
+		}
 		return uri;
 	}
 	
@@ -147,4 +501,105 @@ public class MarkLogicPublishingHelper {
 	public static Set<String> getMimeTypesToBeSupported() {
 		return MimeTypesProvider.getInstance().getMimeTypes();
 	} 
+
+	/**
+	 * Credentials shared by all requests to a channel, and the authentication state of each thread.
+	 */
+	private static final class ChannelAuthentication {
+
+		/** The modification date of the channel node the entry was checked against, null if unknown. */
+		private final Serializable modified;
+
+		/** The decrypted username the credentials were built from. */
+		private final String username;
+
+		/** The decrypted password. */
+		private final String password;
+
+		/** The host. */
+		private final Serializable host;
+
+		/** The port. */
+		private final Serializable port;
+
+		/** The cluster hosts. */
+		private final Serializable hosts;
+
+		/** The credentials provider. */
+		private final CredentialsProvider credentialsProvider;
+
+		/** The auth cache of each thread, holding the schemes that answered its challenges. */
+		private final ThreadLocal<AuthCache> authCaches;
+
+		/**
+		 * Instantiates a new channel authentication.
+		 *
+		 * @param channelProperties the channel properties
+		 * @param username the decrypted username
+		 * @param password the decrypted password
+		 * @param credentialsProvider the credentials provider
+		 * @param authCaches the auth cache of each thread
+		 */
+		private ChannelAuthentication(final Map<QName, Serializable> channelProperties, final String username,
+				final String password, final CredentialsProvider credentialsProvider,
+				final ThreadLocal<AuthCache> authCaches) {
+			this.modified = channelProperties.get(ContentModel.PROP_MODIFIED);
+			this.username = username;
+			this.password = password;
+			this.host = channelProperties.get(MarkLogicPublishingModel.PROP_HOST);
+			this.port = channelProperties.get(MarkLogicPublishingModel.PROP_PORT);
+			this.hosts = channelProperties.get(MarkLogicPublishingModel.PROP_HOSTS);
+			this.credentialsProvider = credentialsProvider;
+			this.authCaches = authCaches;
+		}
+
+		/**
+		 * Checks whether the channel node was not modified since the entry was checked, without
+		 * decrypting anything.
+		 *
+		 * @param channelProperties the channel properties
+		 * @return true, if unmodified
+		 */
+		private boolean isUnmodified(final Map<QName, Serializable> channelProperties) {
+			return modified != null && modified.equals(channelProperties.get(ContentModel.PROP_MODIFIED));
+		}
+
+		/**
+		 * Checks whether the channel still has the credentials and hosts this entry was built from.
+		 *
+		 * @param channelProperties the channel properties
+		 * @param currentUsername the decrypted username of the channel
+		 * @param currentPassword the decrypted password of the channel
+		 * @return true, if current
+		 */
+		private boolean isCurrent(final Map<QName, Serializable> channelProperties, final String currentUsername,
+				final String currentPassword) {
+			return equal(username, currentUsername) && equal(password, currentPassword)
+					&& equal(host, channelProperties.get(MarkLogicPublishingModel.PROP_HOST))
+					&& equal(port, channelProperties.get(MarkLogicPublishingModel.PROP_PORT))
+					&& equal(hosts, channelProperties.get(MarkLogicPublishingModel.PROP_HOSTS));
+		}
+
+		/**
+		 * Gets a copy of the entry, sharing its credentials and authentication state, checked against
+		 * the current modification date of the channel node.
+		 *
+		 * @param channelProperties the channel properties
+		 * @return the channel authentication
+		 */
+		private ChannelAuthentication withModified(final Map<QName, Serializable> channelProperties) {
+			return new ChannelAuthentication(channelProperties, username, password, credentialsProvider, authCaches);
+		}
+
+		/**
+		 * Null safe equals.
+		 *
+		 * @param cached the cached value
+		 * @param current the current value
+		 * @return true, if equal
+		 */
+		private static boolean equal(final Serializable cached, final Serializable current) {
+			return cached == null ? current == null : cached.equals(current);
+		}
+	}
 }
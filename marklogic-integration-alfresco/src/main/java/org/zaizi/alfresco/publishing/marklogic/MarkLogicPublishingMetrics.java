@@ -0,0 +1,440 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Collects the MarkLogic publishing metrics and publishes them as MBeans on the platform MBean server.<br/>
+ * The totals are registered as <code>org.zaizi.alfresco.publishing.marklogic:type=PublishingMetrics</code>,
+ * every channel and host pair as
+ * <code>org.zaizi.alfresco.publishing.marklogic:type=EndpointMetrics,channel=...,host=...</code>
+ * on its first request. Recording is lock free, so it can stay enabled in production.
+ */
+public class MarkLogicPublishingMetrics implements MarkLogicPublishingMetricsMBean, InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicPublishingMetrics.class);
+
+	/** The Constant JMX_DOMAIN. */
+	private final static String JMX_DOMAIN = "org.zaizi.alfresco.publishing.marklogic";
+
+	/** The Constant NO_HOST, the host of requests rejected before a host was chosen. */
+	public final static String NO_HOST = "none";
+
+	/** Whether the metrics are registered with the platform MBean server. */
+	private boolean registerMBeans = true;
+
+	/** The compression policy. May be null. */
+	private MarkLogicCompressionPolicy compressionPolicy;
+
+	/** The published content index. May be null. */
+	private MarkLogicPublishedContentIndex publishedContentIndex;
+
+	/** The publish outbox. May be null. */
+	private MarkLogicPublishOutbox publishOutbox;
+
+	/** The publish executor. May be null. */
+	private MarkLogicPublishExecutor publishExecutor;
+
+	/** The endpoint metrics, keyed by channel and host. */
+	private final Map<String, MarkLogicEndpointMetrics> endpoints = new ConcurrentHashMap<String, MarkLogicEndpointMetrics>();
+
+	/** The temp file copy count and time. */
+	private final LatencyHistogram tempFileCopies = new LatencyHistogram();
+
+	/** The temp file copy millis. */
+	private final AtomicLong tempFileCopyMillis = new AtomicLong();
+
+	/** The metadata only publish count. */
+	private final AtomicLong metadataOnlyPublishes = new AtomicLong();
+
+	/** The chunked upload count. */
+	private final AtomicLong chunkedUploads = new AtomicLong();
+
+	/** The chunked upload parts sent. */
+	private final AtomicLong chunkedUploadPartsSent = new AtomicLong();
+
+	/** The chunked upload parts found acknowledged by MarkLogic and not sent again. */
+	private final AtomicLong chunkedUploadPartsResumed = new AtomicLong();
+
+	/** The publish and unpublish requests absorbed by the coalescer. */
+	private final AtomicLong coalescedRequests = new AtomicLong();
+
+	/** The publish and unpublish requests cancelling each other out. */
+	private final AtomicLong cancelledRequests = new AtomicLong();
+
+	/** The fan out publishes. */
+	private final AtomicLong fanOutPublishes = new AtomicLong();
+
+	/** The content store reads saved by fan out publishes. */
+	private final AtomicLong contentReadsSaved = new AtomicLong();
+
+	/** The MBean server, null when not registered. */
+	private MBeanServer mbeanServer;
+
+	/**
+	 * Sets whether the metrics are registered with the platform MBean server.
+	 *
+	 * @param registerMBeans the new register MBeans
+	 */
+	public void setRegisterMBeans(final boolean registerMBeans) {
+		this.registerMBeans = registerMBeans;
+	}
+
+	/**
+	 * Sets the compression policy, whose counters are exposed.
+	 *
+	 * @param compressionPolicy the new compression policy
+	 */
+	public void setCompressionPolicy(final MarkLogicCompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+	}
+
+	/**
+	 * Sets the published content index, whose counters are exposed.
+	 *
+	 * @param publishedContentIndex the new published content index
+	 */
+	public void setPublishedContentIndex(final MarkLogicPublishedContentIndex publishedContentIndex) {
+		this.publishedContentIndex = publishedContentIndex;
+	}
+
+	/**
+	 * Sets the publish outbox, whose pending calls are exposed.
+	 *
+	 * @param publishOutbox the new publish outbox
+	 */
+	public void setPublishOutbox(final MarkLogicPublishOutbox publishOutbox) {
+		this.publishOutbox = publishOutbox;
+	}
+
+	/**
+	 * Sets the publish executor, whose queue size is exposed.
+	 *
+	 * @param publishExecutor the new publish executor
+	 */
+	public void setPublishExecutor(final MarkLogicPublishExecutor publishExecutor) {
+		this.publishExecutor = publishExecutor;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() {
+		if (registerMBeans) {
+			mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			register(this, "type=PublishingMetrics");
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() {
+		if (mbeanServer == null) {
+			return;
+		}
+		unregister("type=PublishingMetrics");
+		for (final MarkLogicEndpointMetrics endpoint : endpoints.values()) {
+			unregister(endpointName(endpoint.getChannel(), endpoint.getHost()));
+		}
+		mbeanServer = null;
+	}
+
+	/**
+	 * Gets the metrics of a channel and host, registering them on first use.
+	 *
+	 * @param channelKey the channel key
+	 * @param host the host, host:port
+	 * @return the endpoint metrics
+	 */
+	public MarkLogicEndpointMetrics getEndpoint(final String channelKey, final String host) {
+		final String key = channelKey + '|' + host;
+		MarkLogicEndpointMetrics endpoint = endpoints.get(key);
+		if (endpoint == null) {
+			synchronized (endpoints) {
+				endpoint = endpoints.get(key);
+				if (endpoint == null) {
+					endpoint = new MarkLogicEndpointMetrics(channelKey, host);
+					endpoints.put(key, endpoint);
+					if (mbeanServer != null) {
+						register(endpoint, endpointName(channelKey, host));
+					}
+				}
+			}
+		}
+		return endpoint;
+	}
+
+	/**
+	 * Records a copy of content to a temp file.
+	 *
+	 * @param millis the time the copy took
+	 */
+	public void recordTempFileCopy(final long millis) {
+		tempFileCopies.record(millis);
+		tempFileCopyMillis.addAndGet(millis);
+	}
+
+	/**
+	 * Records a publish which sent the metadata document only, the content being unchanged.
+	 */
+	public void recordMetadataOnlyPublish() {
+		metadataOnlyPublishes.incrementAndGet();
+	}
+
+	/**
+	 * Records a committed chunked upload.
+	 *
+	 * @param partsSent the parts sent, including parts sent again after a failure
+	 * @param partsResumed the parts already acknowledged by MarkLogic, not sent again
+	 */
+	public void recordChunkedUpload(final int partsSent, final int partsResumed) {
+		chunkedUploads.incrementAndGet();
+		chunkedUploadPartsSent.addAndGet(partsSent);
+		chunkedUploadPartsResumed.addAndGet(partsResumed);
+	}
+
+	/**
+	 * Records the content of a node read once for several channels.
+	 *
+	 * @param channels the channels the content was sent to
+	 */
+	public void recordFanOut(final int channels) {
+		fanOutPublishes.incrementAndGet();
+		contentReadsSaved.addAndGet(channels - 1);
+	}
+
+	/**
+	 * Records a flush of the publish coalescer.
+	 *
+	 * @param requests the publish and unpublish requests received for the node during the window
+	 * @param cancelled true if they cancelled each other out and nothing was sent
+	 */
+	public void recordCoalesced(final int requests, final boolean cancelled) {
+		if (cancelled) {
+			cancelledRequests.addAndGet(requests);
+		} else {
+			coalescedRequests.addAndGet(requests - 1);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getRequestsInFlight()
+	 */
+	public int getRequestsInFlight() {
+		int inFlight = 0;
+		for (final MarkLogicEndpointMetrics endpoint : endpoints.values()) {
+			inFlight += endpoint.getInFlight();
+		}
+		return inFlight;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getBytesSent()
+	 */
+	public long getBytesSent() {
+		long bytesSent = 0;
+		for (final MarkLogicEndpointMetrics endpoint : endpoints.values()) {
+			bytesSent += endpoint.getBytesSent();
+		}
+		return bytesSent;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getTempFileCopies()
+	 */
+	public long getTempFileCopies() {
+		return tempFileCopies.getCount();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getTempFileCopyMillis()
+	 */
+	public long getTempFileCopyMillis() {
+		return tempFileCopyMillis.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getTempFileCopyP95()
+	 */
+	public long getTempFileCopyP95() {
+		return tempFileCopies.getPercentile(0.95);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getCompressedRequests()
+	 */
+	public long getCompressedRequests() {
+		return compressionPolicy == null ? 0 : compressionPolicy.getCompressedRequests();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getCompressionBytesSaved()
+	 */
+	public long getCompressionBytesSaved() {
+		return compressionPolicy == null ? 0 : compressionPolicy.getBytesSaved();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getUnchangedSkips()
+	 */
+	public long getUnchangedSkips() {
+		return publishedContentIndex == null ? 0 : publishedContentIndex.getSkipCount();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getMetadataOnlyPublishes()
+	 */
+	public long getMetadataOnlyPublishes() {
+		return metadataOnlyPublishes.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getChunkedUploads()
+	 */
+	public long getChunkedUploads() {
+		return chunkedUploads.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getChunkedUploadPartsSent()
+	 */
+	public long getChunkedUploadPartsSent() {
+		return chunkedUploadPartsSent.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getChunkedUploadPartsResumed()
+	 */
+	public long getChunkedUploadPartsResumed() {
+		return chunkedUploadPartsResumed.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getCoalescedRequests()
+	 */
+	public long getCoalescedRequests() {
+		return coalescedRequests.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getCancelledRequests()
+	 */
+	public long getCancelledRequests() {
+		return cancelledRequests.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getFanOutPublishes()
+	 */
+	public long getFanOutPublishes() {
+		return fanOutPublishes.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getContentReadsSaved()
+	 */
+	public long getContentReadsSaved() {
+		return contentReadsSaved.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getIndexedNodes()
+	 */
+	public int getIndexedNodes() {
+		return publishedContentIndex == null ? 0 : publishedContentIndex.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getPublishQueueSize()
+	 */
+	public int getPublishQueueSize() {
+		return publishExecutor == null ? 0 : publishExecutor.getQueueSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingMetricsMBean#getOutboxPending()
+	 */
+	public int getOutboxPending() {
+		return publishOutbox == null ? 0 : publishOutbox.getPendingCount();
+	}
+
+	/**
+	 * Builds the object name properties of an endpoint.
+	 *
+	 * @param channelKey the channel key
+	 * @param host the host
+	 * @return the object name properties
+	 */
+	private static String endpointName(final String channelKey, final String host) {
+		return "type=EndpointMetrics,channel=" + ObjectName.quote(channelKey) + ",host=" + ObjectName.quote(host);
+	}
+
+	/**
+	 * Registers an MBean in the MarkLogic publishing domain, a failure only disables its JMX view.<br/>
+	 * Does nothing when the metrics are not registered.
+	 *
+	 * @param mbean the mbean
+	 * @param properties the object name properties
+	 */
+	void register(final Object mbean, final String properties) {
+		if (mbeanServer == null) {
+			return;
+		}
+		try {
+			final ObjectName name = new ObjectName(JMX_DOMAIN + ":" + properties);
+			if (mbeanServer.isRegistered(name)) {
+				mbeanServer.unregisterMBean(name);
+			}
+			mbeanServer.registerMBean(mbean, name);
+		} catch (JMException jmEx) {
+			LOG.warn("Unable to register MarkLogic publishing metrics " + properties + ": " + jmEx.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Unregisters an MBean.
+	 *
+	 * @param properties the object name properties
+	 */
+	void unregister(final String properties) {
+		if (mbeanServer == null) {
+			return;
+		}
+		try {
+			final ObjectName name = new ObjectName(JMX_DOMAIN + ":" + properties);
+			if (mbeanServer.isRegistered(name)) {
+				mbeanServer.unregisterMBean(name);
+			}
+		} catch (JMException jmEx) {
+			LOG.warn("Unable to unregister MarkLogic publishing metrics " + properties + ": " + jmEx.getLocalizedMessage());
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+/**
+ * JMX view of the MarkLogic publishing totals, the per host figures are published as
+ * {@link MarkLogicEndpointMetricsMBean}s.
+ */
+public interface MarkLogicPublishingMetricsMBean {
+
+	/**
+	 * Gets the number of requests currently in flight over all channels and hosts.
+	 *
+	 * @return the in flight count
+	 */
+	int getRequestsInFlight();
+
+	/**
+	 * Gets the number of request body bytes sent over all channels and hosts.
+	 *
+	 * @return the bytes sent
+	 */
+	long getBytesSent();
+
+	/**
+	 * Gets the number of content copies to a temp file before publishing.
+	 *
+	 * @return the temp file copy count
+	 */
+	long getTempFileCopies();
+
+	/**
+	 * Gets the time spent copying content to temp files.
+	 *
+	 * @return the millis
+	 */
+	long getTempFileCopyMillis();
+
+	/**
+	 * Gets the 95th percentile time of a temp file copy.
+	 *
+	 * @return the millis
+	 */
+	long getTempFileCopyP95();
+
+	/**
+	 * Gets the number of gzip compressed requests.
+	 *
+	 * @return the compressed request count
+	 */
+	long getCompressedRequests();
+
+	/**
+	 * Gets the bytes saved by compression.
+	 *
+	 * @return the bytes saved
+	 */
+	long getCompressionBytesSaved();
+
+	/**
+	 * Gets the number of publishes skipped because the content was unchanged.
+	 *
+	 * @return the skip count
+	 */
+	long getUnchangedSkips();
+
+	/**
+	 * Gets the number of publishes which sent only the metadata document, the content being unchanged.
+	 *
+	 * @return the metadata only publish count
+	 */
+	long getMetadataOnlyPublishes();
+
+	/**
+	 * Gets the number of documents published with a committed chunked upload.
+	 *
+	 * @return the chunked upload count
+	 */
+	long getChunkedUploads();
+
+	/**
+	 * Gets the number of chunked upload parts sent, including parts sent again after a failure.
+	 *
+	 * @return the parts sent
+	 */
+	long getChunkedUploadPartsSent();
+
+	/**
+	 * Gets the number of chunked upload parts already acknowledged when an upload resumed, not sent again.
+	 *
+	 * @return the parts resumed
+	 */
+	long getChunkedUploadPartsResumed();
+
+	/**
+	 * Gets the number of publish and unpublish requests merged into a later request for the same node by the coalescer.
+	 *
+	 * @return the coalesced requests
+	 */
+	long getCoalescedRequests();
+
+	/**
+	 * Gets the number of publish and unpublish requests that cancelled each other out in the coalescer.
+	 *
+	 * @return the cancelled requests
+	 */
+	long getCancelledRequests();
+
+	/**
+	 * Gets the number of nodes whose content was read once and sent to several channels.
+	 *
+	 * @return the fan out publishes
+	 */
+	long getFanOutPublishes();
+
+	/**
+	 * Gets the number of content store reads saved by fan out publishes.
+	 *
+	 * @return the content reads saved
+	 */
+	long getContentReadsSaved();
+
+	/**
+	 * Gets the number of nodes in the published content index.
+	 *
+	 * @return the indexed node count
+	 */
+	int getIndexedNodes();
+
+	/**
+	 * Gets the number of calls waiting for a publish worker.
+	 *
+	 * @return the queue size
+	 */
+	int getPublishQueueSize();
+
+	/**
+	 * Gets the number of calls in the publish outbox not yet acknowledged by MarkLogic.
+	 *
+	 * @return the pending outbox calls
+	 */
+	int getOutboxPending();
+}
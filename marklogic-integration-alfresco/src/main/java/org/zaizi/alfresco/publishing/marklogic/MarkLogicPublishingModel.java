@@ -51,6 +51,9 @@ public interface MarkLogicPublishingModel {
 	/** The Constant PROP_PORT. */
 	 QName PROP_PORT = QName.createQName(NAMESPACE, "port");
 
+	/** The Constant PROP_HOSTS, comma separated host[:port] list of a MarkLogic cluster. */
+	 QName PROP_HOSTS = QName.createQName(NAMESPACE, "hosts");
+
 	/** The Constant TYPE_DELIVERY_CHANNEL. */
 	 QName TYPE_DELIVERY_CHANNEL = QName.createQName(NAMESPACE, "DeliveryChannel");
 
@@ -62,4 +65,43 @@ public interface MarkLogicPublishingModel {
 
 	/** The Constant UNPUBLISH_URI_KEY. */
 	 String UNPUBLISH_URI_KEY = "alfrescopub/unpublish";
+
+	/** The Constant PUBLISH_BATCH_URI_KEY. */
+	 String PUBLISH_BATCH_URI_KEY = "alfrescopub/publish-batch";
+
+	/** The Constant METADATA_URI_KEY. */
+	 String METADATA_URI_KEY = "alfrescopub/metadata";
+
+	/** The Constant UNPUBLISH_BATCH_URI_KEY. */
+	 String UNPUBLISH_BATCH_URI_KEY = "alfrescopub/unpublish-batch";
+
+	/** The Constant UPLOAD_URI_KEY, starting a chunked upload or reading its acknowledged parts. */
+	 String UPLOAD_URI_KEY = "alfrescopub/upload";
+
+	/** The Constant UPLOAD_PART_URI_KEY. */
+	 String UPLOAD_PART_URI_KEY = "alfrescopub/upload-part";
+
+	/** The Constant UPLOAD_COMMIT_URI_KEY. */
+	 String UPLOAD_COMMIT_URI_KEY = "alfrescopub/upload-commit";
+
+	/** The upload id query parameter of a chunked upload. */
+	 String UPLOAD_ID = "id=";
+
+	/** The part number query parameter of a chunked upload. */
+	 String UPLOAD_PART = "part=";
+
+	/** The uri prefix query parameter of the bulk unpublish. */
+	 String URI_PREFIX = "prefix=";
+
+	/** The collection query parameter of the bulk unpublish. */
+	 String COLLECTION = "collection=";
+
+	/** The Constant LIST_URI_KEY, listing the stored documents for reconciliation. */
+	 String LIST_URI_KEY = "alfrescopub/list";
+
+	/** The query parameter of the listing giving the uri after which the page starts. */
+	 String LIST_AFTER = "after=";
+
+	/** The query parameter of the listing giving the page size. */
+	 String LIST_LIMIT = "limit=";
 }
@@ -0,0 +1,88 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of publishing calls, e.g. of a backfill, so that MarkLogic and the
+ * repository keep serving their normal load.<br/>
+ * The bucket holds at most one second of permits, a rate of 0 or less disables the limit.
+ */
+public class MarkLogicRateLimiter {
+
+	/** The permits per second. */
+	private volatile double permitsPerSecond;
+
+	/** The available permits. */
+	private double available;
+
+	/** The time the bucket was last refilled. */
+	private long lastRefillNanos = System.nanoTime();
+
+	/**
+	 * Instantiates a new rate limiter.
+	 *
+	 * @param permitsPerSecond the permits per second, 0 for unlimited
+	 */
+	public MarkLogicRateLimiter(final double permitsPerSecond) {
+		this.permitsPerSecond = permitsPerSecond;
+	}
+
+	/**
+	 * Changes the rate, taking effect for the next permit.
+	 *
+	 * @param permitsPerSecond the permits per second, 0 for unlimited
+	 */
+	public void setRate(final double permitsPerSecond) {
+		this.permitsPerSecond = permitsPerSecond;
+	}
+
+	/**
+	 * Gets the rate.
+	 *
+	 * @return the permits per second
+	 */
+	public double getRate() {
+		return permitsPerSecond;
+	}
+
+	/**
+	 * Takes a permit, waiting until one is available.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	public void acquire() throws InterruptedException {
+		while (true) {
+			final long waitNanos;
+			synchronized (this) {
+				final double rate = permitsPerSecond;
+				if (rate <= 0) {
+					return;
+				}
+				final long now = System.nanoTime();
+				available = Math.min(Math.max(rate, 1), available + (now - lastRefillNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+				lastRefillNanos = now;
+				if (available >= 1) {
+					available -= 1;
+					return;
+				}
+				waitNanos = (long) ((1 - available) * TimeUnit.SECONDS.toNanos(1) / rate);
+			}
+			TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 1000));
+		}
+	}
+}
@@ -0,0 +1,892 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.publishing.channels.Channel;
+import org.alfresco.service.cmr.publishing.channels.ChannelService;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Detects and repairs drift between Alfresco and a MarkLogic channel, e.g. after failed publishes, documents
+ * deleted in MarkLogic or unpublishes that never completed.<br/>
+ * Both sides are read as manifests sorted by document uri: the published copies under the channel node, read
+ * in pages of <code>pageSize</code> sorted by node uuid and continuing after the last uuid read, with their
+ * modification date, and the documents listed by <code>alfrescopub/list</code> with their last modification
+ * in MarkLogic. Nodes never published to the channel are on neither side and left alone. The two are merge joined one page
+ * at a time, so memory stays bounded by the page and batch sizes whatever the repository size. Nodes missing
+ * in MarkLogic or modified after their document are published again, documents without a node are removed,
+ * both in batches of <code>batchSize</code> through {@link MarkLogicChannelType}. Nodes modified less than
+ * <code>settleMillis</code> before the run are left alone, as their publish may still be in flight.<br/>
+ * The channels in <code>channelNames</code> are reconciled every <code>intervalMinutes</code>, any channel can be
+ * reconciled on demand over JMX.
+ */
+public class MarkLogicReconciler implements MarkLogicReconcilerMBean, InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicReconciler.class);
+
+	/** The Constant SORT_FIELD, the node uuid orders nodes as their document uris within a store. */
+	private final static String SORT_FIELD = "@{http://www.alfresco.org/model/system/1.0}node-uuid";
+
+	/** The Constant UUID_FIELD, the node uuid in an fts-alfresco query. */
+	private final static String UUID_FIELD = "@sys\\:node-uuid";
+
+	/** The Constant JMX_NAME. */
+	private final static String JMX_NAME = "type=Reconciliation";
+
+	/** The channel type. */
+	private MarkLogicChannelType channelType;
+
+	/** The publishing helper. */
+	private MarkLogicPublishingHelper publishingHelper;
+
+	/** The request executor. */
+	private MarkLogicRequestExecutor requestExecutor;
+
+	/** The published content index, entries of drifted nodes are dropped so they are sent again. May be null. */
+	private MarkLogicPublishedContentIndex publishedContentIndex;
+
+	/** The search service. */
+	private SearchService searchService;
+
+	/** The node service. */
+	private NodeService nodeService;
+
+	/** The channel service. */
+	private ChannelService channelService;
+
+	/** The transaction service. */
+	private TransactionService transactionService;
+
+	/** The publishing metrics, the reconciler is registered with their MBeans. May be null. */
+	private MarkLogicPublishingMetrics metrics;
+
+	/** The channels reconciled on schedule. */
+	private List<String> channelNames = Collections.emptyList();
+
+	/** The interval between scheduled runs, 0 disables the schedule. */
+	private long intervalMinutes = 1440;
+
+	/** The manifest entries read per page, on each side. */
+	private int pageSize = 1000;
+
+	/** The nodes republished or unpublished per batch. */
+	private int batchSize = 100;
+
+	/** The time a change is given to reach MarkLogic before it counts as drift. */
+	private long settleMillis = 300000;
+
+	/** The tolerated clock difference between Alfresco and MarkLogic. */
+	private long clockSkewMillis = 60000;
+
+	/** The scheduler running reconciliations, one at a time. */
+	private ScheduledExecutorService scheduler;
+
+	/** Whether the running reconciliation should stop. */
+	private volatile boolean stopRequested;
+
+	/** The current or last run. */
+	private volatile Run run;
+
+	/**
+	 * Sets the channel type.
+	 *
+	 * @param channelType the new channel type
+	 */
+	public void setChannelType(final MarkLogicChannelType channelType) {
+		this.channelType = channelType;
+	}
+
+	/**
+	 * Sets the publishing helper.
+	 *
+	 * @param publishingHelper the new publishing helper
+	 */
+	public void setPublishingHelper(final MarkLogicPublishingHelper publishingHelper) {
+		this.publishingHelper = publishingHelper;
+	}
+
+	/**
+	 * Sets the request executor.
+	 *
+	 * @param requestExecutor the new request executor
+	 */
+	public void setRequestExecutor(final MarkLogicRequestExecutor requestExecutor) {
+		this.requestExecutor = requestExecutor;
+	}
+
+	/**
+	 * Sets the published content index.
+	 *
+	 * @param publishedContentIndex the new published content index
+	 */
+	public void setPublishedContentIndex(final MarkLogicPublishedContentIndex publishedContentIndex) {
+		this.publishedContentIndex = publishedContentIndex;
+	}
+
+	/**
+	 * Sets the search service.
+	 *
+	 * @param searchService the new search service
+	 */
+	public void setSearchService(final SearchService searchService) {
+		this.searchService = searchService;
+	}
+
+	/**
+	 * Sets the node service.
+	 *
+	 * @param nodeService the new node service
+	 */
+	public void setNodeService(final NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * Sets the channel service.
+	 *
+	 * @param channelService the new channel service
+	 */
+	public void setChannelService(final ChannelService channelService) {
+		this.channelService = channelService;
+	}
+
+	/**
+	 * Sets the transaction service.
+	 *
+	 * @param transactionService the new transaction service
+	 */
+	public void setTransactionService(final TransactionService transactionService) {
+		this.transactionService = transactionService;
+	}
+
+	/**
+	 * Sets the metrics.
+	 *
+	 * @param metrics the new metrics
+	 */
+	public void setMetrics(final MarkLogicPublishingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the channel names.
+	 *
+	 * @param channelNames the new channel names
+	 */
+	public void setChannelNames(final List<String> channelNames) {
+		this.channelNames = channelNames;
+	}
+
+	/**
+	 * Sets the interval.
+	 *
+	 * @param intervalMinutes the new interval, 0 disables the schedule
+	 */
+	public void setIntervalMinutes(final long intervalMinutes) {
+		this.intervalMinutes = intervalMinutes;
+	}
+
+	/**
+	 * Sets the page size.
+	 *
+	 * @param pageSize the new page size
+	 */
+	public void setPageSize(final int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Sets the batch size.
+	 *
+	 * @param batchSize the new batch size
+	 */
+	public void setBatchSize(final int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the settle time.
+	 *
+	 * @param settleMillis the new settle time
+	 */
+	public void setSettleMillis(final long settleMillis) {
+		this.settleMillis = settleMillis;
+	}
+
+	/**
+	 * Sets the clock skew.
+	 *
+	 * @param clockSkewMillis the new clock skew
+	 */
+	public void setClockSkewMillis(final long clockSkewMillis) {
+		this.clockSkewMillis = clockSkewMillis;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "MarkLogicReconciler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (intervalMinutes > 0 && !channelNames.isEmpty()) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					for (final String channelName : channelNames) {
+						if (!runSafely(channelName)) {
+							return;
+						}
+					}
+				}
+			}, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+		}
+		if (metrics != null) {
+			metrics.register(this, JMX_NAME);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() throws InterruptedException {
+		stopRequested = true;
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler.awaitTermination(30, TimeUnit.SECONDS);
+		}
+		if (metrics != null) {
+			metrics.unregister(JMX_NAME);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#reconcile(java.lang.String)
+	 */
+	public void reconcile(final String channelName) {
+		scheduler.execute(new Runnable() {
+			public void run() {
+				runSafely(channelName);
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#stop()
+	 */
+	public void stop() {
+		stopRequested = true;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#isRunning()
+	 */
+	public boolean isRunning() {
+		final Run current = run;
+		return current != null && current.endTime == 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getChannelName()
+	 */
+	public String getChannelName() {
+		final Run current = run;
+		return current == null ? null : current.channelName;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getStartTime()
+	 */
+	public long getStartTime() {
+		final Run current = run;
+		return current == null ? 0 : current.startTime;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getLastDurationMillis()
+	 */
+	public long getLastDurationMillis() {
+		final Run current = run;
+		return current == null || current.endTime == 0 ? 0 : current.endTime - current.startTime;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getEntriesRead()
+	 */
+	public long getEntriesRead() {
+		final Run current = run;
+		return current == null ? 0 : current.entriesRead;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getMissing()
+	 */
+	public long getMissing() {
+		final Run current = run;
+		return current == null ? 0 : current.missing;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getStale()
+	 */
+	public long getStale() {
+		final Run current = run;
+		return current == null ? 0 : current.stale;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getOrphaned()
+	 */
+	public long getOrphaned() {
+		final Run current = run;
+		return current == null ? 0 : current.orphaned;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getRepublished()
+	 */
+	public long getRepublished() {
+		final Run current = run;
+		return current == null ? 0 : current.republished;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getUnpublished()
+	 */
+	public long getUnpublished() {
+		final Run current = run;
+		return current == null ? 0 : current.unpublished;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getFailed()
+	 */
+	public long getFailed() {
+		final Run current = run;
+		return current == null ? 0 : current.failed;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicReconcilerMBean#getLastError()
+	 */
+	public String getLastError() {
+		final Run current = run;
+		return current == null ? null : current.error;
+	}
+
+	/**
+	 * Reconciles a channel, logging instead of throwing any failure.
+	 *
+	 * @param channelName the channel name
+	 * @return false if the reconciliation was stopped
+	 */
+	private boolean runSafely(final String channelName) {
+		try {
+			reconcileNow(channelName);
+		} catch (RuntimeException runtimeEx) {
+			LOG.error("MarkLogic reconciliation of channel " + channelName + " failed", runtimeEx);
+		}
+		return !stopRequested;
+	}
+
+	/**
+	 * Reconciles a channel in the calling thread.
+	 *
+	 * @param channelName the channel name
+	 */
+	public void reconcileNow(final String channelName) {
+		final Run current = AuthenticationUtil.runAsSystem(new RunAsWork<Run>() {
+			public Run doWork() {
+				return transactionService.getRetryingTransactionHelper().doInTransaction(
+						new RetryingTransactionCallback<Run>() {
+							public Run execute() {
+								final Channel channel = channelService.getChannelByName(channelName);
+								return channel == null ? null : new Run(channelName, channel.getNodeRef(),
+										new HashMap<QName, Serializable>(channel.getProperties()));
+							}
+						}, true);
+			}
+		});
+		if (current == null) {
+			throw new AlfrescoRuntimeException("No publishing channel named " + channelName);
+		}
+		stopRequested = false;
+		run = current;
+		LOG.info("MarkLogic reconciliation of channel " + channelName + " started");
+		try {
+			current.mergeJoin();
+			current.flush();
+		} catch (IOException ioEx) {
+			current.error = ioEx.getLocalizedMessage();
+			LOG.error("MarkLogic reconciliation of channel " + channelName + " ended early", ioEx);
+		} catch (RuntimeException runtimeEx) {
+			current.error = runtimeEx.getLocalizedMessage();
+			throw runtimeEx;
+		} finally {
+			current.endTime = System.currentTimeMillis();
+			LOG.info("MarkLogic reconciliation of channel " + channelName + (stopRequested ? " stopped" : " finished")
+					+ " after " + (current.endTime - current.startTime) + " ms: " + current);
+		}
+	}
+
+	/**
+	 * An entry of a manifest.
+	 */
+	private static final class Entry {
+
+		/** The document uri. */
+		private final String uri;
+
+		/** The last modification. */
+		private final long modified;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param uri the uri
+		 * @param modified the modified
+		 */
+		private Entry(final String uri, final long modified) {
+			this.uri = uri;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * A manifest read one page at a time, in ascending uri order.
+	 */
+	private abstract static class Manifest {
+
+		/** The current page. */
+		private Iterator<Entry> page = Collections.<Entry>emptyList().iterator();
+
+		/** Whether the last page was read. */
+		private boolean exhausted;
+
+		/** The last uri returned. */
+		private String lastUri;
+
+		/**
+		 * Gets the next entry, reading the next page when needed.
+		 *
+		 * @return the next entry, null at the end
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		Entry next() throws IOException {
+			while (true) {
+				while (page.hasNext()) {
+					final Entry entry = page.next();
+					// Out of order entries would break the merge, pages shifted by concurrent changes may repeat one
+					if (lastUri == null || entry.uri.compareTo(lastUri) > 0) {
+						lastUri = entry.uri;
+						return entry;
+					}
+				}
+				if (exhausted) {
+					return null;
+				}
+				final List<Entry> entries = new ArrayList<Entry>();
+				exhausted = !readPage(lastUri, entries);
+				page = entries.iterator();
+			}
+		}
+
+		/**
+		 * Reads the next page.
+		 *
+		 * @param after the last uri returned
+		 * @param entries the list receiving the entries of the page
+		 * @return true, if more pages may follow
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		abstract boolean readPage(String after, List<Entry> entries) throws IOException;
+	}
+
+	/**
+	 * A reconciliation of one channel.
+	 */
+	private final class Run {
+
+		/** The channel name. */
+		private final String channelName;
+
+		/** The channel node, the parent of the published copies. */
+		private final NodeRef channelNodeRef;
+
+		/** The channel properties. */
+		private final Map<QName, Serializable> channelProperties;
+
+		/** The channel key. */
+		private final String channelKey;
+
+		/** The start time. */
+		private final long startTime = System.currentTimeMillis();
+
+		/** Nodes modified after this time are not reconciled. */
+		private final long settledBefore = startTime - settleMillis;
+
+		/** The supported mimetypes, all when null or empty. */
+		private final Set<String> mimeTypes = channelType.getSupportedMimeTypes();
+
+		/** The end time, 0 while running. */
+		private volatile long endTime;
+
+		/** The nodes to publish again. */
+		private final List<NodeRef> toPublish = new ArrayList<NodeRef>();
+
+		/** The orphaned documents, removed once their node is confirmed gone or unmatched. */
+		private final List<NodeRef> toUnpublish = new ArrayList<NodeRef>();
+
+		/** The entries read. */
+		private volatile long entriesRead;
+
+		/** The missing count. */
+		private volatile long missing;
+
+		/** The stale count. */
+		private volatile long stale;
+
+		/** The orphaned count. */
+		private volatile long orphaned;
+
+		/** The republished count. */
+		private volatile long republished;
+
+		/** The unpublished count. */
+		private volatile long unpublished;
+
+		/** The failed count. */
+		private volatile long failed;
+
+		/** The error ending the run early. */
+		private volatile String error;
+
+		/**
+		 * Instantiates a new run.
+		 *
+		 * @param channelName the channel name
+		 * @param channelNodeRef the channel node
+		 * @param channelProperties the channel properties
+		 */
+		private Run(final String channelName, final NodeRef channelNodeRef,
+				final Map<QName, Serializable> channelProperties) {
+			this.channelName = channelName;
+			this.channelNodeRef = channelNodeRef;
+			this.channelProperties = channelProperties;
+			this.channelKey = publishingHelper.getChannelKey(channelProperties);
+		}
+
+		/**
+		 * Walks both manifests in uri order, queueing the differences.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private void mergeJoin() throws IOException {
+			final Manifest alfresco = new Manifest() {
+				private String lastUuid;
+
+				boolean readPage(final String after, final List<Entry> entries) {
+					// Continue after the last node read, which may have been left out of the entries
+					lastUuid = readAlfrescoPage(lastUuid, entries);
+					return lastUuid != null;
+				}
+			};
+			final Manifest marklogic = new Manifest() {
+				boolean readPage(final String after, final List<Entry> entries) throws IOException {
+					entries.addAll(readMarkLogicPage(after));
+					return entries.size() >= pageSize;
+				}
+			};
+			Entry node = alfresco.next();
+			Entry document = marklogic.next();
+			while ((node != null || document != null) && !stopRequested) {
+				final int order = node == null ? 1 : document == null ? -1 : node.uri.compareTo(document.uri);
+				if (order < 0) {
+					entriesRead++;
+					if (node.modified < settledBefore) {
+						missing++;
+						republish(node);
+					}
+					node = alfresco.next();
+				} else if (order > 0) {
+					entriesRead++;
+					orphaned++;
+					unpublish(document);
+					document = marklogic.next();
+				} else {
+					entriesRead += 2;
+					if (node.modified < settledBefore && document.modified + clockSkewMillis < node.modified) {
+						stale++;
+						republish(node);
+					}
+					node = alfresco.next();
+					document = marklogic.next();
+				}
+			}
+		}
+
+		/**
+		 * Reads a page of the published copies under the channel node, with their modification dates.
+		 *
+		 * @param afterUuid the uuid of the last node read, null for the first page
+		 * @param entries the list receiving the entries, nodes without supported content left out
+		 * @return the uuid of the last node read, null if no more pages follow
+		 */
+		private String readAlfrescoPage(final String afterUuid, final List<Entry> entries) {
+			return AuthenticationUtil.runAsSystem(new RunAsWork<String>() {
+				public String doWork() {
+					return transactionService.getRetryingTransactionHelper().doInTransaction(
+							new RetryingTransactionCallback<String>() {
+								public String execute() {
+									entries.clear();
+									final SearchParameters searchParameters = new SearchParameters();
+									searchParameters.addStore(channelNodeRef.getStoreRef());
+									searchParameters.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+									searchParameters.setQuery("PARENT:\"" + channelNodeRef + "\"" + (afterUuid == null ? ""
+											: " AND " + UUID_FIELD + ":<\"" + afterUuid + "\" TO MAX]"));
+									searchParameters.addSort(SORT_FIELD, true);
+									searchParameters.setMaxItems(pageSize);
+									final List<NodeRef> nodeRefs;
+									final ResultSet resultSet = searchService.query(searchParameters);
+									try {
+										nodeRefs = new ArrayList<NodeRef>(resultSet.getNodeRefs());
+									} finally {
+										resultSet.close();
+									}
+									for (final NodeRef nodeRef : nodeRefs) {
+										final Map<QName, Serializable> properties = nodeService.getProperties(nodeRef);
+										final ContentData content = (ContentData) properties.get(ContentModel.PROP_CONTENT);
+										final Date modified = (Date) properties.get(ContentModel.PROP_MODIFIED);
+										if (content != null && (mimeTypes == null || mimeTypes.isEmpty()
+												|| mimeTypes.contains(content.getMimetype()))) {
+											entries.add(new Entry(nodeRef.toString(), modified == null ? 0 : modified.getTime()));
+										}
+									}
+									return nodeRefs.size() < pageSize ? null : nodeRefs.get(nodeRefs.size() - 1).getId();
+								}
+							}, true, true);
+				}
+			});
+		}
+
+		/**
+		 * Reads a page of the documents stored in MarkLogic.
+		 *
+		 * @param after the last uri read
+		 * @return the entries
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private List<Entry> readMarkLogicPage(final String after) throws IOException {
+			final HttpGet httpget;
+			try {
+				httpget = new HttpGet(publishingHelper.getListURIFromChannelProperties(channelNodeRef.getStoreRef() + "/",
+						after, pageSize, channelProperties));
+			} catch (URISyntaxException uriSynEx) {
+				throw new IOException(uriSynEx.getLocalizedMessage());
+			}
+			return requestExecutor.execute(httpget, channelProperties, new ResponseHandler<List<Entry>>() {
+				public List<Entry> handleResponse(final HttpResponse response) throws IOException {
+					final int statusCode = response.getStatusLine().getStatusCode();
+					if (statusCode != HttpStatus.SC_OK) {
+						EntityUtils.consume(response.getEntity());
+						throw new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase());
+					}
+					final List<Entry> entries = new ArrayList<Entry>(pageSize);
+					if (response.getEntity() == null) {
+						return entries;
+					}
+					for (final String line : EntityUtils.toString(response.getEntity(), "UTF-8").split("\n")) {
+						final int separator = line.trim().lastIndexOf(' ');
+						if (separator <= 0) {
+							continue;
+						}
+						try {
+							entries.add(new Entry(line.trim().substring(0, separator),
+									Long.parseLong(line.trim().substring(separator + 1))));
+						} catch (NumberFormatException numEx) {
+							LOG.warn("Ignoring malformed MarkLogic listing line: " + line);
+						}
+					}
+					return entries;
+				}
+			});
+		}
+
+		/**
+		 * Queues a node to be published again.
+		 *
+		 * @param node the node entry
+		 */
+		private void republish(final Entry node) {
+			toPublish.add(new NodeRef(node.uri));
+			if (toPublish.size() >= batchSize) {
+				flushPublish();
+			}
+		}
+
+		/**
+		 * Queues an orphaned document to be removed.
+		 *
+		 * @param document the document entry
+		 */
+		private void unpublish(final Entry document) {
+			if (!NodeRef.isNodeRef(document.uri)) {
+				LOG.warn("Leaving MarkLogic document " + document.uri + " alone, its uri is not a node reference");
+				return;
+			}
+			toUnpublish.add(new NodeRef(document.uri));
+			if (toUnpublish.size() >= batchSize) {
+				flushUnpublish();
+			}
+		}
+
+		/**
+		 * Sends the queued republishes and unpublishes.
+		 */
+		private void flush() {
+			if (!toPublish.isEmpty()) {
+				flushPublish();
+			}
+			if (!toUnpublish.isEmpty()) {
+				flushUnpublish();
+			}
+		}
+
+		/**
+		 * Publishes the queued nodes, forgetting their published fingerprint so the content is sent again.
+		 */
+		private void flushPublish() {
+			final List<NodeRef> nodeRefs = new ArrayList<NodeRef>(toPublish);
+			toPublish.clear();
+			if (publishedContentIndex != null) {
+				for (final NodeRef nodeRef : nodeRefs) {
+					publishedContentIndex.recordUnpublished(channelKey, nodeRef);
+				}
+			}
+			final Map<NodeRef, MarkLogicPublishResult> results = AuthenticationUtil.runAsSystem(
+					new RunAsWork<Map<NodeRef, MarkLogicPublishResult>>() {
+						public Map<NodeRef, MarkLogicPublishResult> doWork() {
+							return transactionService.getRetryingTransactionHelper().doInTransaction(
+									new RetryingTransactionCallback<Map<NodeRef, MarkLogicPublishResult>>() {
+										public Map<NodeRef, MarkLogicPublishResult> execute() {
+											return channelType.publishBatch(nodeRefs, channelProperties);
+										}
+									}, true, true);
+						}
+					});
+			for (final MarkLogicPublishResult result : results.values()) {
+				if (result.isFailed()) {
+					failed++;
+					LOG.warn("MarkLogic reconciliation failed to republish " + result);
+				} else {
+					republished++;
+				}
+			}
+		}
+
+		/**
+		 * Removes the queued orphaned documents whose node no longer exists, or exists unchanged since the
+		 * settle time without being a published copy of the channel.
+		 */
+		private void flushUnpublish() {
+			final List<NodeRef> candidates = new ArrayList<NodeRef>(toUnpublish);
+			toUnpublish.clear();
+			final List<NodeRef> nodeRefs = AuthenticationUtil.runAsSystem(new RunAsWork<List<NodeRef>>() {
+				public List<NodeRef> doWork() {
+					return transactionService.getRetryingTransactionHelper().doInTransaction(
+							new RetryingTransactionCallback<List<NodeRef>>() {
+								public List<NodeRef> execute() {
+									final List<NodeRef> settled = new ArrayList<NodeRef>(candidates.size());
+									for (final NodeRef nodeRef : candidates) {
+										if (!nodeService.exists(nodeRef)) {
+											settled.add(nodeRef);
+											continue;
+										}
+										final Date modified = (Date) nodeService.getProperty(nodeRef,
+												ContentModel.PROP_MODIFIED);
+										if (modified != null && modified.getTime() < settledBefore) {
+											settled.add(nodeRef);
+										}
+									}
+									return settled;
+								}
+							}, true, true);
+				}
+			});
+			if (nodeRefs.isEmpty()) {
+				return;
+			}
+			final MarkLogicBulkUnpublishResult result = channelType.unpublishBatch(nodeRefs, channelProperties, null);
+			unpublished += result.getUnpublishedCount();
+			failed += result.getFailures().size();
+			for (final Map.Entry<String, String> failure : result.getFailures().entrySet()) {
+				LOG.warn("MarkLogic reconciliation failed to unpublish " + failure.getKey() + ": " + failure.getValue());
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return entriesRead + " entries read, " + missing + " missing, " + stale + " stale, " + orphaned
+					+ " orphaned, " + republished + " republished, " + unpublished + " unpublished, " + failed
+					+ " failed";
+		}
+	}
+}
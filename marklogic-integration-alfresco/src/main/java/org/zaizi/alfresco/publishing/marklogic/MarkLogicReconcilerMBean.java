@@ -0,0 +1,118 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+/**
+ * JMX view and control of the {@link MarkLogicReconciler}.
+ */
+public interface MarkLogicReconcilerMBean {
+
+	/**
+	 * Queues a reconciliation of a channel, run after the one in progress.
+	 *
+	 * @param channelName the channel name
+	 */
+	void reconcile(String channelName);
+
+	/**
+	 * Stops the running reconciliation after the batch in progress.
+	 */
+	void stop();
+
+	/**
+	 * Checks whether a reconciliation is running.
+	 *
+	 * @return true, if running
+	 */
+	boolean isRunning();
+
+	/**
+	 * Gets the channel of the current or last reconciliation.
+	 *
+	 * @return the channel name
+	 */
+	String getChannelName();
+
+	/**
+	 * Gets the start time of the current or last reconciliation.
+	 *
+	 * @return the start time in milliseconds, 0 before the first run
+	 */
+	long getStartTime();
+
+	/**
+	 * Gets the duration of the last completed reconciliation.
+	 *
+	 * @return the duration in milliseconds
+	 */
+	long getLastDurationMillis();
+
+	/**
+	 * Gets the number of Alfresco and MarkLogic entries read.
+	 *
+	 * @return the entries read
+	 */
+	long getEntriesRead();
+
+	/**
+	 * Gets the number of nodes missing in MarkLogic.
+	 *
+	 * @return the missing count
+	 */
+	long getMissing();
+
+	/**
+	 * Gets the number of documents older in MarkLogic than the node in Alfresco.
+	 *
+	 * @return the stale count
+	 */
+	long getStale();
+
+	/**
+	 * Gets the number of documents in MarkLogic without a matching node in Alfresco.
+	 *
+	 * @return the orphaned count
+	 */
+	long getOrphaned();
+
+	/**
+	 * Gets the number of nodes published again.
+	 *
+	 * @return the republished count
+	 */
+	long getRepublished();
+
+	/**
+	 * Gets the number of orphaned documents removed.
+	 *
+	 * @return the unpublished count
+	 */
+	long getUnpublished();
+
+	/**
+	 * Gets the number of republishes and unpublishes which failed.
+	 *
+	 * @return the failed count
+	 */
+	long getFailed();
+
+	/**
+	 * Gets the error which ended the last reconciliation early.
+	 *
+	 * @return the error, null if it completed
+	 */
+	String getLastError();
+}
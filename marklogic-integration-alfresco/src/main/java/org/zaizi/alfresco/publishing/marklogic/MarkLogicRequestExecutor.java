@@ -0,0 +1,845 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Sends requests to MarkLogic on behalf of the publishing channel.<br/>
+ * Idempotent requests (PUT and DELETE with a repeatable body) which fail with a transient error,
+ * i.e. a 502/503/504 status, a refused or reset connection or a timeout, are retried with
+ * exponential backoff and jitter. Every host has a {@link MarkLogicCircuitBreaker} circuit,
+ * so requests fail fast while a host is known to be down, and requests are spread over the hosts
+ * of a channel by the {@link MarkLogicClusterManager}. The {@link MarkLogicConcurrencyLimiter}, when
+ * configured, bounds the requests in flight per host to a limit adapted to the host's latency and overload.
+ * Every attempt is recorded in the {@link MarkLogicPublishingMetrics}, when configured.<br/>
+ * Requests go over a {@link MarkLogicTransport}: {@link #execute} blocks the calling thread, while
+ * {@link #submit} reports to a callback and keeps no thread busy while waiting for a retry. Retried
+ * and queued attempts of submitted requests go out on a pool of <code>dispatchThreads</code>.
+ */
+public class MarkLogicRequestExecutor implements DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicRequestExecutor.class);
+
+	/** The transport. */
+	private MarkLogicTransport transport;
+
+	/** The publishing helper. */
+	private MarkLogicPublishingHelper publishingHelper;
+
+	/** The circuit breaker. */
+	private MarkLogicCircuitBreaker circuitBreaker;
+
+	/** The cluster manager. */
+	private MarkLogicClusterManager clusterManager;
+
+	/** The concurrency limiter. May be null. */
+	private MarkLogicConcurrencyLimiter concurrencyLimiter;
+
+	/** The metrics. May be null. */
+	private MarkLogicPublishingMetrics metrics;
+
+	/** The max retries after the first attempt. */
+	private int maxRetries = 3;
+
+	/** The initial backoff millis. */
+	private long initialBackoffMillis = 200;
+
+	/** The max backoff millis. */
+	private long maxBackoffMillis = 10000;
+
+	/** The random used for jitter. */
+	private final Random random = new Random();
+
+	/** The threads sending the retried and queued attempts of submitted requests. */
+	private int dispatchThreads = 20;
+
+	/** The scheduler timing the retries of submitted requests, created on first use. */
+	private ScheduledExecutorService retryScheduler;
+
+	/** The pool sending the retried and queued attempts of submitted requests, created on first use. */
+	private ThreadPoolExecutor dispatcher;
+
+	/**
+	 * Sets the transport.
+	 *
+	 * @param transport the new transport
+	 */
+	public void setTransport(final MarkLogicTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Sets the http client provider, sending requests over a {@link MarkLogicBlockingTransport}.
+	 *
+	 * @param httpClientProvider the new http client provider
+	 */
+	public void setHttpClientProvider(final MarkLogicHttpClientProvider httpClientProvider) {
+		final MarkLogicBlockingTransport blockingTransport = new MarkLogicBlockingTransport();
+		blockingTransport.setHttpClientProvider(httpClientProvider);
+		this.transport = blockingTransport;
+	}
+
+	/**
+	 * Sets the publishing helper.
+	 *
+	 * @param publishingHelper the new publishing helper
+	 */
+	public void setPublishingHelper(final MarkLogicPublishingHelper publishingHelper) {
+		this.publishingHelper = publishingHelper;
+	}
+
+	/**
+	 * Sets the circuit breaker.
+	 *
+	 * @param circuitBreaker the new circuit breaker
+	 */
+	public void setCircuitBreaker(final MarkLogicCircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * Sets the cluster manager.
+	 *
+	 * @param clusterManager the new cluster manager
+	 */
+	public void setClusterManager(final MarkLogicClusterManager clusterManager) {
+		this.clusterManager = clusterManager;
+	}
+
+	/**
+	 * Sets the concurrency limiter, adapting the requests in flight per host to its latency and overload.
+	 *
+	 * @param concurrencyLimiter the new concurrency limiter
+	 */
+	public void setConcurrencyLimiter(final MarkLogicConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
+	/**
+	 * Sets the metrics, recording latency, outcome and bytes sent of every attempt.
+	 *
+	 * @param metrics the new metrics
+	 */
+	public void setMetrics(final MarkLogicPublishingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the max retries.
+	 *
+	 * @param maxRetries the new max retries
+	 */
+	public void setMaxRetries(final int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Sets the initial backoff millis.
+	 *
+	 * @param initialBackoffMillis the new initial backoff millis
+	 */
+	public void setInitialBackoffMillis(final long initialBackoffMillis) {
+		this.initialBackoffMillis = initialBackoffMillis;
+	}
+
+	/**
+	 * Sets the max backoff millis.
+	 *
+	 * @param maxBackoffMillis the new max backoff millis
+	 */
+	public void setMaxBackoffMillis(final long maxBackoffMillis) {
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Executes a request against MarkLogic, retrying transient failures of idempotent requests.<br/>
+	 * Every attempt is sent to a host chosen by the {@link MarkLogicClusterManager}, so a retry fails
+	 * over to another host of the channel when there is one.
+	 *
+	 * @param <T> the response type
+	 * @param request the request, its uri is rewritten to the chosen host
+	 * @param channelProperties the channel properties
+	 * @param responseHandler the response handler
+	 * @return the handled response
+	 * @throws IOException Signals that the request failed, {@link HttpResponseException} for an unexpected status
+	 */
+	public <T> T execute(final HttpRequestBase request, final Map<QName, Serializable> channelProperties,
+			final ResponseHandler<? extends T> responseHandler) throws IOException {
+		final URI requestUri = request.getURI();
+		final boolean retryable = isRetryable(request);
+		final String channelKey = metrics == null ? null : publishingHelper.getChannelKey(channelProperties);
+		final ByteCountingEntity countingEntity = metrics == null ? null : countBytes(request);
+		final Set<String> failedHosts = new HashSet<String>();
+		int attempt = 0;
+		while (true) {
+			final MarkLogicHost host;
+			try {
+				host = chooseHost(channelProperties, failedHosts);
+			} catch (MarkLogicCircuitOpenException circuitEx) {
+				if (metrics != null) {
+					metrics.getEndpoint(channelKey, MarkLogicPublishingMetrics.NO_HOST).requestRejected();
+				}
+				throw circuitEx;
+			}
+			final boolean limited = concurrencyLimiter != null && concurrencyLimiter.isEnabled();
+			boolean acquired = false;
+			try {
+				request.setURI(URIUtils.rewriteURI(requestUri, host.getHttpHost()));
+				if (limited && !concurrencyLimiter.acquire(host.getName())) {
+					throw new IOException("No request slot free on MarkLogic host " + host.getName() + " in time, "
+							+ concurrencyLimiter.getLimit(host.getName()) + " requests in flight");
+				}
+				acquired = true;
+			} catch (URISyntaxException uriSynEx) {
+				throw new IOException(uriSynEx);
+			} finally {
+				if (!acquired) {
+					// Never sent, a half open circuit must not wait for this probe
+					circuitBreaker.recordIgnored(host.getName());
+				}
+			}
+			final MarkLogicEndpointMetrics endpoint = metrics == null ? null : metrics.getEndpoint(channelKey, host.getName());
+			MarkLogicEndpointMetrics.Outcome outcome = MarkLogicEndpointMetrics.Outcome.IO_ERROR;
+			boolean overloaded = false;
+			boolean healthRecorded = false;
+			final long backoff;
+			final long start = System.currentTimeMillis();
+			host.requestStarted();
+			if (endpoint != null) {
+				endpoint.requestStarted();
+			}
+			try {
+				final T result = transport.execute(request,
+						publishingHelper.getHttpContextFromChannelProperties(channelProperties), responseHandler);
+				outcome = MarkLogicEndpointMetrics.Outcome.SUCCEEDED;
+				circuitBreaker.recordSuccess(host.getName());
+				healthRecorded = true;
+				return result;
+			} catch (IOException ioex) {
+				if (ioex instanceof HttpResponseException) {
+					outcome = MarkLogicEndpointMetrics.Outcome.HTTP_ERROR;
+				}
+				overloaded = isOverload(ioex);
+				if (!isTransient(ioex)) {
+					// MarkLogic answered, so the host itself is fine
+					if (ioex instanceof HttpResponseException) {
+						circuitBreaker.recordSuccess(host.getName());
+						healthRecorded = true;
+					}
+					throw ioex;
+				}
+				circuitBreaker.recordFailure(host.getName());
+				healthRecorded = true;
+				clusterManager.markUnhealthy(host);
+				failedHosts.add(host.getName());
+				if (!retryable || attempt >= maxRetries) {
+					if (retryable && LOG.isWarnEnabled()) {
+						LOG.warn("Giving up " + request.getMethod() + " " + request.getURI() + " after "
+								+ (attempt + 1) + " attempts: " + ioex.getLocalizedMessage());
+					}
+					throw ioex;
+				}
+				attempt++;
+				backoff = backoff(attempt);
+				if (LOG.isWarnEnabled()) {
+					LOG.warn("Transient failure on " + request.getMethod() + " " + request.getURI() + " ("
+							+ ioex.getLocalizedMessage() + "), retry " + attempt + "/" + maxRetries + " in "
+							+ backoff + "ms");
+				}
+			} finally {
+				if (!healthRecorded) {
+					// A client side failure, release the probe of a half open circuit
+					circuitBreaker.recordIgnored(host.getName());
+				}
+				final long latency = System.currentTimeMillis() - start;
+				host.requestCompleted(latency);
+				if (limited) {
+					concurrencyLimiter.release(host.getName(), latency, bodyLength(request), overloaded);
+				}
+				if (endpoint != null) {
+					endpoint.requestCompleted(task(requestUri), outcome, latency,
+							countingEntity == null ? 0 : countingEntity.resetCount());
+					if (limited) {
+						endpoint.recordConcurrencyLimit(concurrencyLimiter.getLimit(host.getName()));
+					}
+				}
+			}
+			// Back off outside the attempt, holding no request slot and counting towards no latency
+			sleep(backoff);
+		}
+	}
+
+	/**
+	 * Submits a request against MarkLogic without waiting for the response, retrying transient failures
+	 * of idempotent requests like {@link #execute}.
+	 *
+	 * @param <T> the response type
+	 * @param request the request, its uri is rewritten to the chosen host
+	 * @param channelProperties the channel properties
+	 * @param responseHandler the response handler
+	 * @return the future of the handled response
+	 */
+	public <T> Future<T> submit(final HttpRequestBase request, final Map<QName, Serializable> channelProperties,
+			final ResponseHandler<? extends T> responseHandler) {
+		final MarkLogicFuture<T> future = new MarkLogicFuture<T>();
+		submit(request, channelProperties, responseHandler, future);
+		return future;
+	}
+
+	/**
+	 * Submits a request against MarkLogic without waiting for the response, retrying transient failures
+	 * of idempotent requests like {@link #execute}. The callback is called once, with the handled response
+	 * or the final failure.
+	 *
+	 * @param <T> the response type
+	 * @param request the request, its uri is rewritten to the chosen host
+	 * @param channelProperties the channel properties
+	 * @param responseHandler the response handler
+	 * @param callback the callback
+	 */
+	public <T> void submit(final HttpRequestBase request, final Map<QName, Serializable> channelProperties,
+			final ResponseHandler<? extends T> responseHandler, final MarkLogicTransportCallback<T> callback) {
+		new AsyncRequest<T>(request, channelProperties, responseHandler, callback).send();
+	}
+
+	/**
+	 * Sets the threads sending the retried and queued attempts of submitted requests. With the blocking
+	 * transport each holds a connection while its attempt is in flight.
+	 *
+	 * @param dispatchThreads the new dispatch threads
+	 */
+	public void setDispatchThreads(final int dispatchThreads) {
+		this.dispatchThreads = dispatchThreads;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public synchronized void destroy() {
+		if (retryScheduler != null) {
+			retryScheduler.shutdownNow();
+			retryScheduler = null;
+		}
+		if (dispatcher != null) {
+			dispatcher.shutdownNow();
+			dispatcher = null;
+		}
+	}
+
+	/**
+	 * Gets the retry scheduler, creating it on first use.
+	 *
+	 * @return the retry scheduler
+	 */
+	private synchronized ScheduledExecutorService getRetryScheduler() {
+		if (retryScheduler == null) {
+			retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "MarkLogicRetryScheduler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return retryScheduler;
+	}
+
+	/**
+	 * Gets the dispatcher, creating it on first use. Its threads time out when idle.
+	 *
+	 * @return the dispatcher
+	 */
+	private synchronized ThreadPoolExecutor getDispatcher() {
+		if (dispatcher == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			dispatcher = new ThreadPoolExecutor(dispatchThreads, dispatchThreads, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(final Runnable runnable) {
+							final Thread thread = new Thread(runnable, "MarkLogicDispatcher-" + threadCount.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			dispatcher.allowCoreThreadTimeOut(true);
+		}
+		return dispatcher;
+	}
+
+	/**
+	 * Chooses the host for the next attempt, skipping hosts whose circuit is open.<br/>
+	 * Hosts which already failed this request are only used again once every host has failed.
+	 *
+	 * @param channelProperties the channel properties
+	 * @param failedHosts the hosts which already failed this request
+	 * @return the host
+	 * @throws MarkLogicCircuitOpenException if the circuit of every host is open
+	 */
+	private MarkLogicHost chooseHost(final Map<QName, Serializable> channelProperties,
+			final Set<String> failedHosts) throws MarkLogicCircuitOpenException {
+		final Set<String> skipped = new HashSet<String>(failedHosts);
+		MarkLogicHost host;
+		while ((host = clusterManager.chooseHost(channelProperties, skipped)) != null) {
+			if (circuitBreaker.allowRequest(host.getName())) {
+				return host;
+			}
+			skipped.add(host.getName());
+		}
+		if (!failedHosts.isEmpty()) {
+			failedHosts.clear();
+			return chooseHost(channelProperties, failedHosts);
+		}
+		throw new MarkLogicCircuitOpenException(skipped.toString());
+	}
+
+	/**
+	 * Wraps the request body, if any, to count the bytes actually written to the wire.
+	 *
+	 * @param request the request
+	 * @return the counting entity, null for requests without a body
+	 */
+	private static ByteCountingEntity countBytes(final HttpRequestBase request) {
+		if (request instanceof HttpEntityEnclosingRequest) {
+			final HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+			if (entityRequest.getEntity() != null) {
+				final ByteCountingEntity countingEntity = new ByteCountingEntity(entityRequest.getEntity());
+				entityRequest.setEntity(countingEntity);
+				return countingEntity;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the MarkLogic task of a request, e.g. <code>alfrescopub/publish</code>.
+	 *
+	 * @param requestUri the request uri
+	 * @return the task
+	 */
+	private static String task(final URI requestUri) {
+		final String path = requestUri.getPath();
+		return path != null && path.startsWith("/") ? path.substring(1) : path;
+	}
+
+	/**
+	 * Checks whether the request may safely be sent again.
+	 *
+	 * @param request the request
+	 * @return true, if retryable
+	 */
+	private boolean isRetryable(final HttpRequestBase request) {
+		if (!(request instanceof HttpPut || request instanceof HttpDelete)) {
+			return false;
+		}
+		if (request instanceof HttpEntityEnclosingRequest) {
+			final HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+			return entityRequest.getEntity() == null || entityRequest.getEntity().isRepeatable();
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a failure is worth retrying.
+	 *
+	 * @param ioex the exception
+	 * @return true, if transient
+	 */
+	static boolean isTransient(final IOException ioex) {
+		if (ioex instanceof MarkLogicCircuitOpenException) {
+			return false;
+		}
+		if (ioex instanceof HttpResponseException) {
+			final int statusCode = ((HttpResponseException) ioex).getStatusCode();
+			return statusCode == 502 || statusCode == 503 || statusCode == 504;
+		}
+		return ioex instanceof ConnectException || ioex instanceof NoHttpResponseException
+				|| ioex instanceof ConnectTimeoutException || ioex instanceof SocketTimeoutException
+				|| ioex instanceof SocketException
+				|| (ioex instanceof InterruptedIOException && !Thread.currentThread().isInterrupted());
+	}
+
+	/**
+	 * Checks whether a failure shows that the host is overloaded, i.e. a transient failure or a 429 status.
+	 *
+	 * @param ioex the exception
+	 * @return true, if overload
+	 */
+	static boolean isOverload(final IOException ioex) {
+		if (ioex instanceof HttpResponseException && ((HttpResponseException) ioex).getStatusCode() == 429) {
+			return true;
+		}
+		return isTransient(ioex);
+	}
+
+	/**
+	 * Gets the size of the request body.
+	 *
+	 * @param request the request
+	 * @return the body size, 0 without body, negative if unknown
+	 */
+	private static long bodyLength(final HttpRequestBase request) {
+		if (request instanceof HttpEntityEnclosingRequest) {
+			final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			return entity == null ? 0 : entity.getContentLength();
+		}
+		return 0;
+	}
+
+	/**
+	 * Computes the exponential backoff with full jitter for an attempt.
+	 *
+	 * @param attempt the attempt, starting at 1
+	 * @return the backoff millis
+	 */
+	private long backoff(final int attempt) {
+		final long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20));
+		return ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2));
+	}
+
+	/**
+	 * Sleeps between attempts.
+	 *
+	 * @param millis the millis
+	 * @throws InterruptedIOException if the thread is interrupted
+	 */
+	private void sleep(final long millis) throws InterruptedIOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException intEx) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry MarkLogic request");
+		}
+	}
+
+	/**
+	 * A submitted request, sending its attempts from the callbacks of the previous one.
+	 *
+	 * @param <T> the response type
+	 */
+	private final class AsyncRequest<T> implements MarkLogicTransportCallback<T> {
+
+		/** The request. */
+		private final HttpRequestBase request;
+
+		/** The request uri before it is rewritten to a host. */
+		private final URI requestUri;
+
+		/** The channel properties. */
+		private final Map<QName, Serializable> channelProperties;
+
+		/** The response handler. */
+		private final ResponseHandler<? extends T> responseHandler;
+
+		/** The callback. */
+		private final MarkLogicTransportCallback<T> callback;
+
+		/** Whether the request is retryable. */
+		private final boolean retryable;
+
+		/** The channel key, null without metrics. */
+		private final String channelKey;
+
+		/** The counting entity, null without metrics or body. */
+		private final ByteCountingEntity countingEntity;
+
+		/** The hosts which already failed this request. */
+		private final Set<String> failedHosts = new HashSet<String>();
+
+		/** The attempt. */
+		private int attempt;
+
+		/** The host of the current attempt. */
+		private MarkLogicHost host;
+
+		/** The endpoint metrics of the current attempt. */
+		private MarkLogicEndpointMetrics endpoint;
+
+		/** The start of the current attempt. */
+		private long start;
+
+		/** Whether the current attempt holds a slot of the concurrency limiter. */
+		private boolean limited;
+
+		/** Whether the transport reported the outcome of the current attempt. */
+		private volatile boolean reported;
+
+		/**
+		 * Instantiates a new async request.
+		 *
+		 * @param request the request
+		 * @param channelProperties the channel properties
+		 * @param responseHandler the response handler
+		 * @param callback the callback
+		 */
+		private AsyncRequest(final HttpRequestBase request, final Map<QName, Serializable> channelProperties,
+				final ResponseHandler<? extends T> responseHandler, final MarkLogicTransportCallback<T> callback) {
+			this.request = request;
+			this.requestUri = request.getURI();
+			this.channelProperties = channelProperties;
+			this.responseHandler = responseHandler;
+			this.callback = callback;
+			this.retryable = isRetryable(request);
+			this.channelKey = metrics == null ? null : publishingHelper.getChannelKey(channelProperties);
+			this.countingEntity = metrics == null ? null : countBytes(request);
+		}
+
+		/**
+		 * Sends the next attempt.
+		 */
+		private void send() {
+			try {
+				host = chooseHost(channelProperties, failedHosts);
+			} catch (MarkLogicCircuitOpenException circuitEx) {
+				if (metrics != null) {
+					metrics.getEndpoint(channelKey, MarkLogicPublishingMetrics.NO_HOST).requestRejected();
+				}
+				callback.failed(circuitEx);
+				return;
+			}
+			try {
+				request.setURI(URIUtils.rewriteURI(requestUri, host.getHttpHost()));
+			} catch (URISyntaxException uriSynEx) {
+				circuitBreaker.recordIgnored(host.getName());
+				callback.failed(new IOException(uriSynEx));
+				return;
+			}
+			limited = concurrencyLimiter != null && concurrencyLimiter.isEnabled();
+			if (limited && !concurrencyLimiter.tryAcquire(host.getName(), new Runnable() {
+				public void run() {
+					dispatchQueued();
+				}
+			})) {
+				return;
+			}
+			dispatch();
+		}
+
+		/**
+		 * Sends a request which waited for a slot, off the thread which released the slot.
+		 */
+		private void dispatchQueued() {
+			try {
+				getDispatcher().execute(new Runnable() {
+					public void run() {
+						dispatch();
+					}
+				});
+			} catch (RuntimeException rejectEx) {
+				// Shut down meanwhile
+				concurrencyLimiter.release(host.getName(), 0, -1, false);
+				circuitBreaker.recordIgnored(host.getName());
+				callback.failed(new InterruptedIOException("MarkLogic request executor shut down"));
+			}
+		}
+
+		/**
+		 * Sends the current attempt to its host.
+		 */
+		private void dispatch() {
+			endpoint = metrics == null ? null : metrics.getEndpoint(channelKey, host.getName());
+			start = System.currentTimeMillis();
+			reported = false;
+			host.requestStarted();
+			if (endpoint != null) {
+				endpoint.requestStarted();
+			}
+			try {
+				transport.execute(request, publishingHelper.getHttpContextFromChannelProperties(channelProperties),
+						responseHandler, this);
+			} catch (RuntimeException runtimeEx) {
+				if (reported) {
+					throw runtimeEx;
+				}
+				// Not handed to the transport, report it like a failure of the attempt
+				failed(runtimeEx);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicTransportCallback#completed(java.lang.Object)
+		 */
+		public void completed(final T result) {
+			reported = true;
+			attemptCompleted(MarkLogicEndpointMetrics.Outcome.SUCCEEDED, false);
+			circuitBreaker.recordSuccess(host.getName());
+			callback.completed(result);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicTransportCallback#failed(java.lang.Exception)
+		 */
+		public void failed(final Exception failure) {
+			reported = true;
+			attemptCompleted(failure instanceof HttpResponseException ? MarkLogicEndpointMetrics.Outcome.HTTP_ERROR
+					: MarkLogicEndpointMetrics.Outcome.IO_ERROR,
+					failure instanceof IOException && isOverload((IOException) failure));
+			if (!(failure instanceof IOException) || !isTransient((IOException) failure)) {
+				if (failure instanceof HttpResponseException) {
+					// MarkLogic answered, so the host itself is fine
+					circuitBreaker.recordSuccess(host.getName());
+				} else {
+					circuitBreaker.recordIgnored(host.getName());
+				}
+				callback.failed(failure);
+				return;
+			}
+			circuitBreaker.recordFailure(host.getName());
+			clusterManager.markUnhealthy(host);
+			failedHosts.add(host.getName());
+			if (!retryable || attempt >= maxRetries) {
+				if (retryable && LOG.isWarnEnabled()) {
+					LOG.warn("Giving up " + request.getMethod() + " " + request.getURI() + " after " + (attempt + 1)
+							+ " attempts: " + failure.getLocalizedMessage());
+				}
+				callback.failed(failure);
+				return;
+			}
+			attempt++;
+			final long backoff = backoff(attempt);
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Transient failure on " + request.getMethod() + " " + request.getURI() + " ("
+						+ failure.getLocalizedMessage() + "), retry " + attempt + "/" + maxRetries + " in " + backoff + "ms");
+			}
+			try {
+				// The scheduler only times the retry, the attempt may block and goes out on the dispatcher
+				getRetryScheduler().schedule(new Runnable() {
+					public void run() {
+						try {
+							getDispatcher().execute(new Runnable() {
+								public void run() {
+									send();
+								}
+							});
+						} catch (RuntimeException rejectEx) {
+							// Shut down meanwhile
+							callback.failed(failure);
+						}
+					}
+				}, backoff, TimeUnit.MILLISECONDS);
+			} catch (RuntimeException rejectEx) {
+				// Shut down meanwhile
+				callback.failed(failure);
+			}
+		}
+
+		/**
+		 * Records the end of the current attempt.
+		 *
+		 * @param outcome the outcome
+		 * @param overloaded whether the failure showed overload of the host
+		 */
+		private void attemptCompleted(final MarkLogicEndpointMetrics.Outcome outcome, final boolean overloaded) {
+			final long latency = System.currentTimeMillis() - start;
+			host.requestCompleted(latency);
+			if (limited) {
+				concurrencyLimiter.release(host.getName(), latency, bodyLength(request), overloaded);
+			}
+			if (endpoint != null) {
+				endpoint.requestCompleted(task(requestUri), outcome, latency,
+						countingEntity == null ? 0 : countingEntity.resetCount());
+				if (limited) {
+					endpoint.recordConcurrencyLimit(concurrencyLimiter.getLimit(host.getName()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Request body wrapper counting the bytes written, per attempt.
+	 */
+	private static final class ByteCountingEntity extends HttpEntityWrapper {
+
+		/** The bytes written since the last reset. */
+		private final AtomicLong count = new AtomicLong();
+
+		/**
+		 * Instantiates a new byte counting entity.
+		 *
+		 * @param wrapped the wrapped entity
+		 */
+		private ByteCountingEntity(final HttpEntity wrapped) {
+			super(wrapped);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.http.entity.HttpEntityWrapper#writeTo(java.io.OutputStream)
+		 */
+		@Override
+		public void writeTo(final OutputStream outstream) throws IOException {
+			wrappedEntity.writeTo(new FilterOutputStream(outstream) {
+				@Override
+				public void write(final int b) throws IOException {
+					out.write(b);
+					count.incrementAndGet();
+				}
+
+				@Override
+				public void write(final byte[] b, final int off, final int len) throws IOException {
+					out.write(b, off, len);
+					count.addAndGet(len);
+				}
+			});
+		}
+
+		/**
+		 * Gets the bytes written since the last call and resets the count.
+		 *
+		 * @return the bytes written
+		 */
+		private long resetCount() {
+			return count.getAndSet(0);
+		}
+	}
+}
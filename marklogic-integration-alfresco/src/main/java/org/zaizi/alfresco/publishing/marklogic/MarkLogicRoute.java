@@ -0,0 +1,119 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+/**
+ * How a document is sent to MarkLogic, as decided by the {@link MarkLogicRoutingPolicy} from its
+ * mimetype and size.
+ */
+public class MarkLogicRoute {
+
+	/**
+	 * How the content is read into the request.
+	 */
+	public enum Transfer {
+		/** Read into memory first, for small documents. */
+		BUFFER,
+		/** Streamed from the content store into the request. */
+		STREAM,
+		/** Copied to a temp file first. */
+		FILE
+	}
+
+	/**
+	 * The worker lane of the {@link MarkLogicPublishExecutor} the publish is queued on.
+	 */
+	public enum Lane {
+		/** Small documents, never queued behind large uploads. */
+		FAST,
+		/** Everything else. */
+		NORMAL,
+		/** Very large documents, few workers. */
+		BULK
+	}
+
+	/** The endpoint, e.g. alfrescopub/publish. */
+	private final String endpoint;
+
+	/** The transfer. */
+	private final Transfer transfer;
+
+	/** Whether the content is gzip compressed. */
+	private final boolean compress;
+
+	/** The lane. */
+	private final Lane lane;
+
+	/**
+	 * Instantiates a new route.
+	 *
+	 * @param endpoint the endpoint
+	 * @param transfer the transfer
+	 * @param compress whether the content is compressed
+	 * @param lane the lane
+	 */
+	public MarkLogicRoute(final String endpoint, final Transfer transfer, final boolean compress, final Lane lane) {
+		this.endpoint = endpoint;
+		this.transfer = transfer;
+		this.compress = compress;
+		this.lane = lane;
+	}
+
+	/**
+	 * Gets the endpoint.
+	 *
+	 * @return the endpoint
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Gets the transfer.
+	 *
+	 * @return the transfer
+	 */
+	public Transfer getTransfer() {
+		return transfer;
+	}
+
+	/**
+	 * Checks whether the content is compressed.
+	 *
+	 * @return true, if compressed
+	 */
+	public boolean isCompress() {
+		return compress;
+	}
+
+	/**
+	 * Gets the lane.
+	 *
+	 * @return the lane
+	 */
+	public Lane getLane() {
+		return lane;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "endpoint=" + endpoint + ",transfer=" + transfer.name().toLowerCase() + ",compress=" + compress
+				+ ",lane=" + lane.name().toLowerCase();
+	}
+}
@@ -0,0 +1,499 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.Resource;
+
+/**
+ * Decides per mimetype and size class how a document is published: the endpoint, whether the
+ * content is buffered, streamed or copied to a temp file, whether it is compressed and which
+ * worker lane it is queued on.<br/>
+ * The rules are read from properties files (see <code>marklogic-routing.properties</code>), later
+ * locations overriding earlier ones. Files which change are reloaded in the background, without a
+ * restart; a file which does not parse leaves the current rules in place. The rules are resolved
+ * into a lookup table when loaded, so {@link #route(String, long)} costs at most three hash lookups
+ * and an array access.
+ */
+public class MarkLogicRoutingPolicy implements InitializingBean, DisposableBean {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicRoutingPolicy.class);
+
+	/** The Constant PREFIX. */
+	private final static String PREFIX = "routing.";
+
+	/** The Constant ROUTE_PREFIX. */
+	private final static String ROUTE_PREFIX = PREFIX + "route.";
+
+	/** The Constant ANY. */
+	private final static String ANY = "*";
+
+	/** The policy locations, later ones override earlier ones. */
+	private List<Resource> policyLocations = Collections.emptyList();
+
+	/** The interval between checks for changed policy files, 0 disables reloading. */
+	private long reloadIntervalMillis = 30000;
+
+	/** The current routing table. */
+	private volatile RoutingTable table;
+
+	/** The last modified times of the loaded locations. */
+	private List<Long> loadedVersions = Collections.emptyList();
+
+	/** The reloader. */
+	private ScheduledExecutorService reloader;
+
+	/**
+	 * Sets the policy locations.
+	 *
+	 * @param policyLocations the new policy locations
+	 */
+	public void setPolicyLocations(final List<Resource> policyLocations) {
+		this.policyLocations = policyLocations;
+	}
+
+	/**
+	 * Sets the reload interval millis.
+	 *
+	 * @param reloadIntervalMillis the new reload interval millis
+	 */
+	public void setReloadIntervalMillis(final long reloadIntervalMillis) {
+		this.reloadIntervalMillis = reloadIntervalMillis;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() {
+		table = new RoutingTable(new Properties());
+		reload();
+		if (reloadIntervalMillis > 0) {
+			reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "MarkLogicRoutingPolicyReloader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			reloader.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					if (!getVersions().equals(loadedVersions)) {
+						reload();
+					}
+				}
+			}, reloadIntervalMillis, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() {
+		if (reloader != null) {
+			reloader.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads the policy locations again and replaces the rules, unless they do not parse.
+	 */
+	public synchronized void reload() {
+		final List<Long> versions = getVersions();
+		final Properties properties = new Properties();
+		for (final Resource location : policyLocations) {
+			if (!location.exists()) {
+				continue;
+			}
+			try {
+				final InputStream inStream = location.getInputStream();
+				try {
+					properties.load(inStream);
+				} finally {
+					inStream.close();
+				}
+			} catch (IOException ioex) {
+				LOG.error("Unable to read MarkLogic routing policy " + location + ": " + ioex.getLocalizedMessage());
+				return;
+			}
+		}
+		try {
+			table = new RoutingTable(properties);
+			loadedVersions = versions;
+			if (LOG.isInfoEnabled()) {
+				LOG.info("MarkLogic routing policy loaded, size classes: " + Arrays.toString(table.sizeClassNames)
+						+ ", routes: " + table.routeCount);
+			}
+		} catch (IllegalArgumentException illegalEx) {
+			LOG.error("Invalid MarkLogic routing policy, keeping the current rules: " + illegalEx.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Gets the route of a document.
+	 *
+	 * @param mimeType the mime type
+	 * @param size the size, negative if unknown
+	 * @return the route
+	 */
+	public MarkLogicRoute route(final String mimeType, final long size) {
+		return table.route(mimeType, size);
+	}
+
+	/**
+	 * Gets the supported mimetypes declared by the policy.
+	 *
+	 * @return the supported mime types, null if the policy does not declare them
+	 */
+	public Set<String> getSupportedMimeTypes() {
+		return table.supportedMimeTypes;
+	}
+
+	/**
+	 * Gets the largest document which is buffered in memory, larger documents routed to
+	 * {@link MarkLogicRoute.Transfer#BUFFER} are streamed.
+	 *
+	 * @return the max buffer bytes
+	 */
+	public long getMaxBufferBytes() {
+		return table.maxBufferBytes;
+	}
+
+	/**
+	 * Gets the last modified times of the policy locations.
+	 *
+	 * @return the versions
+	 */
+	private List<Long> getVersions() {
+		final List<Long> versions = new ArrayList<Long>();
+		for (final Resource location : policyLocations) {
+			long version = -1;
+			try {
+				if (location.exists()) {
+					version = location.lastModified();
+				}
+			} catch (IOException ioex) {
+				// Not a file, e.g. inside a jar, it cannot change
+				version = 0;
+			}
+			versions.add(Long.valueOf(version));
+		}
+		return versions;
+	}
+
+	/**
+	 * Immutable lookup table built from the policy properties.
+	 */
+	private static final class RoutingTable {
+
+		/** The upper bounds of the size classes, the last class is unbounded. */
+		private final long[] sizeBounds;
+
+		/** The size class names. */
+		private final String[] sizeClassNames;
+
+		/** The size class of every power of two bucket, -1 when a bound falls inside the bucket. */
+		private final int[] bucketClasses = new int[65];
+
+		/** The routes per size class for any mimetype. */
+		private final MarkLogicRoute[] anyRoutes;
+
+		/** The routes per size class, keyed by mimetype or major type wildcard. */
+		private final Map<String, MarkLogicRoute[]> routes = new HashMap<String, MarkLogicRoute[]>();
+
+		/** The supported mime types. */
+		private final Set<String> supportedMimeTypes;
+
+		/** The max buffer bytes. */
+		private final long maxBufferBytes;
+
+		/** The number of routes. */
+		private final int routeCount;
+
+		/**
+		 * Builds the table.
+		 *
+		 * @param properties the policy properties
+		 * @throws IllegalArgumentException if the policy is invalid
+		 */
+		private RoutingTable(final Properties properties) {
+			// Size classes: name:upperBound,...,name
+			final String[] classes = properties.getProperty(PREFIX + "sizeClasses", "all").split(",");
+			sizeClassNames = new String[classes.length];
+			sizeBounds = new long[classes.length - 1];
+			for (int i = 0; i < classes.length; i++) {
+				final String[] nameAndBound = classes[i].trim().split(":");
+				sizeClassNames[i] = nameAndBound[0].trim();
+				if (i < classes.length - 1) {
+					if (nameAndBound.length != 2) {
+						throw new IllegalArgumentException("Size class without upper bound: " + classes[i]);
+					}
+					sizeBounds[i] = Long.parseLong(nameAndBound[1].trim());
+					if (i > 0 && sizeBounds[i] <= sizeBounds[i - 1]) {
+						throw new IllegalArgumentException("Size classes must be ascending: " + classes[i]);
+					}
+				}
+			}
+			for (int bucket = 0; bucket < bucketClasses.length; bucket++) {
+				final long low = bucket == 0 ? 0 : 1L << (bucket - 1);
+				final long high = bucket == 0 ? 0 : bucket == 64 ? Long.MAX_VALUE : (1L << bucket) - 1;
+				final int lowClass = scanSizeClass(low);
+				bucketClasses[bucket] = lowClass == scanSizeClass(high) ? lowClass : -1;
+			}
+
+			maxBufferBytes = Long.parseLong(properties.getProperty(PREFIX + "maxBufferBytes", "1048576").trim());
+			final String supported = properties.getProperty(PREFIX + "supportedMimeTypes");
+			if (supported == null || supported.trim().length() == 0) {
+				supportedMimeTypes = null;
+			} else {
+				final Set<String> mimeTypes = new TreeSet<String>();
+				for (final String mimeType : supported.split(",")) {
+					mimeTypes.add(mimeType.trim());
+				}
+				supportedMimeTypes = Collections.unmodifiableSet(mimeTypes);
+			}
+
+			// Routes, grouped by mimetype: size class (or *) to attributes
+			final Map<String, String> defaults = parseAttributes(properties.getProperty(PREFIX + "default", ""));
+			final Map<String, Map<String, Map<String, String>>> rules = new HashMap<String, Map<String, Map<String, String>>>();
+			int count = 0;
+			for (final String key : new TreeSet<String>(properties.stringPropertyNames())) {
+				if (!key.startsWith(ROUTE_PREFIX)) {
+					continue;
+				}
+				final Map<String, String> attributes = parseAttributes(properties.getProperty(key));
+				final String mimeType = normalize(valueOf(attributes, "mimetype", ANY));
+				final String sizeClass = valueOf(attributes, "size", ANY);
+				if (!ANY.equals(sizeClass) && indexOf(sizeClass) < 0) {
+					throw new IllegalArgumentException("Unknown size class in " + key + ": " + sizeClass);
+				}
+				Map<String, Map<String, String>> bySize = rules.get(mimeType);
+				if (bySize == null) {
+					bySize = new HashMap<String, Map<String, String>>();
+					rules.put(mimeType, bySize);
+				}
+				bySize.put(sizeClass, attributes);
+				count++;
+			}
+			routeCount = count;
+
+			// Resolve from the least to the most specific mimetype, so lookups need no fallback chain
+			anyRoutes = resolve(null, rules.get(ANY), defaults);
+			for (final Map.Entry<String, Map<String, Map<String, String>>> rule : rules.entrySet()) {
+				if (rule.getKey().endsWith("/*")) {
+					routes.put(rule.getKey(), resolve(anyRoutes, rule.getValue(), defaults));
+				}
+			}
+			for (final Map.Entry<String, Map<String, Map<String, String>>> rule : rules.entrySet()) {
+				if (!ANY.equals(rule.getKey()) && !rule.getKey().endsWith("/*")) {
+					final MarkLogicRoute[] majorRoutes = routes.get(majorWildcard(rule.getKey()));
+					routes.put(rule.getKey(), resolve(majorRoutes != null ? majorRoutes : anyRoutes, rule.getValue(), defaults));
+				}
+			}
+		}
+
+		/**
+		 * Looks a route up.
+		 *
+		 * @param mimeType the mime type
+		 * @param size the size
+		 * @return the route
+		 */
+		private MarkLogicRoute route(final String mimeType, final long size) {
+			final int sizeClass = sizeClass(size);
+			if (mimeType != null) {
+				final String normalized = normalize(mimeType);
+				MarkLogicRoute[] byClass = routes.get(normalized);
+				if (byClass == null) {
+					byClass = routes.get(majorWildcard(normalized));
+				}
+				if (byClass != null) {
+					return byClass[sizeClass];
+				}
+			}
+			return anyRoutes[sizeClass];
+		}
+
+		/**
+		 * Gets the size class of a size, unknown sizes fall in the largest class.
+		 *
+		 * @param size the size
+		 * @return the size class index
+		 */
+		private int sizeClass(final long size) {
+			if (size < 0) {
+				return sizeClassNames.length - 1;
+			}
+			final int sizeClass = bucketClasses[64 - Long.numberOfLeadingZeros(size)];
+			return sizeClass >= 0 ? sizeClass : scanSizeClass(size);
+		}
+
+		/**
+		 * Finds the size class of a size by scanning the bounds.
+		 *
+		 * @param size the size
+		 * @return the size class index
+		 */
+		private int scanSizeClass(final long size) {
+			for (int i = 0; i < sizeBounds.length; i++) {
+				if (size <= sizeBounds[i]) {
+					return i;
+				}
+			}
+			return sizeBounds.length;
+		}
+
+		/**
+		 * Gets the index of a size class name.
+		 *
+		 * @param name the name
+		 * @return the index, -1 if unknown
+		 */
+		private int indexOf(final String name) {
+			for (int i = 0; i < sizeClassNames.length; i++) {
+				if (sizeClassNames[i].equals(name)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Resolves the routes of one mimetype key for every size class.
+		 *
+		 * @param inherited the routes of the less specific mimetype key, null for the default route
+		 * @param bySize the rules of the key, by size class, may be null
+		 * @param defaults the default attributes
+		 * @return the routes
+		 */
+		private MarkLogicRoute[] resolve(final MarkLogicRoute[] inherited, final Map<String, Map<String, String>> bySize,
+				final Map<String, String> defaults) {
+			final MarkLogicRoute[] resolved = new MarkLogicRoute[sizeClassNames.length];
+			final Map<String, String> anySize = bySize == null ? null : bySize.get(ANY);
+			for (int i = 0; i < resolved.length; i++) {
+				final Map<String, String> specific = bySize == null ? null : bySize.get(sizeClassNames[i]);
+				if (specific != null) {
+					resolved[i] = toRoute(specific, defaults);
+				} else if (anySize != null) {
+					resolved[i] = toRoute(anySize, defaults);
+				} else if (inherited != null) {
+					resolved[i] = inherited[i];
+				} else {
+					resolved[i] = toRoute(Collections.<String, String> emptyMap(), defaults);
+				}
+			}
+			return resolved;
+		}
+
+		/**
+		 * Builds a route, attributes not given fall back to the default route.
+		 *
+		 * @param attributes the attributes
+		 * @param defaults the defaults
+		 * @return the route
+		 */
+		private static MarkLogicRoute toRoute(final Map<String, String> attributes, final Map<String, String> defaults) {
+			final Map<String, String> merged = new HashMap<String, String>(defaults);
+			merged.putAll(attributes);
+			try {
+				return new MarkLogicRoute(valueOf(merged, "endpoint", MarkLogicPublishingModel.PUBLISH_URI_KEY),
+						MarkLogicRoute.Transfer.valueOf(valueOf(merged, "transfer", "stream").toUpperCase(Locale.ENGLISH)),
+						Boolean.parseBoolean(valueOf(merged, "compress", "false")),
+						MarkLogicRoute.Lane.valueOf(valueOf(merged, "lane", "normal").toUpperCase(Locale.ENGLISH)));
+			} catch (IllegalArgumentException illegalEx) {
+				throw new IllegalArgumentException("Invalid route " + attributes + ": " + illegalEx.getMessage());
+			}
+		}
+
+		/**
+		 * Parses <code>name=value,name=value</code>.
+		 *
+		 * @param value the value
+		 * @return the attributes
+		 */
+		private static Map<String, String> parseAttributes(final String value) {
+			final Map<String, String> attributes = new LinkedHashMap<String, String>();
+			for (final String attribute : value.split(",")) {
+				if (attribute.trim().length() == 0) {
+					continue;
+				}
+				final int separator = attribute.indexOf('=');
+				if (separator < 0) {
+					throw new IllegalArgumentException("Expected name=value: " + attribute);
+				}
+				attributes.put(attribute.substring(0, separator).trim().toLowerCase(Locale.ENGLISH),
+						attribute.substring(separator + 1).trim());
+			}
+			return attributes;
+		}
+
+		/**
+		 * Gets an attribute value.
+		 *
+		 * @param attributes the attributes
+		 * @param name the name
+		 * @param defaultValue the default value
+		 * @return the value
+		 */
+		private static String valueOf(final Map<String, String> attributes, final String name, final String defaultValue) {
+			final String value = attributes.get(name);
+			return value == null || value.length() == 0 ? defaultValue : value;
+		}
+
+		/**
+		 * Lower cases a mimetype and strips its parameters.
+		 *
+		 * @param mimeType the mime type
+		 * @return the normalized mime type
+		 */
+		private static String normalize(final String mimeType) {
+			final int parameters = mimeType.indexOf(';');
+			return (parameters < 0 ? mimeType : mimeType.substring(0, parameters)).trim().toLowerCase(Locale.ENGLISH);
+		}
+
+		/**
+		 * Gets the major type wildcard of a mimetype, e.g. image/* for image/png.
+		 *
+		 * @param mimeType the mime type
+		 * @return the wildcard
+		 */
+		private static String majorWildcard(final String mimeType) {
+			final int slash = mimeType.indexOf('/');
+			return (slash < 0 ? mimeType : mimeType.substring(0, slash)) + "/*";
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Response handler which accepts a single expected status code from MarkLogic.<br/>
+ * The response body is discarded, any other status is raised as an {@link HttpResponseException}
+ * carrying the status code and reason phrase.
+ */
+public class MarkLogicStatusResponseHandler implements ResponseHandler<Integer> {
+
+	/** The Constant LOG. */
+	private final static Log LOG = LogFactory.getLog(MarkLogicStatusResponseHandler.class);
+
+	/** The expected status. */
+	private final int expectedStatus;
+
+	/** The subject of the request, used for logging. */
+	private final Object subject;
+
+	/**
+	 * Instantiates a new status response handler.
+	 *
+	 * @param expectedStatus the expected status
+	 * @param subject the subject of the request, e.g. the node ref
+	 */
+	public MarkLogicStatusResponseHandler(final int expectedStatus, final Object subject) {
+		this.expectedStatus = expectedStatus;
+		this.subject = subject;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.http.client.ResponseHandler#handleResponse(org.apache.http.HttpResponse)
+	 */
+	public Integer handleResponse(final HttpResponse response) throws IOException {
+		EntityUtils.consume(response.getEntity());
+		final int statusCode = response.getStatusLine().getStatusCode();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Response Status: " + statusCode + " - Message: "
+					+ response.getStatusLine().getReasonPhrase() + " - NodeRef: " + subject);
+		}
+		if (statusCode != expectedStatus) {
+			throw new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase());
+		}
+		return Integer.valueOf(statusCode);
+	}
+}
@@ -0,0 +1,56 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import java.io.IOException;
+
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Sends a single request to a MarkLogic host, the request uri already names the host.<br/>
+ * Retries, failover, circuit breaking and metrics are left to the {@link MarkLogicRequestExecutor}.
+ * The {@link MarkLogicBlockingTransport} holds a thread per request in flight.
+ */
+public interface MarkLogicTransport {
+
+	/**
+	 * Sends a request and waits for its response.
+	 *
+	 * @param <T> the response type
+	 * @param request the request
+	 * @param context the context holding the channel credentials
+	 * @param responseHandler the response handler
+	 * @return the handled response
+	 * @throws IOException Signals that the request failed, {@link org.apache.http.client.HttpResponseException} for an unexpected status
+	 */
+	<T> T execute(HttpRequestBase request, HttpContext context, ResponseHandler<? extends T> responseHandler)
+			throws IOException;
+
+	/**
+	 * Sends a request and reports its handled response to the callback. A blocking transport
+	 * completes the call on the calling thread before returning.
+	 *
+	 * @param <T> the response type
+	 * @param request the request
+	 * @param context the context holding the channel credentials
+	 * @param responseHandler the response handler
+	 * @param callback the callback
+	 */
+	<T> void execute(HttpRequestBase request, HttpContext context, ResponseHandler<? extends T> responseHandler,
+			MarkLogicTransportCallback<T> callback);
+}
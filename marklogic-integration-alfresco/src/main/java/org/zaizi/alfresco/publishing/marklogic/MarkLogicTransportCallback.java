@@ -0,0 +1,40 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+/**
+ * Receives the outcome of a request sent through {@link MarkLogicTransport#execute(org.apache.http.client.methods.HttpRequestBase,
+ * org.apache.http.protocol.HttpContext, org.apache.http.client.ResponseHandler, MarkLogicTransportCallback)}.<br/>
+ * Exactly one of the methods is called, possibly on a transport thread, so implementations must not block.
+ *
+ * @param <T> the response type
+ */
+public interface MarkLogicTransportCallback<T> {
+
+	/**
+	 * Called with the handled response.
+	 *
+	 * @param result the result
+	 */
+	void completed(T result);
+
+	/**
+	 * Called when the request or the response handler failed.
+	 *
+	 * @param failure the failure, an {@link java.io.IOException} for transport and status errors
+	 */
+	void failed(Exception failure);
+}
@@ -0,0 +1,332 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.publishing.channels.Channel;
+import org.alfresco.service.cmr.publishing.channels.ChannelService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Paging, checkpointing and resuming of the {@link MarkLogicBackfillCrawler} against an in memory
+ * search service.
+ */
+public class MarkLogicBackfillCrawlerTest {
+
+	/** The Constant CHANNEL_NAME. */
+	private final static String CHANNEL_NAME = "MyMarkLogicChannel";
+
+	/** The Constant QUERY. */
+	private final static String QUERY = "TYPE:\"cm:content\"";
+
+	/** The Constant NODES, three full pages of two and a last short page. */
+	private final static int NODES = 7;
+
+	/** The Constant TIMEOUT_MILLIS. */
+	private final static long TIMEOUT_MILLIS = 10000;
+
+	/** The nodes matched by the query, in database id order. */
+	private final List<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+
+	/** The checkpoint directory. */
+	private File checkpointDirectory;
+
+	/** The crawlers started by the test. */
+	private final List<MarkLogicBackfillCrawler> crawlers = new ArrayList<MarkLogicBackfillCrawler>();
+
+	/**
+	 * Creates the nodes and an empty checkpoint directory.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		for (int i = 0; i < NODES; i++) {
+			nodeRefs.add(new NodeRef("workspace://SpacesStore/node-" + i));
+		}
+		checkpointDirectory = File.createTempFile("marklogic-backfill", "");
+		assertTrue(checkpointDirectory.delete() && checkpointDirectory.mkdirs());
+	}
+
+	/**
+	 * Stops the crawlers and removes the directory.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@After
+	public void tearDown() throws InterruptedException {
+		for (final MarkLogicBackfillCrawler crawler : crawlers) {
+			crawler.destroy();
+		}
+		final File[] files = checkpointDirectory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		checkpointDirectory.delete();
+	}
+
+	/**
+	 * The checkpoint directory has no temp dir fallback.
+	 */
+	@Test
+	public void requiresCheckpointDirectory() {
+		final MarkLogicBackfillCrawler crawler = new MarkLogicBackfillCrawler();
+		try {
+			crawler.afterPropertiesSet();
+			fail("A crawler without a checkpoint directory does not start");
+		} catch (AlfrescoRuntimeException alfEx) {
+			assertTrue(alfEx.getMessage().indexOf("checkpoint directory") >= 0);
+		}
+	}
+
+	/**
+	 * A completed backfill publishes every page once and removes its checkpoint.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Test
+	public void publishesAllPages() throws InterruptedException {
+		final RecordingPublishExecutor publishExecutor = new RecordingPublishExecutor();
+		final MarkLogicBackfillCrawler crawler = createCrawler(publishExecutor);
+		crawler.start(CHANNEL_NAME, QUERY);
+		awaitStopped(crawler);
+
+		assertEquals(nodeRefs, publishExecutor.published);
+		assertEquals(NODES, crawler.getProcessed());
+		assertEquals(NODES, crawler.getTotal());
+		assertEquals(0, crawler.getFailed());
+		assertEquals(4, crawler.getCheckpointPage());
+		assertEquals(0, checkpointDirectory.listFiles().length);
+	}
+
+	/**
+	 * A stopped backfill keeps the first unfinished page and a new crawler, as after a restart, resumes
+	 * from there with the counts of the first run.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Test
+	public void resumesFromCheckpoint() throws InterruptedException {
+		final RecordingPublishExecutor firstExecutor = new RecordingPublishExecutor();
+		final MarkLogicBackfillCrawler first = createCrawler(firstExecutor);
+		firstExecutor.stopAt = nodeRefs.get(2);
+		firstExecutor.crawler = first;
+		first.start(CHANNEL_NAME, QUERY);
+		awaitStopped(first);
+
+		assertEquals(nodeRefs.subList(0, 3), firstExecutor.published);
+		assertEquals(1, first.getCheckpointPage());
+		assertEquals(1, checkpointDirectory.listFiles().length);
+
+		final RecordingPublishExecutor secondExecutor = new RecordingPublishExecutor();
+		final MarkLogicBackfillCrawler second = createCrawler(secondExecutor);
+		second.start(CHANNEL_NAME, QUERY);
+		awaitStopped(second);
+
+		assertEquals(nodeRefs.subList(2, NODES), secondExecutor.published);
+		assertEquals(NODES, second.getProcessed());
+		assertEquals(0, checkpointDirectory.listFiles().length);
+	}
+
+	/**
+	 * A checkpoint of another page size is not resumed.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Test
+	public void ignoresCheckpointOfOtherPageSize() throws InterruptedException {
+		final RecordingPublishExecutor firstExecutor = new RecordingPublishExecutor();
+		final MarkLogicBackfillCrawler first = createCrawler(firstExecutor);
+		firstExecutor.stopAt = nodeRefs.get(2);
+		firstExecutor.crawler = first;
+		first.start(CHANNEL_NAME, QUERY);
+		awaitStopped(first);
+		assertEquals(1, checkpointDirectory.listFiles().length);
+
+		final RecordingPublishExecutor secondExecutor = new RecordingPublishExecutor();
+		final MarkLogicBackfillCrawler second = createCrawler(secondExecutor);
+		second.setPageSize(3);
+		second.start(CHANNEL_NAME, QUERY);
+		awaitStopped(second);
+
+		assertEquals(nodeRefs, secondExecutor.published);
+		assertEquals(NODES, second.getProcessed());
+	}
+
+	/**
+	 * Creates a crawler of two node pages, one page at a time, over the nodes.
+	 *
+	 * @param publishExecutor the publish executor
+	 * @return the crawler
+	 */
+	private MarkLogicBackfillCrawler createCrawler(final MarkLogicPublishExecutor publishExecutor) {
+		final Map<QName, Serializable> channelProperties = new HashMap<QName, Serializable>();
+		final Channel channel = fake(Channel.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return "getProperties".equals(method.getName()) ? channelProperties : null;
+			}
+		});
+		final MarkLogicBackfillCrawler crawler = new MarkLogicBackfillCrawler();
+		crawler.setPublishExecutor(publishExecutor);
+		crawler.setSearchService(fake(SearchService.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return query((SearchParameters) args[0]);
+			}
+		}));
+		crawler.setChannelService(fake(ChannelService.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return CHANNEL_NAME.equals(args[0]) ? channel : null;
+			}
+		}));
+		final RetryingTransactionHelper transactionHelper = new RetryingTransactionHelper() {
+			@Override
+			public <R> R doInTransaction(final RetryingTransactionCallback<R> callback, final boolean readOnly,
+					final boolean requiresNew) {
+				try {
+					return callback.execute();
+				} catch (RuntimeException runtimeEx) {
+					throw runtimeEx;
+				} catch (Throwable throwable) {
+					throw new AlfrescoRuntimeException("Transaction failed", throwable);
+				}
+			}
+		};
+		crawler.setTransactionService(fake(TransactionService.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return transactionHelper;
+			}
+		}));
+		crawler.setPageSize(2);
+		crawler.setPageThreads(1);
+		crawler.setCheckpointDirectory(checkpointDirectory.getPath());
+		crawler.afterPropertiesSet();
+		crawlers.add(crawler);
+		return crawler;
+	}
+
+	/**
+	 * Answers a page of the nodes.
+	 *
+	 * @param searchParameters the search parameters
+	 * @return the result set
+	 */
+	private ResultSet query(final SearchParameters searchParameters) {
+		assertEquals(QUERY, searchParameters.getQuery());
+		final int from = Math.min(searchParameters.getSkipCount(), nodeRefs.size());
+		final List<NodeRef> page = nodeRefs.subList(from, Math.min(from + searchParameters.getMaxItems(), nodeRefs.size()));
+		return fake(ResultSet.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				if ("getNodeRefs".equals(method.getName())) {
+					return page;
+				} else if ("getNumberFound".equals(method.getName())) {
+					return Long.valueOf(nodeRefs.size());
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Waits until a crawler has stopped.
+	 *
+	 * @param crawler the crawler
+	 * @throws InterruptedException the interrupted exception
+	 */
+	private static void awaitStopped(final MarkLogicBackfillCrawler crawler) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (crawler.isRunning()) {
+			assertFalse("The backfill did not stop", System.currentTimeMillis() > deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Creates a fake of a service interface.
+	 *
+	 * @param <T> the type
+	 * @param type the interface
+	 * @param handler the handler
+	 * @return the fake
+	 */
+	private static <T> T fake(final Class<T> type, final InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(MarkLogicBackfillCrawlerTest.class.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	/**
+	 * A publish executor recording the publishes queued on it and completing them straight away.
+	 */
+	private static final class RecordingPublishExecutor extends MarkLogicPublishExecutor {
+
+		/** The published nodes. */
+		private final List<NodeRef> published = Collections.synchronizedList(new ArrayList<NodeRef>());
+
+		/** The node at which the crawler is stopped, if any. */
+		private volatile NodeRef stopAt;
+
+		/** The crawler to stop. */
+		private volatile MarkLogicBackfillCrawler crawler;
+
+		/* (non-Javadoc)
+		 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishExecutor#submitPublish(org.alfresco.service.cmr.repository.NodeRef, java.util.Map)
+		 */
+		@Override
+		public Future<MarkLogicPublishResult> submitPublish(final NodeRef nodeToPublish,
+				final Map<QName, Serializable> channelProperties) {
+			published.add(nodeToPublish);
+			if (nodeToPublish.equals(stopAt)) {
+				crawler.stop();
+			}
+			final FutureTask<MarkLogicPublishResult> future = new FutureTask<MarkLogicPublishResult>(
+					new Callable<MarkLogicPublishResult>() {
+						public MarkLogicPublishResult call() {
+							return new MarkLogicPublishResult(nodeToPublish, MarkLogicPublishResult.Status.PUBLISHED, 200, null);
+						}
+					});
+			future.run();
+			return future;
+		}
+	}
+}
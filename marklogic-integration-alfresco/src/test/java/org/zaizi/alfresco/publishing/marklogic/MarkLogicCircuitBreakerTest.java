@@ -0,0 +1,183 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * State machine of the {@link MarkLogicCircuitBreaker}.
+ */
+public class MarkLogicCircuitBreakerTest {
+
+	/** The Constant HOST. */
+	private final static String HOST = "marklogic1:8000";
+
+	/** The Constant OPEN_MILLIS. */
+	private final static long OPEN_MILLIS = 100;
+
+	/** The circuit breaker. */
+	private MarkLogicCircuitBreaker circuitBreaker;
+
+	/**
+	 * Creates a circuit breaker opening after three failures.
+	 */
+	@Before
+	public void setUp() {
+		circuitBreaker = new MarkLogicCircuitBreaker();
+		circuitBreaker.setFailureThreshold(3);
+		circuitBreaker.setOpenMillis(OPEN_MILLIS);
+	}
+
+	/**
+	 * Only consecutive failures open the circuit.
+	 */
+	@Test
+	public void opensAfterConsecutiveFailures() {
+		circuitBreaker.recordFailure(HOST);
+		circuitBreaker.recordFailure(HOST);
+		circuitBreaker.recordSuccess(HOST);
+		circuitBreaker.recordFailure(HOST);
+		circuitBreaker.recordFailure(HOST);
+		assertEquals(MarkLogicCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOST));
+		assertTrue(circuitBreaker.allowRequest(HOST));
+
+		circuitBreaker.recordFailure(HOST);
+		assertEquals(MarkLogicCircuitBreaker.State.OPEN, circuitBreaker.getState(HOST));
+		assertFalse(circuitBreaker.allowRequest(HOST));
+		assertTrue(circuitBreaker.allowRequest("marklogic2:8000"));
+	}
+
+	/**
+	 * Once open millis have passed a single probe is let through.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Test
+	public void letsSingleProbeThrough() throws InterruptedException {
+		open();
+		Thread.sleep(OPEN_MILLIS + 20);
+
+		assertTrue(circuitBreaker.allowRequest(HOST));
+		assertEquals(MarkLogicCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(HOST));
+		assertFalse(circuitBreaker.allowRequest(HOST));
+	}
+
+	/**
+	 * A successful probe closes the circuit.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Test
+	public void closesOnProbeSuccess() throws InterruptedException {
+		probe();
+		circuitBreaker.recordSuccess(HOST);
+
+		assertEquals(MarkLogicCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOST));
+		assertTrue(circuitBreaker.allowRequest(HOST));
+		// The failure count starts again
+		circuitBreaker.recordFailure(HOST);
+		assertEquals(MarkLogicCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOST));
+	}
+
+	/**
+	 * A failed probe opens the circuit for another open millis.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Test
+	public void reopensOnProbeFailure() throws InterruptedException {
+		probe();
+		circuitBreaker.recordFailure(HOST);
+
+		assertEquals(MarkLogicCircuitBreaker.State.OPEN, circuitBreaker.getState(HOST));
+		assertFalse(circuitBreaker.allowRequest(HOST));
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertTrue(circuitBreaker.allowRequest(HOST));
+	}
+
+	/**
+	 * An ignored probe outcome lets the next request probe right away.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Test
+	public void releasesIgnoredProbe() throws InterruptedException {
+		probe();
+		circuitBreaker.recordIgnored(HOST);
+
+		assertEquals(MarkLogicCircuitBreaker.State.OPEN, circuitBreaker.getState(HOST));
+		assertTrue(circuitBreaker.allowRequest(HOST));
+		assertEquals(MarkLogicCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(HOST));
+		assertFalse(circuitBreaker.allowRequest(HOST));
+	}
+
+	/**
+	 * Ignored outcomes leave a closed or open circuit alone.
+	 */
+	@Test
+	public void ignoresOutcomeOutsideProbe() {
+		circuitBreaker.recordIgnored(HOST);
+		assertEquals(MarkLogicCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOST));
+
+		open();
+		circuitBreaker.recordIgnored(HOST);
+		assertEquals(MarkLogicCircuitBreaker.State.OPEN, circuitBreaker.getState(HOST));
+		assertFalse(circuitBreaker.allowRequest(HOST));
+	}
+
+	/**
+	 * A probe which never reports back is given up after open millis.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Test
+	public void expiresLostProbe() throws InterruptedException {
+		probe();
+		assertFalse(circuitBreaker.allowRequest(HOST));
+
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertTrue(circuitBreaker.allowRequest(HOST));
+		assertFalse(circuitBreaker.allowRequest(HOST));
+		circuitBreaker.recordSuccess(HOST);
+		assertEquals(MarkLogicCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOST));
+	}
+
+	/**
+	 * Opens the circuit of the host.
+	 */
+	private void open() {
+		for (int i = 0; i < 3; i++) {
+			circuitBreaker.recordFailure(HOST);
+		}
+		assertEquals(MarkLogicCircuitBreaker.State.OPEN, circuitBreaker.getState(HOST));
+	}
+
+	/**
+	 * Opens the circuit and lets the probe through.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	private void probe() throws InterruptedException {
+		open();
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertTrue(circuitBreaker.allowRequest(HOST));
+	}
+}
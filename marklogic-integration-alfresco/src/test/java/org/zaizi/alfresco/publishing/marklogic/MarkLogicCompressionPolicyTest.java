@@ -0,0 +1,151 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compression decisions of the {@link MarkLogicCompressionPolicy} and the bodies written by the
+ * {@link GzipCompressingEntity}.
+ */
+public class MarkLogicCompressionPolicyTest {
+
+	/** The compression policy. */
+	private MarkLogicCompressionPolicy compressionPolicy;
+
+	/**
+	 * Enables compression of xml documents.
+	 */
+	@Before
+	public void setUp() {
+		compressionPolicy = new MarkLogicCompressionPolicy();
+		compressionPolicy.setEnabled(true);
+		compressionPolicy.setMimeTypes(Arrays.asList("text/xml"));
+		compressionPolicy.setMinSizeBytes(1024);
+	}
+
+	/**
+	 * Compression is opt in.
+	 */
+	@Test
+	public void disabledByDefault() {
+		final MarkLogicCompressionPolicy defaultPolicy = new MarkLogicCompressionPolicy();
+		defaultPolicy.setMimeTypes(Arrays.asList("text/xml"));
+		final HttpEntity entity = new ByteArrayEntity(new byte[8192]);
+		assertSame(entity, defaultPolicy.apply(entity, "text/xml", 8192));
+	}
+
+	/**
+	 * Only listed mimetypes of at least the min size are compressed.
+	 */
+	@Test
+	public void compressesListedMimeTypesOnly() {
+		assertTrue(compressionPolicy.shouldCompress("text/xml", 1024));
+		assertTrue(!compressionPolicy.shouldCompress("text/xml", 1023));
+		assertTrue(!compressionPolicy.shouldCompress("application/pdf", 8192));
+		assertTrue(!compressionPolicy.shouldCompress(null, 8192));
+	}
+
+	/**
+	 * The compressed body inflates back to the original and the counters see both sizes.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void writesGzipBody() throws IOException {
+		final byte[] document = new byte[64 * 1024];
+		Arrays.fill(document, (byte) 'a');
+		final HttpEntity entity = compressionPolicy.apply(new ByteArrayEntity(document), "text/xml", document.length);
+		assertTrue(entity instanceof GzipCompressingEntity);
+		assertEquals("gzip", entity.getContentEncoding().getValue());
+
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		entity.writeTo(body);
+		assertArrayEquals(document, inflate(body.toByteArray()));
+		assertEquals(1, compressionPolicy.getCompressedRequests());
+		assertEquals(document.length, compressionPolicy.getUncompressedBytes());
+		assertEquals(body.size(), compressionPolicy.getCompressedBytes());
+	}
+
+	/**
+	 * A retried request writes the same entity again.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void rewritesEntity() throws IOException {
+		final byte[] document = new byte[4096];
+		Arrays.fill(document, (byte) 'r');
+		final HttpEntity entity = compressionPolicy.compress(new ByteArrayEntity(document), "text/xml", document.length);
+		assertTrue(entity instanceof GzipCompressingEntity);
+		for (int attempt = 0; attempt < 2; attempt++) {
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			entity.writeTo(body);
+			assertArrayEquals(document, inflate(body.toByteArray()));
+		}
+	}
+
+	/**
+	 * A route asking for compression skips the mimetype list but not the min size.
+	 */
+	@Test
+	public void routedCompressionKeepsMinSize() {
+		final HttpEntity small = new ByteArrayEntity(new byte[512]);
+		assertSame(small, compressionPolicy.compress(small, "application/json", 512));
+		assertSame(small, compressionPolicy.compress(small, "application/json", -1));
+
+		final HttpEntity large = new ByteArrayEntity(new byte[8192]);
+		assertTrue(compressionPolicy.compress(large, "application/json", 8192) instanceof GzipCompressingEntity);
+		assertEquals(0, compressionPolicy.getCompressedRequests());
+	}
+
+	/**
+	 * Inflates a gzip body.
+	 *
+	 * @param compressed the compressed body
+	 * @return the inflated bytes
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static byte[] inflate(final byte[] compressed) throws IOException {
+		final InputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		try {
+			final ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			int read;
+			while ((read = gunzip.read(buffer)) != -1) {
+				inflated.write(buffer, 0, read);
+			}
+			return inflated.toByteArray();
+		} finally {
+			gunzip.close();
+		}
+	}
+}
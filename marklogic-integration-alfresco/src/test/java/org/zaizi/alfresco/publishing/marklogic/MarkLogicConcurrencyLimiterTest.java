@@ -0,0 +1,231 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Limit adaptation (AIMD) and slot handling of the {@link MarkLogicConcurrencyLimiter}.
+ */
+public class MarkLogicConcurrencyLimiterTest {
+
+	/** The Constant HOST. */
+	private final static String HOST = "marklogic1:8000";
+
+	/** The concurrency limiter. */
+	private MarkLogicConcurrencyLimiter concurrencyLimiter;
+
+	/**
+	 * Creates an enabled limiter.
+	 */
+	@Before
+	public void setUp() {
+		concurrencyLimiter = new MarkLogicConcurrencyLimiter();
+		concurrencyLimiter.setEnabled(true);
+		concurrencyLimiter.setMinLimit(1);
+		concurrencyLimiter.setMaxLimit(64);
+		concurrencyLimiter.setBackoffRatio(0.5);
+		concurrencyLimiter.setLatencyTolerance(2.0);
+		concurrencyLimiter.setAcquireTimeoutMillis(1000);
+	}
+
+	/**
+	 * The limiter is off unless enabled.
+	 */
+	@Test
+	public void disabledByDefault() {
+		assertFalse(new MarkLogicConcurrencyLimiter().isEnabled());
+	}
+
+	/**
+	 * A limit in use grows while the latency holds, up to the max limit.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void growsUpToMaxLimit() throws Exception {
+		concurrencyLimiter.setInitialLimit(2);
+		concurrencyLimiter.setMaxLimit(3);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(concurrencyLimiter.acquire(HOST));
+			concurrencyLimiter.release(HOST, 10, 0, false);
+		}
+		assertEquals(3, concurrencyLimiter.getLimit(HOST));
+	}
+
+	/**
+	 * A limit mostly left unused does not grow.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void keepsUnusedLimit() throws Exception {
+		concurrencyLimiter.setInitialLimit(8);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(concurrencyLimiter.acquire(HOST));
+			concurrencyLimiter.release(HOST, 10, 0, false);
+		}
+		assertEquals(8, concurrencyLimiter.getLimit(HOST));
+	}
+
+	/**
+	 * An overload cuts the limit once per latency, so the requests failing together count once.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void cutsOncePerLatencyOnOverload() throws Exception {
+		concurrencyLimiter.setInitialLimit(16);
+		assertTrue(concurrencyLimiter.acquire(HOST));
+		assertTrue(concurrencyLimiter.acquire(HOST));
+		concurrencyLimiter.release(HOST, 50, 0, true);
+		concurrencyLimiter.release(HOST, 50, 0, true);
+		assertEquals(8, concurrencyLimiter.getLimit(HOST));
+
+		Thread.sleep(70);
+		assertTrue(concurrencyLimiter.acquire(HOST));
+		concurrencyLimiter.release(HOST, 50, 0, true);
+		assertEquals(4, concurrencyLimiter.getLimit(HOST));
+	}
+
+	/**
+	 * The limit is never cut below the min limit.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void keepsMinLimit() throws Exception {
+		concurrencyLimiter.setInitialLimit(3);
+		concurrencyLimiter.setMinLimit(2);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(concurrencyLimiter.acquire(HOST));
+			concurrencyLimiter.release(HOST, 1, 0, true);
+			Thread.sleep(5);
+		}
+		assertEquals(2, concurrencyLimiter.getLimit(HOST));
+	}
+
+	/**
+	 * A latency growing beyond the tolerance of the baseline cuts the limit.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void cutsOnLatencyBeyondTolerance() throws Exception {
+		concurrencyLimiter.setInitialLimit(16);
+		assertTrue(concurrencyLimiter.acquire(HOST));
+		concurrencyLimiter.release(HOST, 10, 0, false);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(concurrencyLimiter.acquire(HOST));
+			concurrencyLimiter.release(HOST, 200, 0, false);
+		}
+		assertEquals(8, concurrencyLimiter.getLimit(HOST));
+	}
+
+	/**
+	 * Large or unsized bodies do not count as latency samples.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void ignoresLatencyOfLargeBodies() throws Exception {
+		concurrencyLimiter.setInitialLimit(16);
+		concurrencyLimiter.setLatencySampleMaxBytes(1024);
+		assertTrue(concurrencyLimiter.acquire(HOST));
+		concurrencyLimiter.release(HOST, 10, 0, false);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(concurrencyLimiter.acquire(HOST));
+			concurrencyLimiter.release(HOST, 200, 4096, false);
+			assertTrue(concurrencyLimiter.acquire(HOST));
+			concurrencyLimiter.release(HOST, 200, -1, false);
+		}
+		assertEquals(16, concurrencyLimiter.getLimit(HOST));
+	}
+
+	/**
+	 * A blocking request gives up once no slot was freed within the acquire timeout.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void timesOutWaitingForSlot() throws Exception {
+		concurrencyLimiter.setInitialLimit(1);
+		concurrencyLimiter.setAcquireTimeoutMillis(50);
+		assertTrue(concurrencyLimiter.acquire(HOST));
+		final long start = System.currentTimeMillis();
+		assertFalse(concurrencyLimiter.acquire(HOST));
+		assertTrue(System.currentTimeMillis() - start >= 40);
+
+		concurrencyLimiter.release(HOST, 10, 0, false);
+		assertTrue(concurrencyLimiter.acquire(HOST));
+	}
+
+	/**
+	 * A blocking request waiting for a slot gets the slot released by another thread.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void wakesWaiterOnRelease() throws Exception {
+		concurrencyLimiter.setInitialLimit(1);
+		assertTrue(concurrencyLimiter.acquire(HOST));
+		final Thread releaser = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException intEx) {
+					Thread.currentThread().interrupt();
+				}
+				concurrencyLimiter.release(HOST, 10, 0, false);
+			}
+		});
+		releaser.start();
+		assertTrue(concurrencyLimiter.acquire(HOST));
+		releaser.join();
+	}
+
+	/**
+	 * A submitted request over the limit is queued and run with its slot when one is released. The
+	 * releases are no latency samples, so the limit stays at one.
+	 */
+	@Test
+	public void queuesSubmittedRequestUntilRelease() {
+		concurrencyLimiter.setInitialLimit(1);
+		final AtomicInteger granted = new AtomicInteger();
+		final Runnable onAcquired = new Runnable() {
+			public void run() {
+				granted.incrementAndGet();
+			}
+		};
+		assertTrue(concurrencyLimiter.tryAcquire(HOST, onAcquired));
+		assertFalse(concurrencyLimiter.tryAcquire(HOST, onAcquired));
+		assertEquals(0, granted.get());
+
+		concurrencyLimiter.release(HOST, 10, -1, false);
+		assertEquals(1, granted.get());
+		// The queued request now holds the slot
+		assertFalse(concurrencyLimiter.tryAcquire(HOST, onAcquired));
+		concurrencyLimiter.release(HOST, 10, -1, false);
+		assertEquals(2, granted.get());
+	}
+}
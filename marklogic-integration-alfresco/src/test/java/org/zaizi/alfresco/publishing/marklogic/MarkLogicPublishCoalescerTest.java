@@ -0,0 +1,386 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Windows of the {@link MarkLogicPublishCoalescer}: the last request of a window wins, a publish
+ * followed by an unpublish of a node MarkLogic never had is dropped, and requests made in a transaction
+ * wait for its commit.
+ */
+public class MarkLogicPublishCoalescerTest {
+
+	/** The Constant CHANNEL_KEY. */
+	private final static String CHANNEL_KEY = "channel-1";
+
+	/** The Constant WINDOW_MILLIS. */
+	private final static long WINDOW_MILLIS = 50;
+
+	/** The Constant NODE. */
+	private final static NodeRef NODE = new NodeRef("workspace://SpacesStore/coalesced");
+
+	/** The publish executor. */
+	private RecordingPublishExecutor publishExecutor;
+
+	/** The published content index. */
+	private MarkLogicPublishedContentIndex publishedContentIndex;
+
+	/** The index directory. */
+	private File indexDirectory;
+
+	/** The metrics. */
+	private MarkLogicPublishingMetrics metrics;
+
+	/** The coalescer. */
+	private MarkLogicPublishCoalescer coalescer;
+
+	/** The channel properties. */
+	private final Map<QName, Serializable> channelProperties = new HashMap<QName, Serializable>();
+
+	/**
+	 * Wires a coalescer with a short window to a recording executor and an empty index.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		channelProperties.put(ContentModel.PROP_NODE_UUID, CHANNEL_KEY);
+
+		indexDirectory = File.createTempFile("marklogic-index", "");
+		assertTrue(indexDirectory.delete() && indexDirectory.mkdirs());
+		publishedContentIndex = new MarkLogicPublishedContentIndex();
+		publishedContentIndex.setIndexDirectory(indexDirectory.getPath());
+		publishedContentIndex.afterPropertiesSet();
+
+		publishExecutor = new RecordingPublishExecutor();
+		metrics = new MarkLogicPublishingMetrics();
+		coalescer = new MarkLogicPublishCoalescer();
+		coalescer.setPublishExecutor(publishExecutor);
+		coalescer.setPublishingHelper(new MarkLogicPublishingHelper());
+		coalescer.setPublishedContentIndex(publishedContentIndex);
+		coalescer.setMetrics(metrics);
+		coalescer.setWindowMillis(WINDOW_MILLIS);
+		coalescer.setMaxDelayMillis(10 * WINDOW_MILLIS);
+		coalescer.afterPropertiesSet();
+	}
+
+	/**
+	 * Stops the coalescer and removes the index.
+	 *
+	 * @throws Exception the exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		coalescer.destroy();
+		publishedContentIndex.destroy();
+		final File[] files = indexDirectory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		indexDirectory.delete();
+	}
+
+	/**
+	 * The coalescer is off unless a window is configured.
+	 */
+	@Test
+	public void disabledByDefault() {
+		assertFalse(new MarkLogicPublishCoalescer().isEnabled());
+	}
+
+	/**
+	 * A burst of publishes of a node is sent as one publish, whose result every caller gets.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void sendsBurstOnce() throws Exception {
+		final Future<MarkLogicPublishResult> first = coalescer.publish(NODE, channelProperties);
+		final Future<MarkLogicPublishResult> second = coalescer.publish(NODE, channelProperties);
+		final Future<MarkLogicPublishResult> third = coalescer.publish(NODE, channelProperties);
+
+		final MarkLogicPublishResult result = third.get(1, TimeUnit.SECONDS);
+		assertEquals(MarkLogicPublishResult.Status.PUBLISHED, result.getStatus());
+		assertSame(result, first.get());
+		assertSame(result, second.get());
+		assertEquals(Collections.singletonList(Boolean.TRUE), publishExecutor.calls);
+		assertEquals(2, metrics.getCoalescedRequests());
+		assertEquals(0, coalescer.getPendingNodes());
+	}
+
+	/**
+	 * A publish followed by an unpublish of a node which was never published is dropped.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void cancelsPublishThenUnpublishOfNewNode() throws Exception {
+		final Future<MarkLogicPublishResult> publish = coalescer.publish(NODE, channelProperties);
+		final Future<MarkLogicPublishResult> unpublish = coalescer.unpublish(NODE, channelProperties);
+
+		assertEquals(MarkLogicPublishResult.Status.SKIPPED, unpublish.get(1, TimeUnit.SECONDS).getStatus());
+		assertEquals(MarkLogicPublishResult.Status.SKIPPED, publish.get().getStatus());
+		assertTrue(publishExecutor.calls.isEmpty());
+		assertEquals(2, metrics.getCancelledRequests());
+	}
+
+	/**
+	 * A publish followed by an unpublish of a node MarkLogic already has still removes it.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void sendsUnpublishOfPublishedNode() throws Exception {
+		publishedContentIndex.recordPublished(CHANNEL_KEY, NODE, 1L);
+
+		coalescer.publish(NODE, channelProperties);
+		final Future<MarkLogicPublishResult> unpublish = coalescer.unpublish(NODE, channelProperties);
+
+		assertEquals(MarkLogicPublishResult.Status.UNPUBLISHED, unpublish.get(1, TimeUnit.SECONDS).getStatus());
+		assertEquals(Collections.singletonList(Boolean.FALSE), publishExecutor.calls);
+		assertEquals(0, metrics.getCancelledRequests());
+	}
+
+	/**
+	 * An unpublish followed by a publish is sent as a publish.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void sendsPublishAfterUnpublish() throws Exception {
+		coalescer.unpublish(NODE, channelProperties);
+		final Future<MarkLogicPublishResult> publish = coalescer.publish(NODE, channelProperties);
+
+		assertEquals(MarkLogicPublishResult.Status.PUBLISHED, publish.get(1, TimeUnit.SECONDS).getStatus());
+		assertEquals(Collections.singletonList(Boolean.TRUE), publishExecutor.calls);
+	}
+
+	/**
+	 * An unpublish of a new node is only dropped when it follows a publish in the same window.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void sendsUnpublishOfNewNodeAlone() throws Exception {
+		final Future<MarkLogicPublishResult> unpublish = coalescer.unpublish(NODE, channelProperties);
+
+		assertEquals(MarkLogicPublishResult.Status.UNPUBLISHED, unpublish.get(1, TimeUnit.SECONDS).getStatus());
+		assertEquals(Collections.singletonList(Boolean.FALSE), publishExecutor.calls);
+	}
+
+	/**
+	 * Without an index nothing is known to be unpublished, so the unpublish is always sent.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void sendsUnpublishWithoutIndex() throws Exception {
+		coalescer.setPublishedContentIndex(null);
+
+		coalescer.publish(NODE, channelProperties);
+		final Future<MarkLogicPublishResult> unpublish = coalescer.unpublish(NODE, channelProperties);
+
+		assertEquals(MarkLogicPublishResult.Status.UNPUBLISHED, unpublish.get(1, TimeUnit.SECONDS).getStatus());
+		assertEquals(Collections.singletonList(Boolean.FALSE), publishExecutor.calls);
+	}
+
+	/**
+	 * A node updated more often than the window is still sent once the max delay has passed.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void sendsWithinMaxDelay() throws Exception {
+		coalescer.setMaxDelayMillis(3 * WINDOW_MILLIS);
+		final Future<MarkLogicPublishResult> first = coalescer.publish(NODE, channelProperties);
+		final long start = System.currentTimeMillis();
+		while (!first.isDone() && System.currentTimeMillis() - start < 20 * WINDOW_MILLIS) {
+			Thread.sleep(WINDOW_MILLIS / 5);
+			coalescer.publish(NODE, channelProperties);
+		}
+		assertTrue("A window kept open by updates is sent after the max delay", first.isDone());
+		assertEquals(MarkLogicPublishResult.Status.PUBLISHED, first.get().getStatus());
+	}
+
+	/**
+	 * A failed call fails every request of its window.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void failsEveryRequestOfWindow() throws Exception {
+		publishExecutor.failure = new IOException("Connection refused");
+		final Future<MarkLogicPublishResult> first = coalescer.publish(NODE, channelProperties);
+		final Future<MarkLogicPublishResult> second = coalescer.publish(NODE, channelProperties);
+
+		for (final Future<MarkLogicPublishResult> future : new Future[] {first, second}) {
+			try {
+				future.get(1, TimeUnit.SECONDS);
+				fail("The failure of the coalesced call is reported to every caller");
+			} catch (ExecutionException execEx) {
+				assertSame(publishExecutor.failure, execEx.getCause());
+			}
+		}
+	}
+
+	/**
+	 * A request made in a transaction joins its window only once the transaction commits.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void waitsForCommit() throws Exception {
+		TransactionSynchronizationManager.initSynchronization();
+		final Future<MarkLogicPublishResult> publish;
+		try {
+			publish = coalescer.publish(NODE, channelProperties);
+			Thread.sleep(3 * WINDOW_MILLIS);
+			assertEquals(0, coalescer.getPendingNodes());
+			assertTrue(publishExecutor.calls.isEmpty());
+			complete(TransactionSynchronization.STATUS_COMMITTED);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+
+		assertEquals(MarkLogicPublishResult.Status.PUBLISHED, publish.get(1, TimeUnit.SECONDS).getStatus());
+		assertEquals(Collections.singletonList(Boolean.TRUE), publishExecutor.calls);
+	}
+
+	/**
+	 * A request made in a transaction which rolls back is never sent.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void dropsRolledBackRequests() throws Exception {
+		TransactionSynchronizationManager.initSynchronization();
+		final Future<MarkLogicPublishResult> publish;
+		try {
+			publish = coalescer.publish(NODE, channelProperties);
+			complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+
+		assertEquals(MarkLogicPublishResult.Status.SKIPPED, publish.get(1, TimeUnit.SECONDS).getStatus());
+		Thread.sleep(3 * WINDOW_MILLIS);
+		assertTrue(publishExecutor.calls.isEmpty());
+		assertEquals(0, coalescer.getPendingNodes());
+	}
+
+	/**
+	 * The channel hands the node over and returns, a failed coalesced call is not rethrown.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void channelDoesNotWait() throws Exception {
+		final MarkLogicChannelType channelType = new MarkLogicChannelType();
+		channelType.setPublishCoalescer(coalescer);
+		publishExecutor.status = MarkLogicPublishResult.Status.FAILED;
+
+		channelType.publish(NODE, channelProperties);
+
+		assertTrue(publishExecutor.calls.isEmpty());
+		assertEquals(1, coalescer.getPendingNodes());
+		Thread.sleep(3 * WINDOW_MILLIS);
+		assertEquals(1, publishExecutor.calls.size());
+	}
+
+	/**
+	 * Ends the transaction of the current thread the way the transaction manager does.
+	 *
+	 * @param status the completion status
+	 */
+	private static void complete(final int status) {
+		final List<TransactionSynchronization> synchronizations =
+				TransactionSynchronizationManager.getSynchronizations();
+		for (final TransactionSynchronization synchronization : synchronizations) {
+			if (status == TransactionSynchronization.STATUS_COMMITTED) {
+				synchronization.beforeCommit(false);
+			}
+			synchronization.beforeCompletion();
+		}
+		for (final TransactionSynchronization synchronization : synchronizations) {
+			if (status == TransactionSynchronization.STATUS_COMMITTED) {
+				synchronization.afterCommit();
+			}
+		}
+		for (final TransactionSynchronization synchronization : synchronizations) {
+			synchronization.afterCompletion(status);
+		}
+	}
+
+	/**
+	 * A publish executor recording the calls queued on it and completing them straight away.
+	 */
+	private static final class RecordingPublishExecutor extends MarkLogicPublishExecutor {
+
+		/** The calls, true for a publish. */
+		private final List<Boolean> calls = Collections.synchronizedList(new ArrayList<Boolean>());
+
+		/** The status of publish calls, unpublish calls always succeed. */
+		private volatile MarkLogicPublishResult.Status status = MarkLogicPublishResult.Status.PUBLISHED;
+
+		/** The failure reported instead of a result, if any. */
+		private volatile Exception failure;
+
+		/* (non-Javadoc)
+		 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishExecutor#submit(org.alfresco.service.cmr.repository.NodeRef, java.util.Map, boolean, org.zaizi.alfresco.publishing.marklogic.MarkLogicTransportCallback)
+		 */
+		@Override
+		public void submit(final NodeRef nodeRef, final Map<QName, Serializable> channelProperties,
+				final boolean publish, final MarkLogicTransportCallback<MarkLogicPublishResult> callback) {
+			calls.add(Boolean.valueOf(publish));
+			if (failure != null) {
+				callback.failed(failure);
+			} else if (!publish) {
+				callback.completed(new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.UNPUBLISHED,
+						200, null));
+			} else if (status == MarkLogicPublishResult.Status.FAILED) {
+				callback.completed(new MarkLogicPublishResult(nodeRef, status, 400, "Bad request"));
+			} else {
+				callback.completed(new MarkLogicPublishResult(nodeRef, status, 200, null));
+			}
+		}
+	}
+}
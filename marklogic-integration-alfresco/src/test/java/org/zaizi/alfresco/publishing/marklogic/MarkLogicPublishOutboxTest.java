@@ -0,0 +1,690 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.publishing.channels.Channel;
+import org.alfresco.service.cmr.publishing.channels.ChannelService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Replay and compaction of the {@link MarkLogicPublishOutbox} log, with the drain thread held back by the
+ * startup delay so calls stay pending, and draining against a channel type recording the calls it is sent.
+ */
+public class MarkLogicPublishOutboxTest {
+
+	/** The Constant CHANNEL_ID. */
+	private final static String CHANNEL_ID = "workspace://SpacesStore/channel-1";
+
+	/** The Constant OUTBOX_FILE_NAME. */
+	private final static String OUTBOX_FILE_NAME = "publish-outbox.wal";
+
+	/** The outbox directory. */
+	private File outboxDirectory;
+
+	/** The outboxes opened by the test. */
+	private final List<MarkLogicPublishOutbox> outboxes = new ArrayList<MarkLogicPublishOutbox>();
+
+	/** The channel properties. */
+	private final Map<QName, Serializable> channelProperties = new HashMap<QName, Serializable>();
+
+	/** The channel type. */
+	private final RecordingChannelType channelType = new RecordingChannelType();
+
+	/** The nodes which no longer exist. */
+	private final Set<NodeRef> deletedNodes = Collections.synchronizedSet(new HashSet<NodeRef>());
+
+	/**
+	 * Creates an empty outbox directory.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		channelProperties.put(ContentModel.PROP_STORE_PROTOCOL, "workspace");
+		channelProperties.put(ContentModel.PROP_STORE_IDENTIFIER, "SpacesStore");
+		channelProperties.put(ContentModel.PROP_NODE_UUID, "channel-1");
+		outboxDirectory = File.createTempFile("marklogic-outbox", "");
+		assertTrue(outboxDirectory.delete() && outboxDirectory.mkdirs());
+	}
+
+	/**
+	 * Closes the outboxes and removes the directory.
+	 *
+	 * @throws Exception the exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		for (final MarkLogicPublishOutbox outbox : outboxes) {
+			outbox.destroy();
+		}
+		final File[] files = outboxDirectory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		outboxDirectory.delete();
+	}
+
+	/**
+	 * The outbox is off unless enabled.
+	 */
+	@Test
+	public void disabledByDefault() {
+		assertFalse(new MarkLogicPublishOutbox().isEnabled());
+	}
+
+	/**
+	 * An enabled outbox needs a directory of its own.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void requiresOutboxDirectory() throws IOException {
+		final MarkLogicPublishOutbox outbox = new MarkLogicPublishOutbox();
+		outbox.setEnabled(true);
+		try {
+			outbox.afterPropertiesSet();
+			fail("An enabled outbox without a directory does not start");
+		} catch (AlfrescoRuntimeException alfEx) {
+			assertTrue(alfEx.getMessage().indexOf("outbox directory") >= 0);
+		}
+	}
+
+	/**
+	 * Calls left pending at shutdown are pending again after a restart.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void replaysPendingCallsAfterRestart() throws Exception {
+		final MarkLogicPublishOutbox outbox = open();
+		outbox.publish(node(1), channelProperties);
+		outbox.unpublish(node(2), channelProperties);
+		outbox.publish(node(3), channelProperties);
+		assertEquals(3, outbox.getPendingCount());
+		outbox.destroy();
+		outboxes.remove(outbox);
+
+		assertEquals(3, open().getPendingCount());
+	}
+
+	/**
+	 * Acknowledged calls and a torn last record are not replayed.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void replaysOnlyUnacknowledgedCalls() throws Exception {
+		write(OUTBOX_FILE_NAME, "A 1 P " + CHANNEL_ID + " " + node(1) + "\n"
+				+ "A 2 U " + CHANNEL_ID + " " + node(2) + "\n"
+				+ "D 1\n"
+				+ "A 3 P " + CHANNEL_ID);
+
+		final MarkLogicPublishOutbox outbox = open();
+		assertEquals(1, outbox.getPendingCount());
+
+		// New calls are numbered after the replayed ones
+		outbox.publish(node(4), channelProperties);
+		outbox.destroy();
+		outboxes.remove(outbox);
+		assertEquals(2, open().getPendingCount());
+	}
+
+	/**
+	 * On startup the log is rewritten with only the pending calls.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void compactsLogToPendingCalls() throws Exception {
+		write(OUTBOX_FILE_NAME, "A 1 P " + CHANNEL_ID + " " + node(1) + "\n"
+				+ "A 2 P " + CHANNEL_ID + " " + node(2) + "\n"
+				+ "D 1\n"
+				+ "A 3 U " + CHANNEL_ID + " " + node(3) + "\n"
+				+ "D 3\n");
+
+		open();
+		final List<String> records = read(OUTBOX_FILE_NAME);
+		assertEquals(1, records.size());
+		assertEquals("A 2 P " + CHANNEL_ID + " " + node(2), records.get(0));
+		assertFalse(new File(outboxDirectory, OUTBOX_FILE_NAME + ".tmp").exists());
+	}
+
+	/**
+	 * A compacted copy left by a crash after the log was removed replaces the log.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void recoversCompactedCopy() throws Exception {
+		write(OUTBOX_FILE_NAME + ".tmp", "A 5 P " + CHANNEL_ID + " " + node(5) + "\n"
+				+ "A 6 U " + CHANNEL_ID + " " + node(6) + "\n");
+
+		assertEquals(2, open().getPendingCount());
+		assertEquals(2, read(OUTBOX_FILE_NAME).size());
+	}
+
+	/**
+	 * A compacted copy left by a crash while it was written is ignored while the log is there.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void ignoresPartialCompactedCopy() throws Exception {
+		write(OUTBOX_FILE_NAME, "A 1 P " + CHANNEL_ID + " " + node(1) + "\n"
+				+ "A 2 P " + CHANNEL_ID + " " + node(2) + "\n");
+		write(OUTBOX_FILE_NAME + ".tmp", "A 1 P " + CHANNEL_ID + " " + node(1) + "\n");
+
+		assertEquals(2, open().getPendingCount());
+	}
+
+	/**
+	 * Calls beyond the pending limit are refused instead of growing the log.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void refusesCallsWhenFull() throws Exception {
+		final MarkLogicPublishOutbox outbox = new MarkLogicPublishOutbox();
+		outbox.setMaxPendingEntries(2);
+		start(outbox);
+		outbox.publish(node(1), channelProperties);
+		outbox.publish(node(2), channelProperties);
+		try {
+			outbox.publish(node(3), channelProperties);
+			fail("A full outbox refuses calls");
+		} catch (AlfrescoRuntimeException alfEx) {
+			assertEquals(2, outbox.getPendingCount());
+		}
+	}
+
+	/**
+	 * A call made in a transaction is only logged once the transaction commits.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void logsCallsAfterCommit() throws Exception {
+		final MarkLogicPublishOutbox outbox = open();
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			outbox.publish(node(1), channelProperties);
+			outbox.unpublish(node(2), channelProperties);
+			assertEquals(0, outbox.getPendingCount());
+			assertTrue(read(OUTBOX_FILE_NAME).isEmpty());
+			complete(TransactionSynchronization.STATUS_COMMITTED);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+
+		assertEquals(2, outbox.getPendingCount());
+		assertEquals(Arrays.asList("A 1 P " + CHANNEL_ID + " " + node(1), "A 2 U " + CHANNEL_ID + " " + node(2)),
+				read(OUTBOX_FILE_NAME));
+	}
+
+	/**
+	 * A call made in a transaction which rolls back is never logged.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void dropsRolledBackCalls() throws Exception {
+		final MarkLogicPublishOutbox outbox = open();
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			outbox.publish(node(1), channelProperties);
+			complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+
+		assertEquals(0, outbox.getPendingCount());
+		assertTrue(read(OUTBOX_FILE_NAME).isEmpty());
+	}
+
+	/**
+	 * A full outbox fails the call inside the transaction, so the transaction rolls back.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void refusesCallsInTransactionWhenFull() throws Exception {
+		final MarkLogicPublishOutbox outbox = new MarkLogicPublishOutbox();
+		outbox.setMaxPendingEntries(1);
+		start(outbox);
+		outbox.publish(node(1), channelProperties);
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			outbox.publish(node(2), channelProperties);
+			fail("A full outbox refuses calls");
+		} catch (AlfrescoRuntimeException alfEx) {
+			assertEquals(1, outbox.getPendingCount());
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+
+	/**
+	 * Publishes and unpublishes go out as batches and are acknowledged in the log.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void drainsPendingCalls() throws Exception {
+		final MarkLogicPublishOutbox outbox = openDraining();
+		outbox.publish(node(1), channelProperties);
+		outbox.publish(node(2), channelProperties);
+		outbox.unpublish(node(3), channelProperties);
+		awaitDrained(outbox);
+
+		assertEquals(Arrays.asList(node(1), node(2)), channelType.published);
+		assertEquals(Arrays.asList(node(3)), channelType.unpublished);
+		assertTrue(read(OUTBOX_FILE_NAME).containsAll(Arrays.asList("D 1", "D 2", "D 3")));
+		outbox.destroy();
+		outboxes.remove(outbox);
+		assertEquals(0, open().getPendingCount());
+	}
+
+	/**
+	 * Only the last call for a node is sent, and every call for it is acknowledged.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void collapsesCallsPerNode() throws Exception {
+		final MarkLogicPublishOutbox outbox = openDraining();
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			outbox.publish(node(1), channelProperties);
+			outbox.unpublish(node(2), channelProperties);
+			outbox.unpublish(node(1), channelProperties);
+			outbox.publish(node(2), channelProperties);
+			outbox.publish(node(1), channelProperties);
+			complete(TransactionSynchronization.STATUS_COMMITTED);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		awaitDrained(outbox);
+
+		assertEquals(Arrays.asList(node(2), node(1)), channelType.published);
+		assertTrue(channelType.unpublished.isEmpty());
+	}
+
+	/**
+	 * Calls replayed after a restart are sent with the properties of their channel.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void drainsReplayedCalls() throws Exception {
+		write(OUTBOX_FILE_NAME, "A 1 P " + CHANNEL_ID + " " + node(1) + "\n"
+				+ "A 2 U " + CHANNEL_ID + " " + node(2) + "\n");
+
+		awaitDrained(openDraining());
+		assertEquals(Arrays.asList(node(1)), channelType.published);
+		assertEquals(Arrays.asList(node(2)), channelType.unpublished);
+	}
+
+	/**
+	 * A node deleted after the commit of its call has nothing left to publish.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void acknowledgesDeletedNodes() throws Exception {
+		deletedNodes.add(node(1));
+		final MarkLogicPublishOutbox outbox = openDraining();
+		outbox.publish(node(1), channelProperties);
+		outbox.publish(node(2), channelProperties);
+		awaitDrained(outbox);
+
+		assertEquals(Arrays.asList(node(2)), channelType.published);
+	}
+
+	/**
+	 * A failed call stays pending and is sent again.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void retriesFailedCalls() throws Exception {
+		channelType.failures.put(node(1), Integer.valueOf(2));
+		channelType.failures.put(node(2), Integer.valueOf(1));
+		final MarkLogicPublishOutbox outbox = openDraining();
+		outbox.publish(node(1), channelProperties);
+		outbox.unpublish(node(2), channelProperties);
+		awaitDrained(outbox);
+
+		assertEquals(Arrays.asList(node(1), node(1), node(1)), channelType.published);
+		assertEquals(Arrays.asList(node(2), node(2)), channelType.unpublished);
+	}
+
+	/**
+	 * A call failing <code>maxAttempts</code> times is dropped.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void dropsCallsAfterMaxAttempts() throws Exception {
+		channelType.failures.put(node(1), Integer.valueOf(Integer.MAX_VALUE));
+		final MarkLogicPublishOutbox outbox = new MarkLogicPublishOutbox();
+		outbox.setMaxAttempts(3);
+		startDraining(outbox);
+		outbox.publish(node(1), channelProperties);
+		awaitDrained(outbox);
+
+		assertEquals(Arrays.asList(node(1), node(1), node(1)), channelType.published);
+	}
+
+	/**
+	 * Opens an outbox on the test directory.
+	 *
+	 * @return the outbox
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private MarkLogicPublishOutbox open() throws IOException {
+		final MarkLogicPublishOutbox outbox = new MarkLogicPublishOutbox();
+		start(outbox);
+		return outbox;
+	}
+
+	/**
+	 * Enables and starts an outbox on the test directory, holding back its drain thread.
+	 *
+	 * @param outbox the outbox
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void start(final MarkLogicPublishOutbox outbox) throws IOException {
+		outbox.setStartupDelayMillis(3600000);
+		startOnDirectory(outbox);
+	}
+
+	/**
+	 * Opens an outbox on the test directory which drains to the recording channel type.
+	 *
+	 * @return the outbox
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private MarkLogicPublishOutbox openDraining() throws IOException {
+		final MarkLogicPublishOutbox outbox = new MarkLogicPublishOutbox();
+		startDraining(outbox);
+		return outbox;
+	}
+
+	/**
+	 * Enables and starts an outbox on the test directory, draining to the recording channel type right away.
+	 *
+	 * @param outbox the outbox
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void startDraining(final MarkLogicPublishOutbox outbox) throws IOException {
+		final Channel channel = fake(Channel.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return "getProperties".equals(method.getName()) ? channelProperties : null;
+			}
+		});
+		outbox.setChannelType(channelType);
+		outbox.setChannelService(fake(ChannelService.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return CHANNEL_ID.equals(args[0]) ? channel : null;
+			}
+		}));
+		outbox.setNodeService(fake(NodeService.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return Boolean.valueOf(!deletedNodes.contains(args[0]));
+			}
+		}));
+		final RetryingTransactionHelper transactionHelper = new RetryingTransactionHelper() {
+			@Override
+			public <R> R doInTransaction(final RetryingTransactionCallback<R> callback, final boolean readOnly,
+					final boolean requiresNew) {
+				try {
+					return callback.execute();
+				} catch (RuntimeException runtimeEx) {
+					throw runtimeEx;
+				} catch (Throwable throwable) {
+					throw new AlfrescoRuntimeException("Transaction failed", throwable);
+				}
+			}
+		};
+		outbox.setTransactionService(fake(TransactionService.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return transactionHelper;
+			}
+		}));
+		outbox.setStartupDelayMillis(0);
+		outbox.setLingerMillis(50);
+		outbox.setRetryDelayMillis(10);
+		outbox.setMaxRetryDelayMillis(20);
+		startOnDirectory(outbox);
+	}
+
+	/**
+	 * Enables and starts an outbox on the test directory.
+	 *
+	 * @param outbox the outbox
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void startOnDirectory(final MarkLogicPublishOutbox outbox) throws IOException {
+		outbox.setEnabled(true);
+		outbox.setOutboxDirectory(outboxDirectory.getPath());
+		outbox.setSyncOnWrite(false);
+		outbox.afterPropertiesSet();
+		outboxes.add(outbox);
+	}
+
+	/**
+	 * Waits until every call of the outbox is acknowledged.
+	 *
+	 * @param outbox the outbox
+	 * @throws InterruptedException the interrupted exception
+	 */
+	private static void awaitDrained(final MarkLogicPublishOutbox outbox) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (outbox.getPendingCount() > 0) {
+			assertFalse("The outbox did not drain", System.currentTimeMillis() > deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Ends the transaction of the current thread the way the transaction manager does.
+	 *
+	 * @param status the completion status
+	 */
+	private static void complete(final int status) {
+		final List<TransactionSynchronization> synchronizations =
+				TransactionSynchronizationManager.getSynchronizations();
+		for (final TransactionSynchronization synchronization : synchronizations) {
+			if (status == TransactionSynchronization.STATUS_COMMITTED) {
+				synchronization.beforeCommit(false);
+			}
+			synchronization.beforeCompletion();
+		}
+		for (final TransactionSynchronization synchronization : synchronizations) {
+			if (status == TransactionSynchronization.STATUS_COMMITTED) {
+				synchronization.afterCommit();
+			}
+		}
+		for (final TransactionSynchronization synchronization : synchronizations) {
+			synchronization.afterCompletion(status);
+		}
+	}
+
+	/**
+	 * Creates a fake of a service interface.
+	 *
+	 * @param <T> the type
+	 * @param type the interface
+	 * @param handler the handler
+	 * @return the fake
+	 */
+	private static <T> T fake(final Class<T> type, final InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(MarkLogicPublishOutboxTest.class.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	/**
+	 * Gets a node ref.
+	 *
+	 * @param number the node number
+	 * @return the node ref
+	 */
+	private static NodeRef node(final int number) {
+		return new NodeRef("workspace://SpacesStore/node-" + number);
+	}
+
+	/**
+	 * Writes a file of the outbox directory.
+	 *
+	 * @param name the file name
+	 * @param content the content
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void write(final String name, final String content) throws IOException {
+		final OutputStream out = new FileOutputStream(new File(outboxDirectory, name));
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the records of a file of the outbox directory.
+	 *
+	 * @param name the file name
+	 * @return the records
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private List<String> read(final String name) throws IOException {
+		final List<String> records = new ArrayList<String>();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(new File(outboxDirectory, name)), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				records.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return records;
+	}
+
+	/**
+	 * A channel type recording the nodes it is sent, failing a node a given number of times.
+	 */
+	private static final class RecordingChannelType extends MarkLogicChannelType {
+
+		/** The nodes sent for publishing, in order. */
+		private final List<NodeRef> published = Collections.synchronizedList(new ArrayList<NodeRef>());
+
+		/** The nodes sent for unpublishing, in order. */
+		private final List<NodeRef> unpublished = Collections.synchronizedList(new ArrayList<NodeRef>());
+
+		/** The failures left per node. */
+		private final Map<NodeRef, Integer> failures = Collections.synchronizedMap(new HashMap<NodeRef, Integer>());
+
+		/* (non-Javadoc)
+		 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicChannelType#publishBatch(java.util.Collection, java.util.Map)
+		 */
+		@Override
+		public Map<NodeRef, MarkLogicPublishResult> publishBatch(final Collection<NodeRef> nodesToPublish,
+				final Map<QName, Serializable> channelProperties) {
+			final Map<NodeRef, MarkLogicPublishResult> results = new LinkedHashMap<NodeRef, MarkLogicPublishResult>();
+			for (final NodeRef nodeRef : nodesToPublish) {
+				published.add(nodeRef);
+				results.put(nodeRef, fail(nodeRef)
+						? new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.FAILED, 503, "Unavailable")
+						: new MarkLogicPublishResult(nodeRef, MarkLogicPublishResult.Status.PUBLISHED, 200, null));
+			}
+			return results;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicChannelType#unpublishBatch(java.util.Collection, java.util.Map, org.zaizi.alfresco.publishing.marklogic.MarkLogicBulkUnpublishListener)
+		 */
+		@Override
+		public MarkLogicBulkUnpublishResult unpublishBatch(final Collection<NodeRef> nodesToUnpublish,
+				final Map<QName, Serializable> channelProperties, final MarkLogicBulkUnpublishListener listener) {
+			final MarkLogicBulkUnpublishResult result = new MarkLogicBulkUnpublishResult();
+			for (final NodeRef nodeRef : nodesToUnpublish) {
+				unpublished.add(nodeRef);
+				if (fail(nodeRef)) {
+					result.addFailure(nodeRef.toString(), "Unavailable");
+				} else {
+					result.addUnpublished();
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Uses up a failure of the node.
+		 *
+		 * @param nodeRef the node ref
+		 * @return true if the node fails this time
+		 */
+		private boolean fail(final NodeRef nodeRef) {
+			synchronized (failures) {
+				final Integer left = failures.get(nodeRef);
+				if (left == null || left.intValue() == 0) {
+					return false;
+				}
+				failures.put(nodeRef, Integer.valueOf(left.intValue() - 1));
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Journal replay of the {@link MarkLogicPublishedContentIndex} across restarts and crashes.
+ */
+public class MarkLogicPublishedContentIndexTest {
+
+	/** The Constant CHANNEL_KEY. */
+	private final static String CHANNEL_KEY = "channel-1";
+
+	/** The Constant INDEX_FILE_NAME. */
+	private final static String INDEX_FILE_NAME = "published-content.idx";
+
+	/** The index directory. */
+	private File indexDirectory;
+
+	/** The indexes opened by the test. */
+	private final List<MarkLogicPublishedContentIndex> indexes = new ArrayList<MarkLogicPublishedContentIndex>();
+
+	/**
+	 * Creates an empty index directory.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		indexDirectory = File.createTempFile("marklogic-index", "");
+		assertTrue(indexDirectory.delete() && indexDirectory.mkdirs());
+	}
+
+	/**
+	 * Closes the indexes and removes the directory.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		for (final MarkLogicPublishedContentIndex index : indexes) {
+			index.destroy();
+		}
+		final File[] files = indexDirectory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		indexDirectory.delete();
+	}
+
+	/**
+	 * The index does not fall back to a directory which temp cleanup may wipe.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void requiresIndexDirectory() throws IOException {
+		try {
+			new MarkLogicPublishedContentIndex().afterPropertiesSet();
+			fail("An index without a directory does not start");
+		} catch (AlfrescoRuntimeException alfEx) {
+			assertTrue(alfEx.getMessage().indexOf("index directory") >= 0);
+		}
+	}
+
+	/**
+	 * Published, metadata and removed records are replayed after a restart.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void replaysJournalAfterRestart() throws IOException {
+		final MarkLogicPublishedContentIndex index = open();
+		index.recordPublished(CHANNEL_KEY, node(1), 0xabcL);
+		index.recordMetadataPublished(CHANNEL_KEY, node(1), 0x123L);
+		index.recordPublished(CHANNEL_KEY, node(2), 0xdefL);
+		index.recordPublished(CHANNEL_KEY, node(3), 0x1L);
+		index.recordUnpublished(CHANNEL_KEY, node(3));
+		index.destroy();
+		indexes.remove(index);
+
+		final MarkLogicPublishedContentIndex restarted = open();
+		assertEquals(2, restarted.size());
+		assertTrue(restarted.isUnchanged(CHANNEL_KEY, node(1), 0xabcL, 0x123L));
+		assertTrue(restarted.isContentUnchanged(CHANNEL_KEY, node(2), 0xdefL));
+		assertFalse(restarted.isPublished(CHANNEL_KEY, node(3)));
+		assertFalse(restarted.isPublished("channel-2", node(1)));
+	}
+
+	/**
+	 * A record torn by a crash is ignored, the records before it are replayed.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void ignoresTornLastRecord() throws IOException {
+		write(INDEX_FILE_NAME, "P " + CHANNEL_KEY + "|" + node(1) + " abc\n"
+				+ "P " + CHANNEL_KEY + "|" + node(2) + " def\n"
+				+ "R " + CHANNEL_KEY + "|" + node(2) + "\n"
+				+ "P " + CHANNEL_KEY + "|" + node(3) + " 12x");
+
+		final MarkLogicPublishedContentIndex index = open();
+		assertEquals(1, index.size());
+		assertTrue(index.isContentUnchanged(CHANNEL_KEY, node(1), 0xabcL));
+		assertFalse(index.isPublished(CHANNEL_KEY, node(3)));
+
+		// The torn record is compacted away and new records replay after it
+		index.recordPublished(CHANNEL_KEY, node(4), 0x4L);
+		index.destroy();
+		indexes.remove(index);
+		assertEquals(2, open().size());
+	}
+
+	/**
+	 * A compacted copy left by a crash after the journal was removed replaces the journal.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void recoversCompactedCopy() throws IOException {
+		write(INDEX_FILE_NAME + ".tmp", "P " + CHANNEL_KEY + "|" + node(1) + " abc\n");
+
+		assertTrue(open().isContentUnchanged(CHANNEL_KEY, node(1), 0xabcL));
+	}
+
+	/**
+	 * Opens an index on the test directory.
+	 *
+	 * @return the index
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private MarkLogicPublishedContentIndex open() throws IOException {
+		final MarkLogicPublishedContentIndex index = new MarkLogicPublishedContentIndex();
+		index.setIndexDirectory(indexDirectory.getPath());
+		index.afterPropertiesSet();
+		indexes.add(index);
+		return index;
+	}
+
+	/**
+	 * Gets a node ref.
+	 *
+	 * @param number the node number
+	 * @return the node ref
+	 */
+	private static NodeRef node(final int number) {
+		return new NodeRef("workspace://SpacesStore/node-" + number);
+	}
+
+	/**
+	 * Writes a file of the index directory.
+	 *
+	 * @param name the file name
+	 * @param content the content
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void write(final String name, final String content) throws IOException {
+		final OutputStream out = new FileOutputStream(new File(indexDirectory, name));
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.encryption.MetadataEncryptor;
+import org.alfresco.repo.publishing.PublishingModel;
+import org.alfresco.service.namespace.QName;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.ClientContext;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Channel authentication cache and host lists of the {@link MarkLogicPublishingHelper}.
+ */
+public class MarkLogicPublishingHelperTest {
+
+	/** The encryptor. */
+	private SealingMetadataEncryptor encryptor;
+
+	/** The publishing helper. */
+	private MarkLogicPublishingHelper publishingHelper;
+
+	/**
+	 * Creates a helper whose channel credentials are sealed.
+	 */
+	@Before
+	public void setUp() {
+		encryptor = new SealingMetadataEncryptor();
+		publishingHelper = new MarkLogicPublishingHelper();
+		publishingHelper.setEncryptor(encryptor);
+	}
+
+	/**
+	 * Every read of an unmodified channel shares the authentication state, without decrypting again.
+	 */
+	@Test
+	public void keepsAuthStateOfUnmodifiedChannel() {
+		final Date modified = new Date(1000);
+		final Object authCache = authCache(channel(modified, "admin"));
+		final int decrypted = encryptor.decrypted;
+
+		assertSame(authCache, authCache(channel(new Date(1000), "admin")));
+		assertEquals(decrypted, encryptor.decrypted);
+	}
+
+	/**
+	 * A modified channel with the same credentials keeps the authentication state.
+	 */
+	@Test
+	public void keepsAuthStateOfUnchangedCredentials() {
+		final Object authCache = authCache(channel(new Date(1000), "admin"));
+
+		assertSame(authCache, authCache(channel(new Date(2000), "admin")));
+		// Checked against the new modification date from now on
+		final int decrypted = encryptor.decrypted;
+		assertSame(authCache, authCache(channel(new Date(2000), "admin")));
+		assertEquals(decrypted, encryptor.decrypted);
+	}
+
+	/**
+	 * A channel whose node carries no modification date is compared by its decrypted credentials.
+	 */
+	@Test
+	public void keepsAuthStateWithoutModificationDate() {
+		final Object authCache = authCache(channel(null, "admin"));
+
+		assertSame(authCache, authCache(channel(null, "admin")));
+	}
+
+	/**
+	 * Changed credentials drop the authentication state.
+	 */
+	@Test
+	public void dropsAuthStateOfChangedCredentials() {
+		final Object authCache = authCache(channel(new Date(1000), "admin"));
+
+		assertNotSame(authCache, authCache(channel(new Date(2000), "secret")));
+	}
+
+	/**
+	 * Host list entries without a valid port are skipped, the others keep their order.
+	 */
+	@Test
+	public void skipsInvalidHosts() {
+		final Map<QName, Serializable> channelProperties = channel(null, "admin");
+		channelProperties.put(MarkLogicPublishingModel.PROP_HOSTS, "ml1:8010, ml2:80x0, ml3, :8000, ml4:70000, ml5:8011");
+
+		final List<HttpHost> hosts = publishingHelper.getHosts(channelProperties);
+		assertEquals(3, hosts.size());
+		assertEquals(new HttpHost("ml1", 8010, "http"), hosts.get(0));
+		assertEquals(new HttpHost("ml3", 8000, "http"), hosts.get(1));
+		assertEquals(new HttpHost("ml5", 8011, "http"), hosts.get(2));
+	}
+
+	/**
+	 * A host list without any valid entry falls back to the single host.
+	 */
+	@Test
+	public void fallsBackToSingleHost() {
+		final Map<QName, Serializable> channelProperties = channel(null, "admin");
+		channelProperties.put(MarkLogicPublishingModel.PROP_HOSTS, "ml1:port");
+
+		assertEquals(Collections.singletonList(new HttpHost("marklogic1", 8000, "http")),
+				publishingHelper.getHosts(channelProperties));
+	}
+
+	/**
+	 * Gets the auth cache of the calling thread for the channel.
+	 *
+	 * @param channelProperties the channel properties
+	 * @return the auth cache
+	 */
+	private Object authCache(final Map<QName, Serializable> channelProperties) {
+		return publishingHelper.getHttpContextFromChannelProperties(channelProperties).getAttribute(
+				ClientContext.AUTH_CACHE);
+	}
+
+	/**
+	 * Reads the properties of the channel node, sealing the credentials anew as every read does.
+	 *
+	 * @param modified the modification date, may be null
+	 * @param password the password
+	 * @return the channel properties
+	 */
+	private static Map<QName, Serializable> channel(final Date modified, final String password) {
+		final Map<QName, Serializable> channelProperties = new HashMap<QName, Serializable>();
+		channelProperties.put(ContentModel.PROP_NODE_UUID, "channel-1");
+		channelProperties.put(MarkLogicPublishingModel.PROP_HOST, "marklogic1");
+		channelProperties.put(MarkLogicPublishingModel.PROP_PORT, Integer.valueOf(8000));
+		channelProperties.put(PublishingModel.PROP_CHANNEL_USERNAME, new Sealed("admin"));
+		channelProperties.put(PublishingModel.PROP_CHANNEL_PASSWORD, new Sealed(password));
+		if (modified != null) {
+			channelProperties.put(ContentModel.PROP_MODIFIED, modified);
+		}
+		return channelProperties;
+	}
+
+	/**
+	 * An encrypted value, like a SealedObject without value equality.
+	 */
+	private static final class Sealed implements Serializable {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The value. */
+		private final String value;
+
+		/**
+		 * Instantiates a new sealed value.
+		 *
+		 * @param value the value
+		 */
+		private Sealed(final String value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Encryptor unsealing {@link Sealed} values and counting them.
+	 */
+	private static final class SealingMetadataEncryptor extends MetadataEncryptor {
+
+		/** The number of decrypted values. */
+		private int decrypted;
+
+		/* (non-Javadoc)
+		 * @see org.alfresco.repo.node.encryption.MetadataEncryptor#decrypt(org.alfresco.service.namespace.QName, java.io.Serializable)
+		 */
+		@Override
+		public Serializable decrypt(final QName propertyQName, final Serializable inbound) {
+			decrypted++;
+			return ((Sealed) inbound).value;
+		}
+	}
+}
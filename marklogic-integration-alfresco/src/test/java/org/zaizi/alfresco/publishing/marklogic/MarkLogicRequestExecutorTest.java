@@ -0,0 +1,406 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.ConnectException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.node.encryption.MetadataEncryptor;
+import org.alfresco.repo.publishing.PublishingModel;
+import org.alfresco.service.namespace.QName;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.protocol.HttpContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Retries, circuit breaking and concurrency limiting of the {@link MarkLogicRequestExecutor}, over a
+ * transport playing back scripted outcomes.
+ */
+public class MarkLogicRequestExecutorTest {
+
+	/** The Constant HOST. */
+	private final static String HOST = "marklogic1:8000";
+
+	/** The Constant OPEN_MILLIS. */
+	private final static long OPEN_MILLIS = 50;
+
+	/** The Constant BACKOFF_MILLIS, the first backoff is at least half of it. */
+	private final static long BACKOFF_MILLIS = 400;
+
+	/** The transport. */
+	private ScriptedTransport transport;
+
+	/** The publishing helper. */
+	private MarkLogicPublishingHelper publishingHelper;
+
+	/** The cluster manager. */
+	private MarkLogicClusterManager clusterManager;
+
+	/** The circuit breaker. */
+	private MarkLogicCircuitBreaker circuitBreaker;
+
+	/** The request executor. */
+	private MarkLogicRequestExecutor requestExecutor;
+
+	/** The channel properties. */
+	private final Map<QName, Serializable> channelProperties = new HashMap<QName, Serializable>();
+
+	/**
+	 * Wires the executor to a single host channel.
+	 */
+	@Before
+	public void setUp() {
+		channelProperties.put(MarkLogicPublishingModel.PROP_HOST, "marklogic1");
+		channelProperties.put(MarkLogicPublishingModel.PROP_PORT, Integer.valueOf(8000));
+		channelProperties.put(PublishingModel.PROP_CHANNEL_USERNAME, "admin");
+		channelProperties.put(PublishingModel.PROP_CHANNEL_PASSWORD, "admin");
+
+		publishingHelper = new MarkLogicPublishingHelper();
+		publishingHelper.setEncryptor(new PlainTextMetadataEncryptor());
+		clusterManager = new MarkLogicClusterManager();
+		clusterManager.setPublishingHelper(publishingHelper);
+		circuitBreaker = new MarkLogicCircuitBreaker();
+		circuitBreaker.setFailureThreshold(1);
+		circuitBreaker.setOpenMillis(OPEN_MILLIS);
+		transport = new ScriptedTransport();
+
+		requestExecutor = new MarkLogicRequestExecutor();
+		requestExecutor.setPublishingHelper(publishingHelper);
+		requestExecutor.setClusterManager(clusterManager);
+		requestExecutor.setCircuitBreaker(circuitBreaker);
+		requestExecutor.setTransport(transport);
+		requestExecutor.setInitialBackoffMillis(1);
+	}
+
+	/**
+	 * Stops the retry scheduler.
+	 */
+	@After
+	public void tearDown() {
+		requestExecutor.destroy();
+	}
+
+	/**
+	 * A transient failure is retried after the backoff.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void retriesTransientFailure() throws Exception {
+		circuitBreaker.setFailureThreshold(5);
+		requestExecutor.setInitialBackoffMillis(BACKOFF_MILLIS);
+		transport.script(new ConnectException("Connection refused"));
+		final long start = System.currentTimeMillis();
+		final Object result = requestExecutor.execute(new HttpPut("http://marklogic/alfrescopub/publish"),
+				channelProperties, null);
+		assertEquals(Integer.valueOf(204), result);
+		assertEquals(2, transport.sent);
+		assertTrue(System.currentTimeMillis() - start >= BACKOFF_MILLIS / 2);
+	}
+
+	/**
+	 * The latency of each attempt leaves out the backoff before the retry.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void recordsAttemptLatencyOnly() throws Exception {
+		final MarkLogicPublishingMetrics metrics = new MarkLogicPublishingMetrics();
+		requestExecutor.setMetrics(metrics);
+		circuitBreaker.setFailureThreshold(5);
+		requestExecutor.setInitialBackoffMillis(BACKOFF_MILLIS);
+		transport.script(new ConnectException("Connection refused"));
+		requestExecutor.execute(new HttpPut("http://marklogic/alfrescopub/publish"), channelProperties, null);
+		transport.script(new ConnectException("Connection refused"));
+		requestExecutor.submit(new HttpPut("http://marklogic/alfrescopub/publish"), channelProperties, null)
+				.get(5, TimeUnit.SECONDS);
+
+		final MarkLogicEndpointMetrics endpoint = metrics.getEndpoint(
+				publishingHelper.getChannelKey(channelProperties), HOST);
+		assertEquals(4, endpoint.getPublishCount());
+		assertEquals(2, endpoint.getIoErrors());
+		assertEquals(2, endpoint.getSucceeded());
+		assertTrue(endpoint.getPublishLatencyP99() < BACKOFF_MILLIS / 2);
+		for (final MarkLogicHost host : clusterManager.getHosts()) {
+			assertTrue(host.getAverageLatencyMillis() < BACKOFF_MILLIS / 2);
+		}
+	}
+
+	/**
+	 * The request slot is released before the backoff, so other requests to the host go out meanwhile.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void releasesSlotDuringBackoff() throws Exception {
+		final MarkLogicConcurrencyLimiter concurrencyLimiter = new MarkLogicConcurrencyLimiter();
+		concurrencyLimiter.setEnabled(true);
+		concurrencyLimiter.setInitialLimit(1);
+		concurrencyLimiter.setMinLimit(1);
+		concurrencyLimiter.setAcquireTimeoutMillis(BACKOFF_MILLIS / 4);
+		requestExecutor.setConcurrencyLimiter(concurrencyLimiter);
+		circuitBreaker.setFailureThreshold(5);
+		requestExecutor.setInitialBackoffMillis(BACKOFF_MILLIS);
+		transport.script(new ConnectException("Connection refused"));
+
+		final Future<Object> retried = requestExecutor.submit(new HttpPut("http://marklogic/alfrescopub/publish"),
+				channelProperties, null);
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (transport.sent == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, transport.sent);
+		assertTrue("The only slot is held during the backoff", concurrencyLimiter.acquire(HOST));
+		assertEquals(1, transport.sent);
+		concurrencyLimiter.release(HOST, 0, 0, false);
+
+		assertEquals(Integer.valueOf(204), retried.get(5, TimeUnit.SECONDS));
+		assertEquals(2, transport.sent);
+	}
+
+	/**
+	 * Retries of submitted requests go out concurrently, one blocked in the transport does not hold up
+	 * the others.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void sendsRetriesConcurrently() throws Exception {
+		circuitBreaker.setFailureThreshold(5);
+		// Both first attempts fail before either retry is due
+		requestExecutor.setInitialBackoffMillis(BACKOFF_MILLIS);
+		transport.script(new ConnectException("Connection refused"), new ConnectException("Connection refused"));
+		transport.gate = new CountDownLatch(1);
+
+		final Future<Object> first = requestExecutor.submit(new HttpPut("http://marklogic/alfrescopub/publish"),
+				channelProperties, null);
+		final Future<Object> second = requestExecutor.submit(new HttpPut("http://marklogic/alfrescopub/publish"),
+				channelProperties, null);
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (transport.sent < 4 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals("Both retries are in flight", 4, transport.sent);
+		transport.gate.countDown();
+
+		assertEquals(Integer.valueOf(204), first.get(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(204), second.get(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * A probe failing in the response handler releases the half open circuit.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void releasesProbeOnRuntimeException() throws Exception {
+		halfOpenNextRequest();
+		transport.script(new IllegalStateException("Handler failed"));
+		try {
+			requestExecutor.execute(new HttpPut("http://marklogic/alfrescopub/publish"), channelProperties, null);
+			fail("The handler failure was swallowed");
+		} catch (IllegalStateException illegalEx) {
+			// Expected
+		}
+		assertProbeReleased();
+	}
+
+	/**
+	 * A probe failing on the client side releases the half open circuit.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void releasesProbeOnClientSideFailure() throws Exception {
+		halfOpenNextRequest();
+		transport.script(new ClientProtocolException("Bad request line"));
+		try {
+			requestExecutor.execute(new HttpPut("http://marklogic/alfrescopub/publish"), channelProperties, null);
+			fail("The client failure was swallowed");
+		} catch (ClientProtocolException protocolEx) {
+			// Expected
+		}
+		assertProbeReleased();
+	}
+
+	/**
+	 * A probe waiting too long for a request slot releases the half open circuit.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void releasesProbeOnSlotTimeout() throws Exception {
+		final MarkLogicConcurrencyLimiter concurrencyLimiter = new MarkLogicConcurrencyLimiter();
+		concurrencyLimiter.setEnabled(true);
+		concurrencyLimiter.setInitialLimit(1);
+		concurrencyLimiter.setMinLimit(1);
+		concurrencyLimiter.setAcquireTimeoutMillis(20);
+		requestExecutor.setConcurrencyLimiter(concurrencyLimiter);
+		assertTrue(concurrencyLimiter.acquire(HOST));
+
+		halfOpenNextRequest();
+		try {
+			requestExecutor.execute(new HttpPut("http://marklogic/alfrescopub/publish"), channelProperties, null);
+			fail("The request was sent without a slot");
+		} catch (IOException ioex) {
+			// Expected
+		}
+		assertEquals(0, transport.sent);
+		assertProbeReleased();
+	}
+
+	/**
+	 * A submitted probe failing on the client side releases the half open circuit.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void releasesSubmittedProbeOnClientSideFailure() throws Exception {
+		halfOpenNextRequest();
+		transport.script(new IllegalStateException("Handler failed"));
+		final Future<Object> future = requestExecutor.submit(new HttpPut("http://marklogic/alfrescopub/publish"),
+				channelProperties, null);
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("The handler failure was swallowed");
+		} catch (ExecutionException execEx) {
+			assertTrue(execEx.getCause() instanceof IllegalStateException);
+		}
+		assertProbeReleased();
+	}
+
+	/**
+	 * Opens the circuit of the host and waits until the next request is its probe.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	private void halfOpenNextRequest() throws InterruptedException {
+		circuitBreaker.recordFailure(HOST);
+		assertEquals(MarkLogicCircuitBreaker.State.OPEN, circuitBreaker.getState(HOST));
+		Thread.sleep(OPEN_MILLIS + 20);
+	}
+
+	/**
+	 * Checks that the circuit is not left half open with its probe gone, the next request probes again.
+	 */
+	private void assertProbeReleased() {
+		assertEquals(MarkLogicCircuitBreaker.State.OPEN, circuitBreaker.getState(HOST));
+		assertTrue(circuitBreaker.allowRequest(HOST));
+		assertEquals(MarkLogicCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(HOST));
+	}
+
+	/**
+	 * Transport answering with scripted results and failures, a 204 when nothing is scripted.
+	 */
+	private static final class ScriptedTransport implements MarkLogicTransport {
+
+		/** The outcomes still to play back, results or exceptions. */
+		private final LinkedList<Object> outcomes = new LinkedList<Object>();
+
+		/** The number of requests sent. */
+		private volatile int sent;
+
+		/** The gate successful requests wait for, if any. */
+		private volatile CountDownLatch gate;
+
+		/**
+		 * Adds outcomes to play back.
+		 *
+		 * @param scripted the outcomes
+		 */
+		private synchronized void script(final Object... scripted) {
+			for (final Object outcome : scripted) {
+				outcomes.add(outcome);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicTransport#execute(org.apache.http.client.methods.HttpRequestBase, org.apache.http.protocol.HttpContext, org.apache.http.client.ResponseHandler)
+		 */
+		@SuppressWarnings("unchecked")
+		public <T> T execute(final HttpRequestBase request, final HttpContext context,
+				final ResponseHandler<? extends T> responseHandler) throws IOException {
+			final Object outcome;
+			synchronized (this) {
+				sent++;
+				outcome = outcomes.isEmpty() ? Integer.valueOf(204) : outcomes.removeFirst();
+			}
+			if (outcome instanceof IOException) {
+				throw (IOException) outcome;
+			}
+			if (outcome instanceof RuntimeException) {
+				throw (RuntimeException) outcome;
+			}
+			if (gate != null) {
+				try {
+					gate.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException intEx) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return (T) outcome;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicTransport#execute(org.apache.http.client.methods.HttpRequestBase, org.apache.http.protocol.HttpContext, org.apache.http.client.ResponseHandler, org.zaizi.alfresco.publishing.marklogic.MarkLogicTransportCallback)
+		 */
+		public <T> void execute(final HttpRequestBase request, final HttpContext context,
+				final ResponseHandler<? extends T> responseHandler, final MarkLogicTransportCallback<T> callback) {
+			final T result;
+			try {
+				result = execute(request, context, responseHandler);
+			} catch (IOException ioex) {
+				callback.failed(ioex);
+				return;
+			} catch (RuntimeException runtimeEx) {
+				callback.failed(runtimeEx);
+				return;
+			}
+			callback.completed(result);
+		}
+	}
+
+	/**
+	 * Encryptor for channels whose credentials are stored in plain text.
+	 */
+	private static final class PlainTextMetadataEncryptor extends MetadataEncryptor {
+
+		/* (non-Javadoc)
+		 * @see org.alfresco.repo.node.encryption.MetadataEncryptor#decrypt(org.alfresco.service.namespace.QName, java.io.Serializable)
+		 */
+		@Override
+		public Serializable decrypt(final QName propertyQName, final Serializable inbound) {
+			return inbound;
+		}
+	}
+}
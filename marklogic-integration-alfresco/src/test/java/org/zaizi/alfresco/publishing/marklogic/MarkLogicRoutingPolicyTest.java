@@ -0,0 +1,236 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicRoute.Lane;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicRoute.Transfer;
+
+/**
+ * Route lookups of the {@link MarkLogicRoutingPolicy}: mimetype and size class precedence, size class
+ * bounds and reloads.
+ */
+public class MarkLogicRoutingPolicyTest {
+
+	/** The Constant POLICY, a subset of the shipped marklogic-routing.properties. */
+	private final static String POLICY = "routing.sizeClasses=small:65536,medium:16777216,large:1073741824,huge\n"
+			+ "routing.maxBufferBytes=1048576\n"
+			+ "routing.default=endpoint=alfrescopub/publish,transfer=stream,compress=false,lane=normal\n"
+			+ "routing.route.text-small=mimetype=text/*,size=small,transfer=buffer,compress=true,lane=fast\n"
+			+ "routing.route.text=mimetype=text/*,size=*,compress=true\n"
+			+ "routing.route.xml-small=mimetype=application/xml,size=small,transfer=buffer,compress=true,lane=fast\n"
+			+ "routing.route.xml=mimetype=application/xml,size=*,compress=true\n"
+			+ "routing.route.any-small=mimetype=*,size=small,transfer=buffer,lane=fast\n"
+			+ "routing.route.any-huge=mimetype=*,size=huge,lane=bulk\n"
+			+ "routing.route.zip-large=mimetype=application/zip,size=large,lane=bulk,endpoint=alfrescopub/archive\n";
+
+	/** The routing policy. */
+	private MarkLogicRoutingPolicy routingPolicy;
+
+	/** The policy file of the reload test. */
+	private File policyFile;
+
+	/**
+	 * Loads the policy.
+	 */
+	@Before
+	public void setUp() {
+		routingPolicy = load(new ByteArrayResource(POLICY.getBytes()));
+	}
+
+	/**
+	 * Deletes the policy file, if any.
+	 */
+	@After
+	public void tearDown() {
+		routingPolicy.destroy();
+		if (policyFile != null) {
+			policyFile.delete();
+		}
+	}
+
+	/**
+	 * An exact mimetype rule wins over the major type wildcard, which wins over the any mimetype rules.
+	 */
+	@Test
+	public void mostSpecificMimeTypeWins() {
+		assertRoute(routingPolicy.route("application/xml", 100), "alfrescopub/publish", Transfer.BUFFER, true, Lane.FAST);
+		assertRoute(routingPolicy.route("text/csv", 100), "alfrescopub/publish", Transfer.BUFFER, true, Lane.FAST);
+		assertRoute(routingPolicy.route("application/pdf", 100), "alfrescopub/publish", Transfer.BUFFER, false, Lane.FAST);
+		assertRoute(routingPolicy.route(null, 100), "alfrescopub/publish", Transfer.BUFFER, false, Lane.FAST);
+	}
+
+	/**
+	 * A size class rule wins over the any size rule of the same mimetype, and size classes a mimetype
+	 * has no rule for inherit from the less specific mimetype.
+	 */
+	@Test
+	public void mostSpecificSizeClassWins() {
+		assertRoute(routingPolicy.route("text/plain", 100000), "alfrescopub/publish", Transfer.STREAM, true, Lane.NORMAL);
+		assertRoute(routingPolicy.route("application/zip", 100), "alfrescopub/publish", Transfer.BUFFER, false, Lane.FAST);
+		assertRoute(routingPolicy.route("application/zip", 100000000), "alfrescopub/archive", Transfer.STREAM, false,
+				Lane.BULK);
+		assertRoute(routingPolicy.route("application/zip", 2000000000), "alfrescopub/publish", Transfer.STREAM, false,
+				Lane.BULK);
+	}
+
+	/**
+	 * Mimetype parameters and case do not matter.
+	 */
+	@Test
+	public void normalizesMimeType() {
+		assertEquals(Lane.FAST, routingPolicy.route("Application/XML; charset=UTF-8", 100).getLane());
+		assertTrue(routingPolicy.route("TEXT/Plain;charset=UTF-8", 100000).isCompress());
+	}
+
+	/**
+	 * Size class upper bounds are inclusive, also when they fall inside a power of two bucket, and
+	 * unknown sizes fall in the last class.
+	 */
+	@Test
+	public void appliesSizeClassBounds() {
+		assertEquals(Transfer.BUFFER, routingPolicy.route("text/plain", 0).getTransfer());
+		assertEquals(Transfer.BUFFER, routingPolicy.route("text/plain", 65536).getTransfer());
+		assertEquals(Transfer.STREAM, routingPolicy.route("text/plain", 65537).getTransfer());
+		assertEquals(Lane.NORMAL, routingPolicy.route("application/pdf", 1073741824).getLane());
+		assertEquals(Lane.BULK, routingPolicy.route("application/pdf", 1073741825).getLane());
+		assertEquals(Lane.BULK, routingPolicy.route("application/pdf", -1).getLane());
+		assertEquals(Lane.BULK, routingPolicy.route("application/pdf", Long.MAX_VALUE).getLane());
+
+		final MarkLogicRoutingPolicy unevenPolicy = load(new ByteArrayResource(
+				("routing.sizeClasses=small:1000,large\n"
+						+ "routing.route.small=mimetype=*,size=small,lane=fast\n").getBytes()));
+		assertEquals(Lane.FAST, unevenPolicy.route("application/pdf", 1000).getLane());
+		assertEquals(Lane.NORMAL, unevenPolicy.route("application/pdf", 1001).getLane());
+		unevenPolicy.destroy();
+	}
+
+	/**
+	 * Without rules every document takes the built in default route.
+	 */
+	@Test
+	public void defaultsWithoutRules() {
+		final MarkLogicRoutingPolicy emptyPolicy = load(new ByteArrayResource(new byte[0]));
+		assertRoute(emptyPolicy.route("text/plain", 100), MarkLogicPublishingModel.PUBLISH_URI_KEY, Transfer.STREAM,
+				false, Lane.NORMAL);
+		assertNull(emptyPolicy.getSupportedMimeTypes());
+		assertEquals(1048576, emptyPolicy.getMaxBufferBytes());
+		emptyPolicy.destroy();
+	}
+
+	/**
+	 * Later locations override earlier ones.
+	 */
+	@Test
+	public void laterLocationOverrides() {
+		final MarkLogicRoutingPolicy overriddenPolicy = new MarkLogicRoutingPolicy();
+		overriddenPolicy.setReloadIntervalMillis(0);
+		overriddenPolicy.setPolicyLocations(Arrays.<Resource> asList(new ByteArrayResource(POLICY.getBytes()),
+				new ByteArrayResource(("routing.route.text=mimetype=text/*,size=*,compress=false\n"
+						+ "routing.supportedMimeTypes=text/plain, text/xml\n").getBytes())));
+		overriddenPolicy.afterPropertiesSet();
+		assertFalse(overriddenPolicy.route("text/plain", 100000).isCompress());
+		assertTrue(overriddenPolicy.route("text/plain", 100).isCompress());
+		assertEquals(2, overriddenPolicy.getSupportedMimeTypes().size());
+		overriddenPolicy.destroy();
+	}
+
+	/**
+	 * A reloaded policy which does not parse leaves the current rules in place.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void keepsRulesOnInvalidReload() throws IOException {
+		policyFile = File.createTempFile("marklogic-routing", ".properties");
+		write(policyFile, POLICY);
+		final MarkLogicRoutingPolicy filePolicy = load(new FileSystemResource(policyFile));
+		assertEquals(Lane.FAST, filePolicy.route("application/xml", 100).getLane());
+
+		write(policyFile, "routing.route.xml-small=mimetype=application/xml,size=tiny,lane=bulk\n");
+		filePolicy.reload();
+		assertEquals(Lane.FAST, filePolicy.route("application/xml", 100).getLane());
+
+		write(policyFile, "routing.route.xml-small=mimetype=application/xml,size=*,lane=bulk\n");
+		filePolicy.reload();
+		assertEquals(Lane.BULK, filePolicy.route("application/xml", 100).getLane());
+		filePolicy.destroy();
+	}
+
+	/**
+	 * Loads a policy without background reloading.
+	 *
+	 * @param location the location
+	 * @return the routing policy
+	 */
+	private static MarkLogicRoutingPolicy load(final Resource location) {
+		final MarkLogicRoutingPolicy policy = new MarkLogicRoutingPolicy();
+		policy.setReloadIntervalMillis(0);
+		policy.setPolicyLocations(Collections.singletonList(location));
+		policy.afterPropertiesSet();
+		return policy;
+	}
+
+	/**
+	 * Writes a policy file.
+	 *
+	 * @param file the file
+	 * @param policy the policy
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void write(final File file, final String policy) throws IOException {
+		final OutputStream outStream = new FileOutputStream(file);
+		try {
+			outStream.write(policy.getBytes("ISO-8859-1"));
+		} finally {
+			outStream.close();
+		}
+	}
+
+	/**
+	 * Checks every attribute of a route.
+	 *
+	 * @param route the route
+	 * @param endpoint the expected endpoint
+	 * @param transfer the expected transfer
+	 * @param compress the expected compress
+	 * @param lane the expected lane
+	 */
+	private static void assertRoute(final MarkLogicRoute route, final String endpoint, final Transfer transfer,
+			final boolean compress, final Lane lane) {
+		assertEquals(endpoint, route.getEndpoint());
+		assertEquals(transfer, route.getTransfer());
+		assertEquals(compress, route.isCompress());
+		assertEquals(lane, route.getLane());
+	}
+}
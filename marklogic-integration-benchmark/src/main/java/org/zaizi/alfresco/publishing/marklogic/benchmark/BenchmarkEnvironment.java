@@ -0,0 +1,179 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.encryption.MetadataEncryptor;
+import org.alfresco.repo.publishing.PublishingModel;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.zaizi.alfresco.publishing.marklogic.LeastOutstandingLoadBalancingStrategy;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicChannelType;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicCircuitBreaker;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicClusterManager;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicCompressionPolicy;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicHttpClientProvider;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingHelper;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingModel;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicRequestExecutor;
+
+/**
+ * The publishing beans wired as in <code>marklogic-publishing-context.xml</code>, without a
+ * repository, pointing at a {@link StubMarkLogicServer}.
+ */
+public class BenchmarkEnvironment {
+
+	/** The http client provider. */
+	private final MarkLogicHttpClientProvider httpClientProvider = new MarkLogicHttpClientProvider();
+
+	/** The cluster manager. */
+	private final MarkLogicClusterManager clusterManager = new MarkLogicClusterManager();
+
+	/** The publishing helper. */
+	private final MarkLogicPublishingHelper publishingHelper = new MarkLogicPublishingHelper();
+
+	/** The request executor. */
+	private final MarkLogicRequestExecutor requestExecutor = new MarkLogicRequestExecutor();
+
+	/** The channel type. */
+	private final MarkLogicChannelType channelType = new MarkLogicChannelType();
+
+	/** The channel properties. */
+	private final Map<QName, Serializable> channelProperties = new HashMap<QName, Serializable>();
+
+	/** The node counter. */
+	private final AtomicLong nodeCounter = new AtomicLong();
+
+	/**
+	 * Instantiates a new benchmark environment.
+	 *
+	 * @param port the stub server port
+	 * @param contentService the content service
+	 * @param maxConnections the max pooled connections
+	 */
+	public BenchmarkEnvironment(final int port, final ContentService contentService, final int maxConnections) {
+		channelProperties.put(ContentModel.PROP_NODE_UUID, "benchmark-channel");
+		channelProperties.put(MarkLogicPublishingModel.PROP_HOST, "127.0.0.1");
+		channelProperties.put(MarkLogicPublishingModel.PROP_PORT, Integer.valueOf(port));
+		channelProperties.put(PublishingModel.PROP_CHANNEL_USERNAME, "admin");
+		channelProperties.put(PublishingModel.PROP_CHANNEL_PASSWORD, "admin");
+
+		publishingHelper.setEncryptor(new PlainTextMetadataEncryptor());
+
+		httpClientProvider.setMaxConnectionsPerRoute(maxConnections);
+		httpClientProvider.setMaxConnectionsTotal(maxConnections);
+		httpClientProvider.afterPropertiesSet();
+
+		clusterManager.setHttpClientProvider(httpClientProvider);
+		clusterManager.setPublishingHelper(publishingHelper);
+		clusterManager.setLoadBalancingStrategy(new LeastOutstandingLoadBalancingStrategy());
+		clusterManager.afterPropertiesSet();
+
+		requestExecutor.setHttpClientProvider(httpClientProvider);
+		requestExecutor.setPublishingHelper(publishingHelper);
+		requestExecutor.setCircuitBreaker(new MarkLogicCircuitBreaker());
+		requestExecutor.setClusterManager(clusterManager);
+
+		final MarkLogicCompressionPolicy compressionPolicy = new MarkLogicCompressionPolicy();
+		compressionPolicy.setEnabled(true);
+		compressionPolicy.setMimeTypes(Arrays.asList("text/xml", "application/xml", "text/plain", "application/json"));
+
+		channelType.setPublishingHelper(publishingHelper);
+		channelType.setContentService(contentService);
+		channelType.setRequestExecutor(requestExecutor);
+		channelType.setCompressionPolicy(compressionPolicy);
+	}
+
+	/**
+	 * Releases the http client and background threads.
+	 */
+	public void close() {
+		try {
+			channelType.destroy();
+		} catch (InterruptedException intEx) {
+			Thread.currentThread().interrupt();
+		}
+		clusterManager.destroy();
+		requestExecutor.destroy();
+		httpClientProvider.destroy();
+	}
+
+	/**
+	 * Gets the channel type.
+	 *
+	 * @return the channel type
+	 */
+	public MarkLogicChannelType getChannelType() {
+		return channelType;
+	}
+
+	/**
+	 * Gets the request executor.
+	 *
+	 * @return the request executor
+	 */
+	public MarkLogicRequestExecutor getRequestExecutor() {
+		return requestExecutor;
+	}
+
+	/**
+	 * Gets the publishing helper.
+	 *
+	 * @return the publishing helper
+	 */
+	public MarkLogicPublishingHelper getPublishingHelper() {
+		return publishingHelper;
+	}
+
+	/**
+	 * Gets the channel properties.
+	 *
+	 * @return the channel properties
+	 */
+	public Map<QName, Serializable> getChannelProperties() {
+		return channelProperties;
+	}
+
+	/**
+	 * Creates a node ref not used before in this environment.
+	 *
+	 * @return the node ref
+	 */
+	public NodeRef nextNodeRef() {
+		return new NodeRef("workspace://SpacesStore/benchmark-" + nodeCounter.incrementAndGet());
+	}
+
+	/**
+	 * Encryptor for channels whose credentials are stored in plain text.
+	 */
+	private static final class PlainTextMetadataEncryptor extends MetadataEncryptor {
+
+		/* (non-Javadoc)
+		 * @see org.alfresco.repo.node.encryption.MetadataEncryptor#decrypt(org.alfresco.service.namespace.QName, java.io.Serializable)
+		 */
+		@Override
+		public Serializable decrypt(final QName propertyQName, final Serializable inbound) {
+			return inbound;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end throughput and latency of {@link org.zaizi.alfresco.publishing.marklogic.MarkLogicChannelType#publish}
+ * against the stub server, per document size, mimetype and number of concurrent publishers.<br/>
+ * text/xml documents of 4KB and more are sent gzip compressed, application/pdf never is.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChannelTypeBenchmark {
+
+	/** The document size. */
+	@Param({"1024", "65536", "1048576"})
+	public int documentSize;
+
+	/** The mime type. */
+	@Param({"text/xml", "application/pdf"})
+	public String mimeType;
+
+	/** The latency of the stub server. */
+	@Param({"0"})
+	public long serverLatencyMillis;
+
+	/** The stub server. */
+	private StubMarkLogicServer server;
+
+	/** The environment. */
+	private BenchmarkEnvironment environment;
+
+	/**
+	 * Starts the stub server and wires the channel.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new StubMarkLogicServer(0);
+		server.setLatencyMillis(serverLatencyMillis);
+		server.start();
+		environment = new BenchmarkEnvironment(server.getPort(),
+				InMemoryContentService.create(InMemoryContentService.generate(documentSize, mimeType), mimeType), 32);
+	}
+
+	/**
+	 * Stops the stub server.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		environment.close();
+		server.stop();
+	}
+
+	/**
+	 * Publishes from a single thread.
+	 */
+	@Benchmark
+	@Threads(1)
+	public void publish() {
+		environment.getChannelType().publish(environment.nextNodeRef(), environment.getChannelProperties());
+	}
+
+	/**
+	 * Publishes from 4 threads.
+	 */
+	@Benchmark
+	@Threads(4)
+	public void publish4Threads() {
+		environment.getChannelType().publish(environment.nextNodeRef(), environment.getChannelProperties());
+	}
+
+	/**
+	 * Publishes from 16 threads.
+	 */
+	@Benchmark
+	@Threads(16)
+	public void publish16Threads() {
+		environment.getChannelType().publish(environment.nextNodeRef(), environment.getChannelProperties());
+	}
+}
@@ -0,0 +1,177 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+
+/**
+ * Content service serving the same in-memory document for every node, so the benchmarks measure
+ * the channel and not a content store.<br/>
+ * Only the reader methods used by the channel are implemented, every other call fails.
+ */
+public final class InMemoryContentService {
+
+	/** The Constant XML_FRAGMENT, repeated to build compressible text documents. */
+	private final static String XML_FRAGMENT = "<paragraph id=\"%d\">Lorem ipsum dolor sit amet, %d consectetur adipiscing elit.</paragraph>\n";
+
+	/**
+	 * Instantiates a new in memory content service.
+	 */
+	private InMemoryContentService() {
+		// Static factory only
+	}
+
+	/**
+	 * Creates a content service serving the given document.
+	 *
+	 * @param content the content
+	 * @param mimeType the mime type
+	 * @return the content service
+	 */
+	public static ContentService create(final byte[] content, final String mimeType) {
+		final ContentReader reader = (ContentReader) Proxy.newProxyInstance(ContentReader.class.getClassLoader(),
+				new Class<?>[] {ContentReader.class}, new ReaderHandler(content, mimeType));
+		return (ContentService) Proxy.newProxyInstance(ContentService.class.getClassLoader(),
+				new Class<?>[] {ContentService.class}, new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method method, final Object[] args) {
+						if ("getReader".equals(method.getName())) {
+							return reader;
+						}
+						return handleObjectMethod(proxy, method, args);
+					}
+				});
+	}
+
+	/**
+	 * Generates a document of the given size, text-like for text mimetypes and random bytes otherwise.
+	 *
+	 * @param size the size
+	 * @param mimeType the mime type
+	 * @return the content
+	 */
+	public static byte[] generate(final int size, final String mimeType) {
+		final byte[] content = new byte[size];
+		final Random random = new Random(size);
+		if (mimeType.startsWith("text/") || mimeType.endsWith("xml") || mimeType.endsWith("json")) {
+			final StringBuilder text = new StringBuilder(size + XML_FRAGMENT.length() * 2);
+			for (int i = 0; text.length() < size; i++) {
+				text.append(String.format(XML_FRAGMENT, Integer.valueOf(i), Integer.valueOf(random.nextInt())));
+			}
+			for (int i = 0; i < size; i++) {
+				content[i] = (byte) text.charAt(i);
+			}
+		} else {
+			random.nextBytes(content);
+		}
+		return content;
+	}
+
+	/**
+	 * Answers the methods of {@link Object} on a proxy.
+	 *
+	 * @param proxy the proxy
+	 * @param method the method
+	 * @param args the args
+	 * @return the result
+	 */
+	private static Object handleObjectMethod(final Object proxy, final Method method, final Object[] args) {
+		if ("equals".equals(method.getName())) {
+			return Boolean.valueOf(proxy == args[0]);
+		}
+		if ("hashCode".equals(method.getName())) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		}
+		if ("toString".equals(method.getName())) {
+			return "InMemory" + proxy.getClass().getInterfaces()[0].getSimpleName();
+		}
+		throw new UnsupportedOperationException(method.getName() + " is not supported by the benchmark content service");
+	}
+
+	/**
+	 * Content reader over a byte array.
+	 */
+	private static final class ReaderHandler implements InvocationHandler {
+
+		/** The content. */
+		private final byte[] content;
+
+		/** The mime type. */
+		private final String mimeType;
+
+		/**
+		 * Instantiates a new reader handler.
+		 *
+		 * @param content the content
+		 * @param mimeType the mime type
+		 */
+		private ReaderHandler(final byte[] content, final String mimeType) {
+			this.content = content;
+			this.mimeType = mimeType;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+		 */
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws IOException {
+			final String name = method.getName();
+			if ("exists".equals(name)) {
+				return Boolean.TRUE;
+			} else if ("getMimetype".equals(name)) {
+				return mimeType;
+			} else if ("getEncoding".equals(name)) {
+				return "UTF-8";
+			} else if ("getSize".equals(name)) {
+				return Long.valueOf(content.length);
+			} else if ("getContentUrl".equals(name)) {
+				return "store://benchmark/" + content.length + ".bin";
+			} else if ("getReader".equals(name)) {
+				return proxy;
+			} else if ("getContentInputStream".equals(name)) {
+				return new ByteArrayInputStream(content);
+			} else if ("getReadableChannel".equals(name)) {
+				return Channels.newChannel(new ByteArrayInputStream(content));
+			} else if ("getContent".equals(name) && args != null && args.length == 1 && args[0] instanceof File) {
+				final OutputStream out = new FileOutputStream((File) args[0]);
+				try {
+					out.write(content);
+				} finally {
+					out.close();
+				}
+				return null;
+			} else if ("isChannelOpen".equals(name) || "isClosed".equals(name)) {
+				return Boolean.FALSE;
+			}
+			try {
+				return handleObjectMethod(proxy, method, args);
+			} catch (UnsupportedOperationException unsupportedEx) {
+				throw new AlfrescoRuntimeException(unsupportedEx.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of <code>benchmarks.jar</code>.<br/>
+ * Accepts the usual JMH command line options, but writes the results as JSON to
+ * <code>marklogic-benchmark-results.json</code> unless <code>-rf</code>/<code>-rff</code> say
+ * otherwise, so runs of different builds can be compared by tools.
+ */
+public final class MarkLogicBenchmarks {
+
+	/** The Constant DEFAULT_RESULT_FILE. */
+	private final static String DEFAULT_RESULT_FILE = "marklogic-benchmark-results.json";
+
+	/**
+	 * Instantiates a new benchmarks entry point.
+	 */
+	private MarkLogicBenchmarks() {
+		// Entry point only
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args the JMH command line options
+	 * @throws Exception the exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		final CommandLineOptions commandLine = new CommandLineOptions(args);
+		if (commandLine.shouldHelp()) {
+			commandLine.showHelp();
+			return;
+		}
+		final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if (!commandLine.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if (!commandLine.getResult().hasValue()) {
+			options.result(DEFAULT_RESULT_FILE);
+		}
+		final Runner runner = new Runner(options.build());
+		if (commandLine.shouldList()) {
+			runner.list();
+			return;
+		}
+		runner.run();
+	}
+}
@@ -0,0 +1,108 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingHelper;
+
+/**
+ * Per-request overhead of {@link MarkLogicPublishingHelper}: building the publish uri (which goes
+ * through <code>getUri()</code>) and the http context, with and without the per channel
+ * authentication cache. No request is sent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishingHelperBenchmark {
+
+	/** The environment. */
+	private BenchmarkEnvironment environment;
+
+	/** The node ref. */
+	private NodeRef nodeRef;
+
+	/**
+	 * Wires the helper, no server is needed.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() {
+		environment = new BenchmarkEnvironment(8000, InMemoryContentService.create(new byte[0], "text/xml"), 2);
+		nodeRef = environment.nextNodeRef();
+	}
+
+	/**
+	 * Releases the environment.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		environment.close();
+	}
+
+	/**
+	 * Builds the publish uri of a node.
+	 *
+	 * @return the uri
+	 * @throws URISyntaxException the URI syntax exception
+	 */
+	@Benchmark
+	public URI getPutUri() throws URISyntaxException {
+		return environment.getPublishingHelper().getPutURIFromNodeRefAndChannelProperties(nodeRef,
+				environment.getChannelProperties());
+	}
+
+	/**
+	 * Builds the http context of a channel whose authentication state is cached.
+	 *
+	 * @return the http context
+	 */
+	@Benchmark
+	public HttpContext getHttpContextCached() {
+		return environment.getPublishingHelper().getHttpContextFromChannelProperties(environment.getChannelProperties());
+	}
+
+	/**
+	 * Builds the http context from scratch, decrypting the credentials, as every request did
+	 * before the authentication cache.
+	 *
+	 * @return the http context
+	 */
+	@Benchmark
+	public HttpContext getHttpContextUncached() {
+		final MarkLogicPublishingHelper publishingHelper = environment.getPublishingHelper();
+		publishingHelper.clearAuthenticationCache();
+		return publishingHelper.getHttpContextFromChannelProperties(environment.getChannelProperties());
+	}
+}
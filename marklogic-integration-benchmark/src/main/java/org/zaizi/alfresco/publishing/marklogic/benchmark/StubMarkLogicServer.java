@@ -0,0 +1,752 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Base64;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingModel;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded stand-in for the MarkLogic REST extension, implementing <code>alfrescopub/publish</code>,
+ * <code>alfrescopub/unpublish</code>, <code>alfrescopub/metadata</code>, <code>alfrescopub/publish-batch</code> and
+ * <code>alfrescopub/unpublish-batch</code>, the chunked <code>alfrescopub/upload</code> endpoints and
+ * <code>alfrescopub/list</code> with the status codes of the real endpoints.<br/>
+ * No content is stored. A batch answers 204 for every document, and a bulk unpublish 200 for every uri,
+ * unless another status was set with {@link #setDocumentStatus}; properties documents are answered 204
+ * unless set otherwise with {@link #setMetadataStatus}. Chunked uploads only keep the checksum
+ * of every part, a part can be rejected with {@link #rejectPart}. The listing serves the entries added with {@link #addListedDocument}; a bulk unpublish
+ * by prefix or collection removes the matching entries, see {@link #addToCollection}.<br/>
+ * Request bodies are read and discarded. A fixed latency and a random error rate can be injected to
+ * model a slow or failing server. Run standalone with
+ * <code>java ... StubMarkLogicServer [port] [latencyMillis] [errorRate]</code>.
+ */
+public class StubMarkLogicServer {
+
+	/** The Constant FILENAME_PATTERN, the document uri of a batch part. */
+	private final static Pattern FILENAME_PATTERN = Pattern.compile("filename=\"([^\"]*)\"");
+
+	/** The server. */
+	private final HttpServer server;
+
+	/** The request threads. */
+	private final ExecutorService executor;
+
+	/** The latency added to every request. */
+	private volatile long latencyMillis;
+
+	/** The fraction of requests answered with the error status. */
+	private volatile double errorRate;
+
+	/** The status of injected errors. */
+	private volatile int errorStatus = 503;
+
+	/** Whether requests without credentials are challenged for basic authentication. */
+	private volatile boolean requireAuthentication;
+
+	/** The random used for error injection. */
+	private final Random random = new Random();
+
+	/** The request count. */
+	private final AtomicLong requests = new AtomicLong();
+
+	/** The request body bytes received. */
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	/** The part checksums of the chunked uploads, keyed by upload id. */
+	private final Map<String, Map<Integer, String>> uploads = new ConcurrentHashMap<String, Map<Integer, String>>();
+
+	/** The rejections still to answer for a part of the chunked uploads, keyed by part number. */
+	private final Map<Integer, AtomicInteger> partRejections = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+	/** The parts of chunked uploads received. */
+	private final AtomicLong partsReceived = new AtomicLong();
+
+	/** The chunked uploads committed. */
+	private final AtomicLong uploadsCommitted = new AtomicLong();
+
+	/** The uris of the documents received in batches. */
+	private final Set<String> batchDocuments = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** The status answered for a document in a batch, keyed by uri. */
+	private final Map<String, Integer> documentStatus = new ConcurrentHashMap<String, Integer>();
+
+	/** The last modification of the listed documents, keyed by uri. */
+	private final NavigableMap<String, Long> listing = new ConcurrentSkipListMap<String, Long>();
+
+	/** The status answered for the properties document of a document, keyed by uri. */
+	private final Map<String, Integer> metadataStatus = new ConcurrentHashMap<String, Integer>();
+
+	/** The properties documents received. */
+	private final AtomicLong metadataDocuments = new AtomicLong();
+
+	/** The collection of the listed documents, keyed by uri. */
+	private final Map<String, String> collections = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Instantiates a new stub server on the loopback interface.
+	 *
+	 * @param port the port, 0 for any free port
+	 * @throws IOException Signals that the port could not be bound.
+	 */
+	public StubMarkLogicServer(final int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "StubMarkLogicServer-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/" + MarkLogicPublishingModel.PUBLISH_URI_KEY, new StatusHandler(204));
+		server.createContext("/" + MarkLogicPublishingModel.UNPUBLISH_URI_KEY, new StatusHandler(200));
+		server.createContext("/" + MarkLogicPublishingModel.METADATA_URI_KEY, new MetadataHandler());
+		server.createContext("/" + MarkLogicPublishingModel.PUBLISH_BATCH_URI_KEY, new BatchHandler());
+		server.createContext("/" + MarkLogicPublishingModel.UNPUBLISH_BATCH_URI_KEY, new UnpublishBatchHandler());
+		server.createContext("/" + MarkLogicPublishingModel.UPLOAD_URI_KEY, new UploadHandler());
+		server.createContext("/" + MarkLogicPublishingModel.UPLOAD_PART_URI_KEY, new UploadPartHandler());
+		server.createContext("/" + MarkLogicPublishingModel.UPLOAD_COMMIT_URI_KEY, new UploadCommitHandler());
+		server.createContext("/" + MarkLogicPublishingModel.LIST_URI_KEY, new ListHandler());
+		// Health checks of the cluster manager
+		server.createContext("/", new StatusHandler(200));
+	}
+
+	/**
+	 * Starts the server.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Gets the bound port.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Sets the latency added to every request.
+	 *
+	 * @param latencyMillis the new latency millis
+	 */
+	public void setLatencyMillis(final long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Sets the fraction of requests answered with the error status.
+	 *
+	 * @param errorRate the new error rate, between 0 and 1
+	 */
+	public void setErrorRate(final double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * Sets the status of injected errors, 503 by default so the client retries them.
+	 *
+	 * @param errorStatus the new error status
+	 */
+	public void setErrorStatus(final int errorStatus) {
+		this.errorStatus = errorStatus;
+	}
+
+	/**
+	 * Sets whether requests without credentials are challenged for basic authentication.
+	 *
+	 * @param requireAuthentication the new require authentication
+	 */
+	public void setRequireAuthentication(final boolean requireAuthentication) {
+		this.requireAuthentication = requireAuthentication;
+	}
+
+	/**
+	 * Gets the request count.
+	 *
+	 * @return the requests
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Gets the request body bytes received.
+	 *
+	 * @return the bytes received
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * Sets the status answered for a document within a batch or bulk unpublish, e.g. 400 to reject a
+	 * single document.
+	 *
+	 * @param uri the document uri
+	 * @param status the status
+	 */
+	public void setDocumentStatus(final String uri, final int status) {
+		documentStatus.put(uri, Integer.valueOf(status));
+	}
+
+	/**
+	 * Sets the status answered for the properties document of a document, e.g. 400 to reject it.
+	 *
+	 * @param uri the document uri
+	 * @param status the status
+	 */
+	public void setMetadataStatus(final String uri, final int status) {
+		metadataStatus.put(uri, Integer.valueOf(status));
+	}
+
+	/**
+	 * Gets the number of properties documents accepted by <code>alfrescopub/metadata</code>.
+	 *
+	 * @return the metadata documents
+	 */
+	public long getMetadataDocuments() {
+		return metadataDocuments.get();
+	}
+
+	/**
+	 * Rejects the next uploads of a part of the chunked uploads with a 400, whatever their checksum.
+	 *
+	 * @param part the part number
+	 * @param times the rejections
+	 */
+	public void rejectPart(final int part, final int times) {
+		partRejections.put(Integer.valueOf(part), new AtomicInteger(times));
+	}
+
+	/**
+	 * Gets the number of parts of chunked uploads received, acknowledged or not.
+	 *
+	 * @return the parts received
+	 */
+	public long getPartsReceived() {
+		return partsReceived.get();
+	}
+
+	/**
+	 * Gets the number of chunked uploads committed.
+	 *
+	 * @return the uploads committed
+	 */
+	public long getUploadsCommitted() {
+		return uploadsCommitted.get();
+	}
+
+	/**
+	 * Gets the checksums of the acknowledged parts of the chunked uploads, keyed by upload id.
+	 *
+	 * @return the uploads
+	 */
+	public Map<String, Map<Integer, String>> getUploads() {
+		return uploads;
+	}
+
+	/**
+	 * Checks whether a document was received in a batch.
+	 *
+	 * @param uri the document uri
+	 * @return true, if received
+	 */
+	public boolean isBatchDocument(final String uri) {
+		return batchDocuments.contains(uri);
+	}
+
+	/**
+	 * Adds a document to the listing served by <code>alfrescopub/list</code>.
+	 *
+	 * @param uri the document uri
+	 * @param lastModified the last modification in milliseconds
+	 */
+	public void addListedDocument(final String uri, final long lastModified) {
+		listing.put(uri, Long.valueOf(lastModified));
+	}
+
+	/**
+	 * Adds a listed document to a collection, matched by a bulk unpublish of that collection.
+	 *
+	 * @param uri the document uri
+	 * @param collection the collection
+	 */
+	public void addToCollection(final String uri, final String collection) {
+		collections.put(uri, collection);
+	}
+
+	/**
+	 * Checks whether a document is listed, i.e. was added and not yet unpublished.
+	 *
+	 * @param uri the document uri
+	 * @return true, if listed
+	 */
+	public boolean isListed(final String uri) {
+		return listing.containsKey(uri);
+	}
+
+	/**
+	 * Runs the stub server standalone.
+	 *
+	 * @param args [port] [latencyMillis] [errorRate]
+	 * @throws Exception the exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		final StubMarkLogicServer stub = new StubMarkLogicServer(args.length > 0 ? Integer.parseInt(args[0]) : 8000);
+		stub.setLatencyMillis(args.length > 1 ? Long.parseLong(args[1]) : 0);
+		stub.setErrorRate(args.length > 2 ? Double.parseDouble(args[2]) : 0);
+		stub.start();
+		System.out.println("Stub MarkLogic server listening on 127.0.0.1:" + stub.getPort());
+		Thread.sleep(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Applies the injected latency, errors and authentication challenge.
+	 *
+	 * @param exchange the exchange
+	 * @return true, if the request was answered and must not be processed further
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private boolean intercept(final HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		if (latencyMillis > 0) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(latencyMillis);
+			} catch (InterruptedException intEx) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (requireAuthentication && exchange.getRequestHeaders().getFirst("Authorization") == null) {
+			exchange.getResponseHeaders().add("WWW-Authenticate", "Basic realm=\"public\"");
+			exchange.sendResponseHeaders(401, -1);
+			exchange.close();
+			return true;
+		}
+		if (errorRate > 0 && random.nextDouble() < errorRate) {
+			exchange.sendResponseHeaders(errorStatus, -1);
+			exchange.close();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads and discards the request body.
+	 *
+	 * @param exchange the exchange
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void drain(final HttpExchange exchange) throws IOException {
+		final InputStream body = exchange.getRequestBody();
+		final byte[] buffer = new byte[8192];
+		int read;
+		while ((read = body.read(buffer)) != -1) {
+			bytesReceived.addAndGet(read);
+		}
+		body.close();
+	}
+
+	/**
+	 * Parses the query of a request.
+	 *
+	 * @param exchange the exchange
+	 * @return the query parameters
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static Map<String, String> query(final HttpExchange exchange) throws IOException {
+		final Map<String, String> parameters = new HashMap<String, String>();
+		final String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (final String parameter : query.split("&")) {
+				final int equals = parameter.indexOf('=');
+				if (equals > 0) {
+					parameters.put(parameter.substring(0, equals), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+				}
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * Answers a request with a status and no body.
+	 *
+	 * @param exchange the exchange
+	 * @param status the status
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void respond(final HttpExchange exchange, final int status) throws IOException {
+		exchange.sendResponseHeaders(status, -1);
+		exchange.close();
+	}
+
+	/**
+	 * Answers every request with a fixed status and no body.
+	 */
+	private final class StatusHandler implements HttpHandler {
+
+		/** The status. */
+		private final int status;
+
+		/**
+		 * Instantiates a new status handler.
+		 *
+		 * @param status the status
+		 */
+		private StatusHandler(final int status) {
+			this.status = status;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+		 */
+		public void handle(final HttpExchange exchange) throws IOException {
+			drain(exchange);
+			if (!intercept(exchange)) {
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Accepts the properties document of a document with 204, unless another status was set with
+	 * {@link #setMetadataStatus}.
+	 */
+	private final class MetadataHandler implements HttpHandler {
+
+		/* (non-Javadoc)
+		 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+		 */
+		public void handle(final HttpExchange exchange) throws IOException {
+			drain(exchange);
+			if (intercept(exchange)) {
+				return;
+			}
+			final String uri = query(exchange).get("uri");
+			final Integer status = uri == null ? null : metadataStatus.get(uri);
+			if (status == null) {
+				metadataDocuments.incrementAndGet();
+			}
+			respond(exchange, status == null ? 204 : status.intValue());
+		}
+	}
+
+	/**
+	 * Answers a batch with a status line per document part, 204 unless set otherwise.
+	 */
+	private final class BatchHandler implements HttpHandler {
+
+		/* (non-Javadoc)
+		 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+		 */
+		public void handle(final HttpExchange exchange) throws IOException {
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			final InputStream in = exchange.getRequestBody();
+			final byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+			in.close();
+			bytesReceived.addAndGet(body.size());
+			if (intercept(exchange)) {
+				return;
+			}
+			final StringBuilder statusLines = new StringBuilder();
+			final Matcher matcher = FILENAME_PATTERN.matcher(body.toString("ISO-8859-1"));
+			while (matcher.find()) {
+				batchDocuments.add(matcher.group(1));
+				final Integer status = documentStatus.get(matcher.group(1));
+				statusLines.append(status == null ? 204 : status.intValue()).append(' ').append(matcher.group(1));
+				statusLines.append(status == null ? "\n" : " Rejected by the stub server\n");
+			}
+			final byte[] response = statusLines.toString().getBytes("UTF-8");
+			exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+			exchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+			final OutputStream out = exchange.getResponseBody();
+			out.write(response);
+			out.close();
+		}
+	}
+
+	/**
+	 * Streams a status line per uri of a bulk unpublish request, the uris listed in the body or the
+	 * listed documents matching the prefix or collection of the query.
+	 */
+	private final class UnpublishBatchHandler implements HttpHandler {
+
+		/* (non-Javadoc)
+		 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+		 */
+		public void handle(final HttpExchange exchange) throws IOException {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+			final List<String> uris = new ArrayList<String>();
+			String uri;
+			while ((uri = in.readLine()) != null) {
+				bytesReceived.addAndGet(uri.length() + 1);
+				if (uri.trim().length() > 0) {
+					uris.add(uri.trim());
+				}
+			}
+			in.close();
+			if (intercept(exchange)) {
+				return;
+			}
+			final Map<String, String> parameters = query(exchange);
+			final String prefix = parameters.get("prefix");
+			final String collection = parameters.get("collection");
+			if (prefix != null) {
+				for (final String listed : listing.tailMap(prefix, true).keySet()) {
+					if (!listed.startsWith(prefix)) {
+						break;
+					}
+					uris.add(listed);
+				}
+			} else if (collection != null) {
+				for (final Map.Entry<String, String> member : collections.entrySet()) {
+					if (member.getValue().equals(collection) && listing.containsKey(member.getKey())) {
+						uris.add(member.getKey());
+					}
+				}
+			}
+			final StringBuilder statusLines = new StringBuilder();
+			for (final String unpublished : uris) {
+				final Integer status = documentStatus.get(unpublished);
+				statusLines.append(status == null ? 200 : status.intValue()).append(' ').append(unpublished);
+				if (status == null) {
+					statusLines.append('\n');
+					listing.remove(unpublished);
+					collections.remove(unpublished);
+				} else {
+					statusLines.append(" Rejected by the stub server\n");
+				}
+			}
+			exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+			if (statusLines.length() == 0) {
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+				return;
+			}
+			exchange.sendResponseHeaders(200, 0);
+			final Writer out = new OutputStreamWriter(exchange.getResponseBody(), "UTF-8");
+			out.write(statusLines.toString());
+			out.close();
+		}
+	}
+
+	/**
+	 * Starts a chunked upload on PUT, lists its acknowledged parts on GET.
+	 */
+	private final class UploadHandler implements HttpHandler {
+
+		/* (non-Javadoc)
+		 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+		 */
+		public void handle(final HttpExchange exchange) throws IOException {
+			drain(exchange);
+			if (intercept(exchange)) {
+				return;
+			}
+			final String uploadId = query(exchange).get("id");
+			if ("PUT".equals(exchange.getRequestMethod())) {
+				if (!uploads.containsKey(uploadId)) {
+					uploads.put(uploadId, new ConcurrentHashMap<Integer, String>());
+				}
+				respond(exchange, 204);
+				return;
+			}
+			final Map<Integer, String> parts = uploads.get(uploadId);
+			if (parts == null) {
+				respond(exchange, 404);
+				return;
+			}
+			final StringBuilder statusLines = new StringBuilder();
+			for (final Map.Entry<Integer, String> part : parts.entrySet()) {
+				statusLines.append(part.getKey()).append(' ').append(part.getValue()).append('\n');
+			}
+			final byte[] response = statusLines.toString().getBytes("UTF-8");
+			exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+			exchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+			final OutputStream out = exchange.getResponseBody();
+			out.write(response);
+			out.close();
+		}
+	}
+
+	/**
+	 * Acknowledges a part whose body matches its <code>Content-MD5</code>, answers 400 otherwise.
+	 */
+	private final class UploadPartHandler implements HttpHandler {
+
+		/* (non-Javadoc)
+		 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+		 */
+		public void handle(final HttpExchange exchange) throws IOException {
+			final MessageDigest md5;
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException noAlgEx) {
+				throw new IOException(noAlgEx);
+			}
+			final InputStream in = exchange.getRequestBody();
+			final byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				md5.update(buffer, 0, read);
+				bytesReceived.addAndGet(read);
+			}
+			in.close();
+			partsReceived.incrementAndGet();
+			if (intercept(exchange)) {
+				return;
+			}
+			final Map<String, String> parameters = query(exchange);
+			final Map<Integer, String> parts = uploads.get(parameters.get("id"));
+			if (parts == null) {
+				respond(exchange, 404);
+				return;
+			}
+			final Integer part = Integer.valueOf(parameters.get("part"));
+			final AtomicInteger rejections = partRejections.get(part);
+			final String checksum = Base64.encodeBase64String(md5.digest()).trim();
+			if (!checksum.equals(exchange.getRequestHeaders().getFirst("Content-MD5"))
+					|| (rejections != null && rejections.getAndDecrement() > 0)) {
+				respond(exchange, 400);
+				return;
+			}
+			parts.put(part, checksum);
+			respond(exchange, 204);
+		}
+	}
+
+	/**
+	 * Commits an upload whose parts all match the checksums listed in the body.
+	 */
+	private final class UploadCommitHandler implements HttpHandler {
+
+		/* (non-Javadoc)
+		 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+		 */
+		public void handle(final HttpExchange exchange) throws IOException {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+			final Map<Integer, String> manifest = new HashMap<Integer, String>();
+			String line;
+			while ((line = in.readLine()) != null) {
+				final String[] fields = line.trim().split(" ");
+				if (fields.length == 2) {
+					manifest.put(Integer.valueOf(fields[0]), fields[1]);
+				}
+			}
+			in.close();
+			if (intercept(exchange)) {
+				return;
+			}
+			final Map<Integer, String> parts = uploads.get(query(exchange).get("id"));
+			if (parts == null) {
+				respond(exchange, 404);
+				return;
+			}
+			if (!parts.equals(manifest)) {
+				respond(exchange, 400);
+				return;
+			}
+			uploadsCommitted.incrementAndGet();
+			respond(exchange, 204);
+		}
+	}
+
+	/**
+	 * Lists a page of the documents added to the listing, in uri order.
+	 */
+	private final class ListHandler implements HttpHandler {
+
+		/* (non-Javadoc)
+		 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+		 */
+		public void handle(final HttpExchange exchange) throws IOException {
+			drain(exchange);
+			if (intercept(exchange)) {
+				return;
+			}
+			final Map<String, String> parameters = query(exchange);
+			final String prefix = parameters.containsKey("prefix") ? parameters.get("prefix") : "";
+			final String after = parameters.get("after");
+			final int limit = parameters.containsKey("limit") ? Integer.parseInt(parameters.get("limit")) : 1000;
+			final NavigableMap<String, Long> page = after == null ? listing.tailMap(prefix, true)
+					: listing.tailMap(after, false);
+			final StringBuilder lines = new StringBuilder();
+			int count = 0;
+			for (final Map.Entry<String, Long> document : page.entrySet()) {
+				if (count++ == limit || !document.getKey().startsWith(prefix)) {
+					break;
+				}
+				lines.append(document.getKey()).append(' ').append(document.getValue()).append('\n');
+			}
+			final byte[] response = lines.toString().getBytes("UTF-8");
+			exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+			exchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+			final OutputStream out = exchange.getResponseBody();
+			out.write(response);
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of {@link org.zaizi.alfresco.publishing.marklogic.MarkLogicChannelType#unpublish}
+ * against the stub server, per number of concurrent unpublishers.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UnpublishBenchmark {
+
+	/** The latency of the stub server. */
+	@Param({"0", "5"})
+	public long serverLatencyMillis;
+
+	/** The stub server. */
+	private StubMarkLogicServer server;
+
+	/** The environment. */
+	private BenchmarkEnvironment environment;
+
+	/**
+	 * Starts the stub server and wires the channel.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new StubMarkLogicServer(0);
+		server.setLatencyMillis(serverLatencyMillis);
+		server.start();
+		environment = new BenchmarkEnvironment(server.getPort(),
+				InMemoryContentService.create(new byte[0], "text/xml"), 32);
+	}
+
+	/**
+	 * Stops the stub server.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		environment.close();
+		server.stop();
+	}
+
+	/**
+	 * Unpublishes from a single thread.
+	 */
+	@Benchmark
+	@Threads(1)
+	public void unpublish() {
+		environment.getChannelType().unpublish(environment.nextNodeRef(), environment.getChannelProperties());
+	}
+
+	/**
+	 * Unpublishes from 16 threads.
+	 */
+	@Benchmark
+	@Threads(16)
+	public void unpublish16Threads() {
+		environment.getChannelType().unpublish(environment.nextNodeRef(), environment.getChannelProperties());
+	}
+}
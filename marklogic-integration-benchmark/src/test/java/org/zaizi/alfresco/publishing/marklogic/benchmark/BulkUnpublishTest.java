@@ -0,0 +1,219 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicBulkUnpublishListener;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicBulkUnpublishResult;
+
+/**
+ * Unpublishes by uri list, prefix and collection from the stub server and checks the result and the
+ * progress reported to the listener.
+ */
+public class BulkUnpublishTest {
+
+	/** The stub server. */
+	private StubMarkLogicServer server;
+
+	/** The environment. */
+	private BenchmarkEnvironment environment;
+
+	/** The progress reported to the listener. */
+	private final RecordingListener listener = new RecordingListener();
+
+	/**
+	 * Starts the stub server.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		server = new StubMarkLogicServer(0);
+		server.start();
+		environment = new BenchmarkEnvironment(server.getPort(), InMemoryContentService.create(
+				InMemoryContentService.generate(1024, "text/plain"), "text/plain"), 4);
+		environment.getChannelType().setBulkUnpublishMaxUris(100);
+	}
+
+	/**
+	 * Stops the stub server.
+	 */
+	@After
+	public void tearDown() {
+		environment.close();
+		server.stop();
+	}
+
+	/**
+	 * The uri list is sent in requests of at most bulkUnpublishMaxUris, progress is reported every
+	 * 100 documents and once at the end.
+	 */
+	@Test
+	public void unpublishesUriList() {
+		final List<NodeRef> nodes = createNodes(250);
+		final MarkLogicBulkUnpublishResult result = environment.getChannelType().unpublishBatch(nodes,
+				environment.getChannelProperties(), listener);
+
+		assertTrue(result.isComplete());
+		assertEquals(250, result.getUnpublishedCount());
+		assertEquals(3, server.getRequests());
+		assertEquals(Arrays.asList("100/0", "200/0", "250/0"), listener.progress);
+	}
+
+	/**
+	 * A document MarkLogic could not remove only fails its own uri.
+	 */
+	@Test
+	public void reportsPartialFailurePerUri() {
+		final List<NodeRef> nodes = createNodes(150);
+		server.setDocumentStatus(nodes.get(42).toString(), 500);
+		server.setDocumentStatus(nodes.get(120).toString(), 403);
+
+		final MarkLogicBulkUnpublishResult result = environment.getChannelType().unpublishBatch(nodes,
+				environment.getChannelProperties(), listener);
+
+		assertFalse(result.isComplete());
+		assertEquals(148, result.getUnpublishedCount());
+		assertEquals(2, result.getFailures().size());
+		assertEquals("500 Rejected by the stub server", result.getFailures().get(nodes.get(42).toString()));
+		assertEquals("403 Rejected by the stub server", result.getFailures().get(nodes.get(120).toString()));
+		assertEquals(Arrays.asList("100/1", "150/2"), listener.progress);
+	}
+
+	/**
+	 * A failed request fails every uri it carried, and only those.
+	 */
+	@Test
+	public void failsEveryUriOfRejectedRequest() {
+		final List<NodeRef> nodes = createNodes(100);
+		environment.getChannelType().setBulkUnpublishMaxUris(60);
+		server.setErrorStatus(400);
+		server.setErrorRate(1);
+
+		final MarkLogicBulkUnpublishResult result = environment.getChannelType().unpublishBatch(nodes,
+				environment.getChannelProperties(), listener);
+
+		assertEquals(0, result.getUnpublishedCount());
+		assertEquals(100, result.getFailures().size());
+		assertEquals(Arrays.asList("100/100"), listener.progress);
+	}
+
+	/**
+	 * Only the listed documents under the prefix are removed, in a single request.
+	 */
+	@Test
+	public void unpublishesByPrefix() {
+		server.addListedDocument("workspace://SpacesStore/a", 1);
+		server.addListedDocument("workspace://SpacesStore/b", 1);
+		server.addListedDocument("archive://SpacesStore/c", 1);
+		server.setDocumentStatus("workspace://SpacesStore/b", 500);
+
+		final MarkLogicBulkUnpublishResult result = environment.getChannelType().unpublishByPrefix(
+				"workspace://SpacesStore/", environment.getChannelProperties(), listener);
+
+		assertEquals(1, result.getUnpublishedCount());
+		assertEquals("500 Rejected by the stub server", result.getFailures().get("workspace://SpacesStore/b"));
+		assertEquals(1, server.getRequests());
+		assertFalse(server.isListed("workspace://SpacesStore/a"));
+		assertTrue(server.isListed("workspace://SpacesStore/b"));
+		assertTrue(server.isListed("archive://SpacesStore/c"));
+		assertEquals(Arrays.asList("2/1"), listener.progress);
+	}
+
+	/**
+	 * Only the listed documents of the collection are removed.
+	 */
+	@Test
+	public void unpublishesByCollection() {
+		for (final String uri : Arrays.asList("workspace://SpacesStore/a", "workspace://SpacesStore/b",
+				"workspace://SpacesStore/c")) {
+			server.addListedDocument(uri, 1);
+		}
+		server.addToCollection("workspace://SpacesStore/a", "site-a");
+		server.addToCollection("workspace://SpacesStore/b", "site-b");
+		server.addToCollection("workspace://SpacesStore/c", "site-a");
+
+		final MarkLogicBulkUnpublishResult result = environment.getChannelType().unpublishByCollection("site-a",
+				environment.getChannelProperties(), listener);
+
+		assertTrue(result.isComplete());
+		assertEquals(2, result.getUnpublishedCount());
+		assertFalse(server.isListed("workspace://SpacesStore/a"));
+		assertTrue(server.isListed("workspace://SpacesStore/b"));
+		assertFalse(server.isListed("workspace://SpacesStore/c"));
+		assertEquals(Arrays.asList("2/0"), listener.progress);
+	}
+
+	/**
+	 * A failed query request is reported as a single failure keyed by the query.
+	 */
+	@Test
+	public void reportsFailedQueryRequest() {
+		server.addListedDocument("workspace://SpacesStore/a", 1);
+		server.setErrorStatus(400);
+		server.setErrorRate(1);
+
+		final MarkLogicBulkUnpublishResult result = environment.getChannelType().unpublishByCollection("site-a",
+				environment.getChannelProperties(), listener);
+
+		assertEquals(0, result.getUnpublishedCount());
+		assertEquals(1, result.getFailures().size());
+		assertTrue(result.getFailures().containsKey("collection=site-a"));
+		assertTrue(server.isListed("workspace://SpacesStore/a"));
+		assertEquals(Arrays.asList("1/1"), listener.progress);
+	}
+
+	/**
+	 * Creates new node refs.
+	 *
+	 * @param count the count
+	 * @return the node refs
+	 */
+	private List<NodeRef> createNodes(final int count) {
+		final List<NodeRef> nodes = new ArrayList<NodeRef>(count);
+		for (int i = 0; i < count; i++) {
+			nodes.add(environment.nextNodeRef());
+		}
+		return nodes;
+	}
+
+	/**
+	 * Listener recording every progress call as processed/failed.
+	 */
+	private static final class RecordingListener implements MarkLogicBulkUnpublishListener {
+
+		/** The progress calls. */
+		private final List<String> progress = new ArrayList<String>();
+
+		/* (non-Javadoc)
+		 * @see org.zaizi.alfresco.publishing.marklogic.MarkLogicBulkUnpublishListener#onProgress(int, int)
+		 */
+		public void onProgress(final int processed, final int failed) {
+			progress.add(processed + "/" + failed);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicChunkedUploader;
+
+/**
+ * Chunked uploads of the {@link MarkLogicChunkedUploader} against the stub server: part splitting,
+ * checksums, and resuming after a rejected part within an upload and across a restart.
+ */
+public class ChunkedUploadTest {
+
+	/** The Constant PART_SIZE. */
+	private final static int PART_SIZE = 1024;
+
+	/** The Constant DOCUMENT_SIZE, two full parts and a short last one. */
+	private final static int DOCUMENT_SIZE = 2 * PART_SIZE + 552;
+
+	/** The Constant FINGERPRINT. */
+	private final static long FINGERPRINT = 42;
+
+	/** The stub server. */
+	private StubMarkLogicServer server;
+
+	/** The environment. */
+	private BenchmarkEnvironment environment;
+
+	/** The document. */
+	private byte[] document;
+
+	/** The document file. */
+	private File documentFile;
+
+	/** The state directory. */
+	private File stateDirectory;
+
+	/** The uploaders created by the test. */
+	private final List<MarkLogicChunkedUploader> uploaders = new ArrayList<MarkLogicChunkedUploader>();
+
+	/**
+	 * Starts the stub server and writes the document.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		server = new StubMarkLogicServer(0);
+		server.start();
+		environment = new BenchmarkEnvironment(server.getPort(), InMemoryContentService.create(new byte[0], "text/xml"), 4);
+
+		document = new byte[DOCUMENT_SIZE];
+		new Random(1).nextBytes(document);
+		documentFile = File.createTempFile("marklogic-upload", ".bin");
+		final OutputStream out = new FileOutputStream(documentFile);
+		try {
+			out.write(document);
+		} finally {
+			out.close();
+		}
+		stateDirectory = File.createTempFile("marklogic-uploads", "");
+		assertTrue(stateDirectory.delete() && stateDirectory.mkdirs());
+	}
+
+	/**
+	 * Stops the uploaders and the stub server and removes the files.
+	 *
+	 * @throws Exception the exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		for (final MarkLogicChunkedUploader uploader : uploaders) {
+			uploader.destroy();
+		}
+		environment.close();
+		server.stop();
+		documentFile.delete();
+		final File[] files = stateDirectory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		stateDirectory.delete();
+	}
+
+	/**
+	 * The state directory has no temp dir fallback.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void requiresStateDirectory() throws IOException {
+		try {
+			new MarkLogicChunkedUploader().afterPropertiesSet();
+			fail("An uploader without a state directory does not start");
+		} catch (AlfrescoRuntimeException alfEx) {
+			assertTrue(alfEx.getMessage().indexOf("state directory") >= 0);
+		}
+	}
+
+	/**
+	 * The document goes out in parts of the part size, each acknowledged with the MD5 of its bytes.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void uploadsCheckedParts() throws Exception {
+		createUploader().upload(environment.nextNodeRef(), environment.getChannelProperties(), channelKey(),
+				documentFile, "application/octet-stream", FINGERPRINT);
+
+		assertEquals(3, server.getPartsReceived());
+		assertEquals(1, server.getUploadsCommitted());
+		assertEquals(1, server.getUploads().size());
+		final Map<Integer, String> parts = server.getUploads().values().iterator().next();
+		assertEquals(3, parts.size());
+		assertEquals(md5(0, PART_SIZE), parts.get(Integer.valueOf(0)));
+		assertEquals(md5(PART_SIZE, 2 * PART_SIZE), parts.get(Integer.valueOf(1)));
+		assertEquals(md5(2 * PART_SIZE, DOCUMENT_SIZE), parts.get(Integer.valueOf(2)));
+		assertEquals(0, stateDirectory.listFiles().length);
+	}
+
+	/**
+	 * A rejected part is sent again on its own once the acknowledged parts are read back.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void resendsRejectedPartOnly() throws Exception {
+		server.rejectPart(1, 1);
+		createUploader().upload(environment.nextNodeRef(), environment.getChannelProperties(), channelKey(),
+				documentFile, "application/octet-stream", FINGERPRINT);
+
+		assertEquals(4, server.getPartsReceived());
+		assertEquals(1, server.getUploads().size());
+		assertEquals(1, server.getUploadsCommitted());
+	}
+
+	/**
+	 * A failed upload is resumed by the next publish of the same content, also by a new uploader as
+	 * after a restart.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void resumesAfterRestart() throws Exception {
+		final NodeRef nodeRef = environment.nextNodeRef();
+		failUpload(nodeRef);
+
+		createUploader().upload(nodeRef, environment.getChannelProperties(), channelKey(), documentFile,
+				"application/octet-stream", FINGERPRINT);
+		assertEquals(4, server.getPartsReceived());
+		assertEquals(1, server.getUploads().size());
+		assertEquals(1, server.getUploadsCommitted());
+		assertEquals(0, stateDirectory.listFiles().length);
+	}
+
+	/**
+	 * A failed upload is not resumed once the content changed.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void restartsChangedContent() throws Exception {
+		final NodeRef nodeRef = environment.nextNodeRef();
+		failUpload(nodeRef);
+
+		createUploader().upload(nodeRef, environment.getChannelProperties(), channelKey(), documentFile,
+				"application/octet-stream", FINGERPRINT + 1);
+		assertEquals(6, server.getPartsReceived());
+		assertEquals(2, server.getUploads().size());
+		assertEquals(1, server.getUploadsCommitted());
+	}
+
+	/**
+	 * Runs an upload which gives up on a rejected part and leaves its state behind.
+	 *
+	 * @param nodeRef the node ref
+	 * @throws Exception the exception
+	 */
+	private void failUpload(final NodeRef nodeRef) throws Exception {
+		final MarkLogicChunkedUploader uploader = createUploader();
+		uploader.setMaxResumeAttempts(0);
+		server.rejectPart(1, 1);
+		try {
+			uploader.upload(nodeRef, environment.getChannelProperties(), channelKey(), documentFile,
+					"application/octet-stream", FINGERPRINT);
+			fail("The rejected part failed the upload");
+		} catch (IOException ioex) {
+			// Expected
+		}
+		assertEquals(3, server.getPartsReceived());
+		assertEquals(0, server.getUploadsCommitted());
+		assertEquals(1, stateDirectory.listFiles().length);
+	}
+
+	/**
+	 * Creates an uploader of the test's part size and state directory.
+	 *
+	 * @return the uploader
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private MarkLogicChunkedUploader createUploader() throws IOException {
+		final MarkLogicChunkedUploader uploader = new MarkLogicChunkedUploader();
+		uploader.setRequestExecutor(environment.getRequestExecutor());
+		uploader.setPublishingHelper(environment.getPublishingHelper());
+		uploader.setThresholdBytes(PART_SIZE);
+		uploader.setPartSizeBytes(PART_SIZE);
+		uploader.setStateDirectory(stateDirectory.getPath());
+		uploader.afterPropertiesSet();
+		uploaders.add(uploader);
+		return uploader;
+	}
+
+	/**
+	 * Gets the channel key.
+	 *
+	 * @return the channel key
+	 */
+	private String channelKey() {
+		return environment.getPublishingHelper().getChannelKey(environment.getChannelProperties());
+	}
+
+	/**
+	 * Gets the base64 MD5 of a range of the document.
+	 *
+	 * @param from the start
+	 * @param to the end, exclusive
+	 * @return the checksum
+	 * @throws Exception the exception
+	 */
+	private String md5(final int from, final int to) throws Exception {
+		return Base64.encodeBase64String(MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(document, from, to)))
+				.trim();
+	}
+}
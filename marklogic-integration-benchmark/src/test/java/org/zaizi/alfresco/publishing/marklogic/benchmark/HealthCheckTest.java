@@ -0,0 +1,134 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.service.namespace.QName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicClusterManager;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicHost;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicHttpClientProvider;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingHelper;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishingModel;
+
+/**
+ * Health checks of the {@link MarkLogicClusterManager} against the stub server: only a 2xx answer
+ * keeps a host in rotation.
+ */
+public class HealthCheckTest {
+
+	/** The Constant CHECK_INTERVAL_MILLIS. */
+	private final static long CHECK_INTERVAL_MILLIS = 50;
+
+	/** The stub server. */
+	private StubMarkLogicServer server;
+
+	/** The http client provider. */
+	private MarkLogicHttpClientProvider httpClientProvider;
+
+	/** The cluster manager. */
+	private MarkLogicClusterManager clusterManager;
+
+	/** The host of the stub server. */
+	private MarkLogicHost host;
+
+	/**
+	 * Starts the stub server and a cluster manager checking it.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		server = new StubMarkLogicServer(0);
+		server.start();
+		httpClientProvider = new MarkLogicHttpClientProvider();
+		httpClientProvider.afterPropertiesSet();
+		clusterManager = new MarkLogicClusterManager();
+		clusterManager.setHttpClientProvider(httpClientProvider);
+		clusterManager.setPublishingHelper(new MarkLogicPublishingHelper());
+		clusterManager.setHealthCheckIntervalMillis(CHECK_INTERVAL_MILLIS);
+		clusterManager.afterPropertiesSet();
+
+		final Map<QName, Serializable> channelProperties = new HashMap<QName, Serializable>();
+		channelProperties.put(MarkLogicPublishingModel.PROP_HOST, "127.0.0.1");
+		channelProperties.put(MarkLogicPublishingModel.PROP_PORT, Integer.valueOf(server.getPort()));
+		host = clusterManager.chooseHost(channelProperties, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Stops the cluster manager and the stub server.
+	 */
+	@After
+	public void tearDown() {
+		clusterManager.destroy();
+		httpClientProvider.destroy();
+		server.stop();
+	}
+
+	/**
+	 * A host answering 503 is taken out of rotation.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void takesOutUnavailableHost() throws Exception {
+		server.setErrorRate(1.0);
+		server.setErrorStatus(503);
+
+		assertTrue("A 503 answer fails the health check", awaitHealthy(false));
+	}
+
+	/**
+	 * A host out of rotation only comes back once it answers 2xx again.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void returnsHostOnSuccess() throws Exception {
+		server.setErrorRate(1.0);
+		server.setErrorStatus(503);
+		clusterManager.markUnhealthy(host);
+		Thread.sleep(5 * CHECK_INTERVAL_MILLIS);
+		assertFalse(host.isHealthy());
+
+		server.setErrorRate(0);
+		assertTrue("A 200 answer passes the health check", awaitHealthy(true));
+	}
+
+	/**
+	 * Waits for the host to reach a health state.
+	 *
+	 * @param healthy the health state
+	 * @return true, if reached in time
+	 * @throws InterruptedException the interrupted exception
+	 */
+	private boolean awaitHealthy(final boolean healthy) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 40 * CHECK_INTERVAL_MILLIS;
+		while (host.isHealthy() != healthy && System.currentTimeMillis() < deadline) {
+			Thread.sleep(CHECK_INTERVAL_MILLIS / 5);
+		}
+		return host.isHealthy() == healthy;
+	}
+}
@@ -0,0 +1,173 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.publishing.PublishingModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicMetadataSerializer;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishResult;
+
+/**
+ * Publishes content with its properties document to the stub server and checks that a properties
+ * document rejected after the content was published does not fail the publish.
+ */
+public class MetadataPublishTest {
+
+	/** The stub server. */
+	private StubMarkLogicServer server;
+
+	/** The environment. */
+	private BenchmarkEnvironment environment;
+
+	/**
+	 * Starts the stub server.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		server = new StubMarkLogicServer(0);
+		server.start();
+		environment = new BenchmarkEnvironment(server.getPort(), InMemoryContentService.create(
+				InMemoryContentService.generate(4096, "application/octet-stream"), "application/octet-stream"), 4);
+		environment.getChannelType().setMetadataSerializer(new MarkLogicMetadataSerializer() {
+			@Override
+			public String serialize(final NodeRef nodeRef) {
+				return "{\"uri\":\"" + nodeRef + "\"}";
+			}
+		});
+	}
+
+	/**
+	 * Stops the stub server.
+	 */
+	@After
+	public void tearDown() {
+		environment.close();
+		server.stop();
+	}
+
+	/**
+	 * The properties document follows the content.
+	 */
+	@Test
+	public void publishesMetadataAfterContent() {
+		final MarkLogicPublishResult result = environment.getChannelType().publishNow(environment.nextNodeRef(),
+				environment.getChannelProperties());
+
+		assertEquals(MarkLogicPublishResult.Status.PUBLISHED, result.getStatus());
+		assertNull(result.getMessage());
+		assertEquals(1, server.getMetadataDocuments());
+	}
+
+	/**
+	 * A rejected properties document leaves the publish of the content published.
+	 */
+	@Test
+	public void keepsContentPublishedOnMetadataFailure() {
+		final NodeRef nodeRef = rejectMetadata(environment.nextNodeRef());
+		final MarkLogicPublishResult result = environment.getChannelType().publishNow(nodeRef,
+				environment.getChannelProperties());
+
+		assertMetadataNotPublished(result);
+	}
+
+	/**
+	 * A rejected properties document leaves the asynchronous publish of the content published.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void keepsAsyncContentPublishedOnMetadataFailure() throws Exception {
+		final NodeRef nodeRef = rejectMetadata(environment.nextNodeRef());
+		final MarkLogicPublishResult result = environment.getChannelType().publishAsync(nodeRef,
+				environment.getChannelProperties()).get(5, TimeUnit.SECONDS);
+
+		assertMetadataNotPublished(result);
+	}
+
+	/**
+	 * A rejected properties document only affects its own node within a batch.
+	 */
+	@Test
+	public void keepsBatchContentPublishedOnMetadataFailure() {
+		final List<NodeRef> nodes = Arrays.asList(environment.nextNodeRef(), rejectMetadata(environment.nextNodeRef()));
+		final Map<NodeRef, MarkLogicPublishResult> results = environment.getChannelType().publishBatch(nodes,
+				environment.getChannelProperties());
+
+		assertEquals(MarkLogicPublishResult.Status.PUBLISHED, results.get(nodes.get(0)).getStatus());
+		assertNull(results.get(nodes.get(0)).getMessage());
+		assertMetadataNotPublished(results.get(nodes.get(1)));
+		assertEquals(1, server.getMetadataDocuments());
+	}
+
+	/**
+	 * A rejected properties document leaves the content published on every channel of a fan out.
+	 */
+	@Test
+	public void keepsFanOutContentPublishedOnMetadataFailure() {
+		final Map<QName, Serializable> otherChannel = new HashMap<QName, Serializable>(environment.getChannelProperties());
+		otherChannel.put(PublishingModel.PROP_CHANNEL_USERNAME, "publisher");
+		final Map<String, Map<QName, Serializable>> channels = new LinkedHashMap<String, Map<QName, Serializable>>();
+		channels.put("primary", environment.getChannelProperties());
+		channels.put("secondary", otherChannel);
+
+		final NodeRef nodeRef = rejectMetadata(environment.nextNodeRef());
+		final Map<String, MarkLogicPublishResult> results = environment.getChannelType().publishFanOut(nodeRef, channels);
+
+		assertEquals(2, results.size());
+		assertMetadataNotPublished(results.get("primary"));
+		assertMetadataNotPublished(results.get("secondary"));
+	}
+
+	/**
+	 * Makes the stub server reject the properties document of a node.
+	 *
+	 * @param nodeRef the node ref
+	 * @return the node ref
+	 */
+	private NodeRef rejectMetadata(final NodeRef nodeRef) {
+		server.setMetadataStatus(nodeRef.toString(), 400);
+		return nodeRef;
+	}
+
+	/**
+	 * Checks that the content of a node was published but not its properties document.
+	 *
+	 * @param result the result
+	 */
+	private static void assertMetadataNotPublished(final MarkLogicPublishResult result) {
+		assertEquals(MarkLogicPublishResult.Status.PUBLISHED, result.getStatus());
+		assertEquals(204, result.getStatusCode());
+		assertTrue(result.getMessage(), result.getMessage().startsWith("Metadata not published"));
+	}
+}
@@ -0,0 +1,253 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicPublishResult;
+
+/**
+ * Publishes batches to the stub server and checks the result reported for every node.
+ */
+public class PublishBatchTest {
+
+	/** The stub server. */
+	private StubMarkLogicServer server;
+
+	/** The environment. */
+	private BenchmarkEnvironment environment;
+
+	/** The nodes without content. */
+	private final Set<NodeRef> emptyNodes = new HashSet<NodeRef>();
+
+	/**
+	 * Starts the stub server.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		server = new StubMarkLogicServer(0);
+		server.start();
+		final ContentService contentService = InMemoryContentService.create(
+				InMemoryContentService.generate(4096, "application/octet-stream"), "application/octet-stream");
+		environment = new BenchmarkEnvironment(server.getPort(), withoutContentFor(contentService), 4);
+		environment.getChannelType().setBatchMaxDocuments(2);
+	}
+
+	/**
+	 * Stops the stub server.
+	 */
+	@After
+	public void tearDown() {
+		environment.close();
+		server.stop();
+	}
+
+	/**
+	 * Every node is published, in as many requests as batchMaxDocuments needs.
+	 */
+	@Test
+	public void publishesEveryNode() {
+		final List<NodeRef> nodes = createNodes(5);
+		final Map<NodeRef, MarkLogicPublishResult> results = environment.getChannelType().publishBatch(nodes,
+				environment.getChannelProperties());
+
+		assertEquals(5, results.size());
+		for (final NodeRef nodeRef : nodes) {
+			assertResult(results, nodeRef, MarkLogicPublishResult.Status.PUBLISHED, 204);
+		}
+		assertEquals(3, server.getRequests());
+	}
+
+	/**
+	 * A document rejected by MarkLogic only fails its own node, a node without content is skipped.
+	 */
+	@Test
+	public void reportsPartialFailurePerNode() {
+		final List<NodeRef> nodes = createNodes(5);
+		server.setDocumentStatus(nodes.get(1).toString(), 400);
+		emptyNodes.add(nodes.get(3));
+
+		final Map<NodeRef, MarkLogicPublishResult> results = environment.getChannelType().publishBatch(nodes,
+				environment.getChannelProperties());
+
+		assertEquals(5, results.size());
+		assertResult(results, nodes.get(0), MarkLogicPublishResult.Status.PUBLISHED, 204);
+		assertResult(results, nodes.get(1), MarkLogicPublishResult.Status.FAILED, 400);
+		assertResult(results, nodes.get(2), MarkLogicPublishResult.Status.PUBLISHED, 204);
+		assertResult(results, nodes.get(3), MarkLogicPublishResult.Status.SKIPPED, 0);
+		assertResult(results, nodes.get(4), MarkLogicPublishResult.Status.PUBLISHED, 204);
+		assertEquals(2, server.getRequests());
+	}
+
+	/**
+	 * A rejected request fails every node it carried, and only those.
+	 */
+	@Test
+	public void failsEveryNodeOfRejectedRequest() {
+		final List<NodeRef> nodes = createNodes(2);
+		emptyNodes.add(nodes.get(1));
+		server.setErrorStatus(400);
+		server.setErrorRate(1);
+
+		final Map<NodeRef, MarkLogicPublishResult> results = environment.getChannelType().publishBatch(nodes,
+				environment.getChannelProperties());
+
+		assertResult(results, nodes.get(0), MarkLogicPublishResult.Status.FAILED, 400);
+		assertResult(results, nodes.get(1), MarkLogicPublishResult.Status.SKIPPED, 0);
+	}
+
+	/**
+	 * The nodes published in one transaction are sent together when it commits.
+	 */
+	@Test
+	public void batchesPublishingEvent() {
+		environment.getChannelType().setBatchPublishingEvents(true);
+		final List<NodeRef> nodes = createNodes(3);
+
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			for (final NodeRef nodeRef : nodes) {
+				environment.getChannelType().publish(nodeRef, environment.getChannelProperties());
+			}
+			assertEquals(0, server.getRequests());
+			commit();
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		assertEquals(2, server.getRequests());
+	}
+
+	/**
+	 * A node of a publishing event rejected by MarkLogic fails the commit of the event.
+	 */
+	@Test
+	public void failsPublishingEventOfRejectedNode() {
+		environment.getChannelType().setBatchPublishingEvents(true);
+		final List<NodeRef> nodes = createNodes(2);
+		server.setDocumentStatus(nodes.get(1).toString(), 400);
+
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			for (final NodeRef nodeRef : nodes) {
+				environment.getChannelType().publish(nodeRef, environment.getChannelProperties());
+			}
+			commit();
+			fail("A rejected node fails the publishing event");
+		} catch (AlfrescoRuntimeException alfEx) {
+			assertTrue(alfEx.getMessage(), alfEx.getMessage().indexOf(nodes.get(1).toString()) >= 0);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+
+	/**
+	 * Commits the transaction of the current thread the way the transaction manager does, rolling it back
+	 * when a synchronization fails before the commit.
+	 */
+	private static void commit() {
+		final List<TransactionSynchronization> synchronizations =
+				TransactionSynchronizationManager.getSynchronizations();
+		try {
+			for (final TransactionSynchronization synchronization : synchronizations) {
+				synchronization.beforeCommit(false);
+			}
+		} catch (RuntimeException runtimeEx) {
+			for (final TransactionSynchronization synchronization : synchronizations) {
+				synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+			}
+			throw runtimeEx;
+		}
+		for (final TransactionSynchronization synchronization : synchronizations) {
+			synchronization.afterCommit();
+			synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+		}
+	}
+
+	/**
+	 * Checks the result of a node.
+	 *
+	 * @param results the results
+	 * @param nodeRef the node ref
+	 * @param status the expected status
+	 * @param httpStatus the expected http status
+	 */
+	private static void assertResult(final Map<NodeRef, MarkLogicPublishResult> results, final NodeRef nodeRef,
+			final MarkLogicPublishResult.Status status, final int httpStatus) {
+		final MarkLogicPublishResult result = results.get(nodeRef);
+		assertNotNull("No result for " + nodeRef, result);
+		assertEquals(nodeRef.toString(), status, result.getStatus());
+		assertEquals(nodeRef.toString(), httpStatus, result.getStatusCode());
+	}
+
+	/**
+	 * Creates new node refs.
+	 *
+	 * @param count the count
+	 * @return the node refs
+	 */
+	private List<NodeRef> createNodes(final int count) {
+		final List<NodeRef> nodes = new ArrayList<NodeRef>(count);
+		for (int i = 0; i < count; i++) {
+			nodes.add(environment.nextNodeRef());
+		}
+		return nodes;
+	}
+
+	/**
+	 * Wraps a content service so that the nodes in {@link #emptyNodes} have no content.
+	 *
+	 * @param contentService the content service
+	 * @return the content service
+	 */
+	private ContentService withoutContentFor(final ContentService contentService) {
+		return (ContentService) Proxy.newProxyInstance(ContentService.class.getClassLoader(),
+				new Class<?>[] {ContentService.class}, new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+						if ("getReader".equals(method.getName()) && emptyNodes.contains(args[0])) {
+							return null;
+						}
+						try {
+							return method.invoke(contentService, args);
+						} catch (InvocationTargetException invocationEx) {
+							throw invocationEx.getCause();
+						}
+					}
+				});
+	}
+}
@@ -0,0 +1,273 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.publishing.channels.Channel;
+import org.alfresco.service.cmr.publishing.channels.ChannelService;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zaizi.alfresco.publishing.marklogic.MarkLogicReconciler;
+
+/**
+ * Reconciles the published copies of an in memory channel with the listing of the stub server.
+ */
+public class ReconcilerTest {
+
+	/** The Constant CHANNEL_NAME. */
+	private final static String CHANNEL_NAME = "MyMarkLogicChannel";
+
+	/** The Constant CHANNEL_NODE. */
+	private final static NodeRef CHANNEL_NODE = new NodeRef("workspace://SpacesStore/channel");
+
+	/** The Constant MIME_TYPE. */
+	private final static String MIME_TYPE = "text/xml";
+
+	/** The Constant QUERY_PATTERN, the published copies of a channel after a node uuid. */
+	private final static Pattern QUERY_PATTERN = Pattern.compile(
+			"PARENT:\"([^\"]+)\"(?: AND @sys\\\\:node-uuid:<\"([^\"]+)\" TO MAX\\])?");
+
+	/** The stub server. */
+	private StubMarkLogicServer server;
+
+	/** The environment. */
+	private BenchmarkEnvironment environment;
+
+	/** The reconciler. */
+	private MarkLogicReconciler reconciler;
+
+	/** The time the nodes and documents were last modified, well before the settle time. */
+	private final long modified = System.currentTimeMillis() - 3600000;
+
+	/** The parent of every node, keyed by node uuid in uri order. */
+	private final TreeMap<String, NodeRef> parents = new TreeMap<String, NodeRef>();
+
+	/** The searches answered. */
+	private final List<SearchParameters> searches = new ArrayList<SearchParameters>();
+
+	/**
+	 * Starts the stub server and wires a reconciler reading pages of two.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		server = new StubMarkLogicServer(0);
+		server.start();
+		environment = new BenchmarkEnvironment(server.getPort(), InMemoryContentService.create(
+				InMemoryContentService.generate(1024, MIME_TYPE), MIME_TYPE), 4);
+
+		final Channel channel = fake(Channel.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				if ("getNodeRef".equals(method.getName())) {
+					return CHANNEL_NODE;
+				}
+				return "getProperties".equals(method.getName()) ? environment.getChannelProperties() : null;
+			}
+		});
+		final RetryingTransactionHelper transactionHelper = new RetryingTransactionHelper() {
+			@Override
+			public <R> R doInTransaction(final RetryingTransactionCallback<R> callback, final boolean readOnly,
+					final boolean requiresNew) {
+				try {
+					return callback.execute();
+				} catch (RuntimeException runtimeEx) {
+					throw runtimeEx;
+				} catch (Throwable throwable) {
+					throw new AlfrescoRuntimeException("Transaction failed", throwable);
+				}
+			}
+		};
+
+		reconciler = new MarkLogicReconciler();
+		reconciler.setChannelType(environment.getChannelType());
+		reconciler.setPublishingHelper(environment.getPublishingHelper());
+		reconciler.setRequestExecutor(environment.getRequestExecutor());
+		reconciler.setSearchService(fake(SearchService.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return query((SearchParameters) args[0]);
+			}
+		}));
+		reconciler.setNodeService(fake(NodeService.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				final NodeRef nodeRef = (NodeRef) args[0];
+				if ("exists".equals(method.getName())) {
+					return Boolean.valueOf(parents.containsKey(nodeRef.getId()));
+				} else if ("getProperty".equals(method.getName())) {
+					return new Date(modified);
+				}
+				final Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+				properties.put(ContentModel.PROP_CONTENT, new ContentData(null, MIME_TYPE, 1024, "UTF-8"));
+				properties.put(ContentModel.PROP_MODIFIED, new Date(modified));
+				return properties;
+			}
+		}));
+		reconciler.setChannelService(fake(ChannelService.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return CHANNEL_NAME.equals(args[0]) ? channel : null;
+			}
+		}));
+		reconciler.setTransactionService(fake(TransactionService.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return transactionHelper;
+			}
+		}));
+		reconciler.setPageSize(2);
+		reconciler.setIntervalMinutes(0);
+		reconciler.afterPropertiesSet();
+	}
+
+	/**
+	 * Stops the reconciler and the stub server.
+	 *
+	 * @throws Exception the exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		reconciler.destroy();
+		environment.close();
+		server.stop();
+	}
+
+	/**
+	 * Published copies missing in MarkLogic are republished and documents without a node are removed,
+	 * while a node never published to the channel is neither republished nor removed.
+	 */
+	@Test
+	public void reconcilesOnlyPublishedCopies() {
+		final NodeRef inSync = addNode("a-in-sync", CHANNEL_NODE);
+		final NodeRef missing = addNode("b-missing", CHANNEL_NODE);
+		final NodeRef unpublished = addNode("c-not-published", new NodeRef("workspace://SpacesStore/folder"));
+		final String orphan = "workspace://SpacesStore/d-orphan";
+		server.addListedDocument(inSync.toString(), modified);
+		server.addListedDocument(orphan, modified);
+
+		reconciler.reconcileNow(CHANNEL_NAME);
+
+		assertTrue(server.isBatchDocument(missing.toString()));
+		assertFalse(server.isBatchDocument(inSync.toString()));
+		assertFalse("A node not published to the channel is not republished",
+				server.isBatchDocument(unpublished.toString()));
+		assertFalse(server.isListed(orphan));
+		assertEquals(1, reconciler.getMissing());
+		assertEquals(1, reconciler.getOrphaned());
+		assertEquals(1, reconciler.getRepublished());
+		assertEquals(1, reconciler.getUnpublished());
+		assertEquals(0, reconciler.getFailed());
+	}
+
+	/**
+	 * Every page continues after the last node read instead of skipping the earlier pages.
+	 */
+	@Test
+	public void pagesAfterLastNode() {
+		for (int i = 0; i < 5; i++) {
+			server.addListedDocument(addNode("node-" + i, CHANNEL_NODE).toString(), modified);
+		}
+
+		reconciler.reconcileNow(CHANNEL_NAME);
+
+		assertEquals(3, searches.size());
+		for (final SearchParameters searchParameters : searches) {
+			assertEquals(0, searchParameters.getSkipCount());
+		}
+		assertEquals(10, reconciler.getEntriesRead());
+		assertEquals(0, reconciler.getMissing());
+		assertEquals(0, reconciler.getOrphaned());
+	}
+
+	/**
+	 * Adds a node.
+	 *
+	 * @param uuid the node uuid
+	 * @param parent the parent
+	 * @return the node ref
+	 */
+	private NodeRef addNode(final String uuid, final NodeRef parent) {
+		parents.put(uuid, parent);
+		return new NodeRef("workspace://SpacesStore/" + uuid);
+	}
+
+	/**
+	 * Answers a page of the children of a node, after a node uuid if the query has one.
+	 *
+	 * @param searchParameters the search parameters
+	 * @return the result set
+	 */
+	private ResultSet query(final SearchParameters searchParameters) {
+		searches.add(searchParameters);
+		final Matcher matcher = QUERY_PATTERN.matcher(searchParameters.getQuery());
+		assertTrue(searchParameters.getQuery(), matcher.matches());
+		final Set<String> uuids = matcher.group(2) == null ? parents.keySet()
+				: parents.tailMap(matcher.group(2), false).keySet();
+		final List<NodeRef> page = new ArrayList<NodeRef>();
+		for (final String uuid : uuids) {
+			if (page.size() == searchParameters.getMaxItems()) {
+				break;
+			}
+			if (parents.get(uuid).toString().equals(matcher.group(1))) {
+				page.add(new NodeRef("workspace://SpacesStore/" + uuid));
+			}
+		}
+		return fake(ResultSet.class, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return "getNodeRefs".equals(method.getName()) ? page : null;
+			}
+		});
+	}
+
+	/**
+	 * Creates a fake of a service interface.
+	 *
+	 * @param <T> the type
+	 * @param type the interface
+	 * @param handler the handler
+	 * @return the fake
+	 */
+	private static <T> T fake(final Class<T> type, final InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(ReconcilerTest.class.getClassLoader(), new Class<?>[] { type },
+				handler));
+	}
+}
@@ -0,0 +1,174 @@
+/*********************************************************************************
+ *   Copyright 2012 Zaizi Ltd
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ********************************************************************************/
+package org.zaizi.alfresco.publishing.marklogic.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.util.TempFileProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Publishes content without a backing file to the stub server and checks that it is streamed, not
+ * copied to a temp file first.
+ */
+public class StreamingPublishTest {
+
+	/** The Constant CONTENT_SIZE. */
+	private final static int CONTENT_SIZE = 256 * 1024;
+
+	/** The stub server. */
+	private StubMarkLogicServer server;
+
+	/** The environment. */
+	private BenchmarkEnvironment environment;
+
+	/** The reader methods called by the channel. */
+	private final List<String> readerCalls = new CopyOnWriteArrayList<String>();
+
+	/** The files in the temp dir whenever the content was opened. */
+	private final List<Integer> tempFilesWhileSending = new CopyOnWriteArrayList<Integer>();
+
+	/**
+	 * Starts the stub server.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		server = new StubMarkLogicServer(0);
+		server.start();
+		final ContentService contentService = InMemoryContentService.create(
+				InMemoryContentService.generate(CONTENT_SIZE, "application/octet-stream"), "application/octet-stream");
+		environment = new BenchmarkEnvironment(server.getPort(), recording(contentService), 4);
+	}
+
+	/**
+	 * Stops the stub server.
+	 */
+	@After
+	public void tearDown() {
+		environment.close();
+		server.stop();
+	}
+
+	/**
+	 * A streamed publish leaves no file behind and never has one while the content is sent.
+	 */
+	@Test
+	public void publishCreatesNoTempFile() {
+		final int before = countTempFiles();
+		environment.getChannelType().publishNow(environment.nextNodeRef(), environment.getChannelProperties());
+
+		assertEquals(before, countTempFiles());
+		assertTrue(readerCalls.contains("getContentInputStream"));
+		assertTrue(!readerCalls.contains("getContent"));
+		for (final Integer whileSending : tempFilesWhileSending) {
+			assertEquals(before, whileSending.intValue());
+		}
+		assertEquals(1, server.getRequests());
+		assertEquals(CONTENT_SIZE, server.getBytesReceived());
+	}
+
+	/**
+	 * With streaming switched off the content is copied to a temp file, which is removed afterwards.
+	 */
+	@Test
+	public void publishWithoutStreamingCopiesToTempFile() {
+		environment.getChannelType().setStreamContent(false);
+		final int before = countTempFiles();
+		environment.getChannelType().publishNow(environment.nextNodeRef(), environment.getChannelProperties());
+
+		assertTrue(readerCalls.contains("getContent"));
+		assertEquals(before, countTempFiles());
+		assertEquals(CONTENT_SIZE, server.getBytesReceived());
+	}
+
+	/**
+	 * Counts the files of the temp dir used by the channel.
+	 *
+	 * @return the file count
+	 */
+	private static int countTempFiles() {
+		final File[] files = TempFileProvider.getLongLifeTempDir("marklogic").listFiles();
+		return files == null ? 0 : files.length;
+	}
+
+	/**
+	 * Wraps the readers of a content service to record the methods called on them.
+	 *
+	 * @param contentService the content service
+	 * @return the recording content service
+	 */
+	private ContentService recording(final ContentService contentService) {
+		return (ContentService) Proxy.newProxyInstance(ContentService.class.getClassLoader(),
+				new Class<?>[] {ContentService.class}, new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+						final Object result = invokeTarget(contentService, method, args);
+						return result instanceof ContentReader ? recording((ContentReader) result) : result;
+					}
+				});
+	}
+
+	/**
+	 * Wraps a reader to record the methods called on it and on the readers it hands out.
+	 *
+	 * @param reader the reader
+	 * @return the recording reader
+	 */
+	private ContentReader recording(final ContentReader reader) {
+		return (ContentReader) Proxy.newProxyInstance(ContentReader.class.getClassLoader(),
+				new Class<?>[] {ContentReader.class}, new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+						readerCalls.add(method.getName());
+						if ("getContentInputStream".equals(method.getName())) {
+							tempFilesWhileSending.add(Integer.valueOf(countTempFiles()));
+						}
+						final Object result = invokeTarget(reader, method, args);
+						return result instanceof ContentReader ? recording((ContentReader) result) : result;
+					}
+				});
+	}
+
+	/**
+	 * Invokes a method on the wrapped object, rethrowing what it throws.
+	 *
+	 * @param target the target
+	 * @param method the method
+	 * @param args the args
+	 * @return the result
+	 * @throws Throwable the throwable
+	 */
+	private static Object invokeTarget(final Object target, final Method method, final Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException invocationEx) {
+			throw invocationEx.getCause();
+		}
+	}
+}